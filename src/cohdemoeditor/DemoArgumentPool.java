@@ -0,0 +1,121 @@
+package cohdemoeditor;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DemoArgumentPool shares the argument text that large demos repeat
+ * thousands of times, such as costume part names, FX paths, and NPC class
+ * names, so that every command holding the same text holds the same String.
+ *
+ * The pool is a fixed number of slots, each holding a weak reference to the
+ * last String put there, chosen by the String's hash, like the command cache
+ * of a DemoFileReader. It never grows, never keeps a String alive on its own,
+ * and a String that collides with another is simply not shared. Strings
+ * shorter than MIN_LENGTH are not worth a slot and are returned as they are.
+ * Numbers are not pooled either; see poolsArgument.
+ *
+ * The pool can be used from any thread. Two threads pooling at once may miss
+ * a chance to share, but never get the wrong String.
+ *
+ * The heap saved is estimated as each shared String's characters at two
+ * bytes apiece, plus STRING_OVERHEAD for the String and its array. A
+ * DemoCommandStore that keeps a row's text only once in its arena counts
+ * the characters it did not copy here too; see countShared.
+ *
+ * @author Darren Lee
+ */
+public final class DemoArgumentPool {
+
+	public static final int MIN_LENGTH = 8;
+	public static final int STRING_OVERHEAD = 40;
+	private static final int POOL_SIZE = 1 << 14;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final WeakReference<String>[] slots = new WeakReference[POOL_SIZE];
+	private static final AtomicLong sharedCount = new AtomicLong();
+	private static final AtomicLong savedBytes = new AtomicLong();
+
+	private DemoArgumentPool() {
+	}
+
+	/**
+	 * Returns the pooled String equal to the given one, pooling it if there
+	 * is none.
+	 *
+	 * @param str
+	 * @return a String equal to str, or null if str is null
+	 */
+	public static String intern(String str) {
+		if (str == null || str.length() < MIN_LENGTH)
+			return str;
+		final int hash = str.hashCode();
+		final int slot = (hash ^ (hash >>> 14)) & (POOL_SIZE - 1);
+		final WeakReference<String> ref = slots[slot];
+		final String pooled = ref == null ? null : ref.get();
+		if (pooled != null && pooled.equals(str)) {
+			if (pooled != str)
+				countShared(str.length(), STRING_OVERHEAD);
+			return pooled;
+		}
+		slots[slot] = new WeakReference<String>(str);
+		return str;
+	}
+
+	/**
+	 * Determines if the given argument of the command with the given id is
+	 * pooled: any argument that DemoCommandSchema does not list as numeric.
+	 *
+	 * @param commandId
+	 * @param index
+	 * @return
+	 */
+	public static boolean poolsArgument(int commandId, int index) {
+		return !DemoCommandSchema.isNumeric(commandId, index);
+	}
+
+	/**
+	 * Determines if the whole argument text of the command with the given id
+	 * is pooled: only if none of its arguments is numeric.
+	 *
+	 * @param commandId
+	 * @return
+	 */
+	public static boolean poolsArguments(int commandId) {
+		return DemoCommandSchema.getNumericArguments(commandId) == 0;
+	}
+
+	/**
+	 * Counts a copy of some argument text that was avoided.
+	 *
+	 * @param chars
+	 *            the number of characters not copied
+	 * @param overhead
+	 *            the bytes saved besides the characters
+	 */
+	static void countShared(int chars, int overhead) {
+		sharedCount.incrementAndGet();
+		savedBytes.addAndGet(2L * chars + overhead);
+	}
+
+	/**
+	 * Returns the number of copies of argument text that have been shared
+	 * instead of kept, since the program started.
+	 *
+	 * @return
+	 */
+	public static long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	/**
+	 * Returns an estimate of the bytes of heap saved by sharing argument
+	 * text, since the program started. Text that has since been discarded is
+	 * still counted.
+	 *
+	 * @return
+	 */
+	public static long getSavedBytes() {
+		return savedBytes.get();
+	}
+}
@@ -0,0 +1,275 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A DemoBlockIndex lists the blocks of a block-compressed demo, so that part
+ * of the demo can be read without decompressing all of it.
+ *
+ * Compressed demos are gzip files, and can be opened by any gzip tool. The
+ * demos the editor writes (any file saved with a name ending in .gz) are made
+ * of a series of gzip members, each holding about BLOCK_SIZE bytes of whole
+ * lines. The header of every member carries an extra field that records the
+ * size of the member, the absolute time just before its first command, and
+ * the largest absolute time in it. Reading those headers gives the index,
+ * without decompressing anything.
+ *
+ * Other gzip files can still be read from start to finish; they just have no
+ * index.
+ *
+ * @author Darren Lee
+ */
+public class DemoBlockIndex {
+
+	/**
+	 * The number of uncompressed bytes in each block.
+	 */
+	public static final int BLOCK_SIZE = 1 << 20;
+	/**
+	 * The file name extension that selects compression when saving.
+	 */
+	public static final String EXTENSION = ".gz";
+
+	static final int HEADER_SIZE = 28;
+	static final int TRAILER_SIZE = 8;
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FEXTRA = 4;
+	private static final int XLEN = 16;
+	private static final byte SUBFIELD_1 = 'C';
+	private static final byte SUBFIELD_2 = 'D';
+
+	private final File file;
+	private long[] offsets;
+	private int[] baseTimes;
+	private int[] maxTimes;
+	private int size = 0;
+
+	private DemoBlockIndex(File file) {
+		this.file = file;
+		offsets = new long[16];
+		baseTimes = new int[16];
+		maxTimes = new int[16];
+	}
+
+	/**
+	 * Determines if the given file is gzip-compressed, by its contents rather
+	 * than its name.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static boolean isCompressed(File file) {
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				return (in.read() | (in.read() << 8)) == GZIP_MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Determines if a file with the given name should be written compressed.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static boolean isCompressedName(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Reads the index of a block-compressed demo. Returns null if the file is
+	 * not a block-compressed demo, including if it is an ordinary gzip file.
+	 *
+	 * @param file
+	 * @return the index, or null
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public static DemoBlockIndex read(File file) throws FileNotFoundException,
+			IOException {
+		DemoBlockIndex index = new DemoBlockIndex(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.LITTLE_ENDIAN);
+			long offset = 0;
+			while (offset < length) {
+				header.clear();
+				while (header.hasRemaining()) {
+					if (channel.read(header, offset + header.position()) < 0)
+						return null;
+				}
+				final int memberSize = readHeader(header);
+				if (memberSize < HEADER_SIZE + TRAILER_SIZE)
+					return null;
+				index.add(offset, header.getInt(20), header.getInt(24));
+				offset += memberSize;
+			}
+			if (offset != length)
+				return null;
+		} finally {
+			raf.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Checks the header of a block and returns the size of the block, or -1
+	 * if it is not a block header.
+	 */
+	static int readHeader(ByteBuffer header) {
+		if ((header.getShort(0) & 0xffff) != GZIP_MAGIC
+				|| header.get(2) != 8 || (header.get(3) & FEXTRA) == 0
+				|| header.getShort(10) != XLEN
+				|| header.get(12) != SUBFIELD_1
+				|| header.get(13) != SUBFIELD_2 || header.getShort(14) != 12)
+			return -1;
+		return header.getInt(16);
+	}
+
+	/**
+	 * Fills in the header of a block.
+	 */
+	static void writeHeader(ByteBuffer header, int memberSize, int baseTime,
+			int maxTime) {
+		header.putShort(0, (short) GZIP_MAGIC);
+		header.put(2, (byte) 8);
+		header.put(3, (byte) FEXTRA);
+		header.putInt(4, 0);
+		header.put(8, (byte) 0);
+		header.put(9, (byte) 255);
+		header.putShort(10, (short) XLEN);
+		header.put(12, SUBFIELD_1);
+		header.put(13, SUBFIELD_2);
+		header.putShort(14, (short) 12);
+		header.putInt(16, memberSize);
+		header.putInt(20, baseTime);
+		header.putInt(24, maxTime);
+	}
+
+	/**
+	 * Opens a compressed demo for reading from the start. Blocks are
+	 * decompressed on a separate thread while the reader parses.
+	 *
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	static DemoFileReader.ChunkSource openChunks(File file)
+			throws FileNotFoundException, IOException {
+		DemoBlockIndex index = read(file);
+		if (index == null)
+			return new DemoInflater(file);
+		return new DemoInflater(file, 0, index.getLength());
+	}
+
+	private void add(long offset, int baseTime, int maxTime) {
+		if (size == offsets.length) {
+			long[] o = new long[size * 2];
+			int[] b = new int[size * 2];
+			int[] m = new int[size * 2];
+			System.arraycopy(offsets, 0, o, 0, size);
+			System.arraycopy(baseTimes, 0, b, 0, size);
+			System.arraycopy(maxTimes, 0, m, 0, size);
+			offsets = o;
+			baseTimes = b;
+			maxTimes = m;
+		}
+		offsets[size] = offset;
+		baseTimes[size] = baseTime;
+		maxTimes[size] = maxTime;
+		size++;
+	}
+
+	/**
+	 * Returns the file this index describes.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of blocks.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the size of the compressed file.
+	 */
+	public long getLength() {
+		return file.length();
+	}
+
+	/**
+	 * Returns the offset of the given block in the compressed file.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public long getOffset(int block) {
+		return block < size ? offsets[block] : getLength();
+	}
+
+	/**
+	 * Returns the absolute time just before the first command of the given
+	 * block. Add the relative times of the block's commands to this.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int getBaseTime(int block) {
+		return baseTimes[block];
+	}
+
+	/**
+	 * Returns the largest absolute time in the given block.
+	 *
+	 * @param block
+	 * @return
+	 */
+	public int getMaxTime(int block) {
+		return maxTimes[block];
+	}
+
+	/**
+	 * Returns the first block that may hold a command at or after the given
+	 * time, or size() if there is none. No earlier block has such a command.
+	 *
+	 * @param time
+	 * @return
+	 */
+	public int findBlock(int time) {
+		for (int i = 0; i < size; i++) {
+			if (maxTimes[i] >= time)
+				return i;
+		}
+		return size;
+	}
+
+	/**
+	 * Opens a reader over the blocks from first (inclusive) to last
+	 * (exclusive). Only those blocks are decompressed, on a separate thread.
+	 * Times are relative to getBaseTime(first).
+	 *
+	 * @param first
+	 * @param last
+	 * @return
+	 */
+	public DemoFileReader openReader(int first, int last) {
+		return new DemoFileReader(new DemoInflater(file, getOffset(first),
+				getOffset(last)));
+	}
+}
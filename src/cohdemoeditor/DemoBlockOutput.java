@@ -0,0 +1,133 @@
+package cohdemoeditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A DemoBlockOutput is a channel that writes a block-compressed demo. Bytes
+ * written to it are collected until endBlock is called, and each block is
+ * then compressed into a gzip member whose header records the block's size
+ * and times, as described in DemoBlockIndex. A DemoFileWriter writing to a
+ * DemoBlockOutput ends a block after every BLOCK_SIZE bytes of whole lines.
+ *
+ * @author Darren Lee
+ */
+public class DemoBlockOutput implements WritableByteChannel {
+
+	private final WritableByteChannel channel;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+	private final CRC32 crc = new CRC32();
+	private byte[] block = new byte[DemoBlockIndex.BLOCK_SIZE + (1 << 16)];
+	private int length = 0;
+	private byte[] compressed = new byte[0];
+	private int baseTime;
+	private boolean open = true;
+
+	/**
+	 * Creates an output that writes the compressed blocks to the given
+	 * channel. The channel is closed when this output is closed.
+	 *
+	 * @param channel
+	 */
+	public DemoBlockOutput(WritableByteChannel channel) {
+		this(channel, 0);
+	}
+
+	/**
+	 * Creates an output whose first block starts after the given absolute
+	 * time, for writing part of a demo on its own.
+	 *
+	 * @param channel
+	 * @param baseTime
+	 */
+	public DemoBlockOutput(WritableByteChannel channel, int baseTime) {
+		this.channel = channel;
+		this.baseTime = baseTime;
+	}
+
+	/**
+	 * Adds the bytes to the current block.
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		final int n = src.remaining();
+		if (length + n > block.length) {
+			byte[] bigger = new byte[Math.max(block.length * 2, length + n)];
+			System.arraycopy(block, 0, bigger, 0, length);
+			block = bigger;
+		}
+		src.get(block, length, n);
+		length += n;
+		return n;
+	}
+
+	/**
+	 * Returns the number of bytes in the current block.
+	 */
+	public int getBlockLength() {
+		return length;
+	}
+
+	/**
+	 * Compresses and writes the current block. The block should end at the
+	 * end of a line.
+	 *
+	 * @param lastTime
+	 *            the absolute time of the last command in the block, which
+	 *            becomes the base time of the next block
+	 * @param maxTime
+	 *            the largest absolute time in the block
+	 * @throws IOException
+	 */
+	public void endBlock(int lastTime, int maxTime) throws IOException {
+		if (length == 0)
+			return;
+		deflater.reset();
+		deflater.setInput(block, 0, length);
+		deflater.finish();
+		final int bound = DemoBlockIndex.HEADER_SIZE + length + length / 8
+				+ 64 + DemoBlockIndex.TRAILER_SIZE;
+		if (compressed.length < bound)
+			compressed = new byte[bound];
+		int n = DemoBlockIndex.HEADER_SIZE;
+		while (!deflater.finished()) {
+			if (n == compressed.length - DemoBlockIndex.TRAILER_SIZE) {
+				byte[] bigger = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, bigger, 0, n);
+				compressed = bigger;
+			}
+			n += deflater.deflate(compressed, n, compressed.length
+					- DemoBlockIndex.TRAILER_SIZE - n);
+		}
+		crc.reset();
+		crc.update(block, 0, length);
+		final ByteBuffer out = ByteBuffer.wrap(compressed, 0,
+				n + DemoBlockIndex.TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		DemoBlockIndex.writeHeader(out, n + DemoBlockIndex.TRAILER_SIZE,
+				baseTime, maxTime);
+		out.putInt(n, (int) crc.getValue());
+		out.putInt(n + 4, length);
+		while (out.hasRemaining())
+			channel.write(out);
+		length = 0;
+		baseTime = lastTime;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes the underlying channel. Any bytes not ended with endBlock are
+	 * lost, so end the last block first.
+	 */
+	public void close() throws IOException {
+		open = false;
+		deflater.end();
+		channel.close();
+	}
+}
@@ -26,13 +26,35 @@ import java.util.*;
  * list. This prevents updates to the demo file format from breaking the editor,
  * as happened when DYNGROUPS and SKYFILE references were added.
  * 
+ * Commands are numbered the same way: every distinct command gets an id the
+ * first time it is seen, so that commands can be compared as ints. The ids
+ * are only good for the current run.
+ * 
+ * The numeric arguments of a command, as given by its DemoCommandSchema, can
+ * be read and written as doubles with getDouble and setDouble. They are
+ * decoded once and kept; a number set with setDouble is only turned back into
+ * text when the text of the arguments is needed.
+ * 
+ * The arguments of a command read from a file are kept as the single String
+ * DemoFileReader.getArgumentText returns, which is also what getArguments
+ * returns, and are only split the first time one is asked for by index. Most
+ * commands in a demo are only ever shown, saved, or filtered, none of which
+ * needs them split. Once split, the joined text is kept until the arguments
+ * change.
+ * 
+ * Argument text that is not numeric is shared through the DemoArgumentPool,
+ * whether it is read from a file, split, or set.
+ * 
  * A DemoCommand is StateEditable, so we can easily manage undo/redo through the
  * javax.swing.undo package.
  * 
+ * Changes are reported to the DemoCommandBus of each DemoCommandList the
+ * command has been added to, rather than to listeners of its own; listen to
+ * a list's commands with DemoCommandList.addDemoCommandListener.
+ * 
  * @author Darren Lee
  */
-public class DemoCommand implements javax.swing.undo.StateEditable,
-		EventsEnabledListener {
+public class DemoCommand implements javax.swing.undo.StateEditable {
 
 	public static final int TIME_DIGITS = 3;
 	public static final int TARGET_DIGITS = 3;
@@ -43,19 +65,29 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	public static final int SKYFILE_INDEX = -3;
 	public static final String SKYFILE_ID = "SKYFILE";
 	private static final ArrayList<String> objectStrings;
+	private static final HashMap<String, Integer> objectIndices;
+	private static final HashMap<String, Integer> commandIds;
+	private static volatile String[] commandNames;
+	private static int commandCount = 0;
 
 	private int time;
 	private int reference;
 	private String command;
-	private final ArrayList<String> arguments;
+	private int commandId;
+	private ArrayList<String> arguments;
+	private String argumentText = null;
 	private int id = -1;
+	private double[] numbers = null;
+	private int decoded = 0;
+	private int stale = 0;
+
+	private DemoSource source = null;
+	private long sourceOffset;
+	private int sourceLength;
+	private int sourceTime;
 
-	private boolean listenersFiring = false;
-	private Set<DemoCommandListener> toRemove = null;
-	private Set<DemoCommandListener> toAdd = null;
-	private Set<DemoCommandListener> listeners = new HashSet<DemoCommandListener>();
-	private boolean eventsEnabled = true;
-	private Object[] oldValues = new Object[DemoCommandListFilter.NUM_COLS];
+	private static final DemoCommandBus[] NO_BUSES = new DemoCommandBus[0];
+	private DemoCommandBus[] buses = NO_BUSES;
 
 	private static final List<String> commandOrder;
 	private static final String[] commandOrderArray = { "Version", "Map",
@@ -67,13 +99,23 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	/**
 	 * Static initializer block. Initializes the default object strings for the
 	 * CAM, DYNGROUPS, and SKYFILE references. Initializes the command order.
+	 * 
+	 * The object strings may be registered from several loader threads at
+	 * once, so every access to objectStrings and objectIndices is synchronized
+	 * on objectStrings. The same goes for commands: commandIds is synchronized
+	 * on, while commandNames, which never shrinks, is read without a lock.
 	 */
 	static {
 		objectStrings = new ArrayList<String>();
+		objectIndices = new HashMap<String, Integer>();
 		objectStrings.add(0, "");
 		objectStrings.add(-CAM_INDEX, CAM_ID);
 		objectStrings.add(-DYNGROUPS_INDEX, DYNGROUPS_ID);
 		objectStrings.add(-SKYFILE_INDEX, SKYFILE_ID);
+		for (int i = 0; i < objectStrings.size(); i++)
+			objectIndices.put(objectStrings.get(i), i);
+		commandIds = new HashMap<String, Integer>();
+		commandNames = new String[64];
 		commandOrder = new ArrayList<String>(commandOrderArray.length);
 		for(String str : commandOrderArray) commandOrder.add(str);
 	}
@@ -83,21 +125,86 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 		this.time = time;
 		this.reference = objNum;
 		this.command = command;
+		commandId = getCommandIdFor(command);
 		arguments = new ArrayList<String>(3);
 		setArguments(args);
 	}
 
+	/**
+	 * Creates a new DemoCommand with the given, already split, arguments. The
+	 * list is used directly, not copied. Used by DemoFileReader.
+	 */
+	DemoCommand(int time, int objNum, String command, ArrayList<String> args) {
+		this.time = time;
+		this.reference = objNum;
+		this.command = command;
+		commandId = getCommandIdFor(command);
+		arguments = args;
+	}
+
+	/**
+	 * Creates a new DemoCommand whose arguments are the given text, as
+	 * DemoFileReader.getArgumentText writes it. The text is only split when
+	 * an argument is asked for by index. Used by DemoFileReader and
+	 * DemoCommandStore.
+	 */
+	DemoCommand(int time, int objNum, int commandId, String argumentText) {
+		this.time = time;
+		this.reference = objNum;
+		this.command = commandNames[commandId];
+		this.commandId = commandId;
+		this.argumentText = DemoArgumentPool.poolsArguments(commandId) ? DemoArgumentPool
+				.intern(argumentText)
+				: argumentText;
+	}
+
 	/**
 	 * If index < 0 and there is a definition for index, returns the definition.
 	 * Otherwise, converts the index into a string.
 	 */
 	public static String getIDFor(int refNum) {
-		if (refNum < 0 && -refNum < objectStrings.size()) {
-			return objectStrings.get(-refNum);
+		if (refNum < 0) {
+			synchronized (objectStrings) {
+				if (-refNum < objectStrings.size())
+					return objectStrings.get(-refNum);
+			}
 		}
 		return "" + refNum;
 	}
 
+	/**
+	 * Returns the id of the given command, assigning it the next id if it has
+	 * not been seen before.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	public static int getCommandIdFor(String command) {
+		synchronized (commandIds) {
+			final Integer id = commandIds.get(command);
+			if (id != null)
+				return id;
+			String[] names = commandNames;
+			if (commandCount == names.length)
+				names = Arrays.copyOf(names, 2 * names.length);
+			names[commandCount] = command;
+			commandIds.put(command, commandCount);
+			commandNames = names;
+			return commandCount++;
+		}
+	}
+
+	/**
+	 * Returns the command with the given id.
+	 * 
+	 * @param id
+	 *            an id returned by getCommandIdFor
+	 * @return
+	 */
+	public static String getCommandFor(int id) {
+		return commandNames[id];
+	}
+
 	/**
 	 * Determines if the given String corresponds to a reference number. If the
 	 * String can be parsed to a non-negative integer, returns true. If the
@@ -112,12 +219,9 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 			int integer = Integer.valueOf(referenceName);
 			return integer >= 0;
 		} catch (NumberFormatException nfe) {
-			final int objSize = objectStrings.size();
-			for (int i = 0; i < objSize; i++) {
-				if (objectStrings.get(i).equals(referenceName))
-					return true;
+			synchronized (objectStrings) {
+				return objectIndices.containsKey(referenceName);
 			}
-			return false;
 		}
 	}
 
@@ -136,13 +240,15 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 			int index = Integer.valueOf(referenceName);
 			return index;
 		} catch (NumberFormatException nfe) {
-			final int objSize = objectStrings.size();
-			for (int i = 0; i < objSize; i++) {
-				if (objectStrings.get(i).equals(referenceName))
-					return -i;
+			synchronized (objectStrings) {
+				Integer index = objectIndices.get(referenceName);
+				if (index != null)
+					return -index;
+				final int objSize = objectStrings.size();
+				objectStrings.add(objSize, referenceName);
+				objectIndices.put(referenceName, objSize);
+				return -objSize;
 			}
-			objectStrings.add(objSize, referenceName);
-			return -objSize;
 		}
 	}
 
@@ -150,47 +256,33 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 
 	/**
 	 * Parses a single line to a DemoCommand. The different tokens are divided
-	 * by spaces or tabs (for import from a spreadsheet).
+	 * by spaces or tabs (for import from a spreadsheet). The actual parsing is
+	 * done by DemoFileReader, which uses the same rules when reading files.
 	 * 
 	 * @param str
 	 * @return
 	 */
 	public static DemoCommand parseDemoCommand(String str) {
-		String[] tokens = str.split("[ \t]+");
-		if (tokens.length < MIN_TOKENS)
-			return null;
-		int time, reference;
-		try {
-			time = Integer.valueOf(tokens[0]);
-		} catch (NumberFormatException nfe) {
-			return null;
-		}
-		try {
-			if (CAM_ID.equals(tokens[1]))
-				reference = CAM_INDEX;
-			else if (DYNGROUPS_ID.equals(tokens[1]))
-				reference = DYNGROUPS_INDEX;
-			else if (SKYFILE_ID.equals(tokens[1]))
-				reference = SKYFILE_INDEX;
-			else
-				reference = Integer.valueOf(tokens[1]);
-		} catch (NumberFormatException nfe) {
-			reference = getRefNumFor(tokens[1]);
-		}
-		String command = tokens[2];
-		String args = "";
-		for (int i = 3; i < tokens.length; i++)
-			args += " " + tokens[i];
-		args = args.trim();
-		return new DemoCommand(time, reference, command, args);
+		return DemoFileReader.parseDemoCommand(str);
 	}
 
 	/**
 	 * Creates a copy of this DemoCommand.
 	 */
 	public DemoCommand clone() {
-		DemoCommand copy = new DemoCommand(time, reference, command, null);
-		copy.arguments.addAll(arguments);
+		formatNumbers();
+		DemoCommand copy;
+		if (arguments == null) {
+			copy = new DemoCommand(time, reference, commandId, argumentText);
+		} else {
+			copy = new DemoCommand(time, reference, command,
+					new ArrayList<String>(arguments));
+			copy.argumentText = argumentText;
+		}
+		copy.source = source;
+		copy.sourceOffset = sourceOffset;
+		copy.sourceLength = sourceLength;
+		copy.sourceTime = sourceTime;
 		return copy;
 	}
 
@@ -301,16 +393,27 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 			return;
 		final String oldCmd = this.command;
 		this.command = command;
+		commandId = getCommandIdFor(command);
 		fireListeners(DemoCommandListFilter.CMD_COL, oldCmd);
 	}
 
+	/**
+	 * Returns the id of the command. See getCommandIdFor.
+	 * 
+	 * @return
+	 */
+	public int getCommandId() {
+		return commandId;
+	}
+
 	/**
 	 * Returns the number of arguments.
 	 * 
 	 * @return
 	 */
 	public int getArgumentCount() {
-		return arguments.size();
+		return arguments != null ? arguments.size()
+				: countArguments(argumentText);
 	}
 
 	/**
@@ -320,6 +423,9 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	 * @return
 	 */
 	public boolean hasArg(String arg) {
+		if (arguments == null)
+			return arg != null && indexOfArgument(argumentText, arg) >= 0;
+		formatNumbers();
 		return arguments.contains(arg);
 	}
 
@@ -331,17 +437,178 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	 * @return
 	 */
 	public String getArgument(int index) {
-		if (index < arguments.size())
+		final ArrayList<String> arguments = arguments();
+		if (index < arguments.size()) {
+			if (index < DemoCommandSchema.MAX_ARGUMENTS
+					&& (stale & (1 << index)) != 0)
+				formatNumber(index);
 			return arguments.get(index);
+		}
 		return "";
 	}
 
+	/**
+	 * Returns the argument at the given index as a double. The first time a
+	 * numeric argument is asked for, every numeric argument of the command is
+	 * decoded, and the numbers are kept until the arguments change.
+	 * 
+	 * @param index
+	 * @return
+	 * @throws NumberFormatException
+	 *             if there is no such argument or it is not a number
+	 */
+	public double getDouble(int index) {
+		if (index >= DemoCommandSchema.MAX_ARGUMENTS)
+			return Double.parseDouble(getArgument(index));
+		final int bit = 1 << index;
+		if ((decoded & bit) == 0) {
+			decodeNumbers(DemoCommandSchema.getNumericArguments(commandId)
+					| bit);
+			if ((decoded & bit) == 0)
+				return Double.parseDouble(getArgument(index));
+		}
+		return numbers[index];
+	}
+
+	/**
+	 * Sets the argument at the given index to the given number. The text of
+	 * the argument is only written, as Double.toString would write it, when
+	 * it is next needed.
+	 * 
+	 * @param index
+	 * @param value
+	 */
+	public void setDouble(int index, double value) {
+		if (index >= DemoCommandSchema.MAX_ARGUMENTS) {
+			setArgument(index, Double.toString(value));
+			return;
+		}
+		final int bit = 1 << index;
+		if ((decoded & bit) != 0
+				&& Double.doubleToLongBits(numbers[index]) == Double
+						.doubleToLongBits(value))
+			return;
+		final String oldArgs = needsOldValue(DemoCommandListFilter.ARG_COL) ? getArguments()
+				: null;
+		final ArrayList<String> arguments = arguments();
+		while (arguments.size() < index + 1) {
+			arguments.add("");
+		}
+		argumentText = null;
+		if (numbers == null)
+			numbers = new double[Math.max(3, index + 1)];
+		else if (numbers.length <= index)
+			numbers = Arrays.copyOf(numbers, index + 1);
+		numbers[index] = value;
+		decoded |= bit;
+		stale |= bit;
+		fireListeners(DemoCommandListFilter.ARG_COL, oldArgs);
+	}
+
+	/**
+	 * Decodes the arguments in the given mask that are not decoded yet.
+	 * Arguments that are missing or not numbers are left undecoded.
+	 */
+	private void decodeNumbers(int mask) {
+		mask &= ~decoded;
+		final ArrayList<String> arguments = arguments();
+		final int size = Math.min(arguments.size(),
+				DemoCommandSchema.MAX_ARGUMENTS);
+		for (int i = 0; i < size; i++) {
+			if ((mask & (1 << i)) == 0)
+				continue;
+			final String arg = arguments.get(i);
+			if (arg == null)
+				continue;
+			final double value;
+			try {
+				value = Double.parseDouble(arg);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (numbers == null)
+				numbers = new double[Math.max(3, size)];
+			else if (numbers.length <= i)
+				numbers = Arrays.copyOf(numbers, size);
+			numbers[i] = value;
+			decoded |= 1 << i;
+		}
+	}
+
+	/**
+	 * Writes the text of a number set with setDouble.
+	 */
+	private void formatNumber(int index) {
+		arguments.set(index, Double.toString(numbers[index]));
+		stale &= ~(1 << index);
+	}
+
+	/**
+	 * Writes the text of every number set with setDouble since the text was
+	 * last needed.
+	 */
+	private void formatNumbers() {
+		for (int i = 0; stale != 0; i++) {
+			if ((stale & (1 << i)) != 0)
+				formatNumber(i);
+		}
+	}
+
+	/**
+	 * Forgets the decoded numbers, as when the text of the arguments changes.
+	 */
+	private void forgetNumbers() {
+		decoded = 0;
+		stale = 0;
+	}
+
+	/**
+	 * Returns the arguments, splitting the argument text if they have not
+	 * been split yet.
+	 */
+	private ArrayList<String> arguments() {
+		if (arguments == null) {
+			arguments = DemoFileReader.splitArguments(argumentText);
+			for (int i = 0; i < arguments.size(); i++)
+				arguments.set(i, pool(i, arguments.get(i)));
+		}
+		return arguments;
+	}
+
+	/**
+	 * Returns the pooled copy of the given argument, if an argument at that
+	 * index is pooled.
+	 */
+	private String pool(int index, String arg) {
+		return DemoArgumentPool.poolsArgument(commandId, index) ? DemoArgumentPool
+				.intern(arg)
+				: arg;
+	}
+
 	/**
 	 * Gets a String representation of all of the arguments.
 	 * 
 	 * @return
 	 */
 	public String getArguments() {
+		formatNumbers();
+		if (argumentText == null)
+			argumentText = joinArguments(arguments);
+		return argumentText;
+	}
+
+	/**
+	 * Returns the text of the arguments if it is at hand, without joining
+	 * them, or null if it is not.
+	 */
+	String peekArgumentText() {
+		return argumentText;
+	}
+
+	/**
+	 * Joins the arguments into the String returned by getArguments.
+	 */
+	private static String joinArguments(List<String> arguments) {
 		if (arguments.size() == 0)
 			return "";
 		StringBuilder sb = new StringBuilder();
@@ -357,6 +624,56 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 		return sb.toString().trim();
 	}
 
+	/**
+	 * Counts the arguments in text written by DemoFileReader.getArgumentText.
+	 */
+	static int countArguments(String text) {
+		final int length = text.length();
+		int count = 0;
+		int i = 0;
+		while (i < length) {
+			count++;
+			i = nextArgument(text, i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the index of the given argument in text written by
+	 * DemoFileReader.getArgumentText, or -1 if it is not there.
+	 */
+	static int indexOfArgument(String text, String arg) {
+		final int length = text.length();
+		final int n = arg.length();
+		int index = 0;
+		int i = 0;
+		while (i < length) {
+			final int next = nextArgument(text, i);
+			final boolean quoted = text.charAt(i) == '"';
+			final int start = quoted ? i + 1 : i;
+			final int end = next < length ? next - 1 : length;
+			if ((quoted ? end - start - 1 : end - start) == n
+					&& text.regionMatches(start, arg, 0, n))
+				return index;
+			index++;
+			i = next;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the start of the argument after the one starting at i, or the
+	 * length of the text if it is the last.
+	 */
+	private static int nextArgument(String text, int i) {
+		final int end;
+		if (text.charAt(i) == '"')
+			end = text.indexOf('"', i + 1) + 1;
+		else
+			end = text.indexOf(' ', i);
+		return end <= 0 || end >= text.length() ? text.length() : end + 1;
+	}
+
 	/**
 	 * Sets the argument at the given index to the given argument.
 	 * 
@@ -367,10 +684,16 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 		if (arg == null || arg.equals(getArgument(index)))
 			return;
 		final String oldArgs = getArguments();
+		final ArrayList<String> arguments = arguments();
 		while (arguments.size() < index + 1) {
 			arguments.add("");
 		}
-		arguments.set(index, arg.trim());
+		arguments.set(index, pool(index, arg.trim()));
+		argumentText = null;
+		if (index < DemoCommandSchema.MAX_ARGUMENTS) {
+			decoded &= ~(1 << index);
+			stale &= ~(1 << index);
+		}
 		fireListeners(DemoCommandListFilter.ARG_COL, oldArgs);
 	}
 
@@ -383,7 +706,12 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 		if (args == null || args.equals(getArguments()))
 			return;
 		final String oldArgs = getArguments();
-		arguments.clear();
+		if (arguments == null)
+			arguments = new ArrayList<String>(3);
+		else
+			arguments.clear();
+		argumentText = null;
+		forgetNumbers();
 		if (args != null) {
 			String[] strarray = args.split("\"");
 			for (int i = 0; i < strarray.length; i++) {
@@ -393,11 +721,12 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 					String[] strarray2 = strarray[i].trim().split(" ");
 					for (String str : strarray2) {
 						if (!str.trim().equals(""))
-							arguments.add(str.trim());
+							arguments.add(pool(arguments.size(), str.trim()));
 					}
 				} else {
 					if (!strarray[i].trim().equals(""))
-						arguments.add(strarray[i].trim());
+						arguments.add(pool(arguments.size(), strarray[i]
+								.trim()));
 				}
 			}
 		}
@@ -428,7 +757,7 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 		while (objStr.length() < TARGET_DIGITS)
 			objStr += " ";
 		String str = timeStr + " " + objStr + " " + command;
-		if (arguments.size() > 0) {
+		if (getArgumentCount() > 0) {
 			str += " " + getArguments();
 		}
 		return str;
@@ -442,88 +771,172 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	}
 
 	/**
-	 * Adds a new listener to this DemoCommand.
+	 * Reports the changes to this DemoCommand to the given bus, as when the
+	 * command is added to a list.
 	 * 
-	 * @param l
+	 * @param bus
 	 */
-	public void addListener(DemoCommandListener l) {
-		if (listenersFiring) {
-			if (toAdd == null) {
-				toAdd = new HashSet<DemoCommandListener>();
-			}
-			toAdd.add(l);
-		} else {
-			listeners.add(l);
+	void addBus(DemoCommandBus bus) {
+		final DemoCommandBus[] old = buses;
+		for (DemoCommandBus b : old) {
+			if (b == bus)
+				return;
 		}
+		final DemoCommandBus[] newBuses = Arrays.copyOf(old, old.length + 1);
+		newBuses[old.length] = bus;
+		buses = newBuses;
 	}
 
 	/**
-	 * Removes the specified listener from this DemoCommand.
+	 * Stops reporting the changes to this DemoCommand to the given bus.
 	 * 
-	 * @param l
+	 * @param bus
 	 */
-	public void removeListener(DemoCommandListener l) {
-		if (listenersFiring) {
-			if (toRemove == null) {
-				toRemove = new HashSet<DemoCommandListener>();
+	void removeBus(DemoCommandBus bus) {
+		final DemoCommandBus[] old = buses;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == bus) {
+				if (old.length == 1) {
+					buses = NO_BUSES;
+					return;
+				}
+				final DemoCommandBus[] newBuses = new DemoCommandBus[old.length - 1];
+				System.arraycopy(old, 0, newBuses, 0, i);
+				System.arraycopy(old, i + 1, newBuses, i, old.length - i - 1);
+				buses = newBuses;
+				return;
 			}
-			toRemove.add(l);
-		} else {
-			listeners.remove(l);
 		}
 	}
 
 	/**
-	 * Fires the listeners.
+	 * Remembers the line this command was read from: its offset and length
+	 * in the source, including the line terminator, and the relative time
+	 * written on it. The line is forgotten as soon as the command changes.
 	 * 
-	 * @param column
-	 *            the column that was changed
+	 * @param source
+	 * @param offset
+	 * @param length
+	 * @param relativeTime
 	 */
-	protected void fireListeners(final int column, final Object oldValue) {
-		if (listeners.size() == 0)
-			return;
-		if (!eventsEnabled) {
-			if (oldValues[column] == null)
-				oldValues[column] = oldValue;
-			return;
-		}
-		listenersFiring = true;
-		for (DemoCommandListener l : listeners) {
-			l.demoCommandChanged(DemoCommand.this, column, oldValue);
-		}
-		listenersFiring = false;
-		if (toAdd != null && toAdd.size() > 0) {
-			for (DemoCommandListener l : toAdd) {
-				addListener(l);
-			}
-			toAdd.clear();
-		}
-		if (toRemove != null && toRemove.size() > 0) {
-			for (DemoCommandListener l : toRemove) {
-				removeListener(l);
-			}
-			toRemove.clear();
-		}
+	void setSource(DemoSource source, long offset, int length,
+			int relativeTime) {
+		this.source = source;
+		this.sourceOffset = offset;
+		this.sourceLength = length;
+		this.sourceTime = relativeTime;
 	}
 
 	/**
-	 * Enables or disables events. When events are re-enabled, fires updates on
-	 * all columns that have changed.
+	 * Returns the source this command's line can be copied from, or null if
+	 * the command was not read from an uncompressed file or has changed since.
 	 */
-	@Override
-	public void eventsEnabledChanged(boolean areEventsEnabled) {
-		if (areEventsEnabled && !eventsEnabled) {
-			eventsEnabled = true;
-			for (int i = 0; i < DemoCommandListFilter.NUM_COLS; i++) {
-				if (oldValues[i] != null)
-					fireListeners(i, oldValues[i]);
-			}
-		} else if (!areEventsEnabled && eventsEnabled) {
-			eventsEnabled = false;
-			for (int i = 0; i < DemoCommandListFilter.NUM_COLS; i++) {
-				oldValues[i] = null;
-			}
+	DemoSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the offset of this command's line in its source.
+	 */
+	long getSourceOffset() {
+		return sourceOffset;
+	}
+
+	/**
+	 * Returns the length of this command's line in its source.
+	 */
+	int getSourceLength() {
+		return sourceLength;
+	}
+
+	/**
+	 * Returns the relative time written on this command's line in its source.
+	 */
+	int getSourceTime() {
+		return sourceTime;
+	}
+
+	/**
+	 * Sets the time without firing the listeners, so that the command keeps
+	 * its source line. Only for loaders turning the times read from a file
+	 * into absolute times, before anything listens to the command.
+	 * 
+	 * @param time
+	 */
+	void setLoadedTime(int time) {
+		this.time = time;
+	}
+
+	/**
+	 * Replaces the contents of this command with a row of a
+	 * DemoCommandStore, without firing the listeners. The arguments are
+	 * cleared and the line is forgotten; loadArgument or loadArgumentText and
+	 * setSource fill them in. Only for the scratch commands a store loads its rows into.
+	 *
+	 * @param time
+	 * @param reference
+	 * @param commandId
+	 */
+	void loadRow(int time, int reference, int commandId) {
+		this.time = time;
+		this.reference = reference;
+		this.command = commandNames[commandId];
+		this.commandId = commandId;
+		if (arguments == null)
+			arguments = new ArrayList<String>(3);
+		else
+			arguments.clear();
+		argumentText = null;
+		forgetNumbers();
+		source = null;
+	}
+
+	/**
+	 * Appends an argument without firing the listeners. See loadRow.
+	 *
+	 * @param arg
+	 */
+	void loadArgument(String arg) {
+		arguments.add(arg);
+		argumentText = null;
+	}
+
+	/**
+	 * Replaces the arguments with the given text, as written by
+	 * DemoFileReader.getArgumentText, without firing the listeners. See
+	 * loadRow.
+	 *
+	 * @param text
+	 */
+	void loadArgumentText(String text) {
+		arguments = null;
+		argumentText = text;
+	}
+
+	/**
+	 * Determines if a change to the given column has to tell the listeners
+	 * its old value, so that an old value that is expensive to build is only
+	 * built when it will be used.
+	 */
+	private boolean needsOldValue(int column) {
+		for (DemoCommandBus bus : buses) {
+			if (bus.needsOldValue(this, column))
+				return true;
 		}
+		return false;
+	}
+
+	/**
+	 * Reports a change to the buses. Any change also forgets the source line,
+	 * since it no longer matches the command.
+	 * 
+	 * @param column
+	 *            the column that was changed
+	 */
+	protected void fireListeners(final int column, final Object oldValue) {
+		source = null;
+		for (DemoCommandBus bus : buses)
+			bus.commandChanged(this, column, oldValue);
 	}
 
 	/**
@@ -557,6 +970,7 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 			if (cmd != null) {
 				final String oldCmd = this.command;
 				this.command = cmd;
+				commandId = getCommandIdFor(cmd);
 				fireListeners(DemoCommandListFilter.CMD_COL, oldCmd);
 			}
 		} catch (ClassCastException e) {
@@ -613,7 +1027,8 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		for(String arg : arguments) {
+		formatNumbers();
+		for(String arg : arguments()) {
 			result = prime * result + arg.hashCode();
 		}
 		result = prime * result + ((command == null) ? 0 : command.hashCode());
@@ -641,33 +1056,41 @@ public class DemoCommand implements javax.swing.undo.StateEditable,
 			return false;
 		if (reference != other.reference)
 			return false;
-		if (command == null) {
-			if (other.command != null)
-				return false;
-		} else if (!command.equals(other.command))
+		if (commandId != other.commandId)
 			return false;
 		if (id != other.id)
 			return false;
-		if (arguments == null) {
-			if (other.arguments != null)
-				return false;
-		} else if (other.arguments == null) {
+		return sameArguments(other);
+	}
+
+	/**
+	 * Determines if this command has the same arguments as the other. Two
+	 * commands whose arguments have not been split are compared by their
+	 * text.
+	 * 
+	 * @param other
+	 * @return
+	 */
+	boolean sameArguments(DemoCommand other) {
+		if (arguments == null && other.arguments == null)
+			return argumentText.equals(other.argumentText);
+		formatNumbers();
+		other.formatNumbers();
+		final ArrayList<String> arguments = arguments();
+		final ArrayList<String> otherArguments = other.arguments();
+		if (arguments.size() != otherArguments.size()) {
 			return false;
-		} else {
-			if (arguments.size() != other.arguments.size()) {
+		}
+		final int size = arguments.size();
+		for (int i = 0; i < size; i++) {
+			final String thisarg = arguments.get(i);
+			final String otherarg = otherArguments.get(i);
+			if ((thisarg == null && otherarg != null)
+					|| (thisarg != null && otherarg == null)) {
 				return false;
 			}
-			final int size = arguments.size();
-			for (int i = 0; i < size; i++) {
-				final String thisarg = arguments.get(i);
-				final String otherarg = other.arguments.get(i);
-				if ((thisarg == null && otherarg != null)
-						|| (thisarg != null && otherarg == null)) {
-					return false;
-				}
-				if (!thisarg.equals(otherarg)) {
-					return false;
-				}
+			if (thisarg != null && !thisarg.equals(otherarg)) {
+				return false;
 			}
 		}
 		return true;
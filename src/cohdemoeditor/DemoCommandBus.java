@@ -0,0 +1,167 @@
+package cohdemoeditor;
+
+import java.util.*;
+
+/**
+ * A DemoCommandBus carries the changes made to the commands of one
+ * DemoCommandList. A command only keeps the buses of the lists it has been
+ * added to and reports each change to them, and anything interested in the
+ * commands of a list subscribes to its bus once, instead of every command
+ * keeping its own set of listeners and every list, reference, and panel
+ * registering itself with every command.
+ *
+ * The list the bus belongs to is told about a change first, so that it has
+ * updated itself by the time the subscribers hear of it.
+ *
+ * While events are disabled, the bus keeps the first old value of each
+ * column of each command that changes, and reports them all when events are
+ * enabled again. The list is still told at once that a column has changed,
+ * so that it can drop what it knows about the old values.
+ *
+ * @author Darren Lee
+ */
+class DemoCommandBus implements EventsEnabledListener {
+
+	/**
+	 * Receives every change before the subscribers do.
+	 */
+	interface Owner {
+		void commandChanged(DemoCommand cmd, int column, Object oldValue);
+
+		void commandDeferred(DemoCommand cmd, int column);
+	}
+
+	private final Owner owner;
+
+	private final List<DemoCommandListener> listeners = new ArrayList<DemoCommandListener>();
+	private List<DemoCommandListener> toAdd = null;
+	private List<DemoCommandListener> toRemove = null;
+	private boolean listenersFiring = false;
+
+	private boolean eventsEnabled = true;
+	private final IdentityHashMap<DemoCommand, Object[]> oldValues = new IdentityHashMap<DemoCommand, Object[]>();
+	private final List<DemoCommand> changed = new ArrayList<DemoCommand>();
+
+	/**
+	 * Creates a bus for the list with the given owner.
+	 *
+	 * @param owner
+	 */
+	DemoCommandBus(Owner owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Subscribes a listener to the changes of every command on this bus.
+	 *
+	 * @param l
+	 */
+	void addListener(DemoCommandListener l) {
+		if (listenersFiring) {
+			if (toAdd == null)
+				toAdd = new ArrayList<DemoCommandListener>(1);
+			toAdd.add(l);
+		} else if (!listeners.contains(l)) {
+			listeners.add(l);
+		}
+	}
+
+	/**
+	 * Unsubscribes a listener.
+	 *
+	 * @param l
+	 */
+	void removeListener(DemoCommandListener l) {
+		if (listenersFiring) {
+			if (toRemove == null)
+				toRemove = new ArrayList<DemoCommandListener>(1);
+			toRemove.add(l);
+		} else {
+			listeners.remove(l);
+		}
+	}
+
+	/**
+	 * Determines if a change to the given column of the given command has to
+	 * be given its old value: always, unless events are disabled and the
+	 * column has already changed since.
+	 */
+	boolean needsOldValue(DemoCommand cmd, int column) {
+		if (eventsEnabled)
+			return true;
+		final Object[] old = oldValues.get(cmd);
+		return old == null || old[column] == null;
+	}
+
+	/**
+	 * Called by a command on this bus when one of its columns changes.
+	 *
+	 * @param cmd
+	 * @param column
+	 * @param oldValue
+	 */
+	void commandChanged(DemoCommand cmd, int column, Object oldValue) {
+		if (!eventsEnabled) {
+			if (owner != null)
+				owner.commandDeferred(cmd, column);
+			Object[] old = oldValues.get(cmd);
+			if (old == null) {
+				old = new Object[DemoCommandListFilter.NUM_COLS];
+				oldValues.put(cmd, old);
+				changed.add(cmd);
+			}
+			if (old[column] == null)
+				old[column] = oldValue;
+			return;
+		}
+		fire(cmd, column, oldValue);
+	}
+
+	private void fire(DemoCommand cmd, int column, Object oldValue) {
+		if (owner != null)
+			owner.commandChanged(cmd, column, oldValue);
+		if (listeners.size() == 0)
+			return;
+		listenersFiring = true;
+		for (DemoCommandListener l : listeners)
+			l.demoCommandChanged(cmd, column, oldValue);
+		listenersFiring = false;
+		if (toAdd != null && toAdd.size() > 0) {
+			for (DemoCommandListener l : toAdd)
+				addListener(l);
+			toAdd.clear();
+		}
+		if (toRemove != null && toRemove.size() > 0) {
+			for (DemoCommandListener l : toRemove)
+				removeListener(l);
+			toRemove.clear();
+		}
+	}
+
+	/**
+	 * Enables or disables events. When events are re-enabled, reports every
+	 * column that has changed since they were disabled.
+	 */
+	@Override
+	public void eventsEnabledChanged(boolean areEventsEnabled) {
+		if (areEventsEnabled && !eventsEnabled) {
+			eventsEnabled = true;
+			final List<DemoCommand> cmds = new ArrayList<DemoCommand>(changed);
+			final IdentityHashMap<DemoCommand, Object[]> old = new IdentityHashMap<DemoCommand, Object[]>(
+					oldValues);
+			changed.clear();
+			oldValues.clear();
+			for (DemoCommand cmd : cmds) {
+				final Object[] values = old.get(cmd);
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] != null)
+						fire(cmd, i, values[i]);
+				}
+			}
+		} else if (!areEventsEnabled && eventsEnabled) {
+			eventsEnabled = false;
+			changed.clear();
+			oldValues.clear();
+		}
+	}
+}
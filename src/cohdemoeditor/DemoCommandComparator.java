@@ -1,8 +1,11 @@
 package cohdemoeditor;
 
+import java.util.Arrays;
 import java.util.Comparator;
 
 import javax.swing.DefaultListModel;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 
 /**
  * This class defines the required ordering for a DemoCommandList to be exported
@@ -10,6 +13,11 @@ import javax.swing.DefaultListModel;
  * ordering, and so it will be inconsistent with equals. It is intended for use
  * by a stable sort algorithm to resort a DemoCommandList.
  * 
+ * The command order is the contents of this list model. Comparisons look up
+ * each command's rank in an array indexed by command id, which is rebuilt
+ * whenever the list changes, so the order can be edited while the comparator
+ * is in use and comparing two commands never scans the list.
+ * 
  * @author Darren Lee
  * 
  */
@@ -22,11 +30,60 @@ public class DemoCommandComparator extends DefaultListModel implements
 			"FX", "FXSCALE", "ORIGIN", "TARGET", "HPMAX", "HP", "Chat",
 			"floatdmg", "float", "POS", "PYR", "MOV", "EntRagdoll",
 			"FXDESTROY", "DEL" };
+	private static final int UNLISTED = Integer.MAX_VALUE;
+
+	private volatile int[] ranks = new int[0];
 
 	public DemoCommandComparator() {
 		for (String str : DEFAULT_COMMAND_ORDER) {
 			addElement(str);
 		}
+		updateRanks();
+		addListDataListener(new ListDataListener() {
+			public void intervalAdded(ListDataEvent e) {
+				updateRanks();
+			}
+
+			public void intervalRemoved(ListDataEvent e) {
+				updateRanks();
+			}
+
+			public void contentsChanged(ListDataEvent e) {
+				updateRanks();
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the rank of each command id from the list. A command listed
+	 * more than once ranks by its first position, as indexOf would find it.
+	 */
+	private void updateRanks() {
+		final int size = getSize();
+		final int[] ids = new int[size];
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			final Object element = getElementAt(i);
+			ids[i] = element instanceof String ? DemoCommand
+					.getCommandIdFor((String) element) : -1;
+			length = Math.max(length, ids[i] + 1);
+		}
+		final int[] newRanks = new int[length];
+		Arrays.fill(newRanks, UNLISTED);
+		for (int i = size - 1; i >= 0; i--) {
+			if (ids[i] >= 0)
+				newRanks[ids[i]] = i;
+		}
+		ranks = newRanks;
+	}
+
+	/**
+	 * Returns the rank of the given command id, or UNLISTED if it is not in
+	 * the list.
+	 */
+	private int rankOf(int id) {
+		final int[] r = ranks;
+		return id < r.length ? r[id] : UNLISTED;
 	}
 
 	/**
@@ -62,18 +119,13 @@ public class DemoCommandComparator extends DefaultListModel implements
 			}
 			return ref1-ref2;
 		}
-		if (!o1.getCommand().equals(o2.getCommand())) {
-			final int index1 = indexOf(o1.getCommand());
-			final int index2 = indexOf(o2.getCommand());
-			if (index1 != -1 && index2 != -1) {
-				return index1 - index2;
-			} else {
-				if (index1 == -1 && index2 != -1) {
-					return 1;
-				} else if (index1 != -1 && index2 == -1) {
-					return -1;
-				}
-			}
+		final int id1 = o1.getCommandId();
+		final int id2 = o2.getCommandId();
+		if (id1 != id2) {
+			final int rank1 = rankOf(id1);
+			final int rank2 = rankOf(id2);
+			if (rank1 != rank2)
+				return rank1 < rank2 ? -1 : 1;
 		}
 		return 0;
 	}
@@ -9,6 +9,7 @@ package cohdemoeditor;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.io.*;
@@ -35,6 +36,19 @@ import cohdemoeditor.swing.ProgressMonitoringSwingWorker;
  * the visible references (defined as having at least one visible command) are
  * copied to a second DemoReferenceList.
  * 
+ * The commands are kept in a DemoCommandStore, which holds them as columns
+ * and only creates a DemoCommand for a row when it is asked for. Each
+ * command reports its changes to the list's DemoCommandBus, which it is
+ * given when it is created or added; the list, its references, and anything
+ * added with addDemoCommandListener hear about them from the bus. Methods
+ * that only read the commands, such as refiltering and the table model, read
+ * the store directly so that a large demo does not turn into millions of
+ * objects just by being displayed. Where a command is, among all of the
+ * commands or the visible ones, is looked up in a DemoPositionIndex rather
+ * than by searching the lists, the commands in a range of times are found
+ * through a DemoTimeIndex, and the commands of a few references or commands
+ * through a DemoPostingIndex.
+ * 
  * @author Darren Lee
  */
 @SuppressWarnings("serial")
@@ -42,6 +56,12 @@ public class DemoCommandList extends AbstractTableModel implements
 		DemoCommandListener, DirtyBitTracker, EventsEnabledListener {
 
 	private List<DemoCommand> commands;
+	private final DemoCommandStore store;
+	private final DemoCommandBus bus;
+	private final DemoPositionIndex positions;
+	private final DemoTimeIndex times;
+	private final DemoPostingIndex postings;
+	private final DemoCommand cellScratch = new DemoCommand(0, 0, "", "");
 	private DemoReferenceList references;
 	private List<DemoCommand> visibleCmds;
 	private DemoReferenceList visibleRefs;
@@ -49,6 +69,9 @@ public class DemoCommandList extends AbstractTableModel implements
 
 	private String name = null;
 	private File saveFile = null;
+	private DemoJournal journal = null;
+	private final List<DemoCommandListEdit> openEdits = new ArrayList<DemoCommandListEdit>(
+			1);
 	private final Set<SaveFileListener> saveFileListeners = new HashSet<SaveFileListener>();
 
 	private boolean enableListeners = true;
@@ -75,15 +98,83 @@ public class DemoCommandList extends AbstractTableModel implements
 	private Set<EventsEnabledListener> toRemoveEEL = null;
 
 	private static int cmdListCount = 0;
+	private static final int POS_ID = DemoCommand.getCommandIdFor("POS");
+	private static final int BASE_ID = DemoCommand.getCommandIdFor("Base");
 
 	/**
 	 * Creates a new DemoCommandList
 	 */
 	public DemoCommandList() {
-		commands = new ArrayList<DemoCommand>();
+		this(new DemoCommandStore());
+	}
+
+	/**
+	 * Creates a DemoCommandList holding the rows of the given store, as read
+	 * from a demo file. The references are counted from the rows without
+	 * creating their commands.
+	 * 
+	 * @param store
+	 */
+	DemoCommandList(DemoCommandStore store) {
+		this((List<DemoCommand>) store);
+		store.setOwner(new DemoCommandStore.Owner() {
+			public void rowMaterialized(int index, DemoCommand cmd) {
+				positions.materialized(index, cmd, visibleCmds == commands);
+				cmd.addBus(bus);
+				final DemoReference ref = references.getReferenceFor(cmd
+						.getReference());
+				if (ref != null)
+					ref.adopt(cmd);
+			}
+		});
+		countReferences();
+		visibleRefs.copy(references);
+	}
+
+	/**
+	 * Adds every row of the store to the references, counting the rows that
+	 * have not been created as commands rather than creating them.
+	 */
+	private void countReferences() {
+		final int size = store.size();
+		for (int i = 0; i < size; i++) {
+			final DemoCommand cmd = store.getMaterialized(i);
+			if (cmd == null) {
+				references.addRow(store, i, this);
+			} else {
+				cmd.addBus(bus);
+				references.addDemoCommand(cmd, this);
+			}
+		}
+	}
+
+	/**
+	 * Creates a DemoCommandList that uses the given list as its commands. The
+	 * commands are neither listened to nor added to the DemoReferenceList, so
+	 * this is only suitable for subclasses that do not edit their commands.
+	 * 
+	 * @param commands
+	 */
+	protected DemoCommandList(List<DemoCommand> commands) {
+		this.commands = commands;
+		this.store = commands instanceof DemoCommandStore ? (DemoCommandStore) commands
+				: null;
 		references = new DemoReferenceList();
 		visibleCmds = commands;
 		visibleRefs = new DemoReferenceList(references);
+		positions = store != null ? new DemoPositionIndex(store) : null;
+		times = store != null ? new DemoTimeIndex(store) : null;
+		postings = store != null ? new DemoPostingIndex(store) : null;
+		bus = new DemoCommandBus(new DemoCommandBus.Owner() {
+			public void commandChanged(DemoCommand cmd, int column,
+					Object oldValue) {
+				DemoCommandList.this.commandChanged(cmd, column, oldValue);
+			}
+
+			public void commandDeferred(DemoCommand cmd, int column) {
+				DemoCommandList.this.commandDeferred(column);
+			}
+		});
 		currentFilters = new FilterList();
 		currentFilters.addTableModelListener(new TableModelListener() {
 			public void tableChanged(TableModelEvent tme) {
@@ -93,6 +184,7 @@ public class DemoCommandList extends AbstractTableModel implements
 		addEventsEnabledListener(currentFilters);
 		addEventsEnabledListener(references);
 		addEventsEnabledListener(visibleRefs);
+		addEventsEnabledListener(bus);
 		dirty = new Boolean(false);
 	}
 
@@ -109,6 +201,37 @@ public class DemoCommandList extends AbstractTableModel implements
 		return addCommandHelper(commands.size(), visibleCmds.size(), dcmd);
 	}
 
+	/**
+	 * Appends a batch of commands read from the demo file, as when following
+	 * a demo that is still being recorded. Only the new commands are checked
+	 * against the current filters, and a single table event covers all of the
+	 * new visible rows. The commands come from the file, so this is not
+	 * undoable and does not make the list dirty.
+	 * 
+	 * @param cmds
+	 *            the commands to add, with absolute times
+	 */
+	public void appendCommands(List<DemoCommand> cmds) {
+		if (cmds.isEmpty())
+			return;
+		final int firstVisible = visibleCmds.size();
+		final boolean allVisible = visibleCmds == commands;
+		for (DemoCommand dcmd : cmds) {
+			commands.add(dcmd);
+			dcmd.addBus(bus);
+			references.addDemoCommand(dcmd, this);
+			final boolean isVisible = currentFilters.isVisible(dcmd);
+			if (isVisible) {
+				if (!allVisible)
+					visibleCmds.add(dcmd);
+				visibleRefs.addDemoCommand(dcmd, this);
+			}
+			rowInserted(commands.size() - 1, dcmd, isVisible);
+		}
+		if (visibleCmds.size() > firstVisible)
+			fireTableRowsInserted(firstVisible, visibleCmds.size() - 1);
+	}
+
 	/**
 	 * Adds a <code>DemoCommand</code> at an index as specified in the visible
 	 * list. The <code>DemoCommand</code> will be inserted just prior to the
@@ -134,7 +257,7 @@ public class DemoCommandList extends AbstractTableModel implements
 		if (visibleIndex >= visibleCmds.size()) {
 			return addCommand(dcmd);
 		}
-		indexToAddAt = commands.indexOf(visibleCmds.get(visibleIndex));
+		indexToAddAt = getAbsoluteIndex(visibleIndex);
 		return addCommandHelper(indexToAddAt, visibleIndex, dcmd);
 	}
 
@@ -156,7 +279,7 @@ public class DemoCommandList extends AbstractTableModel implements
 		if (visibleIndex >= visibleCmds.size()) {
 			return addCommand(dcmd);
 		}
-		indexToAddAt = commands.indexOf(visibleCmds.get(visibleIndex)) + 1;
+		indexToAddAt = getAbsoluteIndex(visibleIndex) + 1;
 		return addCommandHelper(indexToAddAt, visibleIndex + 1, dcmd);
 	}
 
@@ -179,15 +302,16 @@ public class DemoCommandList extends AbstractTableModel implements
 			throw new NullPointerException(
 					"cannot add a null DemoCommand to a DemoCommandList");
 		commands.add(absIndex, dcmd);
-		dcmd.addListener(this);
-		references.addDemoCommand(dcmd, this);
-		if (currentFilters.isVisible(dcmd)) {
+		dcmd.addBus(bus);
+		references.insertDemoCommand(dcmd, this);
+		final boolean isVisible = currentFilters.isVisible(dcmd);
+		if (isVisible) {
 			if (commands != visibleCmds) {
 				visibleCmds.add(visibleIndex, dcmd);
 			}
-			visibleRefs.addDemoCommand(dcmd, this);
+			visibleRefs.insertDemoCommand(dcmd, this);
 		}
-		addEventsEnabledListener(dcmd);
+		rowInserted(absIndex, dcmd, isVisible);
 		fireTableRowsInserted(visibleIndex, visibleIndex);
 		setDirty(true);
 
@@ -196,8 +320,9 @@ public class DemoCommandList extends AbstractTableModel implements
 
 			public void undo() {
 				super.undo();
-				commands.remove(absIndex);
-				dcmd.removeListener(DemoCommandList.this);
+				final DemoCommand removed = commands.remove(absIndex);
+				rowRemoved(absIndex, removed);
+				dcmd.removeBus(bus);
 				references.removeDemoCommand(dcmd, DemoCommandList.this);
 				if (currentFilters.isVisible(dcmd)) {
 					if (commands != visibleCmds) {
@@ -206,23 +331,23 @@ public class DemoCommandList extends AbstractTableModel implements
 					visibleRefs.removeDemoCommand(dcmd, null);
 					fireTableRowsDeleted(visibleIndex, visibleIndex);
 				}
-				removeEventsEnabledListener(dcmd);
 				setDirty(wasDirty);
 			}
 
 			public void redo() {
 				super.redo();
 				commands.add(absIndex, dcmd);
-				dcmd.addListener(DemoCommandList.this);
-				references.addDemoCommand(dcmd, DemoCommandList.this);
-				if (currentFilters.isVisible(dcmd)) {
+				dcmd.addBus(bus);
+				references.insertDemoCommand(dcmd, DemoCommandList.this);
+				final boolean isVisible = currentFilters.isVisible(dcmd);
+				rowInserted(absIndex, dcmd, isVisible);
+				if (isVisible) {
 					if (commands != visibleCmds) {
 						visibleCmds.add(visibleIndex, dcmd);
 					}
-					visibleRefs.addDemoCommand(dcmd, DemoCommandList.this);
+					visibleRefs.insertDemoCommand(dcmd, DemoCommandList.this);
 					fireTableRowsInserted(visibleIndex, visibleIndex);
 				}
-				addEventsEnabledListener(dcmd);
 				setDirty(true);
 			}
 		};
@@ -248,21 +373,14 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public UndoableEdit removeCommand(final DemoCommand dcmd) {
-		if (commands.indexOf(dcmd) == -1)
+		final int index = indexOf(dcmd);
+		if (index == -1)
 			return null;
 		DemoCommandListEdit edit = new DemoCommandListEdit();
-		if (visibleCmds.contains(dcmd)) {
-			int index = visibleCmds.indexOf(dcmd);
-			visibleCmds.remove(dcmd);
-			visibleRefs.removeDemoCommand(dcmd, this);
-			fireTableRowsDeleted(index, index);
-		}
-		final int index = commands.indexOf(dcmd);
-		if (index != -1) {
-			commands.remove(index);
-			removeEventsEnabledListener(dcmd);
-		}
-		references.removeDemoCommand(dcmd, DemoCommandList.this);
+		final int visibleIndex = removeRow(index);
+		record(new RowRemoval(index, dcmd));
+		if (visibleIndex != -1)
+			fireTableRowsDeleted(visibleIndex, visibleIndex);
 		setDirty(true);
 		edit.end();
 		return edit;
@@ -290,28 +408,18 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public UndoableEdit removeVisibleCommands() {
 		DemoCommandListEdit edit = new DemoCommandListEdit();
-		if (visibleCmds == commands) {
-			commands.clear();
-			references.clear();
+		if (visibleCmds == commands && store != null) {
+			record(new RowsCleared(clearRows()));
 		} else {
 			/*
-			 * Because the visible commands must be a sublist of the commands,
-			 * we can use a more efficient algorithm
+			 * Each visible command is found by its position, from the last
+			 * to the first, so that the positions of the others do not move
 			 */
-			final int numVisibleCmds = visibleCmds.size();
-			for (int i = 0; i < numVisibleCmds; i++) {
-				int j = 0;
-				final DemoCommand visibleCommand = visibleCmds.get(i);
-				while (true) {
-					final DemoCommand cmd = commands.get(j);
-					if (cmd.equals(visibleCommand)) {
-						commands.remove(j);
-						references.removeDemoCommand(cmd, DemoCommandList.this);
-						removeEventsEnabledListener(cmd);
-						break;
-					}
-					j++;
-				}
+			for (int i = visibleCmds.size() - 1; i >= 0; i--) {
+				final DemoCommand cmd = visibleCmds.get(i);
+				final int index = getAbsoluteIndex(i);
+				removeRow(index);
+				record(new RowRemoval(index, cmd));
 			}
 		}
 		// The visible commands will be empty now.
@@ -332,9 +440,11 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public int getLastTime() {
 		int time = 0;
-		for (DemoCommand cmd : commands) {
-			if (cmd.getTime() > time)
-				time = cmd.getTime();
+		final int size = commands.size();
+		for (int i = 0; i < size; i++) {
+			final int t = timeAt(commands, i);
+			if (t > time)
+				time = t;
 		}
 		return time;
 	}
@@ -346,13 +456,25 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public int getLastVisibleTime() {
 		int time = 0;
-		for (DemoCommand cmd : visibleCmds) {
-			if (cmd.getTime() > time)
-				time = cmd.getTime();
+		final int size = visibleCmds.size();
+		for (int i = 0; i < size; i++) {
+			final int t = timeAt(visibleCmds, i);
+			if (t > time)
+				time = t;
 		}
 		return time;
 	}
 
+	/**
+	 * Returns the time of the command at the given index of the given list,
+	 * reading it from the store if the list is the store.
+	 */
+	private int timeAt(List<DemoCommand> list, int index) {
+		if (list == store)
+			return store.getTime(index);
+		return list.get(index).getTime();
+	}
+
 	/**
 	 * Simple getter
 	 * 
@@ -383,21 +505,10 @@ public class DemoCommandList extends AbstractTableModel implements
 		if (visibleIndex == 0)
 			return null;
 		DemoCommandListEdit edit = new DemoCommandListEdit();
-		DemoCommand cmdToMoveBefore = visibleCmds.get(visibleIndex - 1);
-		DemoCommand cmdToMove = visibleCmds.get(visibleIndex);
-		int destIndex = commands.indexOf(cmdToMoveBefore);
-		int sourceIndex = commands.indexOf(cmdToMove);
-		if (destIndex < sourceIndex) {
-			commands.remove(sourceIndex);
-			commands.add(destIndex, cmdToMove);
-		} else {
-			commands.add(destIndex, cmdToMove);
-			commands.remove(sourceIndex);
-		}
-		if (visibleCmds != commands) {
-			visibleCmds.remove(cmdToMove);
-			visibleCmds.add(visibleIndex - 1, cmdToMove);
-		}
+		int destIndex = getAbsoluteIndex(visibleIndex - 1);
+		int sourceIndex = getAbsoluteIndex(visibleIndex);
+		moveRow(sourceIndex, destIndex);
+		record(new RowMove(sourceIndex, destIndex));
 		edit.end();
 		fireTableRowsUpdated(visibleIndex - 1, visibleIndex);
 		setDirty(true);
@@ -416,27 +527,169 @@ public class DemoCommandList extends AbstractTableModel implements
 		if (visibleIndex >= getVisibleCommandCount() - 1)
 			return null;
 		DemoCommandListEdit edit = new DemoCommandListEdit();
-		DemoCommand cmdToMoveAfter = visibleCmds.get(visibleIndex + 1);
-		DemoCommand cmdToMove = visibleCmds.get(visibleIndex);
-		int destIndex = commands.indexOf(cmdToMoveAfter) + 1;
-		int sourceIndex = commands.indexOf(cmdToMove);
-		if (destIndex < sourceIndex) {
-			commands.remove(sourceIndex);
-			commands.add(destIndex, cmdToMove);
-		} else {
-			commands.add(destIndex, cmdToMove);
-			commands.remove(sourceIndex);
-		}
-		if (visibleCmds != commands) {
-			visibleCmds.remove(cmdToMove);
-			visibleCmds.add(visibleIndex + 1, cmdToMove);
-		}
+		int destIndex = getAbsoluteIndex(visibleIndex + 1);
+		int sourceIndex = getAbsoluteIndex(visibleIndex);
+		moveRow(sourceIndex, destIndex);
+		record(new RowMove(sourceIndex, destIndex));
 		edit.end();
 		fireTableRowsUpdated(visibleIndex, visibleIndex + 1);
 		setDirty(true);
 		return edit;
 	}
 
+	/**
+	 * Tells the indexes of the store, and the journal, that the given command
+	 * has been added at the given index.
+	 */
+	private void rowInserted(int index, DemoCommand cmd, boolean isVisible) {
+		if (store == null)
+			return;
+		positions.inserted(index, cmd, isVisible);
+		times.inserted(index);
+		postings.inserted(index, cmd);
+		if (journal != null)
+			journal.rowInserted(index, cmd);
+	}
+
+	/**
+	 * Tells the indexes of the store, and the journal, that the given command
+	 * has been removed from the given index.
+	 */
+	private void rowRemoved(int index, DemoCommand cmd) {
+		if (store == null)
+			return;
+		positions.removed(cmd);
+		times.removed();
+		postings.removed(index, cmd);
+		if (journal != null)
+			journal.rowRemoved(index, cmd);
+	}
+
+	/**
+	 * Removes the command at the given index from the commands, the visible
+	 * commands, and the references.
+	 * 
+	 * @return the visible index the command had, or -1 if it was not visible
+	 */
+	private int removeRow(int index) {
+		final DemoCommand cmd = commands.get(index);
+		final int visibleIndex = visibleIndexOf(cmd);
+		commands.remove(index);
+		rowRemoved(index, cmd);
+		if (visibleIndex != -1) {
+			if (visibleCmds != commands)
+				visibleCmds.remove(visibleIndex);
+			visibleRefs.removeDemoCommand(cmd, this);
+		}
+		references.removeDemoCommand(cmd, this);
+		return visibleIndex;
+	}
+
+	/**
+	 * Puts a command removed by removeRow back at the given index. It is
+	 * visible if it passes the current filters, at the visible index that
+	 * follows from its position.
+	 */
+	private void insertRow(int index, DemoCommand cmd) {
+		final boolean isVisible = visibleCmds == commands
+				|| currentFilters.isVisible(cmd);
+		if (isVisible && visibleCmds != commands)
+			visibleCmds.add(visibleCountBefore(index), cmd);
+		commands.add(index, cmd);
+		cmd.addBus(bus);
+		references.insertDemoCommand(cmd, this);
+		if (isVisible)
+			visibleRefs.insertDemoCommand(cmd, this);
+		rowInserted(index, cmd, isVisible);
+	}
+
+	/**
+	 * Moves the command at sourceIndex so that it is at destIndex once it has
+	 * been moved. It stays visible, or not, and in the same references.
+	 */
+	private void moveRow(int sourceIndex, int destIndex) {
+		final DemoCommand cmd = commands.get(sourceIndex);
+		final int visibleIndex = visibleIndexOf(cmd);
+		commands.remove(sourceIndex);
+		rowRemoved(sourceIndex, cmd);
+		final boolean isVisible = visibleIndex != -1;
+		if (isVisible && visibleCmds != commands) {
+			visibleCmds.remove(visibleIndex);
+			visibleCmds.add(visibleCountBefore(destIndex), cmd);
+		}
+		commands.add(destIndex, cmd);
+		rowInserted(destIndex, cmd, isVisible);
+		references.commandMoved(cmd);
+		if (isVisible && visibleCmds != commands)
+			visibleRefs.commandMoved(cmd);
+	}
+
+	/**
+	 * Removes every command and reference.
+	 * 
+	 * @return a copy of the store as it was, sharing the commands that had
+	 *         been created for its rows
+	 */
+	private DemoCommandStore clearRows() {
+		final DemoCommandStore rows = store.copy();
+		for (DemoReference ref : references)
+			removeEventsEnabledListener(ref);
+		commands.clear();
+		references.clear();
+		if (visibleCmds != commands)
+			visibleCmds.clear();
+		visibleRefs.clear();
+		return rows;
+	}
+
+	/**
+	 * Puts back the rows removed by clearRows, and counts their references
+	 * again.
+	 */
+	private void restoreRows(DemoCommandStore rows) {
+		store.replace(0, store.size(), rows);
+		countReferences();
+		if (visibleCmds == commands)
+			visibleRefs.copy(references);
+		else
+			refilter();
+	}
+
+	/**
+	 * Returns the number of visible commands before the given index.
+	 */
+	private int visibleCountBefore(int index) {
+		if (visibleCmds == commands)
+			return index;
+		if (positions != null)
+			return positions().visibleBefore(index);
+		int count = 0;
+		while (count < visibleCmds.size()
+				&& commands.indexOf(visibleCmds.get(count)) < index)
+			count++;
+		return count;
+	}
+
+	/**
+	 * Adds a step to every DemoCommandListEdit that has not ended yet.
+	 */
+	private void record(UndoableEdit step) {
+		for (DemoCommandListEdit edit : openEdits)
+			edit.addEdit(step);
+	}
+
+	/**
+	 * Determines if the commands of this list can be edited. The editor and
+	 * the wizards check this before changing a demo; a list that cannot be
+	 * edited throws an UnsupportedOperationException from every method that
+	 * would change it.
+	 * 
+	 * @return true, unless overridden by a read-only list
+	 */
+	public boolean isEditable() {
+		return true;
+	}
+
 	/**
 	 * Gets the dirty bit
 	 */
@@ -448,6 +701,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * Sets the dirty bit
 	 */
 	public void setDirty(boolean b) {
+		if (b && journal != null)
+			journal.listChanged();
 		if (dirty == b)
 			return;
 		dirty = b;
@@ -589,7 +844,7 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return the time of the first visible command in the list
 	 */
 	public int getFirstTime() {
-		return visibleCmds.get(0).getTime();
+		return timeAt(visibleCmds, 0);
 	}
 
 	/**
@@ -601,6 +856,30 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public UndoableEdit resort() {
 		UndoableEdit edit;
+		if (store != null) {
+			final int[] order = store.sortRows(DemoEditor.getEditor()
+					.getComparator());
+			edit = new AbstractUndoableEdit() {
+				private final boolean wasDirty = isDirty();
+
+				public void undo() {
+					super.undo();
+					store.unpermute(order);
+					refilter();
+					setDirty(wasDirty);
+				}
+
+				public void redo() {
+					super.redo();
+					store.permute(order);
+					refilter();
+					setDirty(true);
+				}
+			};
+			setDirty(true);
+			refilter();
+			return edit;
+		}
 		final List<DemoCommand> oldCommands = new ArrayList<DemoCommand>(
 				commands);
 
@@ -636,6 +915,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * current filters. Does not change command ordering.
 	 */
 	public void refilter() {
+		if (positions != null)
+			positions.invalidate();
 		if (currentFilters.size() == 0) {
 			visibleCmds = commands;
 			visibleRefs.copy(references);
@@ -647,15 +928,122 @@ public class DemoCommandList extends AbstractTableModel implements
 		else
 			visibleCmds = new ArrayList<DemoCommand>();
 		visibleRefs.clear();
-		for (DemoCommand cmd : commands) {
-			if (currentFilters.isVisible(cmd)) {
-				visibleCmds.add(cmd);
-				visibleRefs.addDemoCommand(cmd, this);
+		final DemoFilterPredicate filters = currentFilters.compile();
+		final int[] rows = rowsMatching(currentFilters);
+		final int[] ranges = rowRanges(filters);
+		if (rows != null && rows.length <= countRows(ranges)) {
+			for (int i : rows)
+				showIfVisible(filters, i);
+		} else {
+			for (int k = 0; k < ranges.length; k += 2) {
+				for (int i = ranges[k]; i < ranges[k + 1]; i++)
+					showIfVisible(filters, i);
 			}
 		}
 		fireTableChanged(new TableModelEvent(this));
 	}
 
+	/**
+	 * Adds the command at the given index to the visible commands if it is
+	 * visible through the given filters.
+	 */
+	private void showIfVisible(DemoFilterPredicate filters, int index) {
+		if (isVisible(filters, index)) {
+			final DemoCommand cmd = commands.get(index);
+			visibleCmds.add(cmd);
+			visibleRefs.addDemoCommand(cmd, this);
+		}
+	}
+
+	/**
+	 * Determines if the command at the given index is visible through the
+	 * given filters, reading it from the store if there is one.
+	 */
+	private boolean isVisible(DemoFilterPredicate filters, int index) {
+		if (store != null)
+			return filters.isVisible(store, index);
+		return filters.isVisible(commands.get(index));
+	}
+
+	/**
+	 * Returns the ranges of rows, as pairs of a first row and the row after
+	 * the last, that hold every command that can be visible through the
+	 * given filters by their times. If the rows are in order of time, these
+	 * are the rows in the time ranges of whichever filter showing only some
+	 * times covers the fewest; otherwise they are all of the rows.
+	 */
+	private int[] rowRanges(DemoFilterPredicate filters) {
+		int[] best = new int[] { 0, commands.size() };
+		int bestCount = commands.size();
+		boolean sorted = false;
+		for (DemoFilterPredicate.Clause clause : filters.getClauses()) {
+			final int[][] timeRanges = clause.getTimeRanges();
+			if (clause.hidesThese || timeRanges == null)
+				continue;
+			if (!sorted && (times == null || !times.isSorted()))
+				return best;
+			sorted = true;
+			final int[] ranges = new int[2 * timeRanges[0].length];
+			for (int k = 0; k < timeRanges[0].length; k++) {
+				ranges[2 * k] = times.startOf(timeRanges[0][k]);
+				ranges[2 * k + 1] = times.endOf(timeRanges[1][k]);
+			}
+			final int count = countRows(ranges);
+			if (count < bestCount) {
+				best = ranges;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	private static int countRows(int[] ranges) {
+		int count = 0;
+		for (int k = 0; k < ranges.length; k += 2)
+			count += ranges[k + 1] - ranges[k];
+		return count;
+	}
+
+	/**
+	 * Returns, in order, the only rows that can be visible through the given
+	 * filters by their references and commands, or null if every row has to
+	 * be checked.
+	 */
+	private int[] rowsMatching(FilterList filters) {
+		if (store == null)
+			return null;
+		return postings().rowsMatching(filters);
+	}
+
+	/**
+	 * Returns the command at the given index for reading only. Rows of the
+	 * store that have not been created as commands are loaded into the given
+	 * scratch command, which is only good until the next call.
+	 */
+	private DemoCommand peek(int index, DemoCommand scratch) {
+		if (store != null)
+			return store.peek(index, scratch);
+		return commands.get(index);
+	}
+
+	/**
+	 * Returns the reference of the command at the given index.
+	 */
+	private int referenceAt(int index) {
+		if (store != null)
+			return store.getReference(index);
+		return commands.get(index).getReference();
+	}
+
+	/**
+	 * Returns the command id of the command at the given index.
+	 */
+	private int commandIdAt(int index) {
+		if (store != null)
+			return store.getCommandId(index);
+		return commands.get(index).getCommandId();
+	}
+
 	/**
 	 * Returns the filter list.
 	 * 
@@ -720,17 +1108,37 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findFirstCommand(FilterList filters) {
-		FilterList oldFilters = currentFilters.clone();
-		currentFilters.clear();
-		currentFilters.add(filters);
-		refilter();
-		DemoCommand rtn = null;
-		if (getVisibleCommandCount() > 0)
-			rtn = getVisibleCommand(0);
-		currentFilters.clear();
-		currentFilters.add(oldFilters);
-		refilter();
-		return rtn;
+		return findFirstCommand(filters, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the first command visible through the given filter list whose
+	 * time is from startTime to endTime, inclusive. Neither the current
+	 * filters nor the visible commands are changed, and no events are fired.
+	 * 
+	 * @param filters
+	 * @param startTime
+	 * @param endTime
+	 * @return the command, or null if there is none
+	 */
+	public DemoCommand findFirstCommand(FilterList filters, int startTime,
+			int endTime) {
+		final int start = times != null ? times.startOf(startTime) : 0;
+		final int end = times != null ? times.endOf(endTime) : commands.size();
+		final int[] rows = rowsMatching(filters);
+		final int first = rows != null ? DemoPostingIndex.lowerBound(rows,
+				start) : start;
+		final int last = rows != null ? DemoPostingIndex.lowerBound(rows, end)
+				: end;
+		final DemoFilterPredicate visible = filters.compile();
+		for (int j = first; j < last; j++) {
+			final int i = rows != null ? rows[j] : j;
+			final int time = timeAt(commands, i);
+			if (time >= startTime && time <= endTime
+					&& isVisible(visible, i))
+				return commands.get(i);
+		}
+		return null;
 	}
 
 	/**
@@ -752,17 +1160,55 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findLastCommand(FilterList filters) {
-		FilterList oldFilters = currentFilters.clone();
-		currentFilters.clear();
-		currentFilters.add(filters);
-		refilter();
-		DemoCommand rtn = null;
-		if (getVisibleCommandCount() > 0)
-			rtn = getVisibleCommand(getVisibleCommandCount() - 1);
-		currentFilters.clear();
-		currentFilters.add(oldFilters);
-		refilter();
-		return rtn;
+		return findLastCommand(filters, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the last command visible through the given filter list whose
+	 * time is from startTime to endTime, inclusive. Neither the current
+	 * filters nor the visible commands are changed, and no events are fired.
+	 * 
+	 * @param filters
+	 * @param startTime
+	 * @param endTime
+	 * @return the command, or null if there is none
+	 */
+	public DemoCommand findLastCommand(FilterList filters, int startTime,
+			int endTime) {
+		final int start = times != null ? times.startOf(startTime) : 0;
+		final int end = times != null ? times.endOf(endTime) : commands.size();
+		final int[] rows = rowsMatching(filters);
+		final int first = rows != null ? DemoPostingIndex.lowerBound(rows,
+				start) : start;
+		final int last = rows != null ? DemoPostingIndex.lowerBound(rows, end)
+				: end;
+		final DemoFilterPredicate visible = filters.compile();
+		for (int j = last - 1; j >= first; j--) {
+			final int i = rows != null ? rows[j] : j;
+			final int time = timeAt(commands, i);
+			if (time >= startTime && time <= endTime
+					&& isVisible(visible, i))
+				return commands.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a filter list holding a single filter showing the given
+	 * command of the given reference, and if FXNum is not null, only with
+	 * that argument.
+	 */
+	private static FilterList filterFor(String command, int refNum,
+			String FXNum) {
+		DemoCommandListFilter filter = new DemoCommandListFilter(
+				DemoCommandListFilter.SHOW_THESE);
+		filter.addCommand(command);
+		filter.addReference(refNum);
+		if (FXNum != null)
+			filter.addArgument(FXNum);
+		FilterList filters = new FilterList();
+		filters.add(filter);
+		return filters;
 	}
 
 	/**
@@ -774,12 +1220,7 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findNEW(int endTime, int refNum) {
-		DemoCommandListFilter filter = new DemoCommandListFilter(
-				DemoCommandListFilter.SHOW_THESE);
-		filter.addTimeRange(0, endTime);
-		filter.addCommand("NEW");
-		filter.addReference(refNum);
-		return findLastCommand(filter);
+		return findLastCommand(filterFor("NEW", refNum, null), 0, endTime);
 	}
 
 	/**
@@ -791,12 +1232,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findDEL(int startTime, int refNum) {
-		DemoCommandListFilter filter = new DemoCommandListFilter(
-				DemoCommandListFilter.SHOW_THESE);
-		filter.addTimeRange(startTime, getLastTime());
-		filter.addCommand("DEL");
-		filter.addReference(refNum);
-		return findFirstCommand(filter);
+		return findFirstCommand(filterFor("DEL", refNum, null), startTime,
+				Integer.MAX_VALUE);
 	}
 
 	/**
@@ -809,13 +1246,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findFXCreate(int destroyTime, int refNum, int FXNum) {
-		DemoCommandListFilter filter = new DemoCommandListFilter(
-				DemoCommandListFilter.SHOW_THESE);
-		filter.addTimeRange(0, destroyTime);
-		filter.addCommand("FX");
-		filter.addReference(refNum);
-		filter.addArgument("" + FXNum);
-		return findLastCommand(filter);
+		return findLastCommand(filterFor("FX", refNum, "" + FXNum), 0,
+				destroyTime);
 	}
 
 	/**
@@ -828,13 +1260,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public DemoCommand findFXDestroy(int startTime, int refNum, int FXNum) {
-		DemoCommandListFilter filter = new DemoCommandListFilter(
-				DemoCommandListFilter.SHOW_THESE);
-		filter.addTimeRange(startTime, getLastTime());
-		filter.addCommand("FXDESTROY");
-		filter.addReference(refNum);
-		filter.addArgument("" + FXNum);
-		return findFirstCommand(filter);
+		return findFirstCommand(filterFor("FXDESTROY", refNum, "" + FXNum),
+				startTime, Integer.MAX_VALUE);
 	}
 
 	/**
@@ -868,6 +1295,11 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public int indexOf(DemoCommand cmd) {
+		if (positions != null) {
+			final int index = positions().rowOf(cmd);
+			if (index != -1)
+				return index;
+		}
 		return commands.indexOf(cmd);
 	}
 
@@ -878,9 +1310,54 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	public int visibleIndexOf(DemoCommand cmd) {
+		if (visibleCmds == commands)
+			return indexOf(cmd);
+		if (positions != null) {
+			final int index = positions().visibleIndexOf(cmd);
+			if (index != -1)
+				return index;
+		}
 		return visibleCmds.indexOf(cmd);
 	}
 
+	/**
+	 * Returns the absolute index of the command at the given visible index.
+	 * 
+	 * @param visibleIndex
+	 * @return
+	 */
+	public int getAbsoluteIndex(int visibleIndex) {
+		if (visibleIndex < 0 || visibleIndex >= visibleCmds.size())
+			throw new IndexOutOfBoundsException("index " + visibleIndex
+					+ " is out of bounds of the visible commands.  size = "
+					+ visibleCmds.size());
+		if (visibleCmds == commands)
+			return visibleIndex;
+		if (positions != null)
+			return positions().rowOfVisible(visibleIndex);
+		return commands.indexOf(visibleCmds.get(visibleIndex));
+	}
+
+	/**
+	 * Returns the index of positions, rebuilt first if the commands have
+	 * changed in a way it has not followed.
+	 */
+	private DemoPositionIndex positions() {
+		if (!positions.isCurrent())
+			positions.rebuild(visibleCmds == commands ? null : visibleCmds);
+		return positions;
+	}
+
+	/**
+	 * Returns the index of references and commands, rebuilt first if the
+	 * commands have changed in a way it has not followed.
+	 */
+	private DemoPostingIndex postings() {
+		if (!postings.isCurrent())
+			postings.rebuild();
+		return postings;
+	}
+
 	/**
 	 * Returns a DemoCommandList containing all demo commands with the given
 	 * reference number
@@ -905,9 +1382,15 @@ public class DemoCommandList extends AbstractTableModel implements
 	public DemoCommandList getDCByReferences(Set<Integer> objs) {
 		DemoCommandList d;
 		d = new DemoCommandList();
-		for (DemoCommand dc : commands) {
-			if (objs.contains(dc.getReference())) {
-				d.addCommand(dc);
+		if (store != null) {
+			for (int i : postings().rowsWithReferences(objs))
+				d.addCommand(commands.get(i));
+			return d;
+		}
+		final int size = commands.size();
+		for (int i = 0; i < size; i++) {
+			if (objs.contains(referenceAt(i))) {
+				d.addCommand(commands.get(i));
 			}
 		}
 		return d;
@@ -921,9 +1404,18 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public DemoCommandList getDCByCommand(String cmd) {
 		DemoCommandList d = new DemoCommandList();
-		for (DemoCommand dc : commands) {
-			if (dc.getCommand().equals(cmd)) {
-				d.addCommand(dc);
+		final int id = DemoCommand.getCommandIdFor(cmd);
+		if (store != null) {
+			final BitSet ids = new BitSet();
+			ids.set(id);
+			for (int i : postings().rowsWithCommands(ids))
+				d.addCommand(commands.get(i));
+			return d;
+		}
+		final int size = commands.size();
+		for (int i = 0; i < size; i++) {
+			if (commandIdAt(i) == id) {
+				d.addCommand(commands.get(i));
 			}
 		}
 		return d;
@@ -934,9 +1426,18 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	public DemoCommandList getDCByCommands(Set<String> cmds) {
 		DemoCommandList d = new DemoCommandList();
-		for (DemoCommand dc : commands) {
-			if (cmds.contains(dc.getCommand())) {
-				d.addCommand(dc);
+		final BitSet ids = new BitSet();
+		for (String cmd : cmds)
+			ids.set(DemoCommand.getCommandIdFor(cmd));
+		if (store != null) {
+			for (int i : postings().rowsWithCommands(ids))
+				d.addCommand(commands.get(i));
+			return d;
+		}
+		final int size = commands.size();
+		for (int i = 0; i < size; i++) {
+			if (ids.get(commandIdAt(i))) {
+				d.addCommand(commands.get(i));
 			}
 		}
 		return d;
@@ -957,6 +1458,11 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @return
 	 */
 	private DemoCommandList extractByCurrentFilter() {
+		if (store != null && visibleCmds == commands) {
+			DemoCommandList d = new DemoCommandList(store.detachedCopy());
+			d.setDirty(true);
+			return d;
+		}
 		DemoCommandList d = new DemoCommandList();
 		for (DemoCommand dcmd : visibleCmds)
 			d.addCommand(dcmd.clone());
@@ -1008,7 +1514,7 @@ public class DemoCommandList extends AbstractTableModel implements
 		} else {
 			for (DemoCommand dcmd : visibleCmds) {
 				StateEdit sEdit = new StateEdit(dcmd);
-				int index = commands.indexOf(dcmd);
+				int index = indexOf(dcmd);
 				if (index == 0)
 					dcmd.setTime(newTime);
 				else
@@ -1152,15 +1658,15 @@ public class DemoCommandList extends AbstractTableModel implements
 			double yoffset) {
 		CompoundEdit edit = new CompoundEdit();
 		for (DemoCommand cmd : visibleCmds) {
-			if (cmd.getCommand().equals("POS") && cmd.getArgumentCount() >= 3) {
+			if (cmd.getCommandId() == POS_ID && cmd.getArgumentCount() >= 3) {
 				try {
 					StateEdit sEdit = new StateEdit(cmd);
-					double x = Double.valueOf(cmd.getArgument(0));
-					double z = Double.valueOf(cmd.getArgument(1));
-					double y = Double.valueOf(cmd.getArgument(2));
-					cmd.setArgument(0, "" + (x + xoffset));
-					cmd.setArgument(1, "" + (z + zoffset));
-					cmd.setArgument(2, "" + (y + yoffset));
+					double x = cmd.getDouble(0);
+					double z = cmd.getDouble(1);
+					double y = cmd.getDouble(2);
+					cmd.setDouble(0, x + xoffset);
+					cmd.setDouble(1, z + zoffset);
+					cmd.setDouble(2, y + yoffset);
 					sEdit.end();
 					edit.addEdit(sEdit);
 				} catch (NumberFormatException e) {
@@ -1407,6 +1913,8 @@ public class DemoCommandList extends AbstractTableModel implements
 	 */
 	@Override
 	public void fireTableChanged(TableModelEvent e) {
+		if (journal != null)
+			journal.listChanged();
 		if (enableListeners) {
 			super.fireTableChanged(e);
 		} else {
@@ -1491,12 +1999,15 @@ public class DemoCommandList extends AbstractTableModel implements
 		DemoCommand cmd;
 		if (visibleCmds.size() == 0)
 			return null;
-		cmd = visibleCmds.get(row);
+		final boolean allVisible = visibleCmds == commands;
+		cmd = allVisible ? peek(row, cellScratch) : visibleCmds.get(row);
 		if (column == DemoCommandListFilter.TIME_COL) {
-			if (showsAbsoluteTimes || commands.indexOf(cmd) == 0)
+			if (showsAbsoluteTimes)
+				return cmd.getTime();
+			final int index = allVisible ? row : getAbsoluteIndex(row);
+			if (index == 0)
 				return cmd.getTime();
-			return cmd.getTime()
-					- commands.get(commands.indexOf(cmd) - 1).getTime();
+			return cmd.getTime() - timeAt(commands, index - 1);
 		}
 		if (column == DemoCommandListFilter.REF_COL) {
 			return cmd.getReferenceString();
@@ -1510,46 +2021,96 @@ public class DemoCommandList extends AbstractTableModel implements
 
 	public static final int MIN_TOKENS = 3;
 
+	/**
+	 * If a DemoJournal of unsaved changes to the given file was left behind by
+	 * an earlier session, asks the user whether to recover them. A journal the
+	 * user declines is discarded.
+	 * 
+	 * @param file
+	 * @param parent
+	 * @return true if the changes should be recovered
+	 */
+	public static boolean askToRecover(File file, Component parent) {
+		if (!DemoJournal.exists(file))
+			return false;
+		int yesno = JOptionPane.showConfirmDialog(parent, "Unsaved changes to "
+				+ file.getName() + " were found from an earlier session.\n"
+				+ "Do you want to recover them?", "Recover changes?",
+				JOptionPane.YES_NO_OPTION);
+		if (yesno == JOptionPane.YES_OPTION)
+			return true;
+		DemoJournal.discard(file);
+		return false;
+	}
+
+	/**
+	 * Reads the loader's file into a new DemoCommandList whose save file is
+	 * that file. If the file has not changed since its DemoFileCache was
+	 * written, the cache is read instead; otherwise the loader parses the file
+	 * and a new cache is written. Either way, progress is reported to the
+	 * loader's progressChanged and the lines that could not be read are added
+	 * to badLines. Does not touch the Swing components, so it may be called
+	 * from any thread.
+	 * 
+	 * @param loader
+	 * @param badLines
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static DemoCommandList readFile(final ParallelDemoLoader loader,
+			List<String> badLines) throws FileNotFoundException, IOException,
+			InterruptedException {
+		final File file = loader.getFile();
+		DemoFileCache cache = new DemoFileCache(file) {
+			@Override
+			protected void progressChanged(int percent) {
+				loader.progressChanged(percent);
+			}
+		};
+		DemoCommandList cmdList = cache.read();
+		if (cmdList != null) {
+			badLines.addAll(cache.getBadLines());
+		} else {
+			cmdList = loader.load();
+			badLines.addAll(loader.getBadLines());
+			cache.write(cmdList, loader.getBadLines());
+		}
+		cmdList.setDirty(false);
+		cmdList.setSaveFile(file);
+		return cmdList;
+	}
+
 	/**
 	 * Static method to load a new DemoCommandList, automatically adding it to
-	 * the DemoEditor. Loads asynchronously on a SwingWorker thread.
+	 * the DemoEditor. Loads asynchronously on a SwingWorker thread, which hands
+	 * the file to a ParallelDemoLoader to be parsed in chunks. If the file has
+	 * been opened before and has not changed since, it is read from its
+	 * DemoFileCache instead, and a cache is written after every parse. If a
+	 * DemoJournal of unsaved changes was left behind by an earlier session,
+	 * the user is offered the chance to recover them.
 	 * 
 	 * @param file
 	 * @param editor
 	 */
 
 	public static void loadFile(final File file, final DemoEditor editor) {
+		final boolean recovering = askToRecover(file, editor);
 		ProgressMonitoringSwingWorker<DemoCommandList> worker = new ProgressMonitoringSwingWorker<DemoCommandList>(
 				editor) {
 			List<String> badlinesArray = new LinkedList<String>();
 
 			@Override
 			protected DemoCommandList doInBackground() throws Exception {
-				final long length = file.length();
-				long read = 0;
-				DemoCommandList cmdList = new DemoCommandList();
-				BufferedReader reader = new BufferedReader(new FileReader(file));
-				int time = 0;
-				for (String str = reader.readLine(); str != null; str = reader
-						.readLine()) {
-					read += str.length();
-					if (str.trim().equals(""))
-						continue;
-					DemoCommand cmd = DemoCommand.parseDemoCommand(str);
-					if (cmd != null) {
-						time += cmd.getTime();
-						cmd.setTime(time);
-						cmdList.addCommand(cmd);
-					} else {
-						badlinesArray.add(str);
+				if (recovering)
+					return DemoJournal.recover(file);
+				return readFile(new ParallelDemoLoader(file) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
 					}
-					final int progress = (int) ((100 * read) / length);
-					setProgress(progress);
-				}
-				reader.close();
-				cmdList.setDirty(false);
-				cmdList.setSaveFile(file);
-				return cmdList;
+				}, badlinesArray);
 			}
 
 			@Override
@@ -1594,6 +2155,12 @@ public class DemoCommandList extends AbstractTableModel implements
 						JOptionPane.showMessageDialog(editor,
 								"Could not find the file " + file.getName(),
 								"Error", JOptionPane.ERROR_MESSAGE);
+					} else if (recovering && throwable instanceof IOException) {
+						JOptionPane.showMessageDialog(editor,
+								"Could not recover the changes to "
+										+ file.getName() + ": "
+										+ throwable.getMessage(), "Error",
+								JOptionPane.ERROR_MESSAGE);
 					} else if (throwable instanceof IOException) {
 						JOptionPane.showMessageDialog(editor,
 								"Unknown I/O error", "Error",
@@ -1602,7 +2169,7 @@ public class DemoCommandList extends AbstractTableModel implements
 						JOptionPane
 								.showMessageDialog(
 										editor,
-										"JVM out of memory -- could not load file.\nYou may want to allocate more memory to the JVM and restart the program.",
+										"JVM out of memory -- could not load file.\nYou may want to allocate more memory to the JVM and restart the program,\nor open the file read-only with File > Browse Large Demo.",
 										"Error", JOptionPane.ERROR_MESSAGE);
 					}
 				}
@@ -1621,22 +2188,51 @@ public class DemoCommandList extends AbstractTableModel implements
 	 * @throws java.io.IOException
 	 */
 	public void saveFile(File file) throws FileNotFoundException, IOException {
-		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(
-				file)));
-		int time = 0;
-		for (DemoCommand cmd : commands) {
-			out.println(cmd.toString(time));
-			time = cmd.getTime();
-		}
-		out.close();
+		new ParallelDemoSaver(commands).save(file);
 		setDirty(false);
 		setSaveFile(file);
+		if (journal != null)
+			journal.saved(file);
+	}
+
+	/**
+	 * Returns the journal keeping this list's unsaved changes, or null if it
+	 * has none.
+	 * 
+	 * @return
+	 */
+	public DemoJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets the journal. Called by DemoJournal.
+	 */
+	void setJournal(DemoJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Returns the list of all commands, for classes in this package that only
+	 * read it.
+	 */
+	List<DemoCommand> getCommands() {
+		return commands;
+	}
+
+	/**
+	 * Returns the store holding the commands, or null if this list reads
+	 * its commands from somewhere else.
+	 */
+	DemoCommandStore getStore() {
+		return store;
 	}
 
 	/**
 	 * Writes the contents of this DemoCommandList to the specified file, using
-	 * a separate thread. Also scans for a Base line and warns that the save may
-	 * be corrupted.
+	 * a separate thread. Also scans for a Base line that had to be written
+	 * again rather than copied from its original file, and warns that the
+	 * save may be corrupted.
 	 * 
 	 * @param file
 	 * @param editor
@@ -1656,20 +2252,22 @@ public class DemoCommandList extends AbstractTableModel implements
 				editor) {
 			@Override
 			protected Boolean doInBackground() throws Exception {
+				ParallelDemoSaver saver = new ParallelDemoSaver(commands) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				saver.save(file);
 				boolean base = false;
-				PrintWriter out = new PrintWriter(new BufferedWriter(
-						new FileWriter(file)));
-				int time = 0;
-				int lines = 0;
-				final int totalLines = commands.size();
-				for (DemoCommand cmd : commands) {
-					out.println(cmd.toString(time));
-					time = cmd.getTime();
-					if (!base && cmd.getCommand().equals("Base"))
+				final int count = commands.size();
+				for (int i = 0; i < count; i++) {
+					if (commandIdAt(i) == BASE_ID
+							&& !saver.isCopied(i)) {
 						base = true;
-					setProgress((100 * ++lines) / totalLines);
+						break;
+					}
 				}
-				out.close();
 				setDirty(false);
 				setSaveFile(file);
 				return base;
@@ -1680,6 +2278,8 @@ public class DemoCommandList extends AbstractTableModel implements
 				super.done();
 				try {
 					boolean base = get();
+					if (journal != null)
+						journal.saved(file);
 					if (base) {
 						JOptionPane
 								.showMessageDialog(
@@ -1709,97 +2309,132 @@ public class DemoCommandList extends AbstractTableModel implements
 		return worker;
 	}
 
+	/**
+	 * Listens to the changes of every command in this list. The listener is
+	 * told about a change after the list has updated itself.
+	 * 
+	 * @param l
+	 */
+	public void addDemoCommandListener(DemoCommandListener l) {
+		bus.addListener(l);
+	}
+
+	/**
+	 * Stops listening to the changes of the commands in this list.
+	 * 
+	 * @param l
+	 */
+	public void removeDemoCommandListener(DemoCommandListener l) {
+		bus.removeListener(l);
+	}
+
 	/**
 	 * Listener method for when a demo command changes.
 	 */
 	@Override
 	public void demoCommandChanged(DemoCommand cmd, int column, Object oldValue) {
-		boolean isVisible = visibleCmds.contains(cmd);
+		commandChanged(cmd, column, oldValue);
+	}
+
+	/**
+	 * Called by the bus when one of the commands changes. The references
+	 * holding the command are told first.
+	 */
+	private void commandChanged(DemoCommand cmd, int column, Object oldValue) {
+		if (journal != null)
+			journal.commandChanged(cmd, column, oldValue);
+		if (times != null && column == DemoCommandListFilter.TIME_COL)
+			times.timeChanged(positions().rowOf(cmd));
+		if (postings != null
+				&& (column == DemoCommandListFilter.REF_COL
+						|| column == DemoCommandListFilter.CMD_COL))
+			postings.changed(positions().rowOf(cmd), column, oldValue);
+		if (DemoReference.isAffectedBy(cmd, column)) {
+			final DemoReference ref = references.getHolder(cmd, column,
+					oldValue);
+			if (ref != null)
+				ref.demoCommandChanged(cmd, column, oldValue);
+			final DemoReference visibleRef = visibleRefs.getHolder(cmd,
+					column, oldValue);
+			if (visibleRef != null && visibleRef != ref)
+				visibleRef.demoCommandChanged(cmd, column, oldValue);
+		}
+		final int visibleIndex;
+		if (positions == null)
+			visibleIndex = visibleCmds.indexOf(cmd);
+		else if (visibleCmds == commands)
+			visibleIndex = positions().rowOf(cmd);
+		else
+			visibleIndex = positions().visibleIndexOf(cmd);
+		final boolean isVisible = visibleIndex >= 0;
 		if (column == DemoCommandListFilter.REF_COL) {
 			// final DemoReference ref = references
 			// .getReferenceFor((Integer) oldValue);
 			// ref.removeCommand(cmd);
-			references.addDemoCommand(cmd, this);
+			references.insertDemoCommand(cmd, this);
 			if (isVisible) {
 				// final DemoReference visibleRef = visibleRefs
 				// .getReferenceFor((Integer) oldValue);
 				// visibleRef.removeCommand(cmd);
-				visibleRefs.addDemoCommand(cmd, this);
+				visibleRefs.insertDemoCommand(cmd, this);
 			}
 		}
 		if (isVisible) {
-			fireTableCellUpdated(visibleCmds.indexOf(cmd), column);
+			fireTableCellUpdated(visibleIndex, column);
 		}
 		setDirty(true);
 	}
 
 	/**
-	 * This is a simple state-saving undoable edit.
+	 * Called by the bus when one of the commands changes while events are
+	 * disabled. The change is only reported once events are enabled again,
+	 * so the indexes that depend on the changed column are dropped now.
+	 */
+	private void commandDeferred(int column) {
+		if (store == null)
+			return;
+		if (column == DemoCommandListFilter.TIME_COL)
+			times.invalidate();
+		else if (column == DemoCommandListFilter.REF_COL
+				|| column == DemoCommandListFilter.CMD_COL)
+			postings.invalidate();
+	}
+
+	/**
+	 * This is an undoable edit of the rows of the list. The rows removed or
+	 * moved while it is open are recorded as steps holding the commands
+	 * themselves, so undoing it only touches those rows, and the commands
+	 * that come back are the same objects, with any changes made to them
+	 * since. The references and visible commands are updated row by row, as
+	 * when the edit was made.
 	 * 
 	 * @author Darren Lee
 	 */
-	private class DemoCommandListEdit extends AbstractUndoableEdit {
-		boolean done = false;
-		private ArrayList<DemoCommand> oldCommands;
-		private DemoReferenceList oldReferences;
-		private ArrayList<DemoCommand> oldVisibleCmds;
-		private DemoReferenceList oldVisibleRefs;
-		private ArrayList<DemoCommand> newCommands;
-		private DemoReferenceList newReferences;
-		private ArrayList<DemoCommand> newVisibleCmds;
-		private DemoReferenceList newVisibleRefs;
+	private class DemoCommandListEdit extends CompoundEdit {
 
 		/**
-		 * On creation, back up the current state
+		 * On creation, start recording the steps
 		 */
 		public DemoCommandListEdit() {
 			super();
-			oldCommands = new ArrayList<DemoCommand>(commands);
-			oldReferences = new DemoReferenceList(references);
-			oldVisibleCmds = new ArrayList<DemoCommand>(visibleCmds);
-			oldVisibleRefs = new DemoReferenceList(visibleRefs);
+			openEdits.add(this);
 		}
 
 		/**
-		 * Back up the new state.
+		 * Stop recording.
 		 */
+		@Override
 		public void end() {
-			newCommands = new ArrayList<DemoCommand>(commands);
-			newReferences = new DemoReferenceList(references);
-			newVisibleCmds = new ArrayList<DemoCommand>(visibleCmds);
-			newVisibleRefs = new DemoReferenceList(visibleRefs);
-			done = true;
+			super.end();
+			openEdits.remove(this);
 		}
 
 		/**
 		 * Restore the old state
 		 */
+		@Override
 		public void undo() {
-			if (!done)
-				throw new CannotUndoException();
 			super.undo();
-			for (DemoCommand dcmd : commands) {
-				removeEventsEnabledListener(dcmd);
-			}
-			commands.clear();
-			commands.addAll(oldCommands);
-			for (DemoCommand dcmd : commands) {
-				addEventsEnabledListener(dcmd);
-			}
-			for (DemoReference ref : references) {
-				removeEventsEnabledListener(ref);
-			}
-			references.clear();
-			references.addDemoReferences(oldReferences);
-			for (DemoReference ref : references) {
-				addEventsEnabledListener(ref);
-			}
-			if (visibleCmds != commands) {
-				visibleCmds.clear();
-				visibleCmds.addAll(oldVisibleCmds);
-			}
-			visibleRefs.clear();
-			visibleRefs.addDemoReferences(oldVisibleRefs);
 			fireTableChanged(new javax.swing.event.TableModelEvent(
 					DemoCommandList.this));
 		}
@@ -1807,35 +2442,90 @@ public class DemoCommandList extends AbstractTableModel implements
 		/**
 		 * Restore the new state
 		 */
+		@Override
 		public void redo() {
-			if (!done)
-				throw new CannotRedoException();
 			super.redo();
-			for (DemoCommand dcmd : commands) {
-				removeEventsEnabledListener(dcmd);
-			}
-			commands.clear();
-			commands.addAll(newCommands);
-			for (DemoCommand dcmd : commands) {
-				addEventsEnabledListener(dcmd);
-			}
-			for (DemoReference ref : references) {
-				removeEventsEnabledListener(ref);
-			}
-			references.clear();
-			references.addDemoReferences(newReferences);
-			if (visibleCmds != commands) {
-				visibleCmds.clear();
-				visibleCmds.addAll(newVisibleCmds);
-			}
-			visibleRefs.clear();
-			visibleRefs.addDemoReferences(newVisibleRefs);
-			for (DemoReference ref : visibleRefs) {
-				addEventsEnabledListener(ref);
-			}
 			fireTableChanged(new javax.swing.event.TableModelEvent(
 					DemoCommandList.this));
 		}
 	}
 
+	/**
+	 * A step of a DemoCommandListEdit: the given command removed from the
+	 * given index.
+	 */
+	private class RowRemoval extends AbstractUndoableEdit {
+		private final int index;
+		private final DemoCommand cmd;
+
+		RowRemoval(int index, DemoCommand cmd) {
+			this.index = index;
+			this.cmd = cmd;
+		}
+
+		@Override
+		public void undo() {
+			super.undo();
+			insertRow(index, cmd);
+		}
+
+		@Override
+		public void redo() {
+			super.redo();
+			removeRow(index);
+		}
+	}
+
+	/**
+	 * A step of a DemoCommandListEdit: the command at sourceIndex moved to
+	 * destIndex.
+	 */
+	private class RowMove extends AbstractUndoableEdit {
+		private final int sourceIndex;
+		private final int destIndex;
+
+		RowMove(int sourceIndex, int destIndex) {
+			this.sourceIndex = sourceIndex;
+			this.destIndex = destIndex;
+		}
+
+		@Override
+		public void undo() {
+			super.undo();
+			moveRow(destIndex, sourceIndex);
+		}
+
+		@Override
+		public void redo() {
+			super.redo();
+			moveRow(sourceIndex, destIndex);
+		}
+	}
+
+	/**
+	 * A step of a DemoCommandListEdit: every command removed at once. The
+	 * rows are kept as a copy of the store, taken each time they are
+	 * removed, so the commands created for them come back too.
+	 */
+	private class RowsCleared extends AbstractUndoableEdit {
+		private DemoCommandStore rows;
+
+		RowsCleared(DemoCommandStore rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public void undo() {
+			super.undo();
+			restoreRows(rows);
+			rows = null;
+		}
+
+		@Override
+		public void redo() {
+			super.redo();
+			rows = clearRows();
+		}
+	}
+
 }
@@ -25,6 +25,9 @@ import java.util.*;
  * 
  * Time ranges are considered to be inclusive on both ends.
  * 
+ * A filter is tested through its compiled form, a DemoFilterPredicate.Clause,
+ * which is kept until the filter is changed.
+ * 
  * @author Darren Lee
  */
 public class DemoCommandListFilter implements Cloneable {
@@ -42,6 +45,7 @@ public class DemoCommandListFilter implements Cloneable {
 	private SortedSet<String> commands = null;
 	private SortedSet<String> arguments = null;
 	private boolean type;
+	private DemoFilterPredicate.Clause compiled = null;
 
 	public static final boolean SHOW_THESE = false;
 	public static final boolean HIDE_THESE = true;
@@ -128,6 +132,7 @@ public class DemoCommandListFilter implements Cloneable {
 	 */
 	public void setFiltersOut(boolean b) {
 		type = b;
+		compiled = null;
 	}
 
 	/**
@@ -140,6 +145,7 @@ public class DemoCommandListFilter implements Cloneable {
 		if (times == null)
 			times = new TreeSet<TimeRange>();
 		times.add(new TimeRange(start, end));
+		compiled = null;
 	}
 
 	/**
@@ -177,6 +183,7 @@ public class DemoCommandListFilter implements Cloneable {
 		if (objects == null)
 			objects = new TreeSet<Integer>();
 		objects.add(objNum);
+		compiled = null;
 	}
 
 	/**
@@ -214,6 +221,7 @@ public class DemoCommandListFilter implements Cloneable {
 		if (commands == null)
 			commands = new TreeSet<String>();
 		commands.add(cmd);
+		compiled = null;
 	}
 
 	/**
@@ -253,6 +261,7 @@ public class DemoCommandListFilter implements Cloneable {
 		if (arg.startsWith("\"") && arg.endsWith("\""))
 			arg = arg.substring(1, arg.length() - 1);
 		arguments.add(arg);
+		compiled = null;
 	}
 
 	/**
@@ -291,39 +300,21 @@ public class DemoCommandListFilter implements Cloneable {
 	 * @return
 	 */
 	public boolean isVisible(DemoCommand cmd) {
-		boolean t = (times == null);
-		if (times != null) {
-			for (TimeRange tr : times) {
-				t = (tr.start <= cmd.getTime() && cmd.getTime() <= tr.end);
-				if (t)
-					break;
-			}
-		}
-		boolean o = (objects == null);
-		if (objects != null) {
-			for (int i : objects) {
-				o = (cmd.getReference() == i);
-				if (o)
-					break;
-			}
-		}
-		boolean c = (commands == null);
-		if (commands != null) {
-			for (String s : commands) {
-				c = (s.equals(cmd.getCommand()));
-				if (c)
-					break;
-			}
-		}
-		boolean a = (arguments == null);
-		if (arguments != null) {
-			for (String s : arguments) {
-				a = cmd.hasArg(s);
-				if (a)
-					break;
-			}
-		}
-		return ((t && o && c && a) ^ type);
+		return compile().isVisible(cmd);
+	}
+
+	/**
+	 * Returns the compiled form of this filter, compiling it if it has
+	 * changed since it was last compiled.
+	 * 
+	 * @return
+	 */
+	DemoFilterPredicate.Clause compile() {
+		if (compiled == null)
+			compiled = new DemoFilterPredicate.Clause(type,
+					getTimeRangeList(), getReferenceList(), getCommandList(),
+					getArgumentList());
+		return compiled;
 	}
 
 	/**
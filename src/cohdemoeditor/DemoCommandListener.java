@@ -14,7 +14,8 @@ import java.util.*;
 
 /**
  * This interface describes an object that wishes to receive events when a demo
- * command is changed.
+ * command is changed. Listeners are added to the DemoCommandList holding the
+ * commands, with addDemoCommandListener.
  * 
  * @author Darren Lee
  */
@@ -0,0 +1,91 @@
+package cohdemoeditor;
+
+import java.util.Arrays;
+
+/**
+ * A DemoCommandSchema records which arguments of each command are numbers.
+ * The first time one of them is asked for with DemoCommand.getDouble, all of
+ * them are decoded at once and kept as doubles, and DemoCommand.setDouble
+ * only turns a number back into text when the text is asked for.
+ *
+ * POS and PYR have three numeric arguments, the coordinates and the angles,
+ * and HP and HPMAX have one. Other commands can be registered. getDouble
+ * works on any argument of any command; for arguments that are not in the
+ * schema, only that argument is decoded.
+ *
+ * Only the first MAX_ARGUMENTS arguments of a command are kept decoded, which
+ * is more than any numeric command has.
+ *
+ * @author Darren Lee
+ */
+public final class DemoCommandSchema {
+
+	public static final int MAX_ARGUMENTS = 32;
+
+	/**
+	 * The numeric arguments of each command id, as a bit mask. Replaced, not
+	 * changed, when a command is registered, so it can be read without a
+	 * lock.
+	 */
+	private static volatile int[] masks = new int[0];
+
+	static {
+		register("POS", 0, 1, 2);
+		register("PYR", 0, 1, 2);
+		register("HP", 0);
+		register("HPMAX", 0);
+	}
+
+	private DemoCommandSchema() {
+	}
+
+	/**
+	 * Registers the numeric arguments of the given command, replacing any
+	 * that were registered before.
+	 *
+	 * @param command
+	 * @param numericArguments
+	 *            the indices of the numeric arguments, each less than
+	 *            MAX_ARGUMENTS
+	 */
+	public static synchronized void register(String command,
+			int... numericArguments) {
+		int mask = 0;
+		for (int index : numericArguments) {
+			if (index < 0 || index >= MAX_ARGUMENTS)
+				throw new IllegalArgumentException("Argument " + index
+						+ " of " + command + " cannot be numeric.");
+			mask |= 1 << index;
+		}
+		final int id = DemoCommand.getCommandIdFor(command);
+		int[] newMasks = masks;
+		newMasks = Arrays.copyOf(newMasks, Math.max(newMasks.length, id + 1));
+		newMasks[id] = mask;
+		masks = newMasks;
+	}
+
+	/**
+	 * Returns the numeric arguments of the command with the given id as a bit
+	 * mask, in which bit i is set if argument i is numeric.
+	 *
+	 * @param commandId
+	 * @return
+	 */
+	public static int getNumericArguments(int commandId) {
+		final int[] m = masks;
+		return commandId < m.length ? m[commandId] : 0;
+	}
+
+	/**
+	 * Determines if the given argument of the command with the given id is
+	 * numeric.
+	 *
+	 * @param commandId
+	 * @param index
+	 * @return
+	 */
+	public static boolean isNumeric(int commandId, int index) {
+		return index >= 0 && index < MAX_ARGUMENTS
+				&& (getNumericArguments(commandId) & (1 << index)) != 0;
+	}
+}
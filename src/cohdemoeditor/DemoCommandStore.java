@@ -0,0 +1,1169 @@
+package cohdemoeditor;
+
+import java.util.*;
+
+/**
+ * A DemoCommandStore holds the commands of a DemoCommandList as columns
+ * instead of as DemoCommand objects: an int array each for the times,
+ * references, and command ids, and an offset for each command into a shared
+ * arena of characters holding its arguments. The arguments of a row read
+ * from a demo file are kept as the one piece of text
+ * DemoFileReader.getArgumentText returns, and are only split when one of
+ * them is asked for by index; other rows keep each argument separately. A
+ * loaded demo of millions of commands then costs a few dozen bytes per
+ * command instead of several hundred, and is a handful of large arrays
+ * rather than millions of small objects for the garbage collector to trace.
+ *
+ * The store is still a List of DemoCommands. A DemoCommand is created for a
+ * row the first time it is fetched with get, which is how the rows that are
+ * edited, selected, or shown through a filter come to life, and the same
+ * object is returned from then on. The store's owner is told about every
+ * command created this way, so it can listen to it like any other. Rows added
+ * as DemoCommands are kept as they are. Code that only needs to read a row
+ * can use the column getters or peek, which never create a command.
+ *
+ * Copies of a store share its arena, which is only ever appended to, so a
+ * copy is just a copy of the columns. Rows appended with the same argument
+ * text as a recent row, for commands DemoArgumentPool pools, point at that
+ * row's text instead of copying it. Every row has a key that is unique
+ * among a store and its copies, and sameRow compares rows by key, much as
+ * the code that kept DemoCommands in ArrayLists compared them by identity.
+ *
+ * The commands of an uncompressed demo remember their lines in it, as
+ * described in DemoSource. A store has one source for all of its rows that
+ * have not been created as commands.
+ *
+ * @author Darren Lee
+ */
+class DemoCommandStore extends AbstractList<DemoCommand> implements
+		RandomAccess {
+
+	/**
+	 * Receives the commands created for the rows of a store.
+	 */
+	interface Owner {
+		void rowMaterialized(int index, DemoCommand cmd);
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final char LONG_ARGUMENT = 0xffff;
+	private static final char NULL_ARGUMENT = 0xfffe;
+
+	private final Arena arena;
+	private int size = 0;
+	private int[] times;
+	private int[] refs;
+	private int[] commandIds;
+	private int[] args;
+	private int[] keys;
+	private long[] sourceOffsets = null;
+	private int[] sourceLengths = null;
+	private int[] sourceTimes = null;
+	private DemoCommand[] rows = null;
+	private volatile DemoSource source;
+	private Owner owner = null;
+
+	/**
+	 * Creates an empty store.
+	 */
+	DemoCommandStore() {
+		this(null);
+	}
+
+	/**
+	 * Creates an empty store whose rows are read from the given source.
+	 *
+	 * @param source
+	 */
+	DemoCommandStore(DemoSource source) {
+		this.arena = new Arena();
+		this.source = source;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a store holding rows from to to of the given store, sharing its
+	 * arena.
+	 */
+	private DemoCommandStore(DemoCommandStore from, int start, int end) {
+		this.arena = from.arena;
+		this.source = from.source;
+		allocate(Math.max(INITIAL_CAPACITY, end - start));
+		size = end - start;
+		System.arraycopy(from.times, start, times, 0, size);
+		System.arraycopy(from.refs, start, refs, 0, size);
+		System.arraycopy(from.commandIds, start, commandIds, 0, size);
+		System.arraycopy(from.args, start, args, 0, size);
+		System.arraycopy(from.keys, start, keys, 0, size);
+		if (from.sourceOffsets != null) {
+			allocateSources();
+			System.arraycopy(from.sourceOffsets, start, sourceOffsets, 0, size);
+			System.arraycopy(from.sourceLengths, start, sourceLengths, 0, size);
+			System.arraycopy(from.sourceTimes, start, sourceTimes, 0, size);
+		}
+		if (from.rows != null) {
+			rows = new DemoCommand[times.length];
+			System.arraycopy(from.rows, start, rows, 0, size);
+		}
+	}
+
+	/**
+	 * Sets the owner told about each command created for a row.
+	 *
+	 * @param owner
+	 */
+	void setOwner(Owner owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Returns a copy of this store. Rows that have been created as commands
+	 * share those commands with this store.
+	 */
+	DemoCommandStore copy() {
+		return copy(0, size);
+	}
+
+	/**
+	 * Returns a copy of the rows from start to end of this store.
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	DemoCommandStore copy(int start, int end) {
+		if (start < 0 || end > size || start > end)
+			throw new IndexOutOfBoundsException(start + " to " + end
+					+ " of " + size);
+		return new DemoCommandStore(this, start, end);
+	}
+
+	/**
+	 * Returns a copy of this store that shares no commands with it: the rows
+	 * that have been created as commands are cloned, and the clones keep
+	 * their lines in their sources.
+	 */
+	DemoCommandStore detachedCopy() {
+		DemoCommandStore copy = copy();
+		if (copy.rows != null) {
+			for (int i = 0; i < size; i++) {
+				if (copy.rows[i] != null)
+					copy.rows[i] = copy.rows[i].clone();
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Appends a row read from a demo file, without creating a command for
+	 * it.
+	 *
+	 * @param time
+	 * @param reference
+	 * @param commandId
+	 *            the command's id, as given by DemoCommand.getCommandIdFor
+	 * @param arguments
+	 * @return the index of the new row
+	 */
+	int appendRow(int time, int reference, int commandId,
+			List<String> arguments) {
+		ensureCapacity(size + 1);
+		final int index = size++;
+		times[index] = time;
+		refs[index] = reference;
+		commandIds[index] = commandId;
+		args[index] = arena.append(arguments);
+		keys[index] = arena.nextKey++;
+		if (sourceOffsets != null)
+			sourceOffsets[index] = -1;
+		if (rows != null)
+			rows[index] = null;
+		modCount++;
+		return index;
+	}
+
+	/**
+	 * Appends a row read from a demo file, without creating a command for it
+	 * or splitting its arguments.
+	 *
+	 * @param time
+	 * @param reference
+	 * @param commandId
+	 * @param argumentText
+	 *            the arguments, as DemoFileReader.getArgumentText returns
+	 *            them
+	 * @return the index of the new row
+	 */
+	int appendRow(int time, int reference, int commandId, String argumentText) {
+		ensureCapacity(size + 1);
+		final int index = size++;
+		times[index] = time;
+		refs[index] = reference;
+		commandIds[index] = commandId;
+		args[index] = ~(DemoArgumentPool.poolsArguments(commandId) ? arena
+				.appendShared(argumentText) : arena.append(argumentText));
+		keys[index] = arena.nextKey++;
+		if (sourceOffsets != null)
+			sourceOffsets[index] = -1;
+		if (rows != null)
+			rows[index] = null;
+		modCount++;
+		return index;
+	}
+
+	/**
+	 * Appends every row of the given store, adding timeOffset to their times,
+	 * as when joining the chunks of a demo read in parallel. The rows keep
+	 * their lines in this store's source.
+	 *
+	 * @param other
+	 * @param timeOffset
+	 */
+	void appendAll(DemoCommandStore other, int timeOffset) {
+		ensureCapacity(size + other.size);
+		final int base = arena.copy(other.arena);
+		if (other.sourceOffsets != null && sourceOffsets == null) {
+			allocateSources();
+			Arrays.fill(sourceOffsets, 0, size, -1);
+		}
+		for (int i = 0; i < other.size; i++) {
+			final int index = size++;
+			if (other.rows != null && other.rows[i] != null) {
+				final DemoCommand cmd = other.rows[i];
+				cmd.setLoadedTime(cmd.getTime() + timeOffset);
+				setRow(index, cmd);
+			} else {
+				times[index] = other.times[i] + timeOffset;
+				refs[index] = other.refs[i];
+				commandIds[index] = other.commandIds[i];
+				final int offset = other.args[i];
+				args[index] = offset < 0 ? ~(~offset + base) : offset + base;
+				if (rows != null)
+					rows[index] = null;
+			}
+			keys[index] = arena.nextKey++;
+			if (sourceOffsets != null) {
+				if (other.sourceOffsets == null) {
+					sourceOffsets[index] = -1;
+				} else {
+					sourceOffsets[index] = other.sourceOffsets[i];
+					sourceLengths[index] = other.sourceLengths[i];
+					sourceTimes[index] = other.sourceTimes[i];
+				}
+			}
+		}
+		modCount++;
+	}
+
+	/**
+	 * Returns the source of the rows that have not been created as commands.
+	 */
+	DemoSource getSource() {
+		return source;
+	}
+
+	/**
+	 * Starts moving the rows that have not been created as commands to a new
+	 * source, as when the store is saved. Their new lines are collected in
+	 * the returned SourceMove and only replace the old ones when it is
+	 * finished.
+	 *
+	 * @param target
+	 * @return
+	 */
+	SourceMove moveSources(DemoSource target) {
+		return new SourceMove(target);
+	}
+
+	/**
+	 * Records the line of the given row in the store's source, as
+	 * DemoCommand.setSource does for a command. Only the columns are changed,
+	 * so a row that has been created as a command should have its line set
+	 * in the command instead.
+	 *
+	 * @param index
+	 * @param offset
+	 * @param length
+	 * @param relativeTime
+	 */
+	void setRowSource(int index, long offset, int length, int relativeTime) {
+		checkIndex(index);
+		if (sourceOffsets == null) {
+			allocateSources();
+			Arrays.fill(sourceOffsets, 0, size, -1);
+		}
+		sourceOffsets[index] = offset;
+		sourceLengths[index] = length;
+		sourceTimes[index] = relativeTime;
+	}
+
+	/**
+	 * Returns the source the given row can be copied from, or null.
+	 */
+	DemoSource getSource(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd.getSource();
+		if (sourceOffsets == null || sourceOffsets[index] < 0)
+			return null;
+		return source;
+	}
+
+	/**
+	 * Returns the offset of the given row's line in its source.
+	 */
+	long getSourceOffset(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getSourceOffset() : sourceOffsets[index];
+	}
+
+	/**
+	 * Returns the length of the given row's line in its source.
+	 */
+	int getSourceLength(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getSourceLength() : sourceLengths[index];
+	}
+
+	/**
+	 * Returns the relative time written on the given row's line.
+	 */
+	int getSourceTime(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getSourceTime() : sourceTimes[index];
+	}
+
+	/**
+	 * Returns the absolute time of the given row.
+	 */
+	int getTime(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getTime() : times[index];
+	}
+
+	/**
+	 * Returns the reference of the given row.
+	 */
+	int getReference(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getReference() : refs[index];
+	}
+
+	/**
+	 * Returns the command of the given row.
+	 */
+	String getCommand(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getCommand() : DemoCommand
+				.getCommandFor(commandIds[index]);
+	}
+
+	/**
+	 * Returns the id of the command of the given row.
+	 */
+	int getCommandId(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		return cmd != null ? cmd.getCommandId() : commandIds[index];
+	}
+
+	/**
+	 * Returns the number of arguments of the given row.
+	 */
+	int getArgumentCount(int index) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd.getArgumentCount();
+		if (args[index] < 0)
+			return DemoCommand.countArguments(readText(args[index]));
+		return countAt(arena.chars, args[index]);
+	}
+
+	/**
+	 * Returns the argument at argIndex of the given row, or an empty string
+	 * if there is no such argument, as DemoCommand.getArgument does.
+	 */
+	String getArgument(int index, int argIndex) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd.getArgument(argIndex);
+		if (args[index] < 0) {
+			final List<String> list = DemoFileReader
+					.splitArguments(readText(args[index]));
+			return argIndex < list.size() ? list.get(argIndex) : "";
+		}
+		final char[] chars = arena.chars;
+		final int count = countAt(chars, args[index]);
+		int p = firstArgument(chars, args[index]);
+		if (argIndex >= count)
+			return "";
+		for (int j = 0; j < argIndex; j++)
+			p = skipArgument(chars, p);
+		return readArgument(chars, p);
+	}
+
+	/**
+	 * Determines if any argument of the given row is in the given set. The
+	 * arguments are looked up where they are kept, without reading them out
+	 * as Strings; text that has not been split is read as
+	 * DemoCommand.indexOfArgument reads it.
+	 */
+	boolean hasArgumentIn(int index, DemoFilterPredicate.ArgumentSet set) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return set.containsAnyOf(cmd);
+		final char[] chars = arena.chars;
+		if (args[index] < 0) {
+			final int start = firstArgument(chars, ~args[index]);
+			final int end = start + countAt(chars, ~args[index]);
+			if (!set.mayOccurIn(chars, start, end))
+				return false;
+			int i = start;
+			while (i < end) {
+				if (chars[i] != '"') {
+					// hash an unquoted argument while finding its end
+					int hash = 0;
+					int j = i;
+					while (j < end && chars[j] != ' ')
+						hash = 31 * hash + chars[j++];
+					if (j == end || (j > start && j < end - 1)) {
+						if (set.contains(chars, i, j - i, hash))
+							return true;
+						i = j + 1;
+						continue;
+					}
+				}
+				final boolean quoted = chars[i] == '"';
+				int next = quoted ? indexOf(chars, '"', i + 1, end) + 1
+						: indexOf(chars, ' ', i, end);
+				next = next <= start || next >= end ? end : next + 1;
+				final int from = quoted ? i + 1 : i;
+				final int to = next < end ? next - 1 : end;
+				if (set.contains(chars, from, quoted ? to - from - 1 : to
+						- from))
+					return true;
+				i = next;
+			}
+			return false;
+		}
+		final int count = countAt(chars, args[index]);
+		int p = firstArgument(chars, args[index]);
+		for (int j = 0; j < count; j++) {
+			final char length = chars[p];
+			if (length == LONG_ARGUMENT) {
+				if (set.contains(chars, p + 3, chars[p + 1] << 16
+						| chars[p + 2]))
+					return true;
+			} else if (length != NULL_ARGUMENT) {
+				if (set.contains(chars, p + 1, length))
+					return true;
+			}
+			p = skipArgument(chars, p);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the command created for the given row, or null if there is
+	 * none yet. Never creates one.
+	 */
+	DemoCommand getMaterialized(int index) {
+		checkIndex(index);
+		return rows == null ? null : rows[index];
+	}
+
+	/**
+	 * Makes the given command, created for the same row of a copy of this
+	 * store, the command for the given row here too, so that changes made to
+	 * it since are seen by this store.
+	 *
+	 * @param index
+	 * @param cmd
+	 */
+	void shareRow(int index, DemoCommand cmd) {
+		checkIndex(index);
+		if (rows == null)
+			rows = new DemoCommand[times.length];
+		rows[index] = cmd;
+	}
+
+	/**
+	 * Returns the command for the given row without creating one: the row's
+	 * own command if it has been created, and otherwise the given scratch
+	 * command, loaded with the row. The scratch command is only good until
+	 * the next call that loads it, and nothing should listen to it.
+	 *
+	 * @param index
+	 * @param scratch
+	 * @return
+	 */
+	DemoCommand peek(int index, DemoCommand scratch) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd;
+		load(index, scratch, true);
+		return scratch;
+	}
+
+	/**
+	 * Like peek, but only the time, reference, command, and line of the
+	 * scratch command are loaded; its arguments are left empty.
+	 */
+	DemoCommand peekHeader(int index, DemoCommand scratch) {
+		final DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd;
+		load(index, scratch, false);
+		return scratch;
+	}
+
+	/**
+	 * Returns the command for the given row, creating it if this is the
+	 * first time the row has been asked for.
+	 */
+	@Override
+	public DemoCommand get(int index) {
+		DemoCommand cmd = getMaterialized(index);
+		if (cmd != null)
+			return cmd;
+		if (args[index] < 0)
+			cmd = new DemoCommand(times[index], refs[index],
+					commandIds[index], readText(args[index]));
+		else
+			cmd = new DemoCommand(times[index], refs[index], DemoCommand
+					.getCommandFor(commandIds[index]),
+					readArguments(args[index]));
+		loadSource(index, cmd);
+		if (rows == null)
+			rows = new DemoCommand[times.length];
+		rows[index] = cmd;
+		if (owner != null)
+			owner.rowMaterialized(index, cmd);
+		return cmd;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public DemoCommand set(int index, DemoCommand cmd) {
+		final DemoCommand old = get(index);
+		setRow(index, cmd);
+		keys[index] = arena.nextKey++;
+		modCount++;
+		return old;
+	}
+
+	@Override
+	public void add(int index, DemoCommand cmd) {
+		if (index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		ensureCapacity(size + 1);
+		shift(index, index + 1, size - index);
+		size++;
+		setRow(index, cmd);
+		keys[index] = arena.nextKey++;
+		modCount++;
+	}
+
+	@Override
+	public DemoCommand remove(int index) {
+		final DemoCommand cmd = get(index);
+		shift(index + 1, index, size - index - 1);
+		size--;
+		rows[size] = null;
+		modCount++;
+		return cmd;
+	}
+
+	@Override
+	public void clear() {
+		if (rows != null)
+			Arrays.fill(rows, 0, size, null);
+		size = 0;
+		modCount++;
+	}
+
+	/**
+	 * Finds the given command. The rows that have been created as commands
+	 * are searched for the command itself first, which is much faster than
+	 * comparing the contents of every row; otherwise the first row equal to
+	 * it is returned, as for any other list.
+	 */
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof DemoCommand))
+			return -1;
+		if (rows != null) {
+			for (int i = 0; i < size; i++) {
+				if (rows[i] == o)
+					return i;
+			}
+		}
+		final DemoCommand cmd = (DemoCommand) o;
+		for (int i = 0; i < size; i++) {
+			if (rowEquals(i, cmd))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of times the rows have been added, removed, replaced,
+	 * or rearranged, so that an index of them can tell if it has missed a
+	 * change.
+	 */
+	int getModCount() {
+		return modCount;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	/**
+	 * Determines if row i of this store and row j of the other are the same
+	 * row: the same row read from a file, or the same command added to the
+	 * store.
+	 */
+	boolean sameRow(int i, DemoCommandStore other, int j) {
+		return keys[i] == other.keys[j];
+	}
+
+	/**
+	 * Replaces the rows from start to end with the rows of the given
+	 * segment, which should be a copy of part of this store or one of its
+	 * copies.
+	 *
+	 * @param start
+	 * @param end
+	 * @param segment
+	 */
+	void replace(int start, int end, DemoCommandStore segment) {
+		if (start < 0 || end > size || start > end)
+			throw new IndexOutOfBoundsException(start + " to " + end
+					+ " of " + size);
+		final int newSize = size - (end - start) + segment.size;
+		ensureCapacity(newSize);
+		shift(end, start + segment.size, size - end);
+		if (rows != null && newSize < size)
+			Arrays.fill(rows, newSize, size, null);
+		size = newSize;
+		final int n = segment.size;
+		System.arraycopy(segment.times, 0, times, start, n);
+		System.arraycopy(segment.refs, 0, refs, start, n);
+		System.arraycopy(segment.commandIds, 0, commandIds, start, n);
+		System.arraycopy(segment.args, 0, args, start, n);
+		System.arraycopy(segment.keys, 0, keys, start, n);
+		if (segment.sourceOffsets != null || sourceOffsets != null) {
+			if (sourceOffsets == null) {
+				allocateSources();
+				Arrays.fill(sourceOffsets, 0, size, -1);
+			}
+			if (segment.sourceOffsets == null || segment.source != source) {
+				Arrays.fill(sourceOffsets, start, start + n, -1);
+			} else {
+				System.arraycopy(segment.sourceOffsets, 0, sourceOffsets,
+						start, n);
+				System.arraycopy(segment.sourceLengths, 0, sourceLengths,
+						start, n);
+				System.arraycopy(segment.sourceTimes, 0, sourceTimes, start, n);
+			}
+		}
+		if (segment.rows != null) {
+			if (rows == null)
+				rows = new DemoCommand[times.length];
+			System.arraycopy(segment.rows, 0, rows, start, n);
+		} else if (rows != null) {
+			Arrays.fill(rows, start, start + n, null);
+		}
+		modCount++;
+	}
+
+	/**
+	 * Sorts the rows with a stable sort. Rows that have not been created as
+	 * commands are compared through scratch commands holding their time,
+	 * reference, and command, which is all a DemoCommandComparator looks at.
+	 *
+	 * @param comparator
+	 * @return the order of the rows: row i of the sorted store was row
+	 *         order[i] before sorting
+	 */
+	int[] sortRows(final Comparator<? super DemoCommand> comparator) {
+		final int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		final DemoCommand first = new DemoCommand(0, 0, "", "");
+		final DemoCommand second = new DemoCommand(0, 0, "", "");
+		mergeSort(order, new int[size], 0, size, new RowComparator() {
+			public int compare(int i, int j) {
+				return comparator.compare(peekHeader(i, first), peekHeader(j,
+						second));
+			}
+		});
+		permute(order);
+		return order;
+	}
+
+	/**
+	 * Reorders the rows so that row i becomes row order[i].
+	 *
+	 * @param order
+	 */
+	void permute(int[] order) {
+		final DemoCommandStore old = copy();
+		for (int i = 0; i < size; i++)
+			copyRow(old, order[i], i);
+		modCount++;
+	}
+
+	/**
+	 * Undoes permute, so that row order[i] becomes row i again.
+	 *
+	 * @param order
+	 */
+	void unpermute(int[] order) {
+		final DemoCommandStore old = copy();
+		for (int i = 0; i < size; i++)
+			copyRow(old, i, order[i]);
+		modCount++;
+	}
+
+	/**
+	 * Loads the given row into the scratch command.
+	 */
+	private void load(int index, DemoCommand scratch, boolean arguments) {
+		scratch.loadRow(times[index], refs[index], commandIds[index]);
+		if (arguments && args[index] < 0) {
+			scratch.loadArgumentText(readText(args[index]));
+		} else if (arguments) {
+			final char[] chars = arena.chars;
+			final int count = countAt(chars, args[index]);
+			int p = firstArgument(chars, args[index]);
+			for (int j = 0; j < count; j++) {
+				scratch.loadArgument(readArgument(chars, p));
+				p = skipArgument(chars, p);
+			}
+		}
+		loadSource(index, scratch);
+	}
+
+	/**
+	 * Gives the command the line of the given row, if it has one. The source
+	 * is read again afterwards, so that a command never gets a line from a
+	 * SourceMove finished in the meantime along with the old source.
+	 */
+	private void loadSource(int index, DemoCommand cmd) {
+		final DemoSource current = source;
+		if (current == null || sourceOffsets == null)
+			return;
+		final long offset = sourceOffsets[index];
+		final int length = sourceLengths[index];
+		final int relativeTime = sourceTimes[index];
+		if (offset >= 0 && current == source)
+			cmd.setSource(current, offset, length, relativeTime);
+	}
+
+	/**
+	 * Determines if the given row is equal to the given command, as
+	 * DemoCommand.equals would. Rows that have not been created as commands
+	 * have no id.
+	 */
+	private boolean rowEquals(int index, DemoCommand cmd) {
+		final DemoCommand row = getMaterialized(index);
+		if (row != null)
+			return row.equals(cmd);
+		if (times[index] != cmd.getTime() || refs[index] != cmd.getReference()
+				|| cmd.getId() != -1
+				|| commandIds[index] != cmd.getCommandId())
+			return false;
+		if (args[index] < 0)
+			return new DemoCommand(times[index], refs[index],
+					commandIds[index], readText(args[index]))
+					.sameArguments(cmd);
+		final char[] chars = arena.chars;
+		final int count = countAt(chars, args[index]);
+		int p = firstArgument(chars, args[index]);
+		if (count != cmd.getArgumentCount())
+			return false;
+		for (int j = 0; j < count; j++) {
+			final String arg = readArgument(chars, p);
+			if (arg == null ? cmd.getArgument(j) != null : !arg.equals(cmd
+					.getArgument(j)))
+				return false;
+			p = skipArgument(chars, p);
+		}
+		return true;
+	}
+
+	private ArrayList<String> readArguments(int offset) {
+		final char[] chars = arena.chars;
+		final int count = countAt(chars, offset);
+		int p = firstArgument(chars, offset);
+		final ArrayList<String> list = new ArrayList<String>(count);
+		for (int j = 0; j < count; j++) {
+			list.add(readArgument(chars, p));
+			p = skipArgument(chars, p);
+		}
+		return list;
+	}
+
+	/**
+	 * Reads the argument text of a row, given its encoded offset.
+	 */
+	private String readText(int offset) {
+		final char[] chars = arena.chars;
+		final int p = ~offset;
+		final int length = countAt(chars, p);
+		return new String(chars, firstArgument(chars, p), length);
+	}
+
+	private static int countAt(char[] chars, int p) {
+		return chars[p] == LONG_ARGUMENT ? chars[p + 1] << 16 | chars[p + 2]
+				: chars[p];
+	}
+
+	private static int firstArgument(char[] chars, int p) {
+		return chars[p] == LONG_ARGUMENT ? p + 3 : p + 1;
+	}
+
+	private static String readArgument(char[] chars, int p) {
+		final char length = chars[p];
+		if (length == NULL_ARGUMENT)
+			return null;
+		if (length == LONG_ARGUMENT)
+			return new String(chars, p + 3, chars[p + 1] << 16 | chars[p + 2]);
+		return new String(chars, p + 1, length);
+	}
+
+	/**
+	 * Returns the first index of c from start up to end, or -1.
+	 */
+	private static int indexOf(char[] chars, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (chars[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int skipArgument(char[] chars, int p) {
+		final char length = chars[p];
+		if (length == NULL_ARGUMENT)
+			return p + 1;
+		if (length == LONG_ARGUMENT)
+			return p + 3 + (chars[p + 1] << 16 | chars[p + 2]);
+		return p + 1 + length;
+	}
+
+	/**
+	 * Makes the given command the given row.
+	 */
+	private void setRow(int index, DemoCommand cmd) {
+		if (cmd == null)
+			throw new NullPointerException(
+					"cannot add a null DemoCommand to a DemoCommandStore");
+		if (rows == null)
+			rows = new DemoCommand[times.length];
+		rows[index] = cmd;
+		times[index] = cmd.getTime();
+		refs[index] = cmd.getReference();
+		commandIds[index] = cmd.getCommandId();
+		args[index] = 0;
+		if (sourceOffsets != null)
+			sourceOffsets[index] = -1;
+	}
+
+	/**
+	 * Copies row from of the given copy of this store to row to.
+	 */
+	private void copyRow(DemoCommandStore from, int i, int to) {
+		times[to] = from.times[i];
+		refs[to] = from.refs[i];
+		commandIds[to] = from.commandIds[i];
+		args[to] = from.args[i];
+		keys[to] = from.keys[i];
+		if (sourceOffsets != null) {
+			sourceOffsets[to] = from.sourceOffsets[i];
+			sourceLengths[to] = from.sourceLengths[i];
+			sourceTimes[to] = from.sourceTimes[i];
+		}
+		if (rows != null)
+			rows[to] = from.rows[i];
+	}
+
+	/**
+	 * Moves count rows from index from to index to.
+	 */
+	private void shift(int from, int to, int count) {
+		if (count <= 0)
+			return;
+		System.arraycopy(times, from, times, to, count);
+		System.arraycopy(refs, from, refs, to, count);
+		System.arraycopy(commandIds, from, commandIds, to, count);
+		System.arraycopy(args, from, args, to, count);
+		System.arraycopy(keys, from, keys, to, count);
+		if (sourceOffsets != null) {
+			System.arraycopy(sourceOffsets, from, sourceOffsets, to, count);
+			System.arraycopy(sourceLengths, from, sourceLengths, to, count);
+			System.arraycopy(sourceTimes, from, sourceTimes, to, count);
+		}
+		if (rows != null)
+			System.arraycopy(rows, from, rows, to, count);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+	}
+
+	private void allocate(int capacity) {
+		times = new int[capacity];
+		refs = new int[capacity];
+		commandIds = new int[capacity];
+		args = new int[capacity];
+		keys = new int[capacity];
+	}
+
+	private void allocateSources() {
+		sourceOffsets = new long[times.length];
+		sourceLengths = new int[times.length];
+		sourceTimes = new int[times.length];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= times.length)
+			return;
+		final int newCapacity = Math.min(MAX_ARRAY_SIZE, Math.max(capacity,
+				times.length + (times.length >> 1)));
+		times = Arrays.copyOf(times, newCapacity);
+		refs = Arrays.copyOf(refs, newCapacity);
+		commandIds = Arrays.copyOf(commandIds, newCapacity);
+		args = Arrays.copyOf(args, newCapacity);
+		keys = Arrays.copyOf(keys, newCapacity);
+		if (sourceOffsets != null) {
+			sourceOffsets = Arrays.copyOf(sourceOffsets, newCapacity);
+			sourceLengths = Arrays.copyOf(sourceLengths, newCapacity);
+			sourceTimes = Arrays.copyOf(sourceTimes, newCapacity);
+		}
+		if (rows != null)
+			rows = Arrays.copyOf(rows, newCapacity);
+	}
+
+	/**
+	 * The new lines of the rows of a store being moved to a new source. See
+	 * moveSources.
+	 */
+	class SourceMove {
+		private final DemoSource target;
+		private final long[] offsets;
+		private final int[] lengths;
+		private final int[] relativeTimes;
+
+		private SourceMove(DemoSource target) {
+			this.target = target;
+			offsets = new long[times.length];
+			lengths = new int[times.length];
+			relativeTimes = new int[times.length];
+			Arrays.fill(offsets, -1);
+		}
+
+		/**
+		 * Records the line of the given row in the new source.
+		 */
+		void setRowSource(int index, long offset, int length,
+				int relativeTime) {
+			offsets[index] = offset;
+			lengths[index] = length;
+			relativeTimes[index] = relativeTime;
+		}
+
+		/**
+		 * Makes the new source and lines those of the store. The store must
+		 * not have been changed since the move started.
+		 */
+		void finish() {
+			source = null;
+			sourceOffsets = offsets;
+			sourceLengths = lengths;
+			sourceTimes = relativeTimes;
+			source = target;
+		}
+	}
+
+	private interface RowComparator {
+		int compare(int i, int j);
+	}
+
+	/**
+	 * A stable merge sort of order from start to end.
+	 */
+	private static void mergeSort(int[] order, int[] temp, int start,
+			int end, RowComparator comparator) {
+		if (end - start < 2)
+			return;
+		if (end - start < 8) {
+			for (int i = start + 1; i < end; i++) {
+				final int row = order[i];
+				int j = i;
+				while (j > start && comparator.compare(order[j - 1], row) > 0) {
+					order[j] = order[j - 1];
+					j--;
+				}
+				order[j] = row;
+			}
+			return;
+		}
+		final int middle = (start + end) >>> 1;
+		mergeSort(order, temp, start, middle, comparator);
+		mergeSort(order, temp, middle, end, comparator);
+		if (comparator.compare(order[middle - 1], order[middle]) <= 0)
+			return;
+		System.arraycopy(order, start, temp, start, end - start);
+		int i = start;
+		int j = middle;
+		for (int k = start; k < end; k++) {
+			if (j >= end
+					|| (i < middle && comparator.compare(temp[i], temp[j]) <= 0))
+				order[k] = temp[i++];
+			else
+				order[k] = temp[j++];
+		}
+	}
+
+	/**
+	 * The storage shared by a store and its copies: the characters of the
+	 * arguments and the next row key. Only ever appended to, so that the rows
+	 * of every copy stay valid. A row's offset is complemented, and so
+	 * negative, if it holds argument text rather than separate arguments.
+	 */
+	private static class Arena {
+		private static final int RECENT_SIZE = 1 << 12;
+
+		private char[] chars = new char[256];
+		private int length = 0;
+		private int nextKey = 0;
+		private int[] recent = null;
+
+		/**
+		 * Appends the given arguments: their count, then each one's length
+		 * and characters.
+		 *
+		 * @return the offset of the arguments
+		 */
+		private int append(List<String> arguments) {
+			final int count = arguments.size();
+			int needed = 3;
+			for (int j = 0; j < count; j++) {
+				final String arg = arguments.get(j);
+				needed += arg == null ? 1 : arg.length() + 3;
+			}
+			reserve(needed);
+			final int offset = length;
+			length = putLength(count, offset);
+			for (int j = 0; j < count; j++) {
+				final String arg = arguments.get(j);
+				if (arg == null) {
+					chars[length++] = NULL_ARGUMENT;
+					continue;
+				}
+				final int n = arg.length();
+				length = putLength(n, length);
+				arg.getChars(0, n, chars, length);
+				length += n;
+			}
+			return offset;
+		}
+
+		/**
+		 * Appends the given argument text: its length, then its characters.
+		 *
+		 * @return the offset of the text
+		 */
+		private int append(String text) {
+			final int n = text.length();
+			reserve(n + 3);
+			final int offset = length;
+			length = putLength(n, offset);
+			text.getChars(0, n, chars, length);
+			length += n;
+			return offset;
+		}
+
+		/**
+		 * Like append, but if the same text was appended recently, returns
+		 * its offset instead of appending it again. Recent texts are kept in
+		 * a fixed number of slots chosen by hash, as in DemoArgumentPool.
+		 *
+		 * @return the offset of the text
+		 */
+		private int appendShared(String text) {
+			final int n = text.length();
+			if (n < DemoArgumentPool.MIN_LENGTH)
+				return append(text);
+			if (recent == null) {
+				recent = new int[RECENT_SIZE];
+				Arrays.fill(recent, -1);
+			}
+			final int hash = text.hashCode();
+			final int slot = (hash ^ (hash >>> 12)) & (RECENT_SIZE - 1);
+			final int offset = recent[slot];
+			if (offset >= 0 && countAt(chars, offset) == n) {
+				final int start = firstArgument(chars, offset);
+				int i = 0;
+				while (i < n && chars[start + i] == text.charAt(i))
+					i++;
+				if (i == n) {
+					DemoArgumentPool.countShared(start - offset + n, 0);
+					return offset;
+				}
+			}
+			recent[slot] = append(text);
+			return recent[slot];
+		}
+
+		/**
+		 * Writes a count or length at p, escaping those too large for a
+		 * single character.
+		 *
+		 * @return the offset just past it
+		 */
+		private int putLength(int n, int p) {
+			if (n < NULL_ARGUMENT) {
+				chars[p] = (char) n;
+				return p + 1;
+			}
+			chars[p] = LONG_ARGUMENT;
+			chars[p + 1] = (char) (n >>> 16);
+			chars[p + 2] = (char) n;
+			return p + 3;
+		}
+
+		/**
+		 * Appends the characters of another arena.
+		 *
+		 * @return the offset at which they were appended
+		 */
+		private int copy(Arena other) {
+			reserve(other.length);
+			final int offset = length;
+			System.arraycopy(other.chars, 0, chars, length, other.length);
+			length += other.length;
+			return offset;
+		}
+
+		private void reserve(int needed) {
+			if (length + needed <= chars.length)
+				return;
+			if ((long) length + needed > MAX_ARRAY_SIZE)
+				throw new OutOfMemoryError("Too many argument characters");
+			chars = Arrays.copyOf(chars, (int) Math.min(MAX_ARRAY_SIZE,
+					Math.max(length + needed, 2L * chars.length)));
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DemoDiff compares two demo files in a single pass over both, without
+ * loading either. The commands of each file are read in groups that share an
+ * absolute time and a reference, and groups are matched up in the order given
+ * by a DemoCommandComparator, so only the current group of each file is ever
+ * in memory.
+ *
+ * Within a matched group, the commands with the same name are paired in the
+ * order they appear: the first POS of the old group with the first POS of the
+ * new group, and so on. A pair whose arguments differ is reported as changed;
+ * commands left over on either side are reported as deleted or inserted. The
+ * most unchanged pairs that can keep their order do; the rest have moved past
+ * them within the group, and are reported as moved.
+ * Each difference records the occurrence of its command among the commands
+ * of its group with the same name, and its position in the group, which is
+ * what lets a DemoPatch put it back in the right place.
+ *
+ * Both files should be in the order the comparator expects, as saved demos
+ * are. Differences are passed to the difference method as they are found;
+ * override it to collect or write them.
+ *
+ * @author Darren Lee
+ */
+public class DemoDiff {
+
+	/**
+	 * The kind of difference.
+	 */
+	public static enum Type {
+		INSERTED, DELETED, CHANGED, MOVED
+	}
+
+	/**
+	 * A single difference between the old and new demo. Commands have
+	 * absolute times. The old command of an insertion and the new command of
+	 * a deletion are null.
+	 */
+	public static class Difference {
+		private final Type type;
+		private final int occurrence;
+		private final int position;
+		private final DemoCommand oldCommand;
+		private final DemoCommand newCommand;
+
+		public Difference(Type type, int occurrence, int position,
+				DemoCommand oldCommand, DemoCommand newCommand) {
+			this.type = type;
+			this.occurrence = occurrence;
+			this.position = position;
+			this.oldCommand = oldCommand;
+			this.newCommand = newCommand;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the position of the command among the commands with the
+		 * same time, reference and name, counting from 0.
+		 */
+		public int getOccurrence() {
+			return occurrence;
+		}
+
+		/**
+		 * Returns the position of the command in its group, counting from 0:
+		 * in the new group for an insertion or a change, and in the old
+		 * group for a deletion.
+		 */
+		public int getPosition() {
+			return position;
+		}
+
+		public DemoCommand getOldCommand() {
+			return oldCommand;
+		}
+
+		public DemoCommand getNewCommand() {
+			return newCommand;
+		}
+
+		/**
+		 * Returns whichever command is not null, preferring the new one.
+		 */
+		public DemoCommand getCommand() {
+			return newCommand != null ? newCommand : oldCommand;
+		}
+	}
+
+	private final Comparator<? super DemoCommand> comparator;
+	private int badLineCount = 0;
+	private int progress = 0;
+
+	/**
+	 * Creates a DemoDiff that matches commands in the order of the given
+	 * comparator, normally the DemoEditor's DemoCommandComparator.
+	 *
+	 * @param comparator
+	 */
+	public DemoDiff(Comparator<? super DemoCommand> comparator) {
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Compares the two files, calling difference for each difference found.
+	 * Lines that are not valid demo commands are skipped and counted. If the
+	 * thread is interrupted, the comparison stops with an
+	 * InterruptedIOException.
+	 *
+	 * @param oldFile
+	 * @param newFile
+	 * @return the number of differences found
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public int diff(File oldFile, File newFile) throws FileNotFoundException,
+			IOException {
+		badLineCount = 0;
+		progress = 0;
+		int count = 0;
+		GroupReader oldReader = new GroupReader(new DemoFileReader(oldFile));
+		try {
+			GroupReader newReader = new GroupReader(new DemoFileReader(
+					newFile));
+			try {
+				final long length = Math.max(1, oldReader.reader.getLength()
+						+ newReader.reader.getLength());
+				List<DemoCommand> oldGroup = oldReader.nextGroup();
+				List<DemoCommand> newGroup = newReader.nextGroup();
+				final List<DemoCommand> empty = Collections.emptyList();
+				while (oldGroup != null || newGroup != null) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					final int c;
+					if (oldGroup == null)
+						c = 1;
+					else if (newGroup == null)
+						c = -1;
+					else
+						c = compareGroups(oldGroup.get(0), newGroup.get(0));
+					if (c < 0) {
+						count += diffGroups(oldGroup, empty);
+						oldGroup = oldReader.nextGroup();
+					} else if (c > 0) {
+						count += diffGroups(empty, newGroup);
+						newGroup = newReader.nextGroup();
+					} else {
+						count += diffGroups(oldGroup, newGroup);
+						oldGroup = oldReader.nextGroup();
+						newGroup = newReader.nextGroup();
+					}
+					updateProgress(oldReader.reader.getBytesRead()
+							+ newReader.reader.getBytesRead(), length);
+				}
+			} finally {
+				newReader.reader.close();
+			}
+		} finally {
+			oldReader.reader.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Called for each difference, in file order. Does nothing by default.
+	 *
+	 * @param d
+	 * @throws IOException
+	 */
+	protected void difference(Difference d) throws IOException {
+	}
+
+	/**
+	 * Returns the number of invalid lines skipped by the last diff.
+	 */
+	public int getBadLineCount() {
+		return badLineCount;
+	}
+
+	/**
+	 * Called by diff whenever the percentage of the files read changes. Does
+	 * nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	/**
+	 * Compares the groups that the given commands belong to: by time, then
+	 * by reference in the comparator's order.
+	 */
+	int compareGroups(DemoCommand cmd1, DemoCommand cmd2) {
+		if (cmd1.getTime() != cmd2.getTime())
+			return cmd1.getTime() < cmd2.getTime() ? -1 : 1;
+		if (cmd1.getReference() == cmd2.getReference())
+			return 0;
+		return comparator.compare(cmd1, cmd2);
+	}
+
+	/**
+	 * Determines if two commands have the same name and arguments.
+	 */
+	static boolean sameCommand(DemoCommand cmd1, DemoCommand cmd2) {
+		return cmd1.getCommandId() == cmd2.getCommandId()
+				&& cmd1.sameArguments(cmd2);
+	}
+
+	private int diffGroups(List<DemoCommand> oldGroup,
+			List<DemoCommand> newGroup) throws IOException {
+		int count = 0;
+		final Map<String, Integer> oldSeen = new HashMap<String, Integer>();
+		final Map<String, List<DemoCommand>> oldByName = new LinkedHashMap<String, List<DemoCommand>>();
+		final Map<DemoCommand, Integer> oldPositions = new IdentityHashMap<DemoCommand, Integer>();
+		for (DemoCommand cmd : oldGroup) {
+			List<DemoCommand> cmds = oldByName.get(cmd.getCommand());
+			if (cmds == null) {
+				cmds = new ArrayList<DemoCommand>();
+				oldByName.put(cmd.getCommand(), cmds);
+			}
+			oldPositions.put(cmd, oldPositions.size());
+			cmds.add(cmd);
+		}
+		final Map<String, Integer> newSeen = new HashMap<String, Integer>();
+		final int[] occurrences = new int[newGroup.size()];
+		final DemoCommand[] paired = new DemoCommand[newGroup.size()];
+		final int[] unchanged = new int[newGroup.size()];
+		int unchangedCount = 0;
+		for (int i = 0; i < occurrences.length; i++) {
+			final DemoCommand cmd = newGroup.get(i);
+			final Integer seen = newSeen.get(cmd.getCommand());
+			occurrences[i] = seen == null ? 0 : seen;
+			newSeen.put(cmd.getCommand(), occurrences[i] + 1);
+			final List<DemoCommand> olds = oldByName.get(cmd.getCommand());
+			if (olds != null && occurrences[i] < olds.size()) {
+				paired[i] = olds.get(occurrences[i]);
+				oldSeen.put(cmd.getCommand(), occurrences[i] + 1);
+				if (sameCommand(paired[i], cmd))
+					unchanged[unchangedCount++] = oldPositions.get(paired[i]);
+			}
+		}
+		final boolean[] inOrder = longestIncreasing(unchanged, unchangedCount);
+		int u = 0;
+		for (int i = 0; i < occurrences.length; i++) {
+			final DemoCommand cmd = newGroup.get(i);
+			final DemoCommand old = paired[i];
+			if (old == null) {
+				difference(new Difference(Type.INSERTED, occurrences[i], i,
+						null, cmd));
+				count++;
+			} else if (!sameCommand(old, cmd)) {
+				difference(new Difference(Type.CHANGED, occurrences[i], i, old,
+						cmd));
+				count++;
+			} else if (!inOrder[u++]) {
+				difference(new Difference(Type.MOVED, occurrences[i], i, old,
+						cmd));
+				count++;
+			}
+		}
+		for (Map.Entry<String, List<DemoCommand>> e : oldByName.entrySet()) {
+			final Integer seen = oldSeen.get(e.getKey());
+			final List<DemoCommand> olds = e.getValue();
+			for (int i = seen == null ? 0 : seen; i < olds.size(); i++) {
+				difference(new Difference(Type.DELETED, i, oldPositions
+						.get(olds.get(i)), olds.get(i), null));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Marks the longest run of the given positions, not necessarily
+	 * adjacent, that is in increasing order. Commands paired at the marked
+	 * positions keep their order from the old group to the new; the others
+	 * have moved past them.
+	 */
+	private static boolean[] longestIncreasing(int[] positions, int count) {
+		final int[] tails = new int[count];
+		final int[] previous = new int[count];
+		int length = 0;
+		for (int i = 0; i < count; i++) {
+			int low = 0;
+			int high = length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (positions[tails[middle]] < positions[i])
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length)
+				length++;
+		}
+		final boolean[] marked = new boolean[count];
+		for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i])
+			marked[i] = true;
+		return marked;
+	}
+
+	private void updateProgress(long read, long length) {
+		final int newProgress = (int) ((100 * read) / length);
+		if (newProgress != progress) {
+			progress = newProgress;
+			progressChanged(progress);
+		}
+	}
+
+	/**
+	 * Reads a demo a group at a time, where a group is a run of commands with
+	 * the same absolute time and reference.
+	 */
+	class GroupReader {
+		final DemoFileReader reader;
+		private DemoCommand next = null;
+		private int time = 0;
+		private boolean done = false;
+
+		GroupReader(DemoFileReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Returns the next group, or null at the end of the file.
+		 */
+		List<DemoCommand> nextGroup() throws IOException {
+			if (next == null && !advance())
+				return null;
+			final List<DemoCommand> group = new ArrayList<DemoCommand>();
+			final DemoCommand first = next;
+			do {
+				group.add(next);
+			} while (advance() && next.getTime() == first.getTime()
+					&& next.getReference() == first.getReference());
+			return group;
+		}
+
+		private boolean advance() throws IOException {
+			next = null;
+			while (!done && reader.next()) {
+				final DemoCommand cmd = reader.getDemoCommand();
+				if (cmd == null) {
+					badLineCount++;
+					continue;
+				}
+				time += cmd.getTime();
+				cmd.setTime(time);
+				next = cmd;
+				return true;
+			}
+			done = true;
+			return false;
+		}
+	}
+}
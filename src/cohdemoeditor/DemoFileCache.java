@@ -0,0 +1,353 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A DemoFileCache keeps a binary copy of a parsed demo next to the demo file,
+ * so that reopening a large demo does not have to parse its text again. The
+ * cache for foo.cohdemo is foo.cohdemo.idx.
+ *
+ * The cache records the size and modification time of the demo it was made
+ * from, and is ignored once the demo changes. It holds every command with its
+ * absolute time, its reference, an index into a table of command names, its
+ * arguments, and where its line is in the demo, so that the commands read
+ * back from the cache can still be saved by copying their lines. Non-numeric
+ * references are stored by name, since the numbers DemoCommand assigns them
+ * differ from run to run. Lines that could not be parsed are kept as well, so
+ * they can still be reported.
+ *
+ * A cache that is missing, stale, or unreadable is treated as absent.
+ * Failing to write a cache is not an error either; the demo will simply be
+ * parsed again next time.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileCache {
+
+	public static final String EXTENSION = ".idx";
+	private static final int MAGIC = 0x43444958; // "CDIX"
+	private static final int VERSION = 2;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File demoFile;
+	private final File cacheFile;
+	private final List<String> badLines = new ArrayList<String>();
+	private ByteBuffer buffer;
+	private FileChannel channel;
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Creates a cache for the given demo file.
+	 *
+	 * @param demoFile
+	 */
+	public DemoFileCache(File demoFile) {
+		this.demoFile = demoFile;
+		this.cacheFile = new File(demoFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Returns the file the cache is kept in.
+	 */
+	public File getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * Determines if there is a cache that matches the current demo file.
+	 */
+	public boolean isValid() {
+		if (!cacheFile.isFile())
+			return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				ByteBuffer header = ByteBuffer.allocate(24);
+				raf.getChannel().read(header, 0);
+				header.flip();
+				return checkHeader(header);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the cached commands into a new DemoCommandList with absolute
+	 * times. Returns null if there is no valid cache for the demo file.
+	 *
+	 * @return the cached commands, or null
+	 */
+	public DemoCommandList read() {
+		badLines.clear();
+		if (!cacheFile.isFile() || cacheFile.length() > Integer.MAX_VALUE)
+			return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				FileChannel ch = raf.getChannel();
+				MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY,
+						0, ch.size());
+				if (!checkHeader(map))
+					return null;
+				return readCommands(map);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (NegativeArraySizeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the unreadable lines stored in the cache by the last call to
+	 * read.
+	 */
+	public List<String> getBadLines() {
+		return badLines;
+	}
+
+	/**
+	 * Writes a cache for the demo file holding the given commands, which
+	 * should be the unmodified contents of the file, and the lines that could
+	 * not be parsed. The cache is written to a temporary file first, so a
+	 * failed write never leaves a broken cache behind.
+	 *
+	 * @param cmdList
+	 * @param badLines
+	 * @return true if the cache was written
+	 */
+	public boolean write(DemoCommandList cmdList, List<String> badLines) {
+		final long length = demoFile.length();
+		final long modified = demoFile.lastModified();
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			channel = new FileOutputStream(temp).getChannel();
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			try {
+				writeContents(cmdList, badLines, length, modified);
+				flush();
+			} finally {
+				channel.close();
+				channel = null;
+				buffer = null;
+			}
+			if (demoFile.length() != length
+					|| demoFile.lastModified() != modified) {
+				temp.delete();
+				return false;
+			}
+			cacheFile.delete();
+			return temp.renameTo(cacheFile);
+		} catch (IOException e) {
+			temp.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the cache, if there is one.
+	 */
+	public void delete() {
+		cacheFile.delete();
+	}
+
+	/**
+	 * Called after every few thousand commands while reading the cache, and
+	 * whenever the percentage changes. Does nothing by default.
+	 *
+	 * @param percent
+	 *            the percentage of the commands read so far
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	private boolean checkHeader(ByteBuffer in) {
+		return in.getInt() == MAGIC && in.getInt() == VERSION
+				&& in.getLong() == demoFile.length()
+				&& in.getLong() == demoFile.lastModified();
+	}
+
+	private DemoCommandList readCommands(ByteBuffer in) {
+		final int count = in.getInt();
+		final int[] commandIds = new int[in.getInt()];
+		for (int i = 0; i < commandIds.length; i++) {
+			commandIds[i] = DemoCommand.getCommandIdFor(readString(in));
+		}
+		final HashMap<Integer, Integer> refs = new HashMap<Integer, Integer>();
+		final int refCount = in.getInt();
+		for (int i = 0; i < refCount; i++) {
+			final int ref = in.getInt();
+			refs.put(ref, DemoCommand.getRefNumFor(readString(in)));
+		}
+		final DemoSource source = new DemoSource(demoFile);
+		source.record();
+		final DemoCommandStore store = new DemoCommandStore(source);
+		final ArrayList<String> args = new ArrayList<String>();
+		int previous = 0;
+		int progress = 0;
+		for (int i = 0; i < count; i++) {
+			final int time = in.getInt();
+			int ref = in.getInt();
+			if (ref < DemoCommand.SKYFILE_INDEX) {
+				Integer custom = refs.get(ref);
+				if (custom == null)
+					return null;
+				ref = custom;
+			}
+			final int command = commandIds[in.getInt()];
+			final int argCount = in.getInt();
+			args.clear();
+			for (int j = 0; j < argCount; j++) {
+				args.add(readString(in));
+			}
+			final int row = store.appendRow(time, ref, command, args);
+			final long offset = in.getLong();
+			final int length = in.getInt();
+			if (offset >= 0)
+				store.setRowSource(row, offset, length, time - previous);
+			previous = time;
+			if ((i & 0xfff) == 0) {
+				final int newProgress = (int) ((100L * i) / count);
+				if (newProgress != progress) {
+					progress = newProgress;
+					progressChanged(progress);
+				}
+			}
+		}
+		final int badCount = in.getInt();
+		for (int i = 0; i < badCount; i++) {
+			badLines.add(readString(in));
+		}
+		return new DemoCommandList(store);
+	}
+
+	private String readString(ByteBuffer in) {
+		final int length = in.getInt();
+		if (length < 0)
+			return null;
+		if (length > in.remaining())
+			throw new BufferUnderflowException();
+		if (scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		in.get(scratch, 0, length);
+		return new String(scratch, 0, length, UTF8);
+	}
+
+	private void writeContents(DemoCommandList cmdList, List<String> badLines,
+			long length, long modified) throws IOException {
+		final List<DemoCommand> commands = cmdList.getCommands();
+		final DemoCommandStore store = cmdList.getStore();
+		final DemoCommand scratch = new DemoCommand(0, 0, "", "");
+		final int count = commands.size();
+		final HashMap<String, Integer> names = new HashMap<String, Integer>();
+		final List<String> nameList = new ArrayList<String>();
+		final HashMap<Integer, String> refs = new HashMap<Integer, String>();
+		for (int i = 0; i < count; i++) {
+			DemoCommand cmd = store != null ? store.peekHeader(i, scratch)
+					: commands.get(i);
+			if (!names.containsKey(cmd.getCommand())) {
+				names.put(cmd.getCommand(), nameList.size());
+				nameList.add(cmd.getCommand());
+			}
+			if (cmd.getReference() < DemoCommand.SKYFILE_INDEX)
+				refs.put(cmd.getReference(), cmd.getReferenceString());
+		}
+		putInt(MAGIC);
+		putInt(VERSION);
+		putLong(length);
+		putLong(modified);
+		putInt(count);
+		putInt(nameList.size());
+		for (String name : nameList) {
+			putString(name);
+		}
+		putInt(refs.size());
+		for (Integer ref : refs.keySet()) {
+			putInt(ref);
+			putString(refs.get(ref));
+		}
+		for (int i = 0; i < count; i++) {
+			DemoCommand cmd = store != null ? store.peek(i, scratch)
+					: commands.get(i);
+			putInt(cmd.getTime());
+			putInt(cmd.getReference());
+			putInt(names.get(cmd.getCommand()));
+			final int argCount = cmd.getArgumentCount();
+			putInt(argCount);
+			for (int j = 0; j < argCount; j++) {
+				putString(cmd.getArgument(j));
+			}
+			final DemoSource source = cmd.getSource();
+			if (source != null && source.getFile().equals(demoFile)) {
+				putLong(cmd.getSourceOffset());
+				putInt(cmd.getSourceLength());
+			} else {
+				putLong(-1);
+				putInt(0);
+			}
+		}
+		putInt(badLines.size());
+		for (String line : badLines) {
+			putString(line);
+		}
+	}
+
+	private void putInt(int i) throws IOException {
+		if (buffer.remaining() < 4)
+			flush();
+		buffer.putInt(i);
+	}
+
+	private void putLong(long l) throws IOException {
+		if (buffer.remaining() < 8)
+			flush();
+		buffer.putLong(l);
+	}
+
+	private void putString(String str) throws IOException {
+		if (str == null) {
+			putInt(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes(UTF8);
+		putInt(bytes.length);
+		if (buffer.remaining() < bytes.length)
+			flush();
+		if (buffer.remaining() < bytes.length) {
+			ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+			while (wrapped.hasRemaining())
+				channel.write(wrapped);
+		} else {
+			buffer.put(bytes);
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
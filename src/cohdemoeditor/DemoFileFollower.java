@@ -0,0 +1,223 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
+
+import cohdemoeditor.swing.DemoCommandListEditor;
+import cohdemoeditor.swing.DemoEditor;
+
+/**
+ * A DemoFileFollower reads a demo file that is still being written. It keeps
+ * the file open and remembers how far it has read, and each poll parses only
+ * the complete lines added since the last one, continuing the running sum
+ * that turns relative times into absolute ones. A line without its line
+ * terminator is left for a later poll.
+ *
+ * follow opens a demo in the editor and keeps appending to it until its
+ * window is closed.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileFollower implements Closeable {
+
+	/**
+	 * How long to wait between polls when nothing new has been written, in
+	 * milliseconds.
+	 */
+	public static final int POLL_INTERVAL = 500;
+	private static final int BATCH_SIZE = 1 << 14;
+	private static final int TAIL_SIZE = 1 << 13;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final ByteBuffer tail = ByteBuffer.allocate(TAIL_SIZE);
+	private long position = 0;
+	private int time = 0;
+	private int badLineCount = 0;
+
+	/**
+	 * Opens the given file for following, starting at its beginning.
+	 *
+	 * @param file
+	 * @throws FileNotFoundException
+	 */
+	public DemoFileFollower(File file) throws FileNotFoundException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+	}
+
+	/**
+	 * Static method to follow a demo file in a new DemoCommandList,
+	 * automatically adding it to the DemoEditor. The file is polled on a
+	 * SwingWorker thread, and the commands found by each poll are appended to
+	 * the list in batches on the event thread. Following stops when the
+	 * list's window is closed.
+	 *
+	 * @param file
+	 * @param editor
+	 */
+	public static void follow(final File file, final DemoEditor editor) {
+		final DemoFileFollower follower;
+		try {
+			follower = new DemoFileFollower(file);
+		} catch (FileNotFoundException e) {
+			JOptionPane.showMessageDialog(editor, "Could not find the file "
+					+ file.getName(), "Error", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		final DemoCommandList cmdList = new DemoCommandList();
+		final SwingWorker<Void, DemoCommand> worker = new SwingWorker<Void, DemoCommand>() {
+			@Override
+			protected Void doInBackground() throws Exception {
+				try {
+					while (!isCancelled()) {
+						List<DemoCommand> cmds = follower.poll(BATCH_SIZE);
+						if (cmds.isEmpty())
+							Thread.sleep(POLL_INTERVAL);
+						else
+							publish(cmds.toArray(new DemoCommand[cmds.size()]));
+					}
+				} finally {
+					follower.close();
+				}
+				return null;
+			}
+
+			@Override
+			protected void process(List<DemoCommand> cmds) {
+				cmdList.appendCommands(cmds);
+			}
+
+			@Override
+			protected void done() {
+				try {
+					get();
+				} catch (InterruptedException e) {
+				} catch (CancellationException e) {
+				} catch (ExecutionException e) {
+					JOptionPane.showMessageDialog(editor, "Stopped following "
+							+ file.getName() + ": "
+							+ e.getCause().getMessage(), "Error",
+							JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		};
+		DemoCommandListEditor cmdEditor = editor.addDemo(cmdList);
+		cmdEditor.setTitle(file.getName() + " (following)");
+		cmdEditor.addInternalFrameListener(new InternalFrameAdapter() {
+			@Override
+			public void internalFrameClosed(InternalFrameEvent e) {
+				worker.cancel(true);
+			}
+		});
+		worker.execute();
+	}
+
+	/**
+	 * Reads the complete lines written since the last poll.
+	 *
+	 * @param maxCommands
+	 *            the most commands to return; the rest are left for the next
+	 *            poll
+	 * @return the new commands, with absolute times
+	 * @throws IOException
+	 *             if the file cannot be read or has been truncated
+	 */
+	public List<DemoCommand> poll(int maxCommands) throws IOException {
+		final List<DemoCommand> cmds = new ArrayList<DemoCommand>();
+		final long size = channel.size();
+		if (size < position)
+			throw new IOException(file.getName() + " has been truncated.");
+		final long end = findLastLineEnd(size);
+		if (end <= position)
+			return cmds;
+		DemoFileReader reader = new DemoFileReader(channel, position, end);
+		try {
+			while (cmds.size() < maxCommands && reader.next()) {
+				DemoCommand cmd = reader.getDemoCommand();
+				if (cmd == null) {
+					badLineCount++;
+					continue;
+				}
+				time += cmd.getTime();
+				cmd.setTime(time);
+				cmds.add(cmd);
+			}
+			position = cmds.size() < maxCommands ? end : reader.getPosition();
+		} finally {
+			reader.close();
+		}
+		return cmds;
+	}
+
+	/**
+	 * Returns the offset just past the last line terminator at or after the
+	 * current position, or the current position if there is none.
+	 */
+	private long findLastLineEnd(long size) throws IOException {
+		long to = size;
+		while (to > position) {
+			final long from = Math.max(position, to - TAIL_SIZE);
+			tail.clear();
+			tail.limit((int) (to - from));
+			while (tail.hasRemaining()) {
+				if (channel.read(tail, from + tail.position()) < 0)
+					return position;
+			}
+			for (int i = tail.limit() - 1; i >= 0; i--) {
+				final byte b = tail.get(i);
+				if (b == '\n' || b == '\r')
+					return from + i + 1;
+			}
+			to = from;
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the file being followed.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the offset of the first byte not yet read.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the absolute time of the last command read.
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the number of invalid lines skipped so far.
+	 */
+	public int getBadLineCount() {
+		return badLineCount;
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+}
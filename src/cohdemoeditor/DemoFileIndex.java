@@ -0,0 +1,339 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A DemoFileIndex is a read-only list of the commands in a demo file that
+ * keeps only a few of them in memory at a time. Building the index scans the
+ * file once and records the offset and starting time of every PAGE_SIZE-th
+ * command. Asking for a command reads the page holding it back from the file;
+ * the most recently used pages are kept, and older ones are dropped.
+ *
+ * An index can cover only part of a file, chosen by time. It then starts with
+ * the first command at or after the start time and stops before the first
+ * command after the end time.
+ *
+ * The DemoCommands handed out are rebuilt whenever their page is read again,
+ * so changes made to them are not kept. Iterating over the index streams
+ * through the file instead of going through the page cache.
+ *
+ * Block-compressed demos can be indexed too. A page then records its block
+ * and the number of lines before it in that block, and reading the page
+ * decompresses from the start of that block. A time range skips straight to
+ * the first block that can hold it. Other compressed demos have no blocks to
+ * start from, so they cannot be indexed.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileIndex extends AbstractList<DemoCommand> implements
+		RandomAccess {
+
+	public static final int PAGE_SIZE = 1024;
+	private static final int MAX_PAGES = 64;
+
+	private final File file;
+	private final int startTime;
+	private final int endTime;
+	private DemoBlockIndex blocks = null;
+	private long[] pageOffsets = new long[16];
+	private int[] pageTimes = new int[16];
+	private int size = 0;
+	private int baseTime = 0;
+	private int lastTime = 0;
+	private final LinkedHashMap<Integer, DemoCommand[]> pages = new LinkedHashMap<Integer, DemoCommand[]>(
+			MAX_PAGES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, DemoCommand[]> e) {
+			return size() > MAX_PAGES;
+		}
+	};
+
+	/**
+	 * Creates an index over the whole of the given file. Call build before
+	 * using it.
+	 *
+	 * @param file
+	 */
+	public DemoFileIndex(File file) {
+		this(file, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an index over the commands of the given file with absolute
+	 * times from startTime to endTime, inclusive. Call build before using it.
+	 *
+	 * @param file
+	 * @param startTime
+	 * @param endTime
+	 */
+	public DemoFileIndex(File file, int startTime, int endTime) {
+		this.file = file;
+		this.startTime = startTime;
+		this.endTime = endTime;
+	}
+
+	/**
+	 * Scans the file and records where each page of commands begins. Only the
+	 * times of the commands are decoded.
+	 *
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 *             if the file cannot be read, or is compressed without blocks
+	 */
+	public void build() throws FileNotFoundException, IOException {
+		pages.clear();
+		size = 0;
+		baseTime = 0;
+		lastTime = 0;
+		blocks = null;
+		int time = 0;
+		int firstBlock = 0;
+		final DemoFileReader reader;
+		if (DemoBlockIndex.isCompressed(file)) {
+			blocks = DemoBlockIndex.read(file);
+			if (blocks == null)
+				throw new IOException(file.getName()
+						+ " is compressed without blocks and must be loaded whole.");
+			firstBlock = blocks.findBlock(startTime);
+			if (firstBlock < blocks.size())
+				time = blocks.getBaseTime(firstBlock);
+			reader = blocks.openReader(firstBlock, blocks.size());
+		} else {
+			reader = new DemoFileReader(file);
+		}
+		try {
+			final long length = Math.max(1, reader.getLength());
+			int progress = 0;
+			int chunk = -1;
+			int line = 0;
+			boolean started = false;
+			while (reader.next()) {
+				if (reader.getChunk() != chunk) {
+					chunk = reader.getChunk();
+					line = 0;
+				} else {
+					line++;
+				}
+				if (!reader.isDemoCommand())
+					continue;
+				final int previous = time;
+				time += reader.getTime();
+				if (!started) {
+					if (time < startTime)
+						continue;
+					started = true;
+					baseTime = previous;
+				}
+				if (time > endTime)
+					break;
+				if (size % PAGE_SIZE == 0) {
+					if (blocks == null)
+						addPage(reader.getLineOffset(), previous);
+					else
+						addPage(((long) (firstBlock + chunk) << 32) | line,
+								previous);
+				}
+				size++;
+				if (time > lastTime)
+					lastTime = time;
+				final int newProgress = (int) ((100 * reader.getBytesRead()) / length);
+				if (newProgress != progress) {
+					progress = newProgress;
+					progressChanged(progress);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns the file this index reads from.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the absolute time of the command just before the first command
+	 * in the index, which is zero unless the index starts partway through the
+	 * file.
+	 */
+	public int getBaseTime() {
+		return baseTime;
+	}
+
+	/**
+	 * Returns the largest absolute time in the index.
+	 */
+	public int getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * Called by build whenever the percentage of the file scanned changes.
+	 * Does nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the command at the given index, reading its page from the file
+	 * if it is not in memory. Safe to call from several threads, so that a
+	 * ParallelDemoSaver can copy the index.
+	 */
+	@Override
+	public synchronized DemoCommand get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index " + index
+					+ " is out of bounds.  size = " + size);
+		final int page = index / PAGE_SIZE;
+		DemoCommand[] cmds = pages.get(page);
+		if (cmds == null) {
+			cmds = readPage(page);
+			pages.put(page, cmds);
+		}
+		return cmds[index % PAGE_SIZE];
+	}
+
+	/**
+	 * Returns an iterator that reads the commands in order straight from the
+	 * file.
+	 */
+	@Override
+	public Iterator<DemoCommand> iterator() {
+		return new Iterator<DemoCommand>() {
+			private RandomAccessFile raf = null;
+			private DemoFileReader reader = null;
+			private int index = 0;
+			private int time = baseTime;
+
+			public boolean hasNext() {
+				if (index < size)
+					return true;
+				close();
+				return false;
+			}
+
+			public DemoCommand next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				try {
+					if (reader == null) {
+						raf = new RandomAccessFile(file, "r");
+						reader = openPage(0, raf);
+					}
+					final DemoCommand cmd = nextCommand(reader);
+					time += cmd.getTime();
+					cmd.setTime(time);
+					index++;
+					return cmd;
+				} catch (IOException e) {
+					close();
+					throw new IllegalStateException("Could not read "
+							+ file.getName(), e);
+				}
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private void close() {
+				if (raf == null)
+					return;
+				try {
+					reader.close();
+					raf.close();
+				} catch (IOException e) {
+				}
+				raf = null;
+			}
+		};
+	}
+
+	private void addPage(long offset, int time) {
+		final int page = size / PAGE_SIZE;
+		if (page == pageOffsets.length) {
+			long[] offsets = new long[page * 2];
+			int[] times = new int[page * 2];
+			System.arraycopy(pageOffsets, 0, offsets, 0, page);
+			System.arraycopy(pageTimes, 0, times, 0, page);
+			pageOffsets = offsets;
+			pageTimes = times;
+		}
+		pageOffsets[page] = offset;
+		pageTimes[page] = time;
+	}
+
+	private DemoCommand[] readPage(int page) {
+		final int count = Math.min(PAGE_SIZE, size - page * PAGE_SIZE);
+		final DemoCommand[] cmds = new DemoCommand[count];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				DemoFileReader reader = openPage(page, raf);
+				try {
+					int time = pageTimes[page];
+					for (int i = 0; i < count; i++) {
+						cmds[i] = nextCommand(reader);
+						time += cmds[i].getTime();
+						cmds[i].setTime(time);
+					}
+				} finally {
+					reader.close();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read "
+					+ file.getName(), e);
+		}
+		return cmds;
+	}
+
+	/**
+	 * Opens a reader at the first line of the given page. For a
+	 * block-compressed file, the reader starts at the page's block and skips
+	 * the lines before the page.
+	 */
+	private DemoFileReader openPage(int page, RandomAccessFile raf)
+			throws IOException {
+		final long offset = pageOffsets[page];
+		if (blocks == null)
+			return new DemoFileReader(raf.getChannel(), offset, -1);
+		DemoFileReader reader = blocks.openReader((int) (offset >>> 32),
+				blocks.size());
+		for (int line = (int) offset; line > 0; line--)
+			reader.next();
+		return reader;
+	}
+
+	/**
+	 * Returns the next valid command from the reader, with its relative time.
+	 */
+	private DemoCommand nextCommand(DemoFileReader reader) throws IOException {
+		while (reader.next()) {
+			final DemoCommand cmd = reader.getDemoCommand();
+			if (cmd != null)
+				return cmd;
+		}
+		throw new EOFException(file.getName() + " is shorter than its index");
+	}
+}
@@ -0,0 +1,975 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A DemoFileReader reads DemoCommands directly out of the bytes of a demo file.
+ * The file is memory-mapped in large windows and each line is scanned in
+ * place: the time and reference numbers are decoded straight from the buffer,
+ * and only the command name and the arguments are ever turned into Strings.
+ * This avoids the line Strings, regular expression splits, and argument
+ * concatenation of reading a demo through a BufferedReader.
+ *
+ * A DemoFileReader is a cursor. Each call to next advances to the next
+ * non-blank line, which can then be inspected with getTime, getReference,
+ * getCommand, and so on, or turned into a DemoCommand with getDemoCommand.
+ * Times are returned exactly as they appear in the file, so they are relative
+ * times. Command names are cached, so scanning a file only creates Strings
+ * for the arguments, and only if they are asked for. getArgumentText gives
+ * the arguments as a single String, which is all a loader has to keep.
+ *
+ * The tokenizing rules are the ones parseDemoCommand has always used: tokens
+ * are separated by runs of spaces or tabs, the first three tokens are the
+ * time, reference, and command, and the rest of the line holds the arguments,
+ * where double quotes group an argument containing spaces. Lines end at a
+ * carriage return, a line feed, or both, just as with BufferedReader.
+ *
+ * Gzip-compressed demos are read transparently. They are decompressed on a
+ * separate thread by a ChunkSource, which hands over the bytes a chunk at a
+ * time while the reader parses; see DemoBlockIndex.
+ *
+ * The reader assumes the file is in an ASCII-compatible encoding. Anything
+ * outside of the ASCII range is decoded with the platform's default charset,
+ * as a FileReader would.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileReader implements Closeable {
+
+	private static final int WINDOW_SIZE = 1 << 26;
+	private static final int COMMAND_CACHE_SIZE = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte SPACE = ' ';
+	private static final byte TAB = '\t';
+	private static final byte QUOTE = '"';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private final FileChannel channel;
+	private final ChunkSource chunks;
+	private int chunkCount = 0;
+	private final boolean ownsChannel;
+	private final long start;
+	private final long end;
+	private final Charset charset;
+	private int windowSize = WINDOW_SIZE;
+	private ByteBuffer buffer;
+	private long bufferOffset;
+	private int bufferPos = 0;
+
+	private int lineStart, lineEnd;
+	private boolean valid = false;
+	private int time, reference;
+	private int cmdStart, cmdEnd;
+	private String command = null;
+	private int commandId = -1;
+	private boolean argsParsed = false;
+	private final ArrayList<String> args = new ArrayList<String>();
+	private String argumentText = null;
+
+	private int parsedInt;
+	private byte[] scratch = new byte[256];
+	private char[] chars = new char[256];
+	private final String[] commandCache = new String[COMMAND_CACHE_SIZE];
+	private final int[] commandIdCache = new int[COMMAND_CACHE_SIZE];
+
+	private static final ThreadLocal<DemoFileReader> lineParsers = new ThreadLocal<DemoFileReader>() {
+		@Override
+		protected DemoFileReader initialValue() {
+			return new DemoFileReader(UTF8);
+		}
+	};
+
+	/**
+	 * Supplies the bytes of a demo a chunk at a time, for demos that cannot
+	 * be mapped directly. Every chunk must end at the end of a line, except
+	 * possibly the last.
+	 */
+	public interface ChunkSource extends Closeable {
+
+		/**
+		 * Returns the next chunk, positioned at 0, or null at the end.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		ByteBuffer nextChunk() throws IOException;
+
+		/**
+		 * Returns the number of bytes of the underlying file read so far.
+		 *
+		 * @return
+		 */
+		long getBytesRead();
+
+		/**
+		 * Returns the number of bytes of the underlying file to be read.
+		 *
+		 * @return
+		 */
+		long getLength();
+	}
+
+	/**
+	 * Opens the given demo file for reading. Compressed files are
+	 * decompressed as they are read.
+	 *
+	 * @param file
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public DemoFileReader(File file) throws FileNotFoundException,
+			IOException {
+		this(file, DemoBlockIndex.isCompressed(file) ? DemoBlockIndex
+				.openChunks(file) : null);
+	}
+
+	/**
+	 * Creates a reader over the chunks of the given source. The source is
+	 * closed when this reader is closed.
+	 *
+	 * @param chunks
+	 */
+	public DemoFileReader(ChunkSource chunks) {
+		this.channel = null;
+		this.chunks = chunks;
+		this.ownsChannel = false;
+		this.start = 0;
+		this.end = Long.MAX_VALUE;
+		this.charset = Charset.defaultCharset();
+		buffer = ByteBuffer.allocate(0);
+		bufferOffset = 0;
+	}
+
+	private DemoFileReader(File file, ChunkSource chunks)
+			throws FileNotFoundException, IOException {
+		this.chunks = chunks;
+		if (chunks == null) {
+			this.channel = new RandomAccessFile(file, "r").getChannel();
+			this.ownsChannel = true;
+			this.end = channel.size();
+		} else {
+			this.channel = null;
+			this.ownsChannel = false;
+			this.end = Long.MAX_VALUE;
+		}
+		this.start = 0;
+		this.charset = Charset.defaultCharset();
+		buffer = ByteBuffer.allocate(0);
+		bufferOffset = 0;
+	}
+
+	/**
+	 * Creates a reader over the bytes from start (inclusive) to end
+	 * (exclusive) of the given channel. The range should begin at the start
+	 * of a line. The channel is not closed when this reader is closed, so
+	 * several readers may share one channel. An end of -1 reads to the end of
+	 * the file.
+	 *
+	 * @param channel
+	 * @param start
+	 * @param end
+	 * @throws IOException
+	 */
+	public DemoFileReader(FileChannel channel, long start, long end)
+			throws IOException {
+		this(channel, start, end, false);
+	}
+
+	private DemoFileReader(FileChannel channel, long start, long end,
+			boolean ownsChannel) throws IOException {
+		this.channel = channel;
+		this.chunks = null;
+		this.ownsChannel = ownsChannel;
+		this.start = start;
+		this.end = (end < 0) ? channel.size() : end;
+		this.charset = Charset.defaultCharset();
+		buffer = ByteBuffer.allocate(0);
+		bufferOffset = start;
+	}
+
+	/**
+	 * Creates a reader that only parses single lines handed to it by
+	 * parseDemoCommand.
+	 */
+	private DemoFileReader(Charset charset) {
+		this.channel = null;
+		this.chunks = null;
+		this.ownsChannel = false;
+		this.start = 0;
+		this.end = 0;
+		this.charset = charset;
+		buffer = ByteBuffer.allocate(0);
+		bufferOffset = 0;
+	}
+
+	/**
+	 * Parses a single line to a DemoCommand, using the same rules as a
+	 * DemoFileReader uses for the lines of a file. Returns null if the line is
+	 * not a valid demo command.
+	 *
+	 * @param str
+	 * @return
+	 */
+	public static DemoCommand parseDemoCommand(String str) {
+		final DemoFileReader parser = lineParsers.get();
+		final byte[] bytes = str.getBytes(UTF8);
+		parser.buffer = ByteBuffer.wrap(bytes);
+		parser.lineStart = 0;
+		parser.lineEnd = bytes.length;
+		parser.parseLine();
+		final DemoCommand cmd = parser.getDemoCommand();
+		parser.buffer = null;
+		return cmd;
+	}
+
+	/**
+	 * Advances to the next non-blank line.
+	 *
+	 * @return true if there was another line, false at the end of the file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (findLine()) {
+			if (!isBlank(lineStart, lineEnd)) {
+				parseLine();
+				return true;
+			}
+		}
+		valid = false;
+		return false;
+	}
+
+	/**
+	 * Determines if the current line could be parsed as a demo command.
+	 *
+	 * @return
+	 */
+	public boolean isDemoCommand() {
+		return valid;
+	}
+
+	/**
+	 * Returns the (relative) time of the current line.
+	 *
+	 * @return
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the reference number of the current line. Non-numeric
+	 * references are translated as in DemoCommand.getRefNumFor.
+	 *
+	 * @return
+	 */
+	public int getReference() {
+		return reference;
+	}
+
+	/**
+	 * Returns the command of the current line. Command names are cached, so
+	 * repeated commands return the same String.
+	 *
+	 * @return
+	 */
+	public String getCommand() {
+		if (command == null && valid)
+			command = lookupCommand(cmdStart, cmdEnd);
+		return command;
+	}
+
+	/**
+	 * Returns the id of the command of the current line, as given by
+	 * DemoCommand.getCommandIdFor, or -1 if the line is not a valid command.
+	 * Ids are cached with the command names.
+	 *
+	 * @return
+	 */
+	public int getCommandId() {
+		return getCommand() == null ? -1 : commandId;
+	}
+
+	/**
+	 * Returns the number of arguments on the current line.
+	 *
+	 * @return
+	 */
+	public int getArgumentCount() {
+		parseArguments();
+		return args.size();
+	}
+
+	/**
+	 * Returns the argument at the given index of the current line, or an
+	 * empty string if there is no such argument.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public String getArgument(int index) {
+		parseArguments();
+		if (index < args.size())
+			return args.get(index);
+		return "";
+	}
+
+	/**
+	 * Returns the arguments of the current line. The list belongs to the
+	 * reader and is reused for the next line, so it must be copied to be
+	 * kept.
+	 *
+	 * @return
+	 */
+	List<String> getArguments() {
+		parseArguments();
+		return args;
+	}
+
+	/**
+	 * Returns the arguments of the current line as a single String, written
+	 * the way DemoCommand.getArguments joins them: separated by single
+	 * spaces, with those containing a space in quotes. Only this one String
+	 * is created, however many arguments there are, and splitArguments turns
+	 * it back into exactly the arguments getArguments returns.
+	 *
+	 * @return
+	 */
+	public String getArgumentText() {
+		if (argumentText != null)
+			return argumentText;
+		if (!valid)
+			return argumentText = "";
+		final int end = lineEnd;
+		int length = 0;
+		int i = cmdEnd;
+		while (i < end) {
+			final byte b = buffer.get(i);
+			if (b == SPACE || b == TAB) {
+				i++;
+			} else if (b == QUOTE) {
+				int close = i + 1;
+				while (close < end && buffer.get(close) != QUOTE)
+					close++;
+				length = appendQuotedText(i + 1, close, length);
+				i = close + 1;
+			} else {
+				int stop = i + 1;
+				while (stop < end) {
+					final byte c = buffer.get(stop);
+					if (c == SPACE || c == TAB || c == QUOTE)
+						break;
+					stop++;
+				}
+				length = appendText(i, stop, length);
+				i = stop;
+			}
+		}
+		argumentText = decode(scratch, length);
+		return argumentText;
+	}
+
+	/**
+	 * Creates a new DemoCommand from the current line. The time of the new
+	 * command is the relative time stored in the file. Its arguments are
+	 * only split when one is asked for by index.
+	 *
+	 * @return the new command, or null if the line is not a valid command
+	 */
+	public DemoCommand getDemoCommand() {
+		if (!valid)
+			return null;
+		return new DemoCommand(time, reference, getCommandId(),
+				getArgumentText());
+	}
+
+	/**
+	 * Splits arguments the way the arguments of a line are split, as
+	 * described in parseArguments. Used to split the text returned by
+	 * getArgumentText, which is split back into the same arguments.
+	 *
+	 * @param text
+	 * @return a new list of the arguments
+	 */
+	static ArrayList<String> splitArguments(String text) {
+		final ArrayList<String> list = new ArrayList<String>(3);
+		final int end = text.length();
+		int i = 0;
+		while (i < end) {
+			final char c = text.charAt(i);
+			if (c == ' ' || c == '\t') {
+				i++;
+			} else if (c == '"') {
+				int close = text.indexOf('"', i + 1);
+				if (close < 0)
+					close = end;
+				addSplitArgument(list, text, i + 1, close, true);
+				i = close + 1;
+			} else {
+				int stop = i + 1;
+				while (stop < end) {
+					final char d = text.charAt(stop);
+					if (d == ' ' || d == '\t' || d == '"')
+						break;
+					stop++;
+				}
+				addSplitArgument(list, text, i, stop, false);
+				i = stop;
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Adds the trimmed contents of the given range of the text to the list,
+	 * collapsing runs of spaces and tabs if the range was quoted.
+	 */
+	private static void addSplitArgument(List<String> list, String text,
+			int from, int to, boolean quoted) {
+		while (from < to && text.charAt(from) <= ' ')
+			from++;
+		while (to > from && text.charAt(to - 1) <= ' ')
+			to--;
+		if (from == to)
+			return;
+		boolean collapse = false;
+		if (quoted) {
+			for (int i = from; i < to && !collapse; i++) {
+				final char c = text.charAt(i);
+				if (c == '\t') {
+					collapse = true;
+				} else if (c == ' ') {
+					final char next = text.charAt(i + 1);
+					collapse = next == ' ' || next == '\t';
+				}
+			}
+		}
+		if (!collapse) {
+			list.add(text.substring(from, to));
+			return;
+		}
+		final StringBuilder sb = new StringBuilder(to - from);
+		boolean separator = false;
+		for (int i = from; i < to; i++) {
+			final char c = text.charAt(i);
+			if (c == ' ' || c == '\t') {
+				if (!separator)
+					sb.append(' ');
+				separator = true;
+			} else {
+				sb.append(c);
+				separator = false;
+			}
+		}
+		list.add(sb.toString());
+	}
+
+	/**
+	 * Returns the text of the current line. Used for reporting lines that
+	 * could not be parsed.
+	 *
+	 * @return
+	 */
+	public String getLine() {
+		return decode(lineStart, lineEnd);
+	}
+
+	/**
+	 * Returns the offset into the file of the start of the current line. For
+	 * a reader over a ChunkSource, this counts uncompressed bytes.
+	 *
+	 * @return
+	 */
+	public long getLineOffset() {
+		return bufferOffset + lineStart;
+	}
+
+	/**
+	 * Determines if the current line ends with a line terminator. Only the
+	 * last line of a file may not.
+	 *
+	 * @return
+	 */
+	public boolean isLineTerminated() {
+		return bufferPos > lineEnd;
+	}
+
+	/**
+	 * Returns the offset into the file just past the current line and its
+	 * line terminator.
+	 *
+	 * @return
+	 */
+	public long getPosition() {
+		return bufferOffset + bufferPos;
+	}
+
+	/**
+	 * Returns the number of bytes this reader covers.
+	 *
+	 * @return
+	 */
+	public long getLength() {
+		if (chunks != null)
+			return chunks.getLength();
+		return end - start;
+	}
+
+	/**
+	 * Returns the number of bytes read so far.
+	 *
+	 * @return
+	 */
+	public long getBytesRead() {
+		if (chunks != null)
+			return chunks.getBytesRead();
+		return getPosition() - start;
+	}
+
+	/**
+	 * Returns the number of the chunk the current line came from, counting
+	 * from 0, for a reader over a ChunkSource.
+	 *
+	 * @return
+	 */
+	public int getChunk() {
+		return chunkCount - 1;
+	}
+
+	/**
+	 * Closes the underlying file if this reader opened it.
+	 */
+	public void close() throws IOException {
+		buffer = null;
+		if (chunks != null)
+			chunks.close();
+		if (ownsChannel)
+			channel.close();
+	}
+
+	/**
+	 * Finds the next line, mapping a new window of the file when the current
+	 * one runs out.
+	 *
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	private boolean findLine() throws IOException {
+		while (true) {
+			final int limit = buffer.limit();
+			for (int i = bufferPos; i < limit; i++) {
+				final byte b = buffer.get(i);
+				if (b == LF || b == CR) {
+					int next = i + 1;
+					if (b == CR) {
+						if (next == limit && !isLastWindow())
+							break;
+						if (next < limit && buffer.get(next) == LF)
+							next++;
+					}
+					lineStart = bufferPos;
+					lineEnd = i;
+					bufferPos = next;
+					return true;
+				}
+			}
+			if (isLastWindow()) {
+				if (bufferPos < limit) {
+					lineStart = bufferPos;
+					lineEnd = limit;
+					bufferPos = limit;
+					return true;
+				}
+				if (chunks == null || !nextChunk())
+					return false;
+				continue;
+			}
+			map(bufferOffset + bufferPos);
+		}
+	}
+
+	/**
+	 * Determines if the current window reaches the end of the file. Every
+	 * chunk ends at a line break, so each chunk counts as a last window.
+	 *
+	 * @return
+	 */
+	private boolean isLastWindow() {
+		return chunks != null || bufferOffset + buffer.limit() >= end;
+	}
+
+	/**
+	 * Moves on to the next chunk of a ChunkSource.
+	 *
+	 * @return false at the end of the source
+	 * @throws IOException
+	 */
+	private boolean nextChunk() throws IOException {
+		final ByteBuffer chunk = chunks.nextChunk();
+		if (chunk == null)
+			return false;
+		bufferOffset += buffer.limit();
+		buffer = chunk;
+		bufferPos = 0;
+		chunkCount++;
+		return true;
+	}
+
+	/**
+	 * Maps a new window of the file starting at the given offset. If the
+	 * window has to be remapped at the same place, a single line did not fit
+	 * in it, so the window size is doubled.
+	 *
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void map(long offset) throws IOException {
+		if (offset == bufferOffset && buffer.limit() >= windowSize)
+			windowSize *= 2;
+		final long size = Math.min(windowSize, end - offset);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		bufferOffset = offset;
+		bufferPos = 0;
+	}
+
+	/**
+	 * Parses the time, reference, and command of the current line. The
+	 * arguments are only parsed when they are needed.
+	 */
+	private void parseLine() {
+		valid = false;
+		command = null;
+		argsParsed = false;
+		argumentText = null;
+		final int end = lineEnd;
+		final int timeEnd = scanToken(lineStart, end);
+		if (timeEnd == lineStart)
+			return;
+		final int refStart = skipSeparators(timeEnd, end);
+		if (refStart == end)
+			return;
+		final int refEnd = scanToken(refStart, end);
+		cmdStart = skipSeparators(refEnd, end);
+		if (cmdStart == end)
+			return;
+		cmdEnd = scanToken(cmdStart, end);
+		if (!parseInt(lineStart, timeEnd))
+			return;
+		time = parsedInt;
+		reference = parseReference(refStart, refEnd);
+		valid = true;
+	}
+
+	/**
+	 * Returns the index of the first space or tab at or after from.
+	 */
+	private int scanToken(int from, int to) {
+		while (from < to) {
+			final byte b = buffer.get(from);
+			if (b == SPACE || b == TAB)
+				break;
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * Returns the index of the first byte at or after from that is not a
+	 * space or tab.
+	 */
+	private int skipSeparators(int from, int to) {
+		while (from < to) {
+			final byte b = buffer.get(from);
+			if (b != SPACE && b != TAB)
+				break;
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * Determines if every byte in the range would be removed by
+	 * String.trim().
+	 */
+	private boolean isBlank(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if ((buffer.get(i) & 0xff) > ' ')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a reference token. The special references are checked first,
+	 * then numbers, and anything else goes through DemoCommand.getRefNumFor.
+	 */
+	private int parseReference(int from, int to) {
+		if (matches(from, to, DemoCommand.CAM_ID))
+			return DemoCommand.CAM_INDEX;
+		if (matches(from, to, DemoCommand.DYNGROUPS_ID))
+			return DemoCommand.DYNGROUPS_INDEX;
+		if (matches(from, to, DemoCommand.SKYFILE_ID))
+			return DemoCommand.SKYFILE_INDEX;
+		if (parseInt(from, to))
+			return parsedInt;
+		return DemoCommand.getRefNumFor(decode(from, to));
+	}
+
+	/**
+	 * Determines if the given range holds exactly the given ASCII string.
+	 */
+	private boolean matches(int from, int to, String str) {
+		if (to - from != str.length())
+			return false;
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) != str.charAt(i - from))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the range as a signed decimal integer into parsedInt. Anything
+	 * unusual (non-ASCII digits, leading zeroes past ten digits) is handed to
+	 * Integer.valueOf so the result always agrees with it.
+	 *
+	 * @return false if the range is not an integer
+	 */
+	private boolean parseInt(int from, int to) {
+		int i = from;
+		boolean negative = false;
+		final byte first = buffer.get(i);
+		if (first == '-' || first == '+') {
+			negative = (first == '-');
+			if (++i == to)
+				return false;
+		}
+		if (to - i > 10)
+			return parseIntSlowly(from, to);
+		long value = 0;
+		for (; i < to; i++) {
+			final int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				return parseIntSlowly(from, to);
+			value = value * 10 + digit;
+		}
+		if (negative)
+			value = -value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			return false;
+		parsedInt = (int) value;
+		return true;
+	}
+
+	private boolean parseIntSlowly(int from, int to) {
+		try {
+			parsedInt = Integer.valueOf(decode(from, to));
+			return true;
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the cached String for the command in the given range, creating
+	 * it if it is not in the cache, and sets commandId to its id. The Strings
+	 * are the ones DemoCommand keeps for each id, so every reader shares
+	 * them.
+	 */
+	private String lookupCommand(int from, int to) {
+		int hash = 0;
+		for (int i = from; i < to; i++)
+			hash = 31 * hash + buffer.get(i);
+		final int slot = (hash ^ (hash >>> 8)) & (COMMAND_CACHE_SIZE - 1);
+		final String cached = commandCache[slot];
+		if (cached != null && matches(from, to, cached)) {
+			commandId = commandIdCache[slot];
+			return cached;
+		}
+		commandId = DemoCommand.getCommandIdFor(decode(from, to));
+		final String str = DemoCommand.getCommandFor(commandId);
+		commandCache[slot] = str;
+		commandIdCache[slot] = commandId;
+		return str;
+	}
+
+	/**
+	 * Splits the arguments of the current line. Outside of quotes, arguments
+	 * are separated by spaces, tabs, and quotes. Inside quotes, runs of spaces
+	 * and tabs are collapsed to a single space. Either way, arguments are
+	 * trimmed and empty arguments are dropped.
+	 */
+	private void parseArguments() {
+		if (argsParsed)
+			return;
+		argsParsed = true;
+		args.clear();
+		if (!valid)
+			return;
+		final int end = lineEnd;
+		int i = cmdEnd;
+		while (i < end) {
+			final byte b = buffer.get(i);
+			if (b == SPACE || b == TAB) {
+				i++;
+			} else if (b == QUOTE) {
+				int close = i + 1;
+				while (close < end && buffer.get(close) != QUOTE)
+					close++;
+				addQuotedArgument(i + 1, close);
+				i = close + 1;
+			} else {
+				int stop = i + 1;
+				while (stop < end) {
+					final byte c = buffer.get(stop);
+					if (c == SPACE || c == TAB || c == QUOTE)
+						break;
+					stop++;
+				}
+				addArgument(i, stop);
+				i = stop;
+			}
+		}
+	}
+
+	/**
+	 * Adds the trimmed contents of the given range as an argument.
+	 */
+	private void addArgument(int from, int to) {
+		while (from < to && (buffer.get(from) & 0xff) <= ' ')
+			from++;
+		while (to > from && (buffer.get(to - 1) & 0xff) <= ' ')
+			to--;
+		if (from < to)
+			args.add(decode(from, to));
+	}
+
+	/**
+	 * Adds the trimmed contents of a quoted range as an argument, collapsing
+	 * each run of spaces and tabs to a single space.
+	 */
+	private void addQuotedArgument(int from, int to) {
+		while (from < to && (buffer.get(from) & 0xff) <= ' ')
+			from++;
+		while (to > from && (buffer.get(to - 1) & 0xff) <= ' ')
+			to--;
+		if (from == to)
+			return;
+		ensureScratch(to - from);
+		int length = 0;
+		boolean separator = false;
+		for (int i = from; i < to; i++) {
+			final byte b = buffer.get(i);
+			if (b == SPACE || b == TAB) {
+				if (!separator)
+					scratch[length++] = SPACE;
+				separator = true;
+			} else {
+				scratch[length++] = b;
+				separator = false;
+			}
+		}
+		args.add(decode(scratch, length));
+	}
+
+	/**
+	 * Appends the trimmed contents of the given range to the argument text
+	 * being built in scratch, after a space if it is not the first argument.
+	 *
+	 * @return the new length of the text
+	 */
+	private int appendText(int from, int to, int length) {
+		while (from < to && (buffer.get(from) & 0xff) <= ' ')
+			from++;
+		while (to > from && (buffer.get(to - 1) & 0xff) <= ' ')
+			to--;
+		if (from == to)
+			return length;
+		ensureScratch(length + to - from + 1);
+		if (length > 0)
+			scratch[length++] = SPACE;
+		for (int i = from; i < to; i++)
+			scratch[length++] = buffer.get(i);
+		return length;
+	}
+
+	/**
+	 * Like appendText, for a quoted range: runs of spaces and tabs are
+	 * collapsed to a single space, and the argument is quoted if it contains
+	 * one.
+	 */
+	private int appendQuotedText(int from, int to, int length) {
+		while (from < to && (buffer.get(from) & 0xff) <= ' ')
+			from++;
+		while (to > from && (buffer.get(to - 1) & 0xff) <= ' ')
+			to--;
+		if (from == to)
+			return length;
+		boolean spaced = false;
+		for (int i = from; i < to && !spaced; i++) {
+			final byte b = buffer.get(i);
+			spaced = b == SPACE || b == TAB;
+		}
+		ensureScratch(length + to - from + 3);
+		if (length > 0)
+			scratch[length++] = SPACE;
+		if (spaced)
+			scratch[length++] = QUOTE;
+		boolean separator = false;
+		for (int i = from; i < to; i++) {
+			final byte b = buffer.get(i);
+			if (b == SPACE || b == TAB) {
+				if (!separator)
+					scratch[length++] = SPACE;
+				separator = true;
+			} else {
+				scratch[length++] = b;
+				separator = false;
+			}
+		}
+		if (spaced)
+			scratch[length++] = QUOTE;
+		return length;
+	}
+
+	/**
+	 * Decodes the given range of the buffer.
+	 */
+	private String decode(int from, int to) {
+		final int length = to - from;
+		ensureScratch(length);
+		for (int i = 0; i < length; i++)
+			scratch[i] = buffer.get(from + i);
+		return decode(scratch, length);
+	}
+
+	/**
+	 * Decodes the first length bytes of the given array. Pure ASCII is copied
+	 * straight into a String; anything else goes through the charset.
+	 */
+	private String decode(byte[] bytes, int length) {
+		if (chars.length < length)
+			chars = new char[Math.max(length, 2 * chars.length)];
+		for (int i = 0; i < length; i++) {
+			final byte b = bytes[i];
+			if (b < 0)
+				return new String(bytes, 0, length, charset);
+			chars[i] = (char) b;
+		}
+		return new String(chars, 0, length);
+	}
+
+	private void ensureScratch(int length) {
+		if (scratch.length < length)
+			scratch = Arrays.copyOf(scratch, Math.max(length,
+					2 * scratch.length));
+	}
+
+}
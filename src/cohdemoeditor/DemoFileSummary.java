@@ -0,0 +1,244 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DemoFileSummary describes a demo file without loading it: its duration,
+ * how many lines and commands it has, how often each command and each
+ * reference appears, and the map and version it was recorded with. Scanning
+ * reads the file once with a DemoFileReader and looks only at the time,
+ * reference and command of each line, so no DemoCommand is ever created and
+ * only the Map and Version arguments are decoded.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileSummary {
+
+	private final File file;
+	private long length = 0;
+	private int lineCount = 0;
+	private int commandCount = 0;
+	private int badLineCount = 0;
+	private int duration = 0;
+	private String mapName = null;
+	private String version = null;
+	private final Map<String, int[]> commandCounts = new HashMap<String, int[]>();
+	private final Map<Integer, int[]> referenceCounts = new HashMap<Integer, int[]>();
+
+	/**
+	 * Creates a summary of the given file. Call scan before using it.
+	 *
+	 * @param file
+	 */
+	public DemoFileSummary(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates and scans a summary of the given file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public static DemoFileSummary summarize(File file)
+			throws FileNotFoundException, IOException {
+		DemoFileSummary summary = new DemoFileSummary(file);
+		summary.scan();
+		return summary;
+	}
+
+	/**
+	 * Reads through the file and gathers the summary. If the thread is
+	 * interrupted, the scan stops with an InterruptedIOException.
+	 *
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void scan() throws FileNotFoundException, IOException {
+		lineCount = 0;
+		commandCount = 0;
+		badLineCount = 0;
+		duration = 0;
+		mapName = null;
+		version = null;
+		commandCounts.clear();
+		referenceCounts.clear();
+		DemoFileReader reader = new DemoFileReader(file);
+		try {
+			length = reader.getLength();
+			final long total = Math.max(1, length);
+			int progress = 0;
+			String lastCommand = null;
+			int[] lastCount = null;
+			while (reader.next()) {
+				lineCount++;
+				if (!reader.isDemoCommand()) {
+					badLineCount++;
+					continue;
+				}
+				commandCount++;
+				duration += reader.getTime();
+				final String command = reader.getCommand();
+				if (command != lastCommand) {
+					lastCommand = command;
+					lastCount = count(commandCounts, command);
+				}
+				lastCount[0]++;
+				count(referenceCounts, reader.getReference())[0]++;
+				if (mapName == null && command.equals("Map"))
+					mapName = reader.getArgument(0);
+				else if (version == null && command.equals("Version"))
+					version = reader.getArgument(0);
+				if ((lineCount & 0xfff) == 0) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					final int newProgress = (int) ((100 * reader
+							.getBytesRead()) / total);
+					if (newProgress != progress) {
+						progress = newProgress;
+						progressChanged(progress);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static <K> int[] count(Map<K, int[]> counts, K key) {
+		int[] count = counts.get(key);
+		if (count == null) {
+			count = new int[1];
+			counts.put(key, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Called by scan whenever the percentage of the file read changes. Does
+	 * nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	/**
+	 * Returns the file this summary describes.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the size of the file in bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the duration of the demo, which is the absolute time of its last
+	 * command.
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the number of non-blank lines in the file.
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Returns the number of lines that are valid demo commands.
+	 */
+	public int getCommandCount() {
+		return commandCount;
+	}
+
+	/**
+	 * Returns the number of lines that are not valid demo commands.
+	 */
+	public int getBadLineCount() {
+		return badLineCount;
+	}
+
+	/**
+	 * Returns the argument of the first Map command, or null if there is
+	 * none.
+	 */
+	public String getMapName() {
+		return mapName;
+	}
+
+	/**
+	 * Returns the argument of the first Version command, or null if there is
+	 * none.
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the number of times the given command appears.
+	 *
+	 * @param command
+	 * @return
+	 */
+	public int getCommandCount(String command) {
+		final int[] count = commandCounts.get(command);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * Returns the number of commands with the given reference.
+	 *
+	 * @param reference
+	 * @return
+	 */
+	public int getReferenceCount(int reference) {
+		final int[] count = referenceCounts.get(reference);
+		return count == null ? 0 : count[0];
+	}
+
+	/**
+	 * Returns the number of distinct references used.
+	 */
+	public int getReferenceCount() {
+		return referenceCounts.size();
+	}
+
+	/**
+	 * Returns how many times each command appears, most common first.
+	 */
+	public Map<String, Integer> getCommandHistogram() {
+		return sortedCounts(commandCounts);
+	}
+
+	/**
+	 * Returns how many commands each reference has, most common first.
+	 */
+	public Map<Integer, Integer> getReferenceHistogram() {
+		return sortedCounts(referenceCounts);
+	}
+
+	private static <K> Map<K, Integer> sortedCounts(Map<K, int[]> counts) {
+		List<Map.Entry<K, int[]>> entries = new ArrayList<Map.Entry<K, int[]>>(
+				counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<K, int[]>>() {
+			public int compare(Map.Entry<K, int[]> e1, Map.Entry<K, int[]> e2) {
+				return e2.getValue()[0] - e1.getValue()[0];
+			}
+		});
+		Map<K, Integer> sorted = new LinkedHashMap<K, Integer>();
+		for (Map.Entry<K, int[]> e : entries)
+			sorted.put(e.getKey(), e.getValue()[0]);
+		return sorted;
+	}
+}
@@ -0,0 +1,353 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A DemoFileWriter writes DemoCommands to a demo file. Each line is encoded
+ * straight into a reusable buffer, which is written to a FileChannel whenever
+ * it fills up, so saving a demo does not build a String for every line.
+ *
+ * The output is exactly what printing DemoCommand.toString(int) through a
+ * PrintWriter would give: the relative time and the reference are padded
+ * with spaces to TIME_DIGITS and TARGET_DIGITS, arguments containing spaces
+ * are quoted, and each line ends with the platform's line separator. Text is
+ * encoded with the platform's default charset, as a FileWriter would.
+ *
+ * Like DemoCommand.toString(int), the relative time of each command is taken
+ * from the previous command written, starting from zero.
+ *
+ * Files whose names end in .gz are written block-compressed through a
+ * DemoBlockOutput, ending a block after every DemoBlockIndex.BLOCK_SIZE bytes
+ * of whole lines.
+ *
+ * @author Darren Lee
+ */
+public class DemoFileWriter implements Closeable, Flushable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final DemoBlockOutput blocks;
+	private final CharsetEncoder encoder;
+	private final boolean asciiCompatible;
+	private final char[] lineSeparator;
+	private final ByteBuffer buffer;
+	private char[] line = new char[256];
+	private int length;
+	private int time;
+	private long bytesWritten = 0;
+	private long blockStart = 0;
+	private int blockMaxTime = Integer.MIN_VALUE;
+
+	/**
+	 * Creates a writer that replaces the contents of the given file. The file
+	 * is compressed if its name ends in .gz.
+	 *
+	 * @param file
+	 * @throws FileNotFoundException
+	 */
+	public DemoFileWriter(File file) throws FileNotFoundException {
+		this(DemoBlockIndex.isCompressedName(file) ? new DemoBlockOutput(
+				new FileOutputStream(file).getChannel()) : new FileOutputStream(
+				file).getChannel());
+	}
+
+	/**
+	 * Creates a writer that writes to the given channel at its current
+	 * position. The channel is closed when this writer is closed.
+	 *
+	 * @param channel
+	 */
+	public DemoFileWriter(WritableByteChannel channel) {
+		this(channel, 0);
+	}
+
+	/**
+	 * Creates a writer that writes to the given channel, taking the relative
+	 * time of the first command from the given absolute time instead of zero.
+	 * This lets part of a demo be written on its own. The channel is closed
+	 * when this writer is closed.
+	 *
+	 * @param channel
+	 * @param time
+	 *            the absolute time of the command before the first one written
+	 */
+	public DemoFileWriter(WritableByteChannel channel, int time) {
+		this.channel = channel;
+		this.time = time;
+		blocks = (channel instanceof DemoBlockOutput) ? (DemoBlockOutput) channel
+				: null;
+		Charset charset = Charset.defaultCharset();
+		encoder = charset.newEncoder().onMalformedInput(
+				CodingErrorAction.REPLACE).onUnmappableCharacter(
+				CodingErrorAction.REPLACE);
+		asciiCompatible = isAsciiCompatible(charset);
+		lineSeparator = System.getProperty("line.separator").toCharArray();
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes the given command as the next line, with its time relative to
+	 * the previous command written.
+	 *
+	 * @param cmd
+	 * @throws IOException
+	 */
+	public void write(DemoCommand cmd) throws IOException {
+		length = 0;
+		appendPadded(cmd.getTime() - time, DemoCommand.TIME_DIGITS);
+		append(' ');
+		final int reference = cmd.getReference();
+		if (reference == DemoCommand.CAM_INDEX)
+			appendPadded(DemoCommand.CAM_ID, DemoCommand.TARGET_DIGITS);
+		else if (reference == DemoCommand.DYNGROUPS_INDEX)
+			appendPadded(DemoCommand.DYNGROUPS_ID, DemoCommand.TARGET_DIGITS);
+		else if (reference == DemoCommand.SKYFILE_INDEX)
+			appendPadded(DemoCommand.SKYFILE_ID, DemoCommand.TARGET_DIGITS);
+		else
+			appendPadded(reference, DemoCommand.TARGET_DIGITS);
+		append(' ');
+		append(cmd.getCommand());
+		final int argCount = cmd.getArgumentCount();
+		if (argCount > 0) {
+			append(' ');
+			final String text = cmd.peekArgumentText();
+			if (text != null)
+				append(text);
+			else
+				appendArguments(cmd, argCount);
+		}
+		for (char c : lineSeparator)
+			append(c);
+		encodeLine();
+		time = cmd.getTime();
+		if (blocks != null) {
+			if (time > blockMaxTime)
+				blockMaxTime = time;
+			if (getBytesWritten() - blockStart >= DemoBlockIndex.BLOCK_SIZE)
+				endBlock();
+		}
+	}
+
+	/**
+	 * Notes that the given command was written to the output some other way,
+	 * such as by copying its line, so that the relative time of the next
+	 * command is taken from it.
+	 *
+	 * @param cmd
+	 */
+	public void skip(DemoCommand cmd) {
+		time = cmd.getTime();
+	}
+
+	/**
+	 * Writes the lines written since the last block as a compressed block.
+	 */
+	private void endBlock() throws IOException {
+		flush();
+		blocks.endBlock(time, blockMaxTime);
+		blockStart = bytesWritten;
+		blockMaxTime = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Returns the number of bytes written so far, including any still in the
+	 * buffer.
+	 *
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return bytesWritten + buffer.position();
+	}
+
+	/**
+	 * Writes any buffered bytes to the channel.
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flushes the buffer and closes the channel.
+	 */
+	public void close() throws IOException {
+		try {
+			if (!asciiCompatible) {
+				CharBuffer empty = CharBuffer.allocate(0);
+				while (encoder.encode(empty, buffer, true).isOverflow())
+					flush();
+				while (encoder.flush(buffer).isOverflow())
+					flush();
+			}
+			flush();
+			if (blocks != null)
+				endBlock();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Appends the arguments the way DemoCommand.getArguments joins them: a
+	 * null argument becomes two quotes, an argument containing a space is
+	 * quoted, and the result is trimmed.
+	 */
+	private void appendArguments(DemoCommand cmd, int argCount) {
+		final int from = length;
+		for (int i = 0; i < argCount; i++) {
+			final String arg = cmd.getArgument(i);
+			if (arg == null) {
+				append('"');
+				append('"');
+			} else if (arg.indexOf(' ') >= 0) {
+				append(' ');
+				append('"');
+				append(arg);
+				append('"');
+			} else {
+				append(' ');
+				append(arg);
+			}
+		}
+		int start = from;
+		while (start < length && line[start] <= ' ')
+			start++;
+		int end = length;
+		while (end > start && line[end - 1] <= ' ')
+			end--;
+		if (start > from)
+			System.arraycopy(line, start, line, from, end - start);
+		length = from + end - start;
+	}
+
+	private void appendPadded(int value, int digits) {
+		final int from = length;
+		append(value);
+		while (length - from < digits)
+			append(' ');
+	}
+
+	private void appendPadded(String str, int digits) {
+		final int from = length;
+		append(str);
+		while (length - from < digits)
+			append(' ');
+	}
+
+	/**
+	 * Appends the decimal form of value without going through a String.
+	 */
+	private void append(int value) {
+		if (value == Integer.MIN_VALUE) {
+			append(Integer.toString(value));
+			return;
+		}
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10)
+			digits++;
+		ensureCapacity(digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			line[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		length += digits;
+	}
+
+	private void append(String str) {
+		final int n = str.length();
+		ensureCapacity(n);
+		str.getChars(0, n, line, length);
+		length += n;
+	}
+
+	private void append(char c) {
+		ensureCapacity(1);
+		line[length++] = c;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > line.length) {
+			char[] bigger = new char[Math.max(line.length * 2, length + extra)];
+			System.arraycopy(line, 0, bigger, 0, length);
+			line = bigger;
+		}
+	}
+
+	/**
+	 * Moves the current line into the byte buffer. Plain ASCII is copied one
+	 * byte per character; anything else goes through the charset's encoder.
+	 */
+	private void encodeLine() throws IOException {
+		if (asciiCompatible && isAscii()) {
+			if (length > buffer.remaining())
+				flush();
+			if (length > buffer.remaining()) {
+				encodeWithCharset();
+				return;
+			}
+			final byte[] bytes = buffer.array();
+			int pos = buffer.arrayOffset() + buffer.position();
+			for (int i = 0; i < length; i++) {
+				bytes[pos++] = (byte) line[i];
+			}
+			buffer.position(buffer.position() + length);
+		} else {
+			encodeWithCharset();
+		}
+	}
+
+	private void encodeWithCharset() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line, 0, length);
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, false);
+			if (result.isOverflow()) {
+				flush();
+			} else {
+				break;
+			}
+		}
+	}
+
+	private boolean isAscii() {
+		for (int i = 0; i < length; i++) {
+			if (line[i] >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determines if the charset encodes every ASCII character as the single
+	 * byte of the same value.
+	 */
+	static boolean isAsciiCompatible(Charset charset) {
+		if (!charset.canEncode())
+			return false;
+		char[] ascii = new char[0x80];
+		for (int i = 0; i < ascii.length; i++)
+			ascii[i] = (char) i;
+		ByteBuffer encoded = charset.encode(CharBuffer.wrap(ascii));
+		if (encoded.remaining() != ascii.length)
+			return false;
+		for (int i = 0; i < ascii.length; i++) {
+			if (encoded.get(i) != i)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,388 @@
+package cohdemoeditor;
+
+import java.util.*;
+
+/**
+ * A DemoFilterPredicate is a FilterList compiled into a form that can be
+ * tested against millions of commands quickly. Each DemoCommandListFilter
+ * compiles into a Clause: its references into a hash set of ints, its
+ * commands into a set of command ids, its time ranges into sorted arrays of
+ * merged ranges that are searched by binary search, and its arguments into a
+ * hash set that the arguments of a row can be looked up in without reading
+ * them out as Strings. A command is visible if it is visible through every
+ * clause, and each clause tests the cheapest criteria first.
+ *
+ * A filter keeps its clause until it is changed, and a FilterList keeps its
+ * predicate until it is changed or one of its filters is; see
+ * FilterList.compile.
+ *
+ * @author Darren Lee
+ */
+class DemoFilterPredicate {
+
+	private final Clause[] clauses;
+
+	/**
+	 * Compiles the given filters.
+	 *
+	 * @param filters
+	 */
+	DemoFilterPredicate(List<DemoCommandListFilter> filters) {
+		clauses = new Clause[filters.size()];
+		for (int i = 0; i < clauses.length; i++)
+			clauses[i] = filters.get(i).compile();
+	}
+
+	/**
+	 * Determines if this is still the compiled form of the given filters.
+	 *
+	 * @param filters
+	 * @return
+	 */
+	boolean isCurrent(List<DemoCommandListFilter> filters) {
+		if (filters.size() != clauses.length)
+			return false;
+		for (int i = 0; i < clauses.length; i++) {
+			if (filters.get(i).compile() != clauses[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the compiled filters, in order.
+	 *
+	 * @return
+	 */
+	Clause[] getClauses() {
+		return clauses;
+	}
+
+	/**
+	 * Determines if the given command is visible through every filter.
+	 *
+	 * @param cmd
+	 * @return
+	 */
+	boolean isVisible(DemoCommand cmd) {
+		for (Clause clause : clauses) {
+			if (!clause.isVisible(cmd))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determines if the given row of the given store is visible through every
+	 * filter, reading the row in place rather than loading it into a
+	 * command.
+	 *
+	 * @param store
+	 * @param row
+	 * @return
+	 */
+	boolean isVisible(DemoCommandStore store, int row) {
+		if (clauses.length == 0)
+			return true;
+		final DemoCommand cmd = store.getMaterialized(row);
+		if (cmd != null)
+			return isVisible(cmd);
+		final int time = store.getTime(row);
+		final int ref = store.getReference(row);
+		final int id = store.getCommandId(row);
+		for (Clause clause : clauses) {
+			boolean matches = clause.matches(time, ref, id);
+			if (matches && clause.arguments != null)
+				matches = store.hasArgumentIn(row, clause.arguments);
+			if (matches == clause.hidesThese)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * One compiled DemoCommandListFilter. Each category that the filter has
+	 * no criteria in is null.
+	 */
+	static class Clause {
+		final boolean hidesThese;
+		private final int[] starts;
+		private final int[] ends;
+		private final IntSet references;
+		private final BitSet commandIds;
+		final ArgumentSet arguments;
+
+		Clause(boolean hidesThese,
+				List<DemoCommandListFilter.TimeRange> times,
+				List<Integer> refs, List<String> commands, List<String> args) {
+			this.hidesThese = hidesThese;
+			if (times.size() > 0) {
+				final int[][] merged = merge(times);
+				starts = merged[0];
+				ends = merged[1];
+			} else {
+				starts = null;
+				ends = null;
+			}
+			if (refs.size() > 0) {
+				references = new IntSet(refs.size());
+				for (int ref : refs)
+					references.add(ref);
+			} else {
+				references = null;
+			}
+			if (commands.size() > 0) {
+				commandIds = new BitSet();
+				for (String command : commands)
+					commandIds.set(DemoCommand.getCommandIdFor(command));
+			} else {
+				commandIds = null;
+			}
+			arguments = args.size() > 0 ? new ArgumentSet(args) : null;
+		}
+
+		/**
+		 * Returns the time ranges of the filter, merged and in order, as an
+		 * array of starts and an array of ends, or null if it has none. The
+		 * arrays are the clause's own, and are not to be changed.
+		 */
+		int[][] getTimeRanges() {
+			return starts == null ? null : new int[][] { starts, ends };
+		}
+
+		/**
+		 * Determines if the given command is visible through the filter.
+		 */
+		boolean isVisible(DemoCommand cmd) {
+			boolean matches = matches(cmd.getTime(), cmd.getReference(), cmd
+					.getCommandId());
+			if (matches && arguments != null)
+				matches = arguments.containsAnyOf(cmd);
+			return matches ^ hidesThese;
+		}
+
+		/**
+		 * Determines if a command with the given time, reference, and command
+		 * id meets the filter's criteria, apart from its arguments.
+		 */
+		boolean matches(int time, int ref, int commandId) {
+			if (commandIds != null && !commandIds.get(commandId))
+				return false;
+			if (references != null && !references.contains(ref))
+				return false;
+			return starts == null || inRange(time);
+		}
+
+		private boolean inRange(int time) {
+			int low = 0;
+			int high = starts.length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (starts[middle] <= time)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low > 0 && time <= ends[low - 1];
+		}
+
+		/**
+		 * Merges the given ranges, which are in order of their starts, into
+		 * ranges that neither overlap nor touch. A range that ends before it
+		 * starts holds no time, and is dropped.
+		 */
+		private static int[][] merge(List<DemoCommandListFilter.TimeRange> times) {
+			final int[] starts = new int[times.size()];
+			final int[] ends = new int[times.size()];
+			int n = 0;
+			for (DemoCommandListFilter.TimeRange tr : times) {
+				if (tr.start > tr.end)
+					continue;
+				if (n > 0 && (long) tr.start <= (long) ends[n - 1] + 1) {
+					if (tr.end > ends[n - 1])
+						ends[n - 1] = tr.end;
+				} else {
+					starts[n] = tr.start;
+					ends[n] = tr.end;
+					n++;
+				}
+			}
+			return new int[][] { Arrays.copyOf(starts, n),
+					Arrays.copyOf(ends, n) };
+		}
+	}
+
+	/**
+	 * A set of ints, hashed with open addressing, so that looking up a
+	 * reference neither boxes it nor follows a chain.
+	 */
+	private static class IntSet {
+		private final int[] keys;
+		private final boolean[] used;
+		private final int mask;
+
+		IntSet(int expected) {
+			int capacity = 4;
+			while (capacity < 2 * expected)
+				capacity <<= 1;
+			keys = new int[capacity];
+			used = new boolean[capacity];
+			mask = capacity - 1;
+		}
+
+		void add(int key) {
+			int slot = slot(key);
+			while (used[slot]) {
+				if (keys[slot] == key)
+					return;
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			keys[slot] = key;
+		}
+
+		boolean contains(int key) {
+			int slot = slot(key);
+			while (used[slot]) {
+				if (keys[slot] == key)
+					return true;
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		private int slot(int key) {
+			final int h = key * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	/**
+	 * A set of arguments, hashed with open addressing by String.hashCode, so
+	 * that an argument can be looked up straight from the characters a
+	 * DemoCommandStore keeps it in. Most arguments can be turned away by
+	 * their length and last character alone, before they are hashed, and
+	 * most text by not holding the first character of any of them.
+	 */
+	static class ArgumentSet {
+		private final String[] args;
+		private final int[] hashes;
+		private final int mask;
+		private final List<String> list;
+		private long lengths = 0;
+		private long firstChars = 0;
+		private long lastChars = 0;
+
+		ArgumentSet(List<String> list) {
+			this.list = list;
+			int capacity = 4;
+			while (capacity < 2 * list.size())
+				capacity <<= 1;
+			args = new String[capacity];
+			hashes = new int[capacity];
+			mask = capacity - 1;
+			for (String arg : list) {
+				final int hash = arg.hashCode();
+				int slot = hash & mask;
+				while (args[slot] != null && !args[slot].equals(arg))
+					slot = (slot + 1) & mask;
+				args[slot] = arg;
+				hashes[slot] = hash;
+				lengths |= 1L << Math.min(arg.length(), 63);
+				if (arg.length() > 0) {
+					firstChars |= 1L << arg.charAt(0);
+					lastChars |= 1L << arg.charAt(arg.length() - 1);
+				} else {
+					firstChars = -1L;
+				}
+			}
+		}
+
+		/**
+		 * Determines if the given characters are one of the arguments.
+		 *
+		 * @param chars
+		 * @param start
+		 * @param length
+		 * @return
+		 */
+		boolean contains(char[] chars, int start, int length) {
+			if (!mayContain(chars, start, length))
+				return false;
+			int hash = 0;
+			for (int i = start; i < start + length; i++)
+				hash = 31 * hash + chars[i];
+			return lookUp(chars, start, length, hash);
+		}
+
+		/**
+		 * Like contains, for characters whose String.hashCode is already
+		 * known.
+		 */
+		boolean contains(char[] chars, int start, int length, int hash) {
+			return mayContain(chars, start, length)
+					&& lookUp(chars, start, length, hash);
+		}
+
+		private boolean lookUp(char[] chars, int start, int length, int hash) {
+			int slot = hash & mask;
+			for (; args[slot] != null; slot = (slot + 1) & mask) {
+				if (hashes[slot] == hash && equals(args[slot], chars, start,
+						length))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Determines if the given command has one of the arguments. The
+		 * command is asked for each of them, as DemoCommandListFilter always
+		 * has, so that a command holding its arguments as text is not split.
+		 *
+		 * @param cmd
+		 * @return
+		 */
+		boolean containsAnyOf(DemoCommand cmd) {
+			for (String arg : list) {
+				if (cmd.hasArg(arg))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Determines if the given characters might hold one of the
+		 * arguments: false if they do not hold the first character of any.
+		 *
+		 * @param chars
+		 * @param start
+		 * @param end
+		 * @return
+		 */
+		boolean mayOccurIn(char[] chars, int start, int end) {
+			for (int i = start; i < end; i++) {
+				if ((firstChars & 1L << chars[i]) != 0)
+					return true;
+			}
+			return false;
+		}
+
+		private boolean mayContain(char[] chars, int start, int length) {
+			if (length < 0 || (lengths & 1L << Math.min(length, 63)) == 0)
+				return false;
+			return length == 0
+					|| (lastChars & 1L << chars[start + length - 1]) != 0;
+		}
+
+		private static boolean equals(String arg, char[] chars, int start,
+				int length) {
+			if (arg.length() != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (arg.charAt(i) != chars[start + i])
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A DemoInflater decompresses a gzip-compressed demo on its own thread and
+ * hands the result to a DemoFileReader a chunk at a time, so decompressing
+ * the next chunk overlaps with parsing the current one. A few chunks are
+ * queued ahead of the reader.
+ *
+ * A block-compressed demo is inflated one block at a time, and each chunk is
+ * exactly one block. Any other gzip file is inflated as a stream and cut into
+ * chunks at line breaks.
+ *
+ * @author Darren Lee
+ */
+class DemoInflater implements DemoFileReader.ChunkSource, Runnable {
+
+	private static final int QUEUE_SIZE = 4;
+	private static final int STREAM_CHUNK_SIZE = 1 << 20;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final File file;
+	private final long start;
+	private final long end;
+	private final boolean blocks;
+	private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(
+			QUEUE_SIZE);
+	private final Thread thread;
+	private volatile long bytesRead = 0;
+	private volatile IOException error = null;
+	private boolean finished = false;
+
+	/**
+	 * Inflates a whole gzip file as a stream.
+	 *
+	 * @param file
+	 */
+	DemoInflater(File file) {
+		this(file, 0, file.length(), false);
+	}
+
+	/**
+	 * Inflates the blocks of a block-compressed demo from start to end, which
+	 * must be block boundaries.
+	 *
+	 * @param file
+	 * @param start
+	 * @param end
+	 */
+	DemoInflater(File file, long start, long end) {
+		this(file, start, end, true);
+	}
+
+	private DemoInflater(File file, long start, long end, boolean blocks) {
+		this.file = file;
+		this.start = start;
+		this.end = end;
+		this.blocks = blocks;
+		thread = new Thread(this, "Inflating " + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public ByteBuffer nextChunk() throws IOException {
+		if (finished)
+			return null;
+		final ByteBuffer chunk;
+		try {
+			chunk = queue.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (chunk == END) {
+			finished = true;
+			if (error != null)
+				throw error;
+			return null;
+		}
+		return chunk;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getLength() {
+		return end - start;
+	}
+
+	/**
+	 * Stops the inflating thread.
+	 */
+	public void close() {
+		finished = true;
+		thread.interrupt();
+		queue.clear();
+	}
+
+	public void run() {
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				fis.getChannel().position(start);
+				InputStream in = new BufferedInputStream(new CountingStream(
+						fis), 1 << 16);
+				if (blocks)
+					inflateBlocks(in);
+				else
+					inflateStream(in);
+			} finally {
+				fis.close();
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (IOException e) {
+			error = e;
+		}
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void inflateBlocks(InputStream in) throws IOException,
+			InterruptedException {
+		final ByteBuffer header = ByteBuffer.allocate(
+				DemoBlockIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		final Inflater inflater = new Inflater(true);
+		final CRC32 crc = new CRC32();
+		byte[] compressed = new byte[0];
+		try {
+			long offset = start;
+			while (offset < end) {
+				header.clear();
+				readFully(in, header.array(), 0, header.capacity());
+				final int memberSize = DemoBlockIndex.readHeader(header);
+				if (memberSize < DemoBlockIndex.HEADER_SIZE
+						+ DemoBlockIndex.TRAILER_SIZE)
+					throw new IOException(file.getName()
+							+ " has a damaged block at " + offset);
+				final int length = memberSize - DemoBlockIndex.HEADER_SIZE;
+				if (compressed.length < length)
+					compressed = new byte[length];
+				readFully(in, compressed, 0, length);
+				final ByteBuffer trailer = ByteBuffer.wrap(compressed,
+						length - DemoBlockIndex.TRAILER_SIZE,
+						DemoBlockIndex.TRAILER_SIZE).order(
+						ByteOrder.LITTLE_ENDIAN);
+				final int expectedCrc = trailer.getInt();
+				final byte[] block = new byte[trailer.getInt()];
+				inflater.reset();
+				inflater.setInput(compressed, 0, length
+						- DemoBlockIndex.TRAILER_SIZE);
+				int n = 0;
+				try {
+					while (n < block.length && !inflater.finished()) {
+						final int inflated = inflater.inflate(block, n,
+								block.length - n);
+						if (inflated == 0 && inflater.needsInput())
+							break;
+						n += inflated;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException(file.getName()
+							+ " has a damaged block at " + offset);
+				}
+				crc.reset();
+				crc.update(block, 0, n);
+				if (n != block.length || (int) crc.getValue() != expectedCrc)
+					throw new IOException(file.getName()
+							+ " has a damaged block at " + offset);
+				queue.put(ByteBuffer.wrap(block));
+				offset += memberSize;
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private void inflateStream(InputStream in) throws IOException,
+			InterruptedException {
+		final InputStream gzip = new GZIPInputStream(in, 1 << 16);
+		byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+		int length = 0;
+		while (true) {
+			if (length == chunk.length) {
+				byte[] bigger = new byte[chunk.length * 2];
+				System.arraycopy(chunk, 0, bigger, 0, length);
+				chunk = bigger;
+			}
+			final int read = gzip.read(chunk, length, chunk.length - length);
+			if (read < 0)
+				break;
+			length += read;
+			if (length < chunk.length)
+				continue;
+			int cut = length;
+			while (cut > 0 && chunk[cut - 1] != '\n' && chunk[cut - 1] != '\r')
+				cut--;
+			if (cut == 0)
+				continue;
+			byte[] next = new byte[Math.max(STREAM_CHUNK_SIZE, length - cut)];
+			System.arraycopy(chunk, cut, next, 0, length - cut);
+			queue.put(ByteBuffer.wrap(chunk, 0, cut));
+			chunk = next;
+			length -= cut;
+		}
+		if (length > 0)
+			queue.put(ByteBuffer.wrap(chunk, 0, length));
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			final int read = in.read(b, off, len);
+			if (read < 0)
+				throw new EOFException();
+			off += read;
+			len -= read;
+		}
+	}
+
+	/**
+	 * Counts the compressed bytes read, for progress reports.
+	 */
+	private class CountingStream extends FilterInputStream {
+		CountingStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0)
+				bytesRead++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int read = super.read(b, off, len);
+			if (read > 0)
+				bytesRead += read;
+			return read;
+		}
+	}
+}
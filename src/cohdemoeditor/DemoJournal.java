@@ -0,0 +1,872 @@
+package cohdemoeditor;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import cohdemoeditor.swing.DemoEditor;
+
+/**
+ * A DemoJournal keeps the unsaved changes to a demo on disk, so that they
+ * survive a crash. The journal for foo.cohdemo is foo.cohdemo.journal.
+ *
+ * The journal starts from the demo as it was last saved and records every
+ * change since then as a short binary record: commands removed, commands
+ * inserted, commands whose contents changed, and runs of commands whose times
+ * were all moved by the same amount. The list tells the journal of each
+ * command it adds or removes, and the journal keeps the regions of rows they
+ * have changed, so a commit only writes those regions, however far apart
+ * they are. As with the list's indexes, the journal only follows the changes
+ * it is told about; if the store has changed in any other way, the changes
+ * are found by comparing the list with the journal's copy of it instead, so
+ * edits of every kind are caught. The copy is a copy of the list's
+ * DemoCommandStore, so it costs a few ints per command, and commands that
+ * have never been edited or looked at are never created. The journal
+ * commits after each edit added to the DemoEditor and, for anything else,
+ * within COMMIT_DELAY of the first change.
+ *
+ * Each commit is written as one frame with its length and a checksum, and is
+ * forced to disk. A frame cut short by a crash is ignored when the journal is
+ * replayed, so recovery always ends at the last complete commit.
+ *
+ * Once the journal grows larger than the demo, it is compacted: a copy of the
+ * current commands is saved in the background to a checkpoint file
+ * (foo.cohdemo.checkpoint1, 2, ...), and the journal starts over from that
+ * checkpoint. Saving the demo discards the journal and any checkpoint.
+ *
+ * @author Darren Lee
+ */
+public class DemoJournal {
+
+	public static final String EXTENSION = ".journal";
+	public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+	/**
+	 * The longest a change waits before it is committed, in milliseconds.
+	 */
+	public static final int COMMIT_DELAY = 500;
+	private static final int MAGIC = 0x43444a4c; // "CDJL"
+	private static final int HEADER_SIZE = 24;
+	private static final long MIN_COMPACT_SIZE = 1 << 23;
+	private static final int NAMED_REFERENCE = Integer.MIN_VALUE;
+	private static final int MAX_REGIONS = 256;
+
+	private static final byte REMOVE = 1;
+	private static final byte INSERT = 2;
+	private static final byte SET = 3;
+	private static final byte OFFSET = 4;
+
+	private final DemoCommandList cmdList;
+	private DemoCommandStore last;
+	private final IdentityHashMap<DemoCommand, Change> changed = new IdentityHashMap<DemoCommand, Change>();
+	private final ArrayList<Region> regions = new ArrayList<Region>();
+	private final Set<DemoCommand> removed = Collections
+			.newSetFromMap(new IdentityHashMap<DemoCommand, Boolean>());
+	private boolean following = true;
+	private int modCount;
+	private final Timer timer;
+	private File file;
+	private FileChannel channel = null;
+	private int generation = 0;
+	private long baseLength = 0;
+	private int saveCount = 0;
+	private boolean compacting = false;
+	private boolean closed = false;
+
+	private DemoJournal(DemoCommandList cmdList, File file) {
+		this.cmdList = cmdList;
+		this.file = file;
+		last = cmdList.getStore().copy();
+		modCount = cmdList.getStore().getModCount();
+		timer = new Timer(COMMIT_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				commit();
+			}
+		});
+		timer.setRepeats(false);
+	}
+
+	/**
+	 * Starts journaling the given list, if it has been saved or loaded from a
+	 * file and is not already journaled. Read-only lists are not journaled.
+	 *
+	 * @param cmdList
+	 * @return the list's journal, or null if it has none
+	 */
+	public static DemoJournal attach(DemoCommandList cmdList) {
+		if (cmdList.getJournal() != null)
+			return cmdList.getJournal();
+		if (cmdList.getSaveFile() == null
+				|| cmdList instanceof PagedDemoCommandList)
+			return null;
+		DemoJournal journal = new DemoJournal(cmdList, cmdList.getSaveFile());
+		cmdList.setJournal(journal);
+		return journal;
+	}
+
+	/**
+	 * Returns the journal file for the given demo.
+	 *
+	 * @param demoFile
+	 * @return
+	 */
+	public static File getJournalFile(File demoFile) {
+		return new File(demoFile.getPath() + EXTENSION);
+	}
+
+	private static File getTempFile(File demoFile) {
+		return new File(demoFile.getPath() + EXTENSION + ".tmp");
+	}
+
+	private static File getCheckpointFile(File demoFile, int generation) {
+		return new File(demoFile.getPath() + CHECKPOINT_EXTENSION + generation);
+	}
+
+	/**
+	 * Determines if there are unsaved changes to the given demo left over
+	 * from an earlier session.
+	 *
+	 * @param demoFile
+	 * @return
+	 */
+	public static boolean exists(File demoFile) {
+		return getJournalFile(demoFile).isFile()
+				|| getTempFile(demoFile).isFile();
+	}
+
+	/**
+	 * Deletes the journal and checkpoints of the given demo.
+	 *
+	 * @param demoFile
+	 */
+	public static void discard(File demoFile) {
+		getJournalFile(demoFile).delete();
+		getTempFile(demoFile).delete();
+		final String prefix = demoFile.getName() + CHECKPOINT_EXTENSION;
+		File dir = demoFile.getAbsoluteFile().getParentFile();
+		File[] checkpoints = dir == null ? null : dir
+				.listFiles(new FilenameFilter() {
+					public boolean accept(File dir, String name) {
+						return name.startsWith(prefix);
+					}
+				});
+		if (checkpoints != null) {
+			for (File checkpoint : checkpoints)
+				checkpoint.delete();
+		}
+	}
+
+	/**
+	 * Rebuilds a demo from its last save, or its last checkpoint, and its
+	 * journal. The list returned is dirty, and keeps appending to the same
+	 * journal.
+	 *
+	 * @param demoFile
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 *             if the journal is damaged, or the file it starts from has
+	 *             changed
+	 */
+	public static DemoCommandList recover(File demoFile)
+			throws FileNotFoundException, IOException {
+		final File journalFile = getJournalFile(demoFile);
+		final File tempFile = getTempFile(demoFile);
+		if (!journalFile.isFile() && tempFile.isFile()
+				&& !tempFile.renameTo(journalFile))
+			throw new IOException("Could not rename " + tempFile.getName());
+		FileChannel channel = new RandomAccessFile(journalFile, "rw")
+				.getChannel();
+		try {
+			final long size = channel.size();
+			channel.position(0);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel), 1 << 16));
+			if (size < HEADER_SIZE || in.readInt() != MAGIC)
+				throw new IOException(journalFile.getName()
+						+ " is not a demo journal.");
+			final int generation = in.readInt();
+			final long baseLength = in.readLong();
+			final long baseModified = in.readLong();
+			final File base = (generation == 0) ? demoFile : getCheckpointFile(
+					demoFile, generation);
+			if (base.length() != baseLength
+					|| base.lastModified() != baseModified)
+				throw new IOException(base.getName()
+						+ " has changed since its journal was written.");
+			ArrayList<DemoCommand> commands = readBase(base);
+			final long end = replay(in, size, commands);
+			channel.truncate(end);
+			channel.position(end);
+
+			DemoCommandList cmdList = new DemoCommandList();
+			cmdList.appendCommands(commands);
+			cmdList.setSaveFile(demoFile);
+			cmdList.setDirty(true);
+			DemoJournal journal = new DemoJournal(cmdList, demoFile);
+			journal.channel = channel;
+			journal.generation = generation;
+			journal.baseLength = baseLength;
+			cmdList.setJournal(journal);
+			return cmdList;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Called by the list whenever it may have changed. Schedules a commit.
+	 */
+	void listChanged() {
+		if (!closed && !timer.isRunning())
+			timer.start();
+	}
+
+	/**
+	 * Called by the list after it has added the given command at the given
+	 * row of its store.
+	 */
+	void rowInserted(int row, DemoCommand cmd) {
+		if (!follow())
+			return;
+		removed.remove(cmd);
+		int r = 0;
+		while (r < regions.size() && regions.get(r).end() < row)
+			r++;
+		Region region;
+		if (r < regions.size() && regions.get(r).start <= row) {
+			region = regions.get(r);
+			region.length++;
+		} else {
+			region = new Region(row, 1, 0);
+			regions.add(r, region);
+		}
+		for (int i = r + 1; i < regions.size(); i++)
+			regions.get(i).start++;
+		if (regions.size() > MAX_REGIONS)
+			following = false;
+		listChanged();
+	}
+
+	/**
+	 * Called by the list after it has removed the given command from the
+	 * given row of its store.
+	 */
+	void rowRemoved(int row, DemoCommand cmd) {
+		if (!follow())
+			return;
+		if (changed.containsKey(cmd))
+			removed.add(cmd);
+		int r = 0;
+		while (r < regions.size() && regions.get(r).end() <= row)
+			r++;
+		if (r < regions.size() && regions.get(r).start <= row) {
+			final Region region = regions.get(r);
+			region.length--;
+			for (int i = r + 1; i < regions.size(); i++)
+				regions.get(i).start--;
+			if (region.length == 0 && region.removed == 0)
+				regions.remove(r);
+		} else {
+			// an unchanged row: it joins the region ending at it, if any
+			Region region;
+			if (r > 0 && regions.get(r - 1).end() == row) {
+				region = regions.get(--r);
+				region.removed++;
+			} else {
+				region = new Region(row, 0, 1);
+				regions.add(r, region);
+			}
+			for (int i = r + 1; i < regions.size(); i++)
+				regions.get(i).start--;
+			if (r + 1 < regions.size()
+					&& regions.get(r + 1).start == region.end()) {
+				final Region next = regions.remove(r + 1);
+				region.length += next.length;
+				region.removed += next.removed;
+			}
+		}
+		if (regions.size() > MAX_REGIONS)
+			following = false;
+		listChanged();
+	}
+
+	/**
+	 * Takes up the one change the store has made since the journal last
+	 * followed it, or stops following the store if there has been more than
+	 * that, until the next commit compares it with the copy.
+	 */
+	private boolean follow() {
+		if (closed)
+			return false;
+		if (!following
+				|| cmdList.getStore().getModCount() != modCount + 1) {
+			following = false;
+			return false;
+		}
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Called by the list when one of its commands changes, so that a change
+	 * to the time alone can be recorded as an offset.
+	 */
+	void commandChanged(DemoCommand cmd, int column, Object oldValue) {
+		if (closed)
+			return;
+		Change change = changed.get(cmd);
+		if (change == null) {
+			final boolean time = column == DemoCommandListFilter.TIME_COL
+					&& oldValue instanceof Integer;
+			changed.put(cmd, new Change(time ? (Integer) oldValue : 0, time));
+		} else if (column != DemoCommandListFilter.TIME_COL) {
+			change.onlyTime = false;
+		}
+		if (!timer.isRunning())
+			timer.start();
+	}
+
+	/**
+	 * Writes the changes made since the last commit to the journal. If the
+	 * journal cannot be written, the user is told and journaling stops.
+	 */
+	public void commit() {
+		if (closed)
+			return;
+		timer.stop();
+		try {
+			final byte[] record = diff();
+			if (record.length == 0)
+				return;
+			append(record);
+			if (!compacting
+					&& channel.size() > Math.max(MIN_COMPACT_SIZE, baseLength))
+				compact();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Starts a new, empty journal after the list has been saved to the given
+	 * file. The old journal and checkpoints are deleted.
+	 *
+	 * @param savedFile
+	 */
+	public void saved(File savedFile) {
+		if (closed)
+			return;
+		timer.stop();
+		closeChannel();
+		discard(file);
+		saveCount++;
+		changed.clear();
+		removed.clear();
+		regions.clear();
+		last = cmdList.getStore().copy();
+		following = true;
+		modCount = cmdList.getStore().getModCount();
+		file = savedFile;
+		generation = 0;
+	}
+
+	/**
+	 * Stops journaling and deletes the journal, as when the demo is closed.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		timer.stop();
+		closeChannel();
+		discard(file);
+		cmdList.setJournal(null);
+	}
+
+	/**
+	 * Returns the file the journal is written to.
+	 */
+	public File getFile() {
+		return getJournalFile(file);
+	}
+
+	/**
+	 * Brings the journal's copy up to date with the list, and returns the
+	 * records for the changes. If the journal has followed every change to
+	 * the store, only the regions it has kept are written; otherwise the
+	 * list is compared with the copy to find the one region that differs.
+	 */
+	private byte[] diff() throws IOException {
+		final DemoCommandStore current = cmdList.getStore();
+		final boolean followed = following
+				&& modCount == current.getModCount();
+		if (!followed) {
+			regions.clear();
+			final Region region = compare(current);
+			if (region.length > 0 || region.removed > 0)
+				regions.add(region);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		final DemoCommand scratch = new DemoCommand(0, 0, "", "");
+		for (Region region : regions) {
+			if (region.removed > 0) {
+				out.writeByte(REMOVE);
+				out.writeInt(region.start);
+				out.writeInt(region.removed);
+			}
+			if (region.length > 0) {
+				out.writeByte(INSERT);
+				out.writeInt(region.start);
+				out.writeInt(region.length);
+				for (int i = region.start; i < region.end(); i++)
+					writeCommand(out, current.peek(i, scratch));
+			}
+			last.replace(region.start, region.start + region.removed, current
+					.copy(region.start, region.end()));
+		}
+		if (!changed.isEmpty())
+			writeChanges(out, current, followed ? changedRows() : null);
+		out.flush();
+
+		changed.clear();
+		removed.clear();
+		regions.clear();
+		following = true;
+		modCount = current.getModCount();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Compares the list with the journal's copy, and returns the region
+	 * between the rows they have in common at the start and at the end.
+	 */
+	private Region compare(DemoCommandStore current) {
+		final int oldSize = last.size();
+		final int newSize = current.size();
+		int prefix = 0;
+		while (prefix < oldSize && prefix < newSize
+				&& last.sameRow(prefix, current, prefix))
+			prefix++;
+		int suffix = 0;
+		while (suffix < oldSize - prefix && suffix < newSize - prefix
+				&& last.sameRow(oldSize - 1 - suffix, current, newSize - 1
+						- suffix))
+			suffix++;
+		return new Region(prefix, newSize - prefix - suffix, oldSize - prefix
+				- suffix);
+	}
+
+	/**
+	 * Returns the rows of the changed commands still in the list, in order,
+	 * looked up through the list's index of positions.
+	 */
+	private int[] changedRows() {
+		final int[] rows = new int[changed.size()];
+		int count = 0;
+		for (DemoCommand cmd : changed.keySet()) {
+			if (removed.contains(cmd))
+				continue;
+			final int row = cmdList.indexOf(cmd);
+			if (row >= 0)
+				rows[count++] = row;
+		}
+		final int[] found = Arrays.copyOf(rows, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * Records the changed commands at the given rows, or at any row if rows
+	 * is null, outside of the regions, which have already been written in
+	 * full. Consecutive commands whose times alone moved by the same amount
+	 * become a single offset. Only commands that have been created can have
+	 * changed, so the other rows are skipped. The journal's copy, already
+	 * brought up to date with the regions, is given the changed commands in
+	 * place of rows it has not created.
+	 */
+	private void writeChanges(DataOutputStream out, DemoCommandStore current,
+			int[] rows) throws IOException {
+		int runStart = 0;
+		int runLength = 0;
+		int runDelta = 0;
+		int r = 0;
+		final int count = rows == null ? current.size() : rows.length;
+		for (int k = 0; k < count; k++) {
+			final int i = rows == null ? k : rows[k];
+			while (r < regions.size() && regions.get(r).end() <= i)
+				r++;
+			if (r < regions.size() && regions.get(r).start <= i)
+				continue;
+			final DemoCommand cmd = current.getMaterialized(i);
+			if (cmd == null)
+				continue;
+			final Change change = changed.get(cmd);
+			if (change == null)
+				continue;
+			if (last.getMaterialized(i) != cmd)
+				last.shareRow(i, cmd);
+			if (change.onlyTime) {
+				final int delta = cmd.getTime() - change.oldTime;
+				if (delta == 0)
+					continue;
+				if (runLength > 0 && runStart + runLength == i
+						&& delta == runDelta) {
+					runLength++;
+					continue;
+				}
+				writeOffset(out, runStart, runLength, runDelta);
+				runStart = i;
+				runLength = 1;
+				runDelta = delta;
+			} else {
+				writeOffset(out, runStart, runLength, runDelta);
+				runLength = 0;
+				out.writeByte(SET);
+				out.writeInt(i);
+				writeCommand(out, cmd);
+			}
+		}
+		writeOffset(out, runStart, runLength, runDelta);
+	}
+
+	private static void writeOffset(DataOutputStream out, int start,
+			int length, int delta) throws IOException {
+		if (length == 0)
+			return;
+		out.writeByte(OFFSET);
+		out.writeInt(start);
+		out.writeInt(length);
+		out.writeInt(delta);
+	}
+
+	/**
+	 * Writes a command. Named references are written by name, since the
+	 * numbers DemoCommand assigns them differ from run to run.
+	 */
+	private static void writeCommand(DataOutputStream out, DemoCommand cmd)
+			throws IOException {
+		out.writeInt(cmd.getTime());
+		final int reference = cmd.getReference();
+		if (reference < 0) {
+			out.writeInt(NAMED_REFERENCE);
+			out.writeUTF(DemoCommand.getIDFor(reference));
+		} else {
+			out.writeInt(reference);
+		}
+		out.writeUTF(cmd.getCommand());
+		final int argCount = cmd.getArgumentCount();
+		out.writeInt(argCount);
+		for (int i = 0; i < argCount; i++) {
+			final String arg = cmd.getArgument(i);
+			out.writeBoolean(arg != null);
+			if (arg != null)
+				out.writeUTF(arg);
+		}
+	}
+
+	private static DemoCommand readCommand(DataInputStream in)
+			throws IOException {
+		final int time = in.readInt();
+		int reference = in.readInt();
+		if (reference == NAMED_REFERENCE)
+			reference = DemoCommand.getRefNumFor(in.readUTF());
+		final String command = in.readUTF();
+		final int argCount = in.readInt();
+		if (argCount < 0)
+			throw damaged();
+		ArrayList<String> args = new ArrayList<String>(argCount);
+		for (int i = 0; i < argCount; i++)
+			args.add(in.readBoolean() ? in.readUTF() : null);
+		return new DemoCommand(time, reference, command, args);
+	}
+
+	/**
+	 * Writes one commit as a frame, creating the journal first if needed.
+	 */
+	private void append(byte[] record) throws IOException {
+		if (channel == null) {
+			channel = new RandomAccessFile(getJournalFile(file), "rw")
+					.getChannel();
+			channel.truncate(0);
+			writeHeader(channel, 0, file);
+			baseLength = file.length();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer frame = ByteBuffer.allocate(record.length + 8);
+		frame.putInt(record.length);
+		frame.put(record);
+		frame.putInt((int) crc.getValue());
+		frame.flip();
+		while (frame.hasRemaining())
+			channel.write(frame);
+		channel.force(false);
+	}
+
+	private static void writeHeader(FileChannel channel, int generation,
+			File base) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(generation);
+		header.putLong(base.length());
+		header.putLong(base.lastModified());
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header);
+	}
+
+	/**
+	 * Saves a copy of the current commands to the next checkpoint in the
+	 * background, then restarts the journal from it. Commits made in the
+	 * meantime are carried over to the new journal.
+	 */
+	private void compact() throws IOException {
+		compacting = true;
+		final int saves = saveCount;
+		final int nextGeneration = generation + 1;
+		final long position = channel.size();
+		final DemoCommandStore snapshot = last.detachedCopy();
+		final File checkpoint = getCheckpointFile(file, nextGeneration);
+		new SwingWorker<Void, Void>() {
+			@Override
+			protected Void doInBackground() throws Exception {
+				new ParallelDemoSaver(snapshot).save(checkpoint);
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				compacting = false;
+				try {
+					get();
+					if (closed || saves != saveCount) {
+						checkpoint.delete();
+						return;
+					}
+					startGeneration(nextGeneration, checkpoint, position);
+				} catch (InterruptedException e) {
+					checkpoint.delete();
+				} catch (ExecutionException e) {
+					// the journal is still complete without the checkpoint
+					checkpoint.delete();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Replaces the journal with one that starts from the given checkpoint and
+	 * holds the commits made after position.
+	 */
+	private void startGeneration(int nextGeneration, File checkpoint,
+			long position) throws IOException {
+		final File journalFile = getJournalFile(file);
+		final File tempFile = getTempFile(file);
+		FileChannel next = new RandomAccessFile(tempFile, "rw").getChannel();
+		try {
+			next.truncate(0);
+			writeHeader(next, nextGeneration, checkpoint);
+			long copied = 0;
+			final long count = channel.size() - position;
+			while (copied < count)
+				copied += channel.transferTo(position + copied, count - copied,
+						next);
+			next.force(true);
+		} finally {
+			next.close();
+		}
+		closeChannel();
+		if ((journalFile.exists() && !journalFile.delete())
+				|| !tempFile.renameTo(journalFile))
+			throw new IOException("Could not replace " + journalFile.getName());
+		channel = new RandomAccessFile(journalFile, "rw").getChannel();
+		channel.position(channel.size());
+		if (generation > 0)
+			getCheckpointFile(file, generation).delete();
+		generation = nextGeneration;
+		baseLength = checkpoint.length();
+	}
+
+	private void fail(IOException e) {
+		closed = true;
+		timer.stop();
+		closeChannel();
+		cmdList.setJournal(null);
+		JOptionPane.showMessageDialog(DemoEditor.getEditor(),
+				"Could not write the journal for " + file.getName() + ": "
+						+ e.getMessage()
+						+ "\nUnsaved changes will be lost if the editor crashes.",
+				"Error", JOptionPane.ERROR_MESSAGE);
+	}
+
+	private void closeChannel() {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		channel = null;
+	}
+
+	private static ArrayList<DemoCommand> readBase(File base)
+			throws FileNotFoundException, IOException {
+		ArrayList<DemoCommand> commands = new ArrayList<DemoCommand>();
+		final DemoSource source = DemoBlockIndex.isCompressed(base) ? null
+				: new DemoSource(base);
+		if (source != null)
+			source.record();
+		DemoFileReader reader = new DemoFileReader(base);
+		try {
+			int time = 0;
+			while (reader.next()) {
+				final DemoCommand cmd = reader.getDemoCommand();
+				if (cmd == null)
+					continue;
+				final int relative = cmd.getTime();
+				time += relative;
+				cmd.setTime(time);
+				if (source != null && reader.isLineTerminated())
+					cmd.setSource(source, reader.getLineOffset(), (int) (reader
+							.getPosition() - reader.getLineOffset()), relative);
+				commands.add(cmd);
+			}
+		} finally {
+			reader.close();
+		}
+		return commands;
+	}
+
+	/**
+	 * Applies every complete frame to the commands and returns the offset
+	 * just past the last one.
+	 */
+	private static long replay(DataInputStream in, long size,
+			List<DemoCommand> commands) throws IOException {
+		final CRC32 crc = new CRC32();
+		long offset = HEADER_SIZE;
+		while (offset + 8 <= size) {
+			final int length = in.readInt();
+			if (length <= 0 || offset + 8 + length > size)
+				break;
+			final byte[] record = new byte[length];
+			in.readFully(record);
+			crc.reset();
+			crc.update(record);
+			if (in.readInt() != (int) crc.getValue())
+				break;
+			apply(new DataInputStream(new ByteArrayInputStream(record)),
+					commands);
+			offset += 8 + length;
+		}
+		return offset;
+	}
+
+	private static void apply(DataInputStream in, List<DemoCommand> commands)
+			throws IOException {
+		while (in.available() > 0) {
+			final byte op = in.readByte();
+			final int index = in.readInt();
+			switch (op) {
+			case REMOVE: {
+				final int count = in.readInt();
+				if (index < 0 || count < 0 || index + count > commands.size())
+					throw damaged();
+				commands.subList(index, index + count).clear();
+				break;
+			}
+			case INSERT: {
+				final int count = in.readInt();
+				if (index < 0 || count < 0 || index > commands.size())
+					throw damaged();
+				ArrayList<DemoCommand> inserted = new ArrayList<DemoCommand>(
+						count);
+				for (int i = 0; i < count; i++)
+					inserted.add(readCommand(in));
+				commands.addAll(index, inserted);
+				break;
+			}
+			case SET:
+				if (index < 0 || index >= commands.size())
+					throw damaged();
+				commands.set(index, readCommand(in));
+				break;
+			case OFFSET: {
+				final int count = in.readInt();
+				final int delta = in.readInt();
+				if (index < 0 || count < 0 || index + count > commands.size())
+					throw damaged();
+				for (int i = index; i < index + count; i++) {
+					final DemoCommand cmd = commands.get(i);
+					cmd.setTime(cmd.getTime() + delta);
+				}
+				break;
+			}
+			default:
+				throw damaged();
+			}
+		}
+	}
+
+	private static IOException damaged() {
+		return new IOException("The demo journal is damaged.");
+	}
+
+	/**
+	 * A run of rows that has replaced other rows since the last commit: the
+	 * rows from start to end in the list took the place of removed rows of
+	 * the journal's copy. Regions are kept in order, with at least one
+	 * unchanged row between each.
+	 */
+	private static class Region {
+		private int start;
+		private int length;
+		private int removed;
+
+		private Region(int start, int length, int removed) {
+			this.start = start;
+			this.length = length;
+			this.removed = removed;
+		}
+
+		private int end() {
+			return start + length;
+		}
+	}
+
+	/**
+	 * What is known about a command changed since the last commit.
+	 */
+	private static class Change {
+		private final int oldTime;
+		private boolean onlyTime;
+
+		private Change(int oldTime, boolean onlyTime) {
+			this.oldTime = oldTime;
+			this.onlyTime = onlyTime;
+		}
+	}
+}
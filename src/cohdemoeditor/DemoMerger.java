@@ -0,0 +1,279 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DemoMerger combines several demo files into one without loading any of
+ * them. Each source is read with its own DemoFileReader, and only the next
+ * command of each source is held in memory. The heads of the sources are kept
+ * in a heap ordered by a DemoCommandComparator, and the smallest is written
+ * with a DemoFileWriter each step, so memory use depends on the number of
+ * sources and not on their size.
+ *
+ * The sources should each be in the order the comparator expects, as saved
+ * demos are. Commands the comparator considers equal are written in the
+ * order their sources were added.
+ *
+ * Every demo numbers its entities from the same small integers, so the same
+ * reference usually means different things in different sources. Each source
+ * has a remap table from its own references to the references to write, and
+ * remapConflicts fills those tables so that no two sources share an entity
+ * reference. Reference 0 and the named references such as CAM are never
+ * remapped.
+ *
+ * Commands with reference 0, such as the Version and Map lines at the start
+ * of every demo, are written only once if several sources have the same one
+ * at the same time.
+ *
+ * @author Darren Lee
+ */
+public class DemoMerger {
+
+	private final Comparator<? super DemoCommand> comparator;
+	private final List<File> sources = new ArrayList<File>();
+	private final List<Map<Integer, Integer>> remaps = new ArrayList<Map<Integer, Integer>>();
+	private int badLineCount = 0;
+
+	/**
+	 * Creates a merger that orders commands with the given comparator,
+	 * normally the DemoEditor's DemoCommandComparator.
+	 *
+	 * @param comparator
+	 */
+	public DemoMerger(Comparator<? super DemoCommand> comparator) {
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Adds a source whose references are written unchanged.
+	 *
+	 * @param file
+	 */
+	public void addSource(File file) {
+		addSource(file, new HashMap<Integer, Integer>());
+	}
+
+	/**
+	 * Adds a source whose references are changed according to the given map
+	 * from old to new references.
+	 *
+	 * @param file
+	 * @param remap
+	 */
+	public void addSource(File file, Map<Integer, Integer> remap) {
+		sources.add(file);
+		remaps.add(new HashMap<Integer, Integer>(remap));
+	}
+
+	/**
+	 * Returns the number of sources.
+	 */
+	public int getSourceCount() {
+		return sources.size();
+	}
+
+	/**
+	 * Returns the source at the given index.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public File getSource(int source) {
+		return sources.get(source);
+	}
+
+	/**
+	 * Returns the remap table of the source at the given index. Changes to
+	 * the returned map change how that source is merged.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public Map<Integer, Integer> getRemap(int source) {
+		return remaps.get(source);
+	}
+
+	/**
+	 * Fills the remap tables so that every entity reference used by more than
+	 * one source is given a new, unused number in all but the first source
+	 * that uses it. Any existing remap tables are replaced. This reads through
+	 * every source once, looking only at the references.
+	 *
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void remapConflicts() throws FileNotFoundException, IOException {
+		final List<Set<Integer>> used = new ArrayList<Set<Integer>>();
+		int max = 0;
+		for (File file : sources) {
+			Set<Integer> refs = new HashSet<Integer>();
+			DemoFileReader reader = new DemoFileReader(file);
+			try {
+				while (reader.next()) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					final int ref = reader.getReference();
+					if (reader.isDemoCommand() && ref > 0) {
+						refs.add(ref);
+						if (ref > max)
+							max = ref;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			used.add(refs);
+		}
+		final Set<Integer> taken = new HashSet<Integer>();
+		for (int i = 0; i < used.size(); i++) {
+			Map<Integer, Integer> remap = remaps.get(i);
+			remap.clear();
+			for (Integer ref : used.get(i)) {
+				if (taken.contains(ref))
+					remap.put(ref, ++max);
+			}
+			for (Integer ref : used.get(i)) {
+				taken.add(remap.containsKey(ref) ? remap.get(ref) : ref);
+			}
+		}
+	}
+
+	/**
+	 * The next command of one source, with its absolute time.
+	 */
+	private static class Head {
+		final int source;
+		final DemoFileReader reader;
+		final Map<Integer, Integer> remap;
+		DemoCommand cmd;
+		int time = 0;
+
+		Head(int source, DemoFileReader reader, Map<Integer, Integer> remap) {
+			this.source = source;
+			this.reader = reader;
+			this.remap = remap;
+		}
+
+		/**
+		 * Reads the next valid command. Returns false at the end of the
+		 * source.
+		 */
+		boolean advance(DemoMerger merger) throws IOException {
+			while (reader.next()) {
+				cmd = reader.getDemoCommand();
+				if (cmd == null) {
+					merger.badLineCount++;
+					continue;
+				}
+				time += cmd.getTime();
+				cmd.setTime(time);
+				Integer ref = remap.get(cmd.getReference());
+				if (ref != null)
+					cmd.setReference(ref);
+				return true;
+			}
+			cmd = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Merges the sources into the given file. Lines that are not valid demo
+	 * commands are skipped and counted. If the thread is interrupted, the
+	 * merge stops with an InterruptedIOException.
+	 *
+	 * @param dest
+	 *            the file to write; must not be one of the sources
+	 * @return the number of commands written
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public int merge(File dest) throws FileNotFoundException, IOException {
+		for (File file : sources) {
+			if (file.getCanonicalFile().equals(dest.getCanonicalFile()))
+				throw new IOException("Cannot merge " + file.getName()
+						+ " into itself.");
+		}
+		badLineCount = 0;
+		final List<Head> heads = new ArrayList<Head>();
+		PriorityQueue<Head> heap = new PriorityQueue<Head>(Math.max(1,
+				sources.size()), new Comparator<Head>() {
+			public int compare(Head h1, Head h2) {
+				final int c = comparator.compare(h1.cmd, h2.cmd);
+				return c != 0 ? c : h1.source - h2.source;
+			}
+		});
+		int written = 0;
+		try {
+			long length = 1;
+			for (int i = 0; i < sources.size(); i++) {
+				Head head = new Head(i, new DemoFileReader(sources.get(i)),
+						remaps.get(i));
+				heads.add(head);
+				length += head.reader.getLength();
+				if (head.advance(this))
+					heap.add(head);
+			}
+			DemoFileWriter writer = new DemoFileWriter(dest);
+			try {
+				final Set<String> globals = new HashSet<String>();
+				int globalTime = 0;
+				int progress = 0;
+				while (!heap.isEmpty()) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					Head head = heap.poll();
+					final DemoCommand cmd = head.cmd;
+					boolean write = true;
+					if (cmd.getReference() == 0) {
+						if (cmd.getTime() != globalTime) {
+							globals.clear();
+							globalTime = cmd.getTime();
+						}
+						write = globals.add(cmd.getCommand() + " "
+								+ cmd.getArguments());
+					}
+					if (write) {
+						writer.write(cmd);
+						written++;
+					}
+					if (head.advance(this))
+						heap.add(head);
+					if ((written & 0xfff) == 0) {
+						long read = 0;
+						for (Head h : heads)
+							read += h.reader.getBytesRead();
+						final int newProgress = (int) ((100 * read) / length);
+						if (newProgress != progress) {
+							progress = newProgress;
+							progressChanged(progress);
+						}
+					}
+				}
+			} finally {
+				writer.close();
+			}
+		} finally {
+			for (Head head : heads)
+				head.reader.close();
+		}
+		return written;
+	}
+
+	/**
+	 * Returns the number of invalid lines skipped by the last merge.
+	 */
+	public int getBadLineCount() {
+		return badLineCount;
+	}
+
+	/**
+	 * Called by merge whenever the percentage of the sources read changes.
+	 * Does nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+}
@@ -0,0 +1,299 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DemoPatch records the differences found by a DemoDiff in a text file, and
+ * applies such a file to a demo to reproduce the newer demo. Both creating
+ * and applying a patch stream through the files a group at a time, so they
+ * work on demos of any size.
+ *
+ * A patch file starts with comment lines beginning with #. Every other line
+ * is a deletion or an insertion:
+ *
+ * <pre>
+ * - occurrence time reference command arguments
+ * + occurrence position time reference command arguments
+ * </pre>
+ *
+ * Times are absolute. The occurrence counts the commands with the same time,
+ * reference and name, from 0; deletions count in the old demo and insertions
+ * in the new one. The position of an insertion is its place among all the
+ * commands of the new demo with the same time and reference, so the commands
+ * of a group come out in the order of the new demo rather than being sorted
+ * again. A changed or moved command is written as a deletion followed by an
+ * insertion. Applying a patch checks that every deleted command matches the
+ * demo, and fails with an IOException if it does not.
+ *
+ * @author Darren Lee
+ */
+public class DemoPatch extends DemoDiff {
+
+	public static final String EXTENSION = ".cohpatch";
+	private static final String HEADER = "# cohdemo patch";
+
+	private PrintWriter out = null;
+
+	/**
+	 * Creates a DemoPatch that matches groups in the order of the given
+	 * comparator, normally the DemoEditor's DemoCommandComparator.
+	 *
+	 * @param comparator
+	 */
+	public DemoPatch(Comparator<? super DemoCommand> comparator) {
+		super(comparator);
+	}
+
+	/**
+	 * Writes a patch that turns the old demo into the new one.
+	 *
+	 * @param oldFile
+	 * @param newFile
+	 * @param patchFile
+	 * @return the number of differences written
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public int create(File oldFile, File newFile, File patchFile)
+			throws FileNotFoundException, IOException {
+		out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(patchFile), "UTF-8")));
+		try {
+			out.println(HEADER);
+			out.println("# old: " + oldFile.getName());
+			out.println("# new: " + newFile.getName());
+			final int count = diff(oldFile, newFile);
+			if (out.checkError())
+				throw new IOException("Could not write " + patchFile.getName());
+			return count;
+		} finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Writes the difference to the patch being created. Does nothing unless
+	 * called from create.
+	 */
+	@Override
+	protected void difference(Difference d) throws IOException {
+		if (out == null)
+			return;
+		if (d.getOldCommand() != null)
+			out.println("- " + d.getOccurrence() + " "
+					+ d.getOldCommand().toString(0));
+		if (d.getNewCommand() != null)
+			out.println("+ " + d.getOccurrence() + " " + d.getPosition() + " "
+					+ d.getNewCommand().toString(0));
+	}
+
+	/**
+	 * Applies a patch to a demo, writing the result to a new file.
+	 *
+	 * @param source
+	 *            the demo the patch was made from
+	 * @param patchFile
+	 * @param dest
+	 *            the file to write; must not be the source
+	 * @return the number of commands written
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 *             if a file cannot be read or written, or if the patch does
+	 *             not match the source
+	 */
+	public int apply(File source, File patchFile, File dest)
+			throws FileNotFoundException, IOException {
+		if (source.getCanonicalFile().equals(dest.getCanonicalFile()))
+			throw new IOException("Cannot write " + dest.getName()
+					+ " over itself.");
+		int written = 0;
+		PatchReader patch = new PatchReader(patchFile);
+		try {
+			GroupReader reader = new GroupReader(new DemoFileReader(source));
+			try {
+				DemoFileWriter writer = new DemoFileWriter(dest);
+				try {
+					final long length = Math.max(1, reader.reader.getLength());
+					final List<DemoCommand> empty = Collections.emptyList();
+					List<DemoCommand> group = reader.nextGroup();
+					List<Change> changes = patch.nextGroup();
+					int progress = 0;
+					while (group != null || changes != null) {
+						if (Thread.interrupted())
+							throw new InterruptedIOException();
+						final int c;
+						if (changes == null)
+							c = -1;
+						else if (group == null)
+							c = 1;
+						else
+							c = compareGroups(group.get(0), changes.get(0).cmd);
+						List<DemoCommand> result;
+						if (c < 0) {
+							result = group;
+							group = reader.nextGroup();
+						} else if (c > 0) {
+							result = applyGroup(empty, changes);
+							changes = patch.nextGroup();
+						} else {
+							result = applyGroup(group, changes);
+							group = reader.nextGroup();
+							changes = patch.nextGroup();
+						}
+						for (DemoCommand cmd : result)
+							writer.write(cmd);
+						written += result.size();
+						final int newProgress = (int) ((100 * reader.reader
+								.getBytesRead()) / length);
+						if (newProgress != progress) {
+							progress = newProgress;
+							progressChanged(progress);
+						}
+					}
+				} finally {
+					writer.close();
+				}
+			} finally {
+				reader.reader.close();
+			}
+		} finally {
+			patch.close();
+		}
+		return written;
+	}
+
+	/**
+	 * Applies the changes for one group to the commands of that group. The
+	 * commands left after the deletions keep their order, and each insertion
+	 * goes in at its position in the new group; the insertions of a group
+	 * are in order of position, as the diff found them.
+	 */
+	private List<DemoCommand> applyGroup(List<DemoCommand> group,
+			List<Change> changes) throws IOException {
+		final List<DemoCommand> result = new ArrayList<DemoCommand>(group);
+		for (Change change : changes) {
+			if (change.insert)
+				continue;
+			final int index = indexOf(group, change.cmd.getCommand(),
+					change.occurrence);
+			if (index < 0 || result.get(index) == null
+					|| !sameCommand(result.get(index), change.cmd))
+				throw mismatch(change);
+			result.set(index, null);
+		}
+		result.removeAll(Collections.singleton(null));
+		for (Change change : changes) {
+			if (!change.insert)
+				continue;
+			if (change.position > result.size())
+				throw mismatch(change);
+			result.add(change.position, change.cmd);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index in the group of the given occurrence of the command
+	 * with the given name, or -1 if there are not that many.
+	 */
+	private static int indexOf(List<DemoCommand> group, String name,
+			int occurrence) {
+		for (int i = 0; i < group.size(); i++) {
+			if (group.get(i).getCommand().equals(name) && occurrence-- == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	private static IOException mismatch(Change change) {
+		return new IOException("The patch does not match the demo at time "
+				+ change.cmd.getTime() + ": " + change.cmd);
+	}
+
+	/**
+	 * A single line of a patch.
+	 */
+	private static class Change {
+		final boolean insert;
+		final int occurrence;
+		final int position;
+		final DemoCommand cmd;
+
+		Change(boolean insert, int occurrence, int position, DemoCommand cmd) {
+			this.insert = insert;
+			this.occurrence = occurrence;
+			this.position = position;
+			this.cmd = cmd;
+		}
+	}
+
+	/**
+	 * Reads a patch file a group at a time.
+	 */
+	private class PatchReader {
+		private final BufferedReader in;
+		private final String name;
+		private Change next = null;
+		private int lineNumber = 0;
+
+		PatchReader(File file) throws FileNotFoundException, IOException {
+			name = file.getName();
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(
+					file), "UTF-8"));
+			final String header = in.readLine();
+			lineNumber++;
+			if (header == null || !header.startsWith(HEADER)) {
+				in.close();
+				throw new IOException(name + " is not a demo patch.");
+			}
+		}
+
+		List<Change> nextGroup() throws IOException {
+			if (next == null && !advance())
+				return null;
+			final List<Change> group = new ArrayList<Change>();
+			final DemoCommand first = next.cmd;
+			do {
+				group.add(next);
+			} while (advance() && compareGroups(first, next.cmd) == 0);
+			return group;
+		}
+
+		private boolean advance() throws IOException {
+			next = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().length() == 0 || line.startsWith("#"))
+					continue;
+				final boolean insert = line.startsWith("+ ");
+				final String[] parts = line.split(" ", insert ? 4 : 3);
+				DemoCommand cmd = null;
+				int occurrence = -1;
+				int position = insert ? -1 : 0;
+				if (parts.length == (insert ? 4 : 3)
+						&& (insert || parts[0].equals("-"))) {
+					try {
+						occurrence = Integer.parseInt(parts[1]);
+						if (insert)
+							position = Integer.parseInt(parts[2]);
+					} catch (NumberFormatException e) {
+					}
+					cmd = DemoFileReader.parseDemoCommand(parts[parts.length - 1]);
+				}
+				if (cmd == null || occurrence < 0 || position < 0)
+					throw new IOException("Cannot read line " + lineNumber
+							+ " of " + name);
+				next = new Change(insert, occurrence, position, cmd);
+				return true;
+			}
+			return false;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+}
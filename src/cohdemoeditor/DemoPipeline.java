@@ -0,0 +1,340 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DemoPipeline runs every command of a demo through a series of stages,
+ * one command at a time. Each stage may change the command or drop it.
+ * Running a pipeline from one file to another reads the source with a
+ * DemoFileReader and writes the result with a DemoFileWriter, so only one
+ * command is in memory at a time no matter how large the demo is.
+ *
+ * Stages always see absolute times. When commands are dropped, their time is
+ * folded into the next command that is written, so the commands that remain
+ * keep their place in the demo.
+ *
+ * The same stages can be applied to commands that are already in memory
+ * through process.
+ *
+ * @author Darren Lee
+ */
+public class DemoPipeline {
+
+	private static final int POS_ID = DemoCommand.getCommandIdFor("POS");
+	private static final int CHAT_ID = DemoCommand.getCommandIdFor("Chat");
+	private static final int NEW_ID = DemoCommand.getCommandIdFor("NEW");
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private int badLineCount = 0;
+
+	/**
+	 * Creates an empty pipeline.
+	 */
+	public DemoPipeline() {
+	}
+
+	/**
+	 * Creates a pipeline with the same stages as the given pipeline.
+	 *
+	 * @param pipeline
+	 */
+	public DemoPipeline(DemoPipeline pipeline) {
+		stages.addAll(pipeline.stages);
+	}
+
+	/**
+	 * One step of a DemoPipeline.
+	 */
+	public static abstract class Stage {
+
+		/**
+		 * Processes a single command. The command may be changed in place.
+		 *
+		 * @param cmd
+		 *            the command, with an absolute time
+		 * @return the command to pass on, or null to drop it
+		 */
+		public abstract DemoCommand process(DemoCommand cmd);
+
+		/**
+		 * Called before the pipeline starts a new run. Stages that remember
+		 * anything between commands should forget it here.
+		 */
+		public void reset() {
+		}
+	}
+
+	/**
+	 * Drops every command that is not visible through a FilterList.
+	 */
+	public static class FilterStage extends Stage {
+		private final FilterList filters;
+
+		public FilterStage(FilterList filters) {
+			this.filters = filters;
+		}
+
+		@Override
+		public DemoCommand process(DemoCommand cmd) {
+			return filters.isVisible(cmd) ? cmd : null;
+		}
+	}
+
+	/**
+	 * Scales and offsets times. Like DemoCommandList.scaleTimes, the time of
+	 * the first command is kept and the rest are scaled away from it; the
+	 * offset is then added to every command.
+	 */
+	public static class TimeStage extends Stage {
+		private final int offset;
+		private final double ratio;
+		private boolean started = false;
+		private int firstTime;
+
+		/**
+		 * @param offset
+		 *            the amount to add to every time
+		 * @param ratio
+		 *            the amount to scale times by, relative to the first
+		 *            command
+		 */
+		public TimeStage(int offset, double ratio) {
+			this.offset = offset;
+			this.ratio = ratio;
+		}
+
+		@Override
+		public DemoCommand process(DemoCommand cmd) {
+			if (!started) {
+				started = true;
+				firstTime = cmd.getTime();
+			}
+			int time = cmd.getTime();
+			if (ratio != 1)
+				time = (int) Math.round(firstTime + ratio
+						* (time - firstTime));
+			cmd.setTime(time + offset);
+			return cmd;
+		}
+
+		@Override
+		public void reset() {
+			started = false;
+		}
+	}
+
+	/**
+	 * Adds an offset to the coordinates of every POS command, as
+	 * DemoCommandList.offSetPositions does.
+	 */
+	public static class PositionOffsetStage extends Stage {
+		private final double xoffset, zoffset, yoffset;
+
+		public PositionOffsetStage(double xoffset, double zoffset,
+				double yoffset) {
+			this.xoffset = xoffset;
+			this.zoffset = zoffset;
+			this.yoffset = yoffset;
+		}
+
+		@Override
+		public DemoCommand process(DemoCommand cmd) {
+			if (cmd.getCommandId() == POS_ID && cmd.getArgumentCount() >= 3) {
+				try {
+					double x = cmd.getDouble(0);
+					double z = cmd.getDouble(1);
+					double y = cmd.getDouble(2);
+					cmd.setDouble(0, x + xoffset);
+					cmd.setDouble(1, z + zoffset);
+					cmd.setDouble(2, y + yoffset);
+				} catch (NumberFormatException e) {
+				}
+			}
+			return cmd;
+		}
+	}
+
+	/**
+	 * Changes reference numbers according to a map from old to new
+	 * references. References not in the map are left alone.
+	 */
+	public static class ReferenceRemapStage extends Stage {
+		private final Map<Integer, Integer> remap;
+
+		public ReferenceRemapStage(Map<Integer, Integer> remap) {
+			this.remap = new HashMap<Integer, Integer>(remap);
+		}
+
+		@Override
+		public DemoCommand process(DemoCommand cmd) {
+			Integer ref = remap.get(cmd.getReference());
+			if (ref != null)
+				cmd.setReference(ref);
+			return cmd;
+		}
+	}
+
+	/**
+	 * Removes the kinds of commands that the CommandStrippingWizard removes:
+	 * whole commands by name, combat chat, and player names.
+	 */
+	public static class CommandStripStage extends Stage {
+		private final BitSet commands = new BitSet();
+		private final boolean combatChat;
+		private final boolean names;
+
+		/**
+		 * @param commands
+		 *            the names of the commands to drop
+		 * @param combatChat
+		 *            true to drop combat chat messages
+		 * @param names
+		 *            true to blank the names in NEW commands
+		 */
+		public CommandStripStage(Set<String> commands, boolean combatChat,
+				boolean names) {
+			for (String command : commands)
+				this.commands.set(DemoCommand.getCommandIdFor(command));
+			this.combatChat = combatChat;
+			this.names = names;
+		}
+
+		/**
+		 * Determines if the given command would be dropped.
+		 *
+		 * @param cmd
+		 * @return
+		 */
+		public boolean strips(DemoCommand cmd) {
+			if (commands.get(cmd.getCommandId()))
+				return true;
+			return combatChat && cmd.getCommandId() == CHAT_ID
+					&& cmd.getArgumentCount() > 2
+					&& cmd.getArgument(1).equals("2");
+		}
+
+		@Override
+		public DemoCommand process(DemoCommand cmd) {
+			if (strips(cmd))
+				return null;
+			if (names && cmd.getCommandId() == NEW_ID)
+				cmd.setArguments("");
+			return cmd;
+		}
+	}
+
+	/**
+	 * Adds a stage to the end of the pipeline.
+	 *
+	 * @param stage
+	 */
+	public void add(Stage stage) {
+		stages.add(stage);
+	}
+
+	/**
+	 * Returns the number of stages in the pipeline.
+	 */
+	public int getStageCount() {
+		return stages.size();
+	}
+
+	/**
+	 * Runs a single command through every stage.
+	 *
+	 * @param cmd
+	 *            the command, with an absolute time
+	 * @return the processed command, or null if a stage dropped it
+	 */
+	public DemoCommand process(DemoCommand cmd) {
+		for (Stage stage : stages) {
+			if (cmd == null)
+				break;
+			cmd = stage.process(cmd);
+		}
+		return cmd;
+	}
+
+	/**
+	 * Resets every stage.
+	 */
+	public void reset() {
+		for (Stage stage : stages)
+			stage.reset();
+	}
+
+	/**
+	 * Streams a demo file through the pipeline into another file. Lines that
+	 * are not valid demo commands are skipped and counted. If the thread is
+	 * interrupted, the run stops with an InterruptedIOException.
+	 *
+	 * @param source
+	 * @param dest
+	 *            the file to write; must not be the source
+	 * @return the number of commands written
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public int run(File source, File dest) throws FileNotFoundException,
+			IOException {
+		if (source.getCanonicalFile().equals(dest.getCanonicalFile()))
+			throw new IOException("Cannot write " + dest.getName()
+					+ " over itself.");
+		reset();
+		badLineCount = 0;
+		int written = 0;
+		DemoFileReader reader = new DemoFileReader(source);
+		try {
+			DemoFileWriter writer = new DemoFileWriter(dest);
+			try {
+				final long length = Math.max(1, reader.getLength());
+				int time = 0;
+				int progress = 0;
+				while (reader.next()) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					DemoCommand cmd = reader.getDemoCommand();
+					if (cmd == null) {
+						badLineCount++;
+						continue;
+					}
+					time += cmd.getTime();
+					cmd.setTime(time);
+					cmd = process(cmd);
+					if (cmd != null) {
+						writer.write(cmd);
+						written++;
+					}
+					final int newProgress = (int) ((100 * reader
+							.getBytesRead()) / length);
+					if (newProgress != progress) {
+						progress = newProgress;
+						progressChanged(progress);
+					}
+				}
+			} finally {
+				writer.close();
+			}
+		} finally {
+			reader.close();
+		}
+		return written;
+	}
+
+	/**
+	 * Returns the number of invalid lines skipped by the last run.
+	 */
+	public int getBadLineCount() {
+		return badLineCount;
+	}
+
+	/**
+	 * Called by run whenever the percentage of the source read changes. Does
+	 * nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+}
@@ -0,0 +1,506 @@
+package cohdemoeditor;
+
+import java.util.*;
+
+/**
+ * A DemoPositionIndex finds where the commands of a DemoCommandList are, both
+ * among all of its rows and among its visible commands, and which row a
+ * visible command is, without searching the list.
+ *
+ * Only the rows of the list's store that have been created as commands are in
+ * the index, since only they can be asked about; the rows in between are
+ * counted, not listed. The commands are kept in order in chunks of at most
+ * CHUNK_SIZE, each command with the number of rows before it since the one
+ * before, and whether it is visible. The number of rows and of visible
+ * commands in each chunk is summed in a Fenwick tree, so the chunk holding a
+ * given row or visible index is found in O(log n), and the rest is a scan of
+ * one chunk. A command is found through the chunk it is in. Adding, removing,
+ * or creating a command costs the same, and a chunk that fills up is split.
+ *
+ * The index only follows the changes it is told about. If the store has
+ * changed in any other way since, as when it is sorted or an edit is undone,
+ * the index is no longer current and is rebuilt from the store the next time
+ * it is needed, which is a single pass over the rows. The list also drops the
+ * index when its visible commands are rebuilt.
+ *
+ * @author Darren Lee
+ */
+class DemoPositionIndex {
+
+	private static final int CHUNK_SIZE = 512;
+
+	private final DemoCommandStore store;
+	private final IdentityHashMap<DemoCommand, Chunk> chunkOf = new IdentityHashMap<DemoCommand, Chunk>();
+	private Chunk[] chunks = new Chunk[16];
+	private int chunkCount = 0;
+	private int[] rowTree = new int[17];
+	private int[] visibleTree = new int[17];
+	private int tail = 0;
+	private boolean valid = false;
+	private int modCount;
+
+	/**
+	 * Creates an index of the given store. It is built the first time it is
+	 * needed.
+	 *
+	 * @param store
+	 */
+	DemoPositionIndex(DemoCommandStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Determines if the index has followed every change to the store.
+	 */
+	boolean isCurrent() {
+		return valid && modCount == store.getModCount();
+	}
+
+	/**
+	 * Drops the index, so that it is rebuilt the next time it is needed.
+	 */
+	void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * Rebuilds the index from the store.
+	 *
+	 * @param visible
+	 *            the visible commands, which must be in the same order as in
+	 *            the store, or null if all of them are visible
+	 */
+	void rebuild(List<DemoCommand> visible) {
+		chunkOf.clear();
+		Arrays.fill(chunks, 0, chunkCount, null);
+		chunkCount = 0;
+		final int size = store.size();
+		final int visibleCount = visible == null ? 0 : visible.size();
+		int next = 0;
+		int gap = 0;
+		Chunk chunk = null;
+		for (int i = 0; i < size; i++) {
+			final DemoCommand cmd = store.getMaterialized(i);
+			if (cmd == null) {
+				gap++;
+				continue;
+			}
+			boolean isVisible = visible == null;
+			if (next < visibleCount && visible.get(next) == cmd) {
+				isVisible = true;
+				next++;
+			}
+			if (chunk == null || chunk.count == CHUNK_SIZE / 2) {
+				chunk = new Chunk();
+				addChunk(chunkCount, chunk);
+			}
+			chunk.put(chunk.count, cmd, gap, isVisible);
+			chunkOf.put(cmd, chunk);
+			gap = 0;
+		}
+		tail = gap;
+		buildTrees();
+		valid = true;
+		modCount = store.getModCount();
+	}
+
+	/**
+	 * Returns the row of the given command, or -1 if it is not a row of the
+	 * store.
+	 *
+	 * @param cmd
+	 * @return
+	 */
+	int rowOf(DemoCommand cmd) {
+		final Chunk chunk = chunkOf.get(cmd);
+		if (chunk == null)
+			return -1;
+		int row = prefix(rowTree, chunk.ordinal);
+		for (int j = 0; j < chunk.count; j++) {
+			row += chunk.gaps[j];
+			if (chunk.cmds[j] == cmd)
+				return row;
+			row++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the visible index of the given command, or -1 if it is not
+	 * visible.
+	 *
+	 * @param cmd
+	 * @return
+	 */
+	int visibleIndexOf(DemoCommand cmd) {
+		final Chunk chunk = chunkOf.get(cmd);
+		if (chunk == null)
+			return -1;
+		int index = prefix(visibleTree, chunk.ordinal);
+		for (int j = 0; j < chunk.count; j++) {
+			if (chunk.cmds[j] == cmd)
+				return chunk.visible[j] ? index : -1;
+			if (chunk.visible[j])
+				index++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the row of the command at the given visible index, or -1 if
+	 * there is no such visible command.
+	 *
+	 * @param visibleIndex
+	 * @return
+	 */
+	int rowOfVisible(int visibleIndex) {
+		if (visibleIndex < 0)
+			return -1;
+		final int ordinal = find(visibleTree, visibleIndex);
+		if (ordinal == chunkCount)
+			return -1;
+		final Chunk chunk = chunks[ordinal];
+		int remaining = visibleIndex - prefix(visibleTree, ordinal);
+		int row = prefix(rowTree, ordinal);
+		for (int j = 0; j < chunk.count; j++) {
+			row += chunk.gaps[j];
+			if (chunk.visible[j] && remaining-- == 0)
+				return row;
+			row++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of visible commands before the given row, which is
+	 * the visible index a visible command added at that row would have.
+	 *
+	 * @param row
+	 * @return
+	 */
+	int visibleBefore(int row) {
+		final int ordinal = find(rowTree, row);
+		int index = prefix(visibleTree, ordinal);
+		if (ordinal == chunkCount)
+			return index;
+		final Chunk chunk = chunks[ordinal];
+		int r = prefix(rowTree, ordinal);
+		for (int j = 0; j < chunk.count; j++) {
+			r += chunk.gaps[j];
+			if (r >= row)
+				break;
+			if (chunk.visible[j])
+				index++;
+			r++;
+		}
+		return index;
+	}
+
+	/**
+	 * Follows the addition of the given command to the store at the given
+	 * row.
+	 *
+	 * @param row
+	 * @param cmd
+	 * @param isVisible
+	 */
+	void inserted(int row, DemoCommand cmd, boolean isVisible) {
+		if (!follow())
+			return;
+		if (chunkOf.containsKey(cmd)) {
+			valid = false;
+			return;
+		}
+		final int rows = prefix(rowTree, chunkCount);
+		if (row >= rows) {
+			final int gap = row - rows;
+			tail -= gap;
+			append(cmd, gap, isVisible);
+			return;
+		}
+		final int ordinal = find(rowTree, row);
+		final Chunk chunk = chunks[ordinal];
+		int offset = row - prefix(rowTree, ordinal);
+		int j = 0;
+		while (offset > chunk.gaps[j]) {
+			offset -= chunk.gaps[j] + 1;
+			j++;
+		}
+		addGap(chunk, j, -offset);
+		insert(chunk, j, cmd, offset, isVisible);
+	}
+
+	/**
+	 * Follows the creation of the given command for a row of the store that
+	 * had none.
+	 *
+	 * @param row
+	 * @param cmd
+	 * @param isVisible
+	 */
+	void materialized(int row, DemoCommand cmd, boolean isVisible) {
+		if (!isCurrent())
+			return;
+		final int rows = prefix(rowTree, chunkCount);
+		if (row >= rows) {
+			final int gap = row - rows;
+			tail -= gap + 1;
+			append(cmd, gap, isVisible);
+			return;
+		}
+		final int ordinal = find(rowTree, row);
+		final Chunk chunk = chunks[ordinal];
+		int offset = row - prefix(rowTree, ordinal);
+		int j = 0;
+		while (offset > chunk.gaps[j]) {
+			offset -= chunk.gaps[j] + 1;
+			j++;
+		}
+		if (offset == chunk.gaps[j]) {
+			// The row already has a command.
+			valid = false;
+			return;
+		}
+		addGap(chunk, j, -offset - 1);
+		insert(chunk, j, cmd, offset, isVisible);
+	}
+
+	/**
+	 * Follows the removal of the given command from the store.
+	 *
+	 * @param cmd
+	 */
+	void removed(DemoCommand cmd) {
+		if (!follow())
+			return;
+		final Chunk chunk = chunkOf.remove(cmd);
+		if (chunk == null) {
+			valid = false;
+			return;
+		}
+		int j = 0;
+		while (chunk.cmds[j] != cmd)
+			j++;
+		final int gap = chunk.gaps[j];
+		final boolean wasVisible = chunk.visible[j];
+		chunk.remove(j);
+		update(chunk.ordinal, -gap - 1, wasVisible ? -1 : 0);
+		if (j < chunk.count)
+			addGap(chunk, j, gap);
+		else if (chunk.ordinal + 1 < chunkCount)
+			addGap(chunks[chunk.ordinal + 1], 0, gap);
+		else
+			tail += gap;
+		if (chunk.count == 0) {
+			removeChunk(chunk.ordinal);
+			buildTrees();
+		}
+	}
+
+	/**
+	 * Marks the given command as visible or not.
+	 *
+	 * @param cmd
+	 * @param isVisible
+	 */
+	void setVisible(DemoCommand cmd, boolean isVisible) {
+		if (!isCurrent())
+			return;
+		final Chunk chunk = chunkOf.get(cmd);
+		if (chunk == null)
+			return;
+		int j = 0;
+		while (chunk.cmds[j] != cmd)
+			j++;
+		if (chunk.visible[j] == isVisible)
+			return;
+		chunk.visible[j] = isVisible;
+		chunk.visibleCount += isVisible ? 1 : -1;
+		update(chunk.ordinal, 0, isVisible ? 1 : -1);
+	}
+
+	/**
+	 * Takes up the one change the store has made since the index was last
+	 * current, or drops the index if there has been more than that.
+	 */
+	private boolean follow() {
+		if (!valid || store.getModCount() != modCount + 1) {
+			valid = false;
+			return false;
+		}
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Adds a command after the last one, taking gap rows from the tail.
+	 */
+	private void append(DemoCommand cmd, int gap, boolean isVisible) {
+		if (chunkCount == 0) {
+			addChunk(0, new Chunk());
+			buildTrees();
+		}
+		final Chunk chunk = chunks[chunkCount - 1];
+		insert(chunk, chunk.count, cmd, gap, isVisible);
+	}
+
+	/**
+	 * Adds to the rows before the command at j of the given chunk.
+	 */
+	private void addGap(Chunk chunk, int j, int delta) {
+		chunk.gaps[j] += delta;
+		chunk.rows += delta;
+		update(chunk.ordinal, delta, 0);
+	}
+
+	/**
+	 * Puts a command into the given chunk at j, splitting the chunk first if
+	 * it is full.
+	 */
+	private void insert(Chunk chunk, int j, DemoCommand cmd, int gap,
+			boolean isVisible) {
+		if (chunk.count == CHUNK_SIZE) {
+			final Chunk upper = chunk.split();
+			for (int k = 0; k < upper.count; k++)
+				chunkOf.put(upper.cmds[k], upper);
+			addChunk(chunk.ordinal + 1, upper);
+			buildTrees();
+			if (j > chunk.count) {
+				j -= chunk.count;
+				chunk = upper;
+			}
+		}
+		chunk.put(j, cmd, gap, isVisible);
+		chunkOf.put(cmd, chunk);
+		update(chunk.ordinal, gap + 1, isVisible ? 1 : 0);
+	}
+
+	private void addChunk(int ordinal, Chunk chunk) {
+		if (chunkCount == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunkCount * 2);
+			rowTree = new int[chunks.length + 1];
+			visibleTree = new int[chunks.length + 1];
+		}
+		System.arraycopy(chunks, ordinal, chunks, ordinal + 1, chunkCount
+				- ordinal);
+		chunks[ordinal] = chunk;
+		chunkCount++;
+		for (int i = ordinal; i < chunkCount; i++)
+			chunks[i].ordinal = i;
+	}
+
+	private void removeChunk(int ordinal) {
+		System.arraycopy(chunks, ordinal + 1, chunks, ordinal, chunkCount
+				- ordinal - 1);
+		chunks[--chunkCount] = null;
+		for (int i = ordinal; i < chunkCount; i++)
+			chunks[i].ordinal = i;
+	}
+
+	/**
+	 * Builds the Fenwick trees of the chunks' rows and visible commands.
+	 */
+	private void buildTrees() {
+		Arrays.fill(rowTree, 0);
+		Arrays.fill(visibleTree, 0);
+		for (int i = 1; i <= chunkCount; i++) {
+			rowTree[i] += chunks[i - 1].rows;
+			visibleTree[i] += chunks[i - 1].visibleCount;
+			final int parent = i + (i & -i);
+			if (parent <= chunkCount) {
+				rowTree[parent] += rowTree[i];
+				visibleTree[parent] += visibleTree[i];
+			}
+		}
+	}
+
+	/**
+	 * Adds to the rows and visible commands of the chunk with the given
+	 * ordinal in the trees. The chunk itself is updated by the caller.
+	 */
+	private void update(int ordinal, int rowDelta, int visibleDelta) {
+		for (int i = ordinal + 1; i <= chunkCount; i += i & -i) {
+			rowTree[i] += rowDelta;
+			visibleTree[i] += visibleDelta;
+		}
+	}
+
+	/**
+	 * Returns the sum of the first count chunks in the given tree.
+	 */
+	private static int prefix(int[] tree, int count) {
+		int sum = 0;
+		for (int i = count; i > 0; i -= i & -i)
+			sum += tree[i];
+		return sum;
+	}
+
+	/**
+	 * Returns the ordinal of the chunk that holds the given position in the
+	 * given tree, or chunkCount if it is past the last chunk.
+	 */
+	private int find(int[] tree, int position) {
+		int ordinal = 0;
+		for (int step = Integer.highestOneBit(Math.max(chunkCount, 1)); step > 0; step >>= 1) {
+			final int next = ordinal + step;
+			if (next <= chunkCount && tree[next] <= position) {
+				ordinal = next;
+				position -= tree[next];
+			}
+		}
+		return ordinal;
+	}
+
+	/**
+	 * A run of commands in order, each with the number of rows before it
+	 * that are not in the index.
+	 */
+	private static final class Chunk {
+		private final DemoCommand[] cmds = new DemoCommand[CHUNK_SIZE];
+		private final int[] gaps = new int[CHUNK_SIZE];
+		private final boolean[] visible = new boolean[CHUNK_SIZE];
+		private int count = 0;
+		private int rows = 0;
+		private int visibleCount = 0;
+		private int ordinal;
+
+		private void put(int j, DemoCommand cmd, int gap, boolean isVisible) {
+			System.arraycopy(cmds, j, cmds, j + 1, count - j);
+			System.arraycopy(gaps, j, gaps, j + 1, count - j);
+			System.arraycopy(visible, j, visible, j + 1, count - j);
+			cmds[j] = cmd;
+			gaps[j] = gap;
+			visible[j] = isVisible;
+			count++;
+			rows += gap + 1;
+			if (isVisible)
+				visibleCount++;
+		}
+
+		private void remove(int j) {
+			rows -= gaps[j] + 1;
+			if (visible[j])
+				visibleCount--;
+			System.arraycopy(cmds, j + 1, cmds, j, count - j - 1);
+			System.arraycopy(gaps, j + 1, gaps, j, count - j - 1);
+			System.arraycopy(visible, j + 1, visible, j, count - j - 1);
+			cmds[--count] = null;
+		}
+
+		/**
+		 * Moves the upper half of this chunk to a new chunk.
+		 */
+		private Chunk split() {
+			final Chunk upper = new Chunk();
+			final int half = count / 2;
+			for (int j = half; j < count; j++) {
+				upper.put(upper.count, cmds[j], gaps[j], visible[j]);
+				cmds[j] = null;
+			}
+			rows -= upper.rows;
+			visibleCount -= upper.visibleCount;
+			count = half;
+			return upper;
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package cohdemoeditor;
+
+import java.util.*;
+
+/**
+ * A DemoPostingIndex lists the rows of a DemoCommandStore that hold each
+ * reference and each command, so that the rows a filter on a few references
+ * or commands can show are found without looking at every row.
+ *
+ * The rows of each reference and of each command are kept in order in an
+ * array, its posting list. The rows of several references or commands are
+ * the union of their lists, merged in order; the rows of a reference that
+ * also hold a command are the intersection of the two lists. Only a filter
+ * that shows rows can narrow them down like this; one that hides rows may
+ * hide any of them, so the list has to look at every row for it.
+ *
+ * Adding or removing a row moves the rows after it in every list, which is
+ * done in place. A change to the reference or command of a row moves it from
+ * one list to another. As with a DemoPositionIndex, the index only follows
+ * the changes it is told about; if the store has changed in any other way, or
+ * the index is dropped, it is rebuilt in a single pass over the rows the next
+ * time it is needed.
+ *
+ * @author Darren Lee
+ */
+class DemoPostingIndex {
+
+	private static final int[] NO_ROWS = new int[0];
+
+	private final DemoCommandStore store;
+	private final HashMap<Integer, Postings> byReference = new HashMap<Integer, Postings>();
+	private Postings[] byCommand = new Postings[64];
+	private boolean valid = false;
+	private int modCount;
+
+	/**
+	 * Creates an index of the given store. It is built the first time it is
+	 * needed.
+	 *
+	 * @param store
+	 */
+	DemoPostingIndex(DemoCommandStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Determines if the index has followed every change to the store.
+	 */
+	boolean isCurrent() {
+		return valid && modCount == store.getModCount();
+	}
+
+	/**
+	 * Drops the index, so that it is rebuilt the next time it is needed.
+	 */
+	void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * Rebuilds the index from the store.
+	 */
+	void rebuild() {
+		byReference.clear();
+		Arrays.fill(byCommand, null);
+		final int size = store.size();
+		Postings postings = null;
+		int lastRef = 0;
+		for (int i = 0; i < size; i++) {
+			final int ref = store.getReference(i);
+			if (postings == null || ref != lastRef) {
+				postings = referencePostings(ref, true);
+				lastRef = ref;
+			}
+			postings.append(i);
+			commandPostings(store.getCommandId(i), true).append(i);
+		}
+		valid = true;
+		modCount = store.getModCount();
+	}
+
+	/**
+	 * Returns the rows holding any of the given references, in order.
+	 *
+	 * @param refs
+	 * @return
+	 */
+	int[] rowsWithReferences(Collection<Integer> refs) {
+		final List<Postings> lists = new ArrayList<Postings>(refs.size());
+		for (int ref : refs) {
+			final Postings postings = referencePostings(ref, false);
+			if (postings != null)
+				lists.add(postings);
+		}
+		return union(lists);
+	}
+
+	/**
+	 * Returns the rows holding any of the commands with the given ids, in
+	 * order.
+	 *
+	 * @param ids
+	 * @return
+	 */
+	int[] rowsWithCommands(BitSet ids) {
+		final List<Postings> lists = new ArrayList<Postings>();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			final Postings postings = commandPostings(id, false);
+			if (postings != null)
+				lists.add(postings);
+		}
+		return union(lists);
+	}
+
+	/**
+	 * Returns, in order, the only rows that can be visible through the given
+	 * filters, judging by their references and commands alone, or null if the
+	 * filters do not narrow the rows down by either. The rows still have to
+	 * be checked against the filters.
+	 *
+	 * @param filters
+	 * @return
+	 */
+	int[] rowsMatching(FilterList filters) {
+		int[] rows = null;
+		for (DemoCommandListFilter filter : filters) {
+			if (filter.doesFilterOut())
+				continue;
+			final List<Integer> refs = filter.getReferenceList();
+			if (refs.size() > 0)
+				rows = intersect(rows, rowsWithReferences(refs));
+			final List<String> cmds = filter.getCommandList();
+			if (cmds.size() > 0) {
+				final BitSet ids = new BitSet();
+				for (String cmd : cmds)
+					ids.set(DemoCommand.getCommandIdFor(cmd));
+				rows = intersect(rows, rowsWithCommands(ids));
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Follows the addition of the given command at the given row.
+	 *
+	 * @param row
+	 * @param cmd
+	 */
+	void inserted(int row, DemoCommand cmd) {
+		if (!follow())
+			return;
+		for (Postings postings : byReference.values())
+			postings.shift(row, 1);
+		for (Postings postings : byCommand) {
+			if (postings != null)
+				postings.shift(row, 1);
+		}
+		referencePostings(cmd.getReference(), true).add(row);
+		commandPostings(cmd.getCommandId(), true).add(row);
+	}
+
+	/**
+	 * Follows the removal of the given command from the given row.
+	 *
+	 * @param row
+	 * @param cmd
+	 */
+	void removed(int row, DemoCommand cmd) {
+		if (!follow())
+			return;
+		final Postings refPostings = referencePostings(cmd.getReference(),
+				false);
+		final Postings cmdPostings = commandPostings(cmd.getCommandId(), false);
+		if (refPostings == null || !refPostings.remove(row)
+				|| cmdPostings == null || !cmdPostings.remove(row)) {
+			valid = false;
+			return;
+		}
+		for (Postings postings : byReference.values())
+			postings.shift(row + 1, -1);
+		for (Postings postings : byCommand) {
+			if (postings != null)
+				postings.shift(row + 1, -1);
+		}
+	}
+
+	/**
+	 * Follows a change to the reference or command of the given row. A row
+	 * that is already listed under its new value has been indexed since the
+	 * change, and is left alone.
+	 *
+	 * @param row
+	 * @param column
+	 *            DemoCommandListFilter.REF_COL or CMD_COL
+	 * @param oldValue
+	 *            the old reference, or the old command
+	 */
+	void changed(int row, int column, Object oldValue) {
+		if (!isCurrent() || row < 0)
+			return;
+		final Postings from;
+		final Postings to;
+		if (column == DemoCommandListFilter.REF_COL) {
+			from = referencePostings((Integer) oldValue, false);
+			to = referencePostings(store.getReference(row), true);
+		} else if (column == DemoCommandListFilter.CMD_COL) {
+			from = commandPostings(DemoCommand
+					.getCommandIdFor((String) oldValue), false);
+			to = commandPostings(store.getCommandId(row), true);
+		} else {
+			return;
+		}
+		if (to.contains(row))
+			return;
+		if (from == null || !from.remove(row)) {
+			valid = false;
+			return;
+		}
+		to.add(row);
+	}
+
+	/**
+	 * Takes up the one change the store has made since the index was last
+	 * current, or drops the index if there has been more than that.
+	 */
+	private boolean follow() {
+		if (!valid || store.getModCount() != modCount + 1) {
+			valid = false;
+			return false;
+		}
+		modCount++;
+		return true;
+	}
+
+	private Postings referencePostings(int ref, boolean create) {
+		Postings postings = byReference.get(ref);
+		if (postings == null && create) {
+			postings = new Postings();
+			byReference.put(ref, postings);
+		}
+		return postings;
+	}
+
+	private Postings commandPostings(int id, boolean create) {
+		if (id >= byCommand.length) {
+			if (!create)
+				return null;
+			byCommand = Arrays.copyOf(byCommand, Math.max(id + 1,
+					2 * byCommand.length));
+		}
+		Postings postings = byCommand[id];
+		if (postings == null && create) {
+			postings = new Postings();
+			byCommand[id] = postings;
+		}
+		return postings;
+	}
+
+	/**
+	 * Merges the given lists, smallest first, so that the rows of a large
+	 * list are copied as few times as possible.
+	 */
+	private static int[] union(List<Postings> lists) {
+		if (lists.size() == 0)
+			return NO_ROWS;
+		if (lists.size() == 1)
+			return lists.get(0).toArray();
+		final int[][] arrays = new int[lists.size()][];
+		for (int k = 0; k < arrays.length; k++)
+			arrays[k] = lists.get(k).toArray();
+		Arrays.sort(arrays, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a.length - b.length;
+			}
+		});
+		int[] rows = arrays[0];
+		for (int k = 1; k < arrays.length; k++)
+			rows = merge(rows, arrays[k]);
+		return rows;
+	}
+
+	/**
+	 * Returns the rows in either of the given ordered arrays, in order.
+	 */
+	private static int[] merge(int[] a, int[] b) {
+		final int[] rows = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j])
+				rows[n++] = a[i++];
+			else if (a[i] > b[j])
+				rows[n++] = b[j++];
+			else {
+				rows[n++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length)
+			rows[n++] = a[i++];
+		while (j < b.length)
+			rows[n++] = b[j++];
+		return n == rows.length ? rows : Arrays.copyOf(rows, n);
+	}
+
+	/**
+	 * Returns the rows in both of the given ordered arrays, in order, or the
+	 * second if the first is null. Each row of the shorter array is looked up
+	 * in the longer by galloping from the last one found, so that a short
+	 * list costs little however long the other is.
+	 */
+	private static int[] intersect(int[] a, int[] b) {
+		if (a == null)
+			return b;
+		if (a.length > b.length) {
+			final int[] t = a;
+			a = b;
+			b = t;
+		}
+		final int[] rows = new int[a.length];
+		int n = 0;
+		int low = 0;
+		for (int i = 0; i < a.length && low < b.length; i++) {
+			final int row = a[i];
+			int step = 1;
+			int high = low;
+			while (high < b.length && b[high] < row) {
+				low = high + 1;
+				high += step;
+				step <<= 1;
+			}
+			high = Math.min(high, b.length);
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (b[middle] < row)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			if (low < b.length && b[low] == row)
+				rows[n++] = row;
+		}
+		return Arrays.copyOf(rows, n);
+	}
+
+	/**
+	 * Returns the position of the first of the given ordered rows that is at
+	 * least the given row.
+	 */
+	static int lowerBound(int[] rows, int row) {
+		int low = 0;
+		int high = rows.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (rows[middle] < row)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * The rows of one reference or command, in order.
+	 */
+	private static class Postings {
+		int[] rows = new int[4];
+		int size = 0;
+
+		void append(int row) {
+			if (size == rows.length)
+				rows = Arrays.copyOf(rows, 2 * size);
+			rows[size++] = row;
+		}
+
+		void add(int row) {
+			final int i = find(row);
+			if (size == rows.length)
+				rows = Arrays.copyOf(rows, 2 * size);
+			System.arraycopy(rows, i, rows, i + 1, size - i);
+			rows[i] = row;
+			size++;
+		}
+
+		boolean remove(int row) {
+			final int i = find(row);
+			if (i == size || rows[i] != row)
+				return false;
+			System.arraycopy(rows, i + 1, rows, i, size - i - 1);
+			size--;
+			return true;
+		}
+
+		boolean contains(int row) {
+			final int i = find(row);
+			return i < size && rows[i] == row;
+		}
+
+		/**
+		 * Adds delta to every row from the given row on.
+		 */
+		void shift(int from, int delta) {
+			if (size == 0 || rows[size - 1] < from)
+				return;
+			for (int i = find(from); i < size; i++)
+				rows[i] += delta;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(rows, size);
+		}
+
+		private int find(int row) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (rows[middle] < row)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+}
@@ -14,6 +14,16 @@ import java.util.*;
  * multiple locks are necessary, locks should be obtained in that order. Lock on
  * the listener list to r/w any of the listener properties.
  * 
+ * The rows of a DemoCommandStore that have not been created as DemoCommands
+ * are only counted, along with their names and players. They are created
+ * when the commands themselves are needed, such as when the names have to be
+ * refreshed, and the commands are then put in the order of their rows, which
+ * is the order they were created in only until a row is shown or edited.
+ * 
+ * A DemoReference does not listen to its commands itself. The DemoCommandList
+ * it belongs to passes on the changes that can affect it, as decided by
+ * isAffectedBy, to the DemoReference holding the changed command.
+ * 
  * @author Darren Lee
  */
 public class DemoReference implements DemoCommandListener,
@@ -22,6 +32,10 @@ public class DemoReference implements DemoCommandListener,
 	private List<DemoCommand> commands;
 	private List<String> names;
 	private Integer player = new Integer(0);
+	private DemoCommandStore store = null;
+	private int rows = 0;
+	private boolean ordered = true;
+	private boolean namesOrdered = true;
 
 	/**
 	 * Create a new DemoReference. The first command determines the reference
@@ -40,12 +54,99 @@ public class DemoReference implements DemoCommandListener,
 		addCommand(firstCommand);
 	}
 
+	/**
+	 * Creates an empty DemoReference for the rows of the given store with the
+	 * given reference number. The rows are added with addRow.
+	 * 
+	 * @param refNum
+	 * @param store
+	 */
+	DemoReference(int refNum, DemoCommandStore store) {
+		commands = new LinkedList<DemoCommand>();
+		names = new ArrayList<String>(1);
+		this.refNum = refNum;
+		this.store = store;
+	}
+
+	/**
+	 * Counts a row of the store that has not been created as a DemoCommand.
+	 * Its name and player are noted, but no events are fired, since the rows
+	 * are added as a demo is loaded.
+	 * 
+	 * @param store
+	 * @param index
+	 */
+	void addRow(DemoCommandStore store, int index) {
+		this.store = store;
+		rows++;
+		final int command = store.getCommandId(index);
+		if (command == NEW_ID) {
+			if (store.getArgumentCount(index) > 0)
+				names.add(store.getArgument(index, 0));
+		} else if (command == PLAYER_ID) {
+			player++;
+		}
+	}
+
+	/**
+	 * Called when a DemoCommand is created for one of the rows counted by
+	 * addRow, so that this reference listens to it like any other command.
+	 * 
+	 * @param cmd
+	 */
+	void adopt(DemoCommand cmd) {
+		if (rows == 0) {
+			insertCommand(cmd);
+			return;
+		}
+		rows--;
+		commands.add(cmd);
+		ordered = false;
+	}
+
+	/**
+	 * Creates the DemoCommands for all of this reference's rows that have not
+	 * been created yet, and puts the commands in the order of their rows.
+	 */
+	private void materializeRows() {
+		if (store == null || (rows == 0 && ordered))
+			return;
+		final Set<DemoCommand> held = Collections
+				.newSetFromMap(new IdentityHashMap<DemoCommand, Boolean>());
+		held.addAll(commands);
+		final List<DemoCommand> inOrder = new LinkedList<DemoCommand>();
+		final int size = store.size();
+		for (int i = 0; i < size; i++) {
+			DemoCommand cmd = store.getMaterialized(i);
+			if (cmd == null) {
+				if (rows == 0 || store.getReference(i) != refNum)
+					continue;
+				final int before = rows;
+				cmd = store.get(i);
+				if (rows == before)
+					adopt(cmd);
+				inOrder.add(cmd);
+			} else if (held.remove(cmd)) {
+				inOrder.add(cmd);
+			}
+		}
+		// Commands no longer in the store keep their place at the end.
+		for (DemoCommand cmd : commands) {
+			if (held.contains(cmd))
+				inOrder.add(cmd);
+		}
+		commands = inOrder;
+		rows = 0;
+		ordered = true;
+	}
+
 	/**
 	 * Returns the commands for this reference as a new DemoCommandList.
 	 * 
 	 * @return
 	 */
 	public DemoCommandList getCommands() {
+		materializeRows();
 		DemoCommandList dcl = new DemoCommandList();
 		for (DemoCommand dc : commands)
 			dcl.addCommand(dc);
@@ -74,6 +175,7 @@ public class DemoReference implements DemoCommandListener,
 	 * Creates a shallow copy of this DemoReference.
 	 */
 	public DemoReference clone() {
+		materializeRows();
 		DemoReference clone = new DemoReference(commands.get(0));
 		for (int i = 1; i < commands.size(); i++)
 			clone.addCommand(commands.get(i));
@@ -82,6 +184,9 @@ public class DemoReference implements DemoCommandListener,
 
 	public static final String NEW_CMD = "NEW";
 	public static final String PLAYER_CMD = "Player";
+	private static final int NEW_ID = DemoCommand.getCommandIdFor(NEW_CMD);
+	private static final int PLAYER_ID = DemoCommand
+			.getCommandIdFor(PLAYER_CMD);
 
 	/**
 	 * Adds a new DemoCommand to this DemoReference. The reference numbers must
@@ -106,12 +211,11 @@ public class DemoReference implements DemoCommandListener,
 					"Mismatched reference numbers: cannot add DemoCommand \""
 							+ cmd + "\" to DemoReference " + refNum);
 		commands.add(cmd);
-		cmd.addListener(this);
-		if (NEW_CMD.equals(cmd.getCommand()) && cmd.getArgumentCount() > 0) {
+		if (cmd.getCommandId() == NEW_ID && cmd.getArgumentCount() > 0) {
 			names.add(cmd.getArgument(0));
 			fireDemoReferenceListeners(true);
 		} else {
-			if (PLAYER_CMD.equals(cmd.getCommand())) {
+			if (cmd.getCommandId() == PLAYER_ID) {
 				player++;
 
 			}
@@ -119,15 +223,49 @@ public class DemoReference implements DemoCommandListener,
 		}
 	}
 
+	/**
+	 * Adds a command of the store that may not come after all of this
+	 * reference's others, as when it is inserted or its reference changes.
+	 * The commands and names are put back in order when next asked for.
+	 * 
+	 * @param cmd
+	 */
+	void insertCommand(DemoCommand cmd) {
+		if (store != null) {
+			ordered = false;
+			if (cmd.getCommandId() == NEW_ID)
+				namesOrdered = false;
+		}
+		addCommand(cmd);
+	}
+
+	/**
+	 * Called when one of this reference's commands has moved to another row,
+	 * so that the commands and names are put back in order when next asked
+	 * for.
+	 * 
+	 * @param cmd
+	 */
+	void commandMoved(DemoCommand cmd) {
+		if (store == null)
+			return;
+		ordered = false;
+		if (cmd.getCommandId() == NEW_ID && cmd.getArgumentCount() > 0) {
+			namesOrdered = false;
+			fireDemoReferenceListeners(true);
+		}
+	}
+
 	/**
 	 * Counts the number of player commands in this reference.
 	 * 
 	 * @return
 	 */
 	protected int countPlayerCommands() {
+		materializeRows();
 		int player = 0;
 		for (Iterator<DemoCommand> it = commands.iterator(); it.hasNext();) {
-			if (it.next().getCommand().equals(PLAYER_CMD))
+			if (it.next().getCommandId() == PLAYER_ID)
 				player++;
 		}
 		if (this.player != player) {
@@ -149,12 +287,11 @@ public class DemoReference implements DemoCommandListener,
 		removed = commands.remove(cmd);
 		if (!removed)
 			return;
-		cmd.removeListener(this);
-		if (removed && NEW_CMD.equals(cmd.getCommand())
+		if (removed && cmd.getCommandId() == NEW_ID
 				&& cmd.getArgumentCount() > 0) {
 			names.remove(cmd.getArgument(0));
 			fireDemoReferenceListeners(true);
-		} else if (PLAYER_CMD.equals(cmd.getCommand())) {
+		} else if (cmd.getCommandId() == PLAYER_ID) {
 			player--;
 			fireDemoReferenceListeners(true);
 		} else {
@@ -177,6 +314,8 @@ public class DemoReference implements DemoCommandListener,
 	 * @return
 	 */
 	public String[] getNames() {
+		if (!namesOrdered)
+			listNames();
 		String[] rtnArray = new String[names.size()];
 		return names.toArray(rtnArray);
 	}
@@ -187,7 +326,7 @@ public class DemoReference implements DemoCommandListener,
 	 * @return
 	 */
 	public int getCommandCount() {
-		return commands.size();
+		return commands.size() + rows;
 	}
 
 	// listener variables -- obtain a lock on listeners before r/w any of these
@@ -261,14 +400,56 @@ public class DemoReference implements DemoCommandListener,
 	 * Refreshes the names list.
 	 */
 	private void refreshNames() {
+		listNames();
+		fireDemoReferenceListeners(true);
+	}
+
+	/**
+	 * Lists the names again, in the order of the commands, without firing
+	 * an event. A NEW command added to a reference of a store may not be its
+	 * last, so its name is only put in place when the names are next asked
+	 * for.
+	 */
+	private void listNames() {
+		materializeRows();
 		names.clear();
 		for (DemoCommand cmd : commands) {
-			if (cmd.getReference() == refNum && cmd.getCommand().equals("NEW")
+			if (cmd.getReference() == refNum && cmd.getCommandId() == NEW_ID
 					&& cmd.getArgumentCount() > 0) {
 				names.add(cmd.getArgument(0));
 			}
 		}
-		fireDemoReferenceListeners(true);
+		namesOrdered = true;
+	}
+
+	/**
+	 * Determines if this reference holds the given command itself, not just
+	 * one equal to it.
+	 * 
+	 * @param cmd
+	 * @return
+	 */
+	boolean holds(DemoCommand cmd) {
+		for (DemoCommand dc : commands) {
+			if (dc == cmd)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determines if a change to the given column of the given command can
+	 * affect the reference holding it, as described in demoCommandChanged.
+	 * 
+	 * @param cmd
+	 * @param column
+	 * @return
+	 */
+	static boolean isAffectedBy(DemoCommand cmd, int column) {
+		return column == DemoCommandListFilter.REF_COL
+				|| column == DemoCommandListFilter.CMD_COL
+				|| (column == DemoCommandListFilter.ARG_COL && cmd
+						.getCommandId() == NEW_ID);
 	}
 
 	/**
@@ -288,8 +469,8 @@ public class DemoReference implements DemoCommandListener,
 				&& cmd.getReference() != refNum) {
 			removeCommand(cmd);
 		} else if (column == DemoCommandListFilter.CMD_COL
-				|| (column == DemoCommandListFilter.ARG_COL && cmd.getCommand()
-						.equals("NEW"))) {
+				|| (column == DemoCommandListFilter.ARG_COL && cmd
+						.getCommandId() == NEW_ID)) {
 			refreshNames();
 		} else if (column == DemoCommandListFilter.CMD_COL) {
 			refreshNames();
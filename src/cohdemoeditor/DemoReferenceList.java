@@ -97,6 +97,25 @@ public class DemoReferenceList extends AbstractTableModel implements
 			addDemoReference(ref);
 	}
 
+	/**
+	 * Adds a row of a DemoCommandStore without creating a DemoCommand for it.
+	 * If the row's reference is not found, a new DemoReference is created.
+	 *
+	 * @param store
+	 * @param index
+	 * @param list
+	 */
+	void addRow(DemoCommandStore store, int index, DemoCommandList list) {
+		final int refNum = store.getReference(index);
+		DemoReference reference = references.get(refNum);
+		if (reference == null) {
+			reference = new DemoReference(refNum, store);
+			list.addEventsEnabledListener(reference);
+			addDemoReference(reference);
+		}
+		reference.addRow(store, index);
+	}
+
 	/**
 	 * Adds a DemoCommand. This method finds the correct DemoReference and adds
 	 * the DemoCommand to that reference. If the reference is not found, a new
@@ -109,7 +128,13 @@ public class DemoReferenceList extends AbstractTableModel implements
 	public void addDemoCommand(DemoCommand dc, DemoCommandList list) {
 		DemoReference reference = references.get(dc.getReference());
 		if (reference == null) {
-			reference = new DemoReference(dc);
+			if (list != null && list.getStore() != null) {
+				reference = new DemoReference(dc.getReference(), list
+						.getStore());
+				reference.addCommand(dc);
+			} else {
+				reference = new DemoReference(dc);
+			}
 			if (list != null) {
 				list.addEventsEnabledListener(reference);
 			}
@@ -119,6 +144,33 @@ public class DemoReferenceList extends AbstractTableModel implements
 		}
 	}
 
+	/**
+	 * Like addDemoCommand, but for a command that may be anywhere among the
+	 * commands of its reference, rather than after all of them.
+	 * 
+	 * @param dc
+	 * @param list
+	 */
+	void insertDemoCommand(DemoCommand dc, DemoCommandList list) {
+		final DemoReference reference = references.get(dc.getReference());
+		if (reference == null)
+			addDemoCommand(dc, list);
+		else
+			reference.insertCommand(dc);
+	}
+
+	/**
+	 * Tells the reference holding the given command that it has moved to
+	 * another row.
+	 * 
+	 * @param dc
+	 */
+	void commandMoved(DemoCommand dc) {
+		final DemoReference reference = references.get(dc.getReference());
+		if (reference != null)
+			reference.commandMoved(dc);
+	}
+
 	/**
 	 * Removes a DemoReference
 	 * 
@@ -152,6 +204,24 @@ public class DemoReferenceList extends AbstractTableModel implements
 		}
 	}
 
+	/**
+	 * Returns the DemoReference holding the given command, in which the given
+	 * column has just changed, or null if there is none. A command whose
+	 * reference has changed is still held by the DemoReference for the old
+	 * one.
+	 * 
+	 * @param dc
+	 * @param column
+	 * @param oldValue
+	 * @return
+	 */
+	DemoReference getHolder(DemoCommand dc, int column, Object oldValue) {
+		final int refNum = column == DemoCommandListFilter.REF_COL ? (Integer) oldValue
+				: dc.getReference();
+		final DemoReference reference = references.get(refNum);
+		return reference != null && reference.holds(dc) ? reference : null;
+	}
+
 	/**
 	 * Returns the number of DemoReferences in this DemoReferenceList
 	 * 
@@ -0,0 +1,57 @@
+package cohdemoeditor;
+
+import java.io.File;
+
+/**
+ * A DemoSource is an uncompressed demo file that DemoCommands were read from.
+ * Each command read from it remembers where its line is, so that a
+ * ParallelDemoSaver can copy the lines of unchanged commands straight from
+ * the file instead of encoding them again.
+ *
+ * Like a DemoFileCache, a source records the size and modification time of
+ * its file, and its lines are only used while the file still matches them. A
+ * source that has not recorded them yet is never current.
+ *
+ * @author Darren Lee
+ */
+class DemoSource {
+
+	private final File file;
+	private volatile long length = -1;
+	private volatile long modified = -1;
+
+	/**
+	 * Creates a source for the given file. Call record once the file holds
+	 * the lines the commands will refer to.
+	 *
+	 * @param file
+	 */
+	DemoSource(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Records the current size and modification time of the file.
+	 */
+	void record() {
+		length = file.length();
+		modified = file.lastModified();
+	}
+
+	/**
+	 * Returns the file.
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Determines if the file has not changed since it was recorded.
+	 *
+	 * @return
+	 */
+	boolean isCurrent() {
+		return length >= 0 && file.length() == length
+				&& file.lastModified() == modified;
+	}
+}
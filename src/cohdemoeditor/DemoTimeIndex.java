@@ -0,0 +1,157 @@
+package cohdemoeditor;
+
+/**
+ * A DemoTimeIndex finds the rows of a DemoCommandStore that lie in a range of
+ * times by binary search, when the rows are in order of time, as a demo is
+ * once it has been resorted.
+ *
+ * Whether the rows are in order is found with one pass over the times, and
+ * kept until the store changes in a way the index has not been told about.
+ * A row added or a time changed only needs to be compared with the rows on
+ * either side of it. If the rows are not in order, the range is the whole
+ * store, and a query has to look at every row.
+ *
+ * @author Darren Lee
+ */
+class DemoTimeIndex {
+
+	private final DemoCommandStore store;
+	private boolean checked = false;
+	private boolean sorted;
+	private int modCount;
+
+	/**
+	 * Creates a time index of the given store.
+	 *
+	 * @param store
+	 */
+	DemoTimeIndex(DemoCommandStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Drops what is known of the order of the rows, so that it is checked
+	 * again the next time it is needed.
+	 */
+	void invalidate() {
+		checked = false;
+	}
+
+	/**
+	 * Determines if the rows of the store are in order of time.
+	 */
+	boolean isSorted() {
+		if (!checked || modCount != store.getModCount()) {
+			sorted = true;
+			final int size = store.size();
+			for (int i = 1; i < size && sorted; i++)
+				sorted = store.getTime(i - 1) <= store.getTime(i);
+			checked = true;
+			modCount = store.getModCount();
+		}
+		return sorted;
+	}
+
+	/**
+	 * Returns the first row whose time is at least the given time, or the
+	 * first row if the rows are not in order.
+	 *
+	 * @param time
+	 * @return
+	 */
+	int startOf(int time) {
+		if (!isSorted())
+			return 0;
+		int low = 0;
+		int high = store.size();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (store.getTime(middle) < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the row after the last row whose time is at most the given
+	 * time, or the size of the store if the rows are not in order.
+	 *
+	 * @param time
+	 * @return
+	 */
+	int endOf(int time) {
+		if (!isSorted())
+			return store.size();
+		int low = 0;
+		int high = store.size();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (store.getTime(middle) <= time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Follows the addition of a row at the given index.
+	 *
+	 * @param row
+	 */
+	void inserted(int row) {
+		if (!follow())
+			return;
+		if (sorted)
+			sorted = inOrder(row);
+		else
+			checked = false;
+	}
+
+	/**
+	 * Follows the removal of a row. Removing a row cannot put the others out
+	 * of order, but it can put them in order.
+	 */
+	void removed() {
+		if (follow() && !sorted)
+			checked = false;
+	}
+
+	/**
+	 * Follows a change to the time of the given row.
+	 *
+	 * @param row
+	 */
+	void timeChanged(int row) {
+		if (!checked || modCount != store.getModCount() || row < 0)
+			return;
+		if (sorted)
+			sorted = inOrder(row);
+		else
+			checked = false;
+	}
+
+	/**
+	 * Takes up the one change the store has made since the index was last
+	 * current, or drops the index if there has been more than that.
+	 */
+	private boolean follow() {
+		if (!checked || store.getModCount() != modCount + 1) {
+			checked = false;
+			return false;
+		}
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Determines if the given row is in order with the rows on either side.
+	 */
+	private boolean inOrder(int row) {
+		final int time = store.getTime(row);
+		return (row == 0 || store.getTime(row - 1) <= time)
+				&& (row == store.size() - 1 || time <= store.getTime(row + 1));
+	}
+}
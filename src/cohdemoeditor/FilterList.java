@@ -26,6 +26,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 	private final List<DemoCommandListFilter> filters = new ArrayList<DemoCommandListFilter>();;
 	private String name = null;
 	private static int filterListCount = 0;
+	private DemoFilterPredicate predicate = null;
 
 	/**
 	 * Returns an iterator over the filters. 
@@ -75,6 +76,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 		if (filter == null)
 			return;
 		filters.add(filter);
+		predicate = null;
 		fireTableRowsInserted(filters.size() - 1, filters.size() - 1);
 	}
 
@@ -87,6 +89,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 		if (filterList == null)
 			return;
 		this.filters.addAll(filterList.filters);
+		predicate = null;
 		fireTableRowsInserted(this.filters.size() - filterList.size() - 1,
 				this.filters.size() - 1);
 	}
@@ -102,6 +105,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 		}
 		this.filters.clear();
 		this.filters.addAll(filterList.filters);
+		predicate = null;
 		fireTableChanged(new TableModelEvent(this));
 	}
 	
@@ -125,6 +129,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 	 */
 	public void remove(int index) {
 		filters.remove(index);
+		predicate = null;
 		fireTableRowsDeleted(index, index);
 	}
 
@@ -133,6 +138,7 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 	 */
 	public void clear() {
 		filters.clear();
+		predicate = null;
 		fireTableChanged(new javax.swing.event.TableModelEvent(this));
 	}
 
@@ -157,11 +163,21 @@ public class FilterList extends AbstractTableModel implements Cloneable,
 	public boolean isVisible(DemoCommand cmd) {
 		if (filters.size() == 0)
 			return true;
-		for (DemoCommandListFilter filter : filters) {
-			if (!filter.isVisible(cmd))
-				return false;
-		}
-		return true;
+		return compile().isVisible(cmd);
+	}
+
+	/**
+	 * Returns the compiled form of this list, compiling it again if the list
+	 * or any of its filters has changed since it was last compiled. Callers
+	 * testing many commands should compile once and test through the
+	 * predicate.
+	 * 
+	 * @return
+	 */
+	DemoFilterPredicate compile() {
+		if (predicate == null || !predicate.isCurrent(filters))
+			predicate = new DemoFilterPredicate(filters);
+		return predicate;
 	}
 
 	/**
@@ -0,0 +1,506 @@
+package cohdemoeditor;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.undo.UndoableEdit;
+
+import cohdemoeditor.swing.DemoEditor;
+import cohdemoeditor.swing.ProgressMonitoringSwingWorker;
+
+/**
+ * A PagedDemoCommandList is a read-only DemoCommandList for demos too large
+ * to hold in memory. Its commands come from a DemoFileIndex, which reads them
+ * from the demo file a page at a time, so only the index and a few pages are
+ * ever in memory.
+ *
+ * The list can be displayed and filtered like any other. The visible commands
+ * are kept as an array of indices into the index rather than as a list of
+ * commands. References are not tracked, so the reference lists are always
+ * empty. The list is not editable, and any attempt to edit it throws an
+ * UnsupportedOperationException; use exportVisible to copy a filtered part of
+ * the demo into an ordinary, editable DemoCommandList.
+ *
+ * @author Darren Lee
+ */
+@SuppressWarnings("serial")
+public class PagedDemoCommandList extends DemoCommandList {
+
+	private final DemoFileIndex index;
+	private boolean allVisible = true;
+	private int[] visible = new int[0];
+	private int visibleCount = 0;
+	private int lastVisibleTime;
+	private ScanWorker scan = null;
+
+	/**
+	 * Creates a read-only list over the commands of the given, already built,
+	 * index.
+	 *
+	 * @param index
+	 */
+	public PagedDemoCommandList(DemoFileIndex index) {
+		super(index);
+		this.index = index;
+		lastVisibleTime = index.getLastTime();
+	}
+
+	/**
+	 * Static method to open part of a demo file as a new PagedDemoCommandList,
+	 * automatically adding it to the DemoEditor. The file is indexed
+	 * asynchronously on a SwingWorker thread. Only commands with absolute
+	 * times from startTime to endTime are included.
+	 *
+	 * @param file
+	 * @param startTime
+	 * @param endTime
+	 * @param editor
+	 */
+	public static void browseFile(final File file, final int startTime,
+			final int endTime, final DemoEditor editor) {
+		ProgressMonitoringSwingWorker<PagedDemoCommandList> worker = new ProgressMonitoringSwingWorker<PagedDemoCommandList>(
+				editor) {
+			@Override
+			protected PagedDemoCommandList doInBackground() throws Exception {
+				DemoFileIndex index = new DemoFileIndex(file, startTime,
+						endTime) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				index.build();
+				return new PagedDemoCommandList(index);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					editor.addDemo(get());
+				} catch (InterruptedException e) {
+					JOptionPane.showMessageDialog(editor, "Loading cancelled",
+							"Cancelled", JOptionPane.INFORMATION_MESSAGE);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof FileNotFoundException) {
+						JOptionPane.showMessageDialog(editor,
+								"Could not find the file " + file.getName(),
+								"Error", JOptionPane.ERROR_MESSAGE);
+					} else {
+						JOptionPane.showMessageDialog(editor,
+								"There was an I/O error reading the file.",
+								"Error", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * Returns the index this list reads its commands from.
+	 */
+	public DemoFileIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the file name, marked as read-only.
+	 */
+	@Override
+	public String getName() {
+		return index.getFile().getName() + " (read-only)";
+	}
+
+	/**
+	 * A PagedDemoCommandList cannot be edited.
+	 */
+	@Override
+	public boolean isEditable() {
+		return false;
+	}
+
+	/**
+	 * Rebuilds the visible indices by streaming the whole demo through the
+	 * current filters. The demo is streamed on a SwingWorker thread, and the
+	 * visible commands stay as they were until it is done; a scan still
+	 * running when the filters change again is cancelled. Without a display
+	 * to show the progress on, the demo is streamed on the calling thread.
+	 */
+	@Override
+	public void refilter() {
+		if (scan != null) {
+			scan.cancel(true);
+			scan = null;
+		}
+		final FilterList filters = getFilterList();
+		if (filters.size() == 0) {
+			allVisible = true;
+			visible = new int[0];
+			visibleCount = 0;
+			lastVisibleTime = index.getLastTime();
+			fireTableChanged(new TableModelEvent(this));
+			return;
+		}
+		final DemoFilterPredicate predicate = filters.compile();
+		if (GraphicsEnvironment.isHeadless()) {
+			showVisible(scan(predicate, null));
+			return;
+		}
+		scan = new ScanWorker(DemoEditor.getEditor(), predicate);
+		scan.setTitle("Filtering " + index.getFile().getName());
+		scan.execute();
+	}
+
+	/**
+	 * Streams the demo through the given predicate, reporting progress to
+	 * the given worker, if any. Returns null if the worker is cancelled.
+	 */
+	private Scan scan(DemoFilterPredicate predicate, ScanWorker worker) {
+		final int size = index.size();
+		int[] indices = new int[1024];
+		int count = 0;
+		int last = 0;
+		int i = 0;
+		for (DemoCommand cmd : index) {
+			if (predicate.isVisible(cmd)) {
+				if (count == indices.length) {
+					int[] bigger = new int[indices.length * 2];
+					System.arraycopy(indices, 0, bigger, 0, count);
+					indices = bigger;
+				}
+				indices[count++] = i;
+				if (cmd.getTime() > last)
+					last = cmd.getTime();
+			}
+			i++;
+			if (worker != null && (i & 0xffff) == 0) {
+				if (worker.isCancelled())
+					return null;
+				worker.progressChanged((int) (100L * i / size));
+			}
+		}
+		return new Scan(indices, count, last);
+	}
+
+	/**
+	 * Swaps in the visible commands found by a scan.
+	 */
+	private void showVisible(Scan found) {
+		allVisible = false;
+		visible = found.indices;
+		visibleCount = found.count;
+		lastVisibleTime = found.lastTime;
+		fireTableChanged(new TableModelEvent(this));
+	}
+
+	/**
+	 * Streams the demo through the filters in the background, and swaps in
+	 * the visible commands it finds unless the filters have changed since.
+	 */
+	private class ScanWorker extends ProgressMonitoringSwingWorker<Scan> {
+		private final DemoEditor editor;
+		private final DemoFilterPredicate predicate;
+
+		ScanWorker(DemoEditor editor, DemoFilterPredicate predicate) {
+			super(editor);
+			this.editor = editor;
+			this.predicate = predicate;
+		}
+
+		void progressChanged(int percent) {
+			setProgress(percent);
+		}
+
+		@Override
+		protected Scan doInBackground() throws Exception {
+			return scan(predicate, this);
+		}
+
+		@Override
+		protected void done() {
+			super.done();
+			if (scan != this)
+				return;
+			scan = null;
+			try {
+				showVisible(get());
+			} catch (CancellationException e) {
+				// the user gave up; the visible commands are left as they were
+			} catch (InterruptedException e) {
+				// likewise
+			} catch (ExecutionException e) {
+				JOptionPane.showMessageDialog(editor,
+						"There was an I/O error reading the file.", "Error",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+
+	/**
+	 * The visible commands found by streaming the demo through the filters.
+	 */
+	private static class Scan {
+		final int[] indices;
+		final int count;
+		final int lastTime;
+
+		Scan(int[] indices, int count, int lastTime) {
+			this.indices = indices;
+			this.count = count;
+			this.lastTime = lastTime;
+		}
+	}
+
+	/**
+	 * Returns the absolute index of the command at the given visible index.
+	 *
+	 * @param visibleIndex
+	 * @return
+	 */
+	@Override
+	public int getAbsoluteIndex(int visibleIndex) {
+		if (visibleIndex < 0 || visibleIndex >= getVisibleCommandCount())
+			throw new IndexOutOfBoundsException("index " + visibleIndex
+					+ " is out of bounds of the visible commands.  size = "
+					+ getVisibleCommandCount());
+		return allVisible ? visibleIndex : visible[visibleIndex];
+	}
+
+	/**
+	 * Returns the visible index of the given command. This reads through the
+	 * demo until the command is found.
+	 */
+	@Override
+	public int visibleIndexOf(DemoCommand cmd) {
+		final int absIndex = indexOf(cmd);
+		if (allVisible || absIndex < 0)
+			return absIndex;
+		final int found = Arrays.binarySearch(visible, 0,
+				visibleCount, absIndex);
+		return found < 0 ? -1 : found;
+	}
+
+	@Override
+	public int getVisibleCommandCount() {
+		return allVisible ? index.size() : visibleCount;
+	}
+
+	@Override
+	public DemoCommand getVisibleCommand(int visibleIndex) {
+		return index.get(getAbsoluteIndex(visibleIndex));
+	}
+
+	@Override
+	public int getFirstTime() {
+		return getVisibleCommand(0).getTime();
+	}
+
+	@Override
+	public int getLastTime() {
+		return index.getLastTime();
+	}
+
+	@Override
+	public int getLastVisibleTime() {
+		return lastVisibleTime;
+	}
+
+	@Override
+	public int getRowCount() {
+		return getVisibleCommandCount();
+	}
+
+	@Override
+	public boolean isCellEditable(int rowIndex, int columnIndex) {
+		return false;
+	}
+
+	@Override
+	public void setValueAt(Object obj, int rowIndex, int columnIndex) {
+	}
+
+	/**
+	 * TableModel method. Relative times of the first command are taken from
+	 * the command before the start of the index.
+	 */
+	@Override
+	public Object getValueAt(int row, int column) {
+		if (getVisibleCommandCount() == 0)
+			return null;
+		final int absIndex = getAbsoluteIndex(row);
+		final DemoCommand cmd = index.get(absIndex);
+		if (column == DemoCommandListFilter.TIME_COL) {
+			if (getShowsAbsoluteTimes())
+				return cmd.getTime();
+			if (absIndex == 0)
+				return cmd.getTime() - index.getBaseTime();
+			return cmd.getTime() - index.get(absIndex - 1).getTime();
+		}
+		if (column == DemoCommandListFilter.REF_COL)
+			return cmd.getReferenceString();
+		if (column == DemoCommandListFilter.CMD_COL)
+			return cmd.getCommand();
+		if (column == DemoCommandListFilter.ARG_COL)
+			return cmd.getArguments();
+		return null;
+	}
+
+	/**
+	 * Copies the visible commands into a new, editable DemoCommandList.
+	 */
+	@Override
+	public DemoCommandList exportVisible() {
+		DemoCommandList d = new DemoCommandList();
+		final int count = getVisibleCommandCount();
+		for (int i = 0; i < count; i++)
+			d.addCommand(getVisibleCommand(i).clone());
+		return d;
+	}
+
+	/**
+	 * Writes the demo to another file. Writing over the file this list reads
+	 * from is not allowed.
+	 */
+	@Override
+	public void saveFile(File file) throws FileNotFoundException, IOException {
+		if (isSourceFile(file))
+			throw new IOException("Cannot save a read-only demo over "
+					+ file.getName());
+		super.saveFile(file);
+	}
+
+	private boolean isSourceFile(File file) {
+		try {
+			return file.getCanonicalFile().equals(
+					index.getFile().getCanonicalFile());
+		} catch (IOException e) {
+			return file.getAbsoluteFile().equals(
+					index.getFile().getAbsoluteFile());
+		}
+	}
+
+	private UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException(getName()
+				+ " cannot be edited");
+	}
+
+	@Override
+	public UndoableEdit addCommand(DemoCommand dcmd) {
+		throw readOnly();
+	}
+
+	@Override
+	public void appendCommands(java.util.List<DemoCommand> cmds) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit addCommand(int visibleIndex, DemoCommand dcmd) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit addCommandAfter(int visibleIndex, DemoCommand dcmd) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit removeCommand(int visibleIndex) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit removeCommand(DemoCommand dcmd) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit removeCommands(DemoCommandList dlist) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit removeVisibleCommands() {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit moveDemoCommandUp(int visibleIndex) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit moveDemoCommandDown(int visibleIndex) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit resort() {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit changeRefId(int oldID, int newID) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit editVisibleTimes(int newTime) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit editVisibleRefs(int newRef) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit editVisibleCmds(String newCmd) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit editVisibleArgs(String newArgs) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit editVisibleArgs(int argIndex, String newArg) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit offSetTimes(int offset) {
+		throw readOnly();
+	}
+
+	@Override
+	public void offSetTimesPermanent(int offset) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit offSetPositions(double xoffset, double zoffset,
+			double yoffset) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit scaleTimes(int newFirstTime, int newLastTime) {
+		throw readOnly();
+	}
+
+	@Override
+	public UndoableEdit scaleTimes(double ratio) {
+		throw readOnly();
+	}
+}
@@ -0,0 +1,388 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A ParallelDemoLoader reads a demo file on several threads at once. The file
+ * is cut into chunks at line boundaries and each chunk is parsed by its own
+ * DemoFileReader on a thread pool.
+ *
+ * Demo files store relative times, so a chunk cannot know the absolute time
+ * of its first command until every chunk before it has been read. Each chunk
+ * therefore accumulates its times starting from zero and remembers the total.
+ * Once all the chunks are parsed, a prefix sum over the chunk totals gives the
+ * starting time of each chunk, which is added to all of its commands as the
+ * chunks are concatenated in order.
+ *
+ * Each chunk parses its lines straight into the columns of a
+ * DemoCommandStore, so no DemoCommands are created while loading.
+ *
+ * Small files are read as a single chunk, since splitting them would cost
+ * more than it saves.
+ *
+ * Block-compressed demos are split between blocks instead, and each chunk
+ * decompresses only its own blocks. Other compressed demos can only be read
+ * from start to finish, so they are read as a single chunk.
+ *
+ * @author Darren Lee
+ */
+public class ParallelDemoLoader {
+
+	private static final long MIN_CHUNK_SIZE = 1 << 22;
+	private static final int MIN_CHUNK_BLOCKS = 4;
+	private static final long PROGRESS_INTERVAL = 100;
+
+	private final File file;
+	private final int threadCount;
+	private final List<String> badLines = new ArrayList<String>();
+	private volatile Chunk[] chunks = new Chunk[0];
+	private long length = 0;
+
+	/**
+	 * Creates a loader for the given file that uses one thread per available
+	 * processor.
+	 *
+	 * @param file
+	 */
+	public ParallelDemoLoader(File file) {
+		this(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a loader for the given file that uses up to threadCount threads.
+	 *
+	 * @param file
+	 * @param threadCount
+	 */
+	public ParallelDemoLoader(File file, int threadCount) {
+		this.file = file;
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Reads the file into a new DemoCommandList with absolute times. Blocks
+	 * until every chunk has been read. Lines that could not be parsed are
+	 * available from getBadLines afterwards. If the calling thread is
+	 * interrupted, the remaining chunks are cancelled.
+	 *
+	 * @return the commands in the file
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public DemoCommandList load() throws FileNotFoundException, IOException,
+			InterruptedException {
+		badLines.clear();
+		if (DemoBlockIndex.isCompressed(file)) {
+			length = file.length();
+			DemoBlockIndex index = DemoBlockIndex.read(file);
+			if (index == null) {
+				chunks = new Chunk[] { new Chunk(file) };
+			} else {
+				final int count = Math.min(threadCount, Math.max(1, index
+						.size()
+						/ MIN_CHUNK_BLOCKS));
+				chunks = new Chunk[count];
+				for (int i = 0; i < count; i++) {
+					chunks[i] = new Chunk(index, index.size() * i / count,
+							index.size() * (i + 1) / count);
+				}
+			}
+			parseAll();
+			return concatenate(null);
+		}
+		final DemoSource source = new DemoSource(file);
+		source.record();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			long[] bounds = split(channel);
+			chunks = new Chunk[bounds.length - 1];
+			for (int i = 0; i < chunks.length; i++) {
+				chunks[i] = new Chunk(channel, bounds[i], bounds[i + 1], source);
+			}
+			parseAll();
+		} finally {
+			raf.close();
+		}
+		return concatenate(source);
+	}
+
+	/**
+	 * Returns the file this loader reads.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the lines that could not be read by the last call to load, in
+	 * the order they appear in the file.
+	 */
+	public List<String> getBadLines() {
+		return badLines;
+	}
+
+	/**
+	 * Returns the size of the file being loaded.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of bytes read so far, summed over all of the chunks.
+	 * Safe to call from any thread.
+	 */
+	public long getBytesRead() {
+		Chunk[] current = chunks;
+		long total = 0;
+		for (Chunk chunk : current) {
+			total += chunk.bytesRead;
+		}
+		return total;
+	}
+
+	/**
+	 * Called periodically on the thread that called load while the chunks are
+	 * being read, and whenever the percentage changes. Does nothing by
+	 * default.
+	 *
+	 * @param percent
+	 *            the percentage of the file read so far
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	/**
+	 * Runs every chunk on a thread pool and waits for them, reporting progress
+	 * in the meantime.
+	 */
+	private void parseAll() throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+				threadCount, chunks.length));
+		try {
+			List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>(
+					chunks.length);
+			for (Chunk chunk : chunks) {
+				futures.add(pool.submit(chunk));
+			}
+			int progress = -1;
+			for (Future<Chunk> future : futures) {
+				while (true) {
+					try {
+						future.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+						break;
+					} catch (TimeoutException e) {
+						progress = reportProgress(progress);
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof IOException)
+							throw (IOException) cause;
+						if (cause instanceof RuntimeException)
+							throw (RuntimeException) cause;
+						if (cause instanceof Error)
+							throw (Error) cause;
+						throw new IOException(cause.toString());
+					}
+				}
+			}
+			reportProgress(progress);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private int reportProgress(int progress) {
+		final int newProgress = (int) ((100 * getBytesRead()) / Math.max(1,
+				length));
+		if (newProgress != progress)
+			progressChanged(newProgress);
+		return newProgress;
+	}
+
+	/**
+	 * Chooses the chunk boundaries. Each boundary is moved forward to just
+	 * past the next line break, so that every chunk starts at the beginning
+	 * of a line.
+	 */
+	private long[] split(FileChannel channel) throws IOException {
+		int count = (int) Math.min(threadCount, Math.max(1, length
+				/ MIN_CHUNK_SIZE));
+		long[] bounds = new long[count + 1];
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		int n = 0;
+		bounds[n++] = 0;
+		for (int i = 1; i < count; i++) {
+			long bound = Math.max(bounds[n - 1], length * i / count);
+			bound = nextLine(channel, buffer, bound);
+			if (bound > bounds[n - 1] && bound < length)
+				bounds[n++] = bound;
+		}
+		bounds[n++] = length;
+		if (n == bounds.length)
+			return bounds;
+		long[] trimmed = new long[n];
+		System.arraycopy(bounds, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	/**
+	 * Returns the offset just past the first line break at or after the given
+	 * offset. A carriage return followed by a line feed counts as a single
+	 * break; if the two end up in different chunks, the lone line feed is
+	 * only a blank line, which the reader skips anyway.
+	 */
+	private long nextLine(FileChannel channel, ByteBuffer buffer, long offset)
+			throws IOException {
+		while (offset < length) {
+			buffer.clear();
+			int read = channel.read(buffer, offset);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				byte b = buffer.get(i);
+				if (b == '\n')
+					return offset + i + 1;
+				if (b == '\r') {
+					if (i + 1 < read && buffer.get(i + 1) == '\n')
+						return offset + i + 2;
+					return offset + i + 1;
+				}
+			}
+			offset += read;
+		}
+		return length;
+	}
+
+	/**
+	 * Concatenates the parsed chunks in order, adding to each chunk's times
+	 * the sum of the times of all of the chunks before it. A single chunk's
+	 * store is used as it is.
+	 */
+	private DemoCommandList concatenate(DemoSource source) {
+		DemoCommandStore store;
+		if (chunks.length == 1) {
+			store = chunks[0].store;
+			badLines.addAll(chunks[0].badLines);
+		} else {
+			store = new DemoCommandStore(source);
+			int offset = 0;
+			for (Chunk chunk : chunks) {
+				store.appendAll(chunk.store, offset);
+				chunk.store = null;
+				offset += chunk.timeSum;
+				badLines.addAll(chunk.badLines);
+			}
+		}
+		chunks = new Chunk[0];
+		return new DemoCommandList(store);
+	}
+
+	/**
+	 * One piece of the file. Parsing a chunk leaves its rows with times
+	 * relative to the start of the chunk. The rows of an uncompressed file
+	 * remember their lines in it.
+	 */
+	private static class Chunk implements Callable<Chunk> {
+		private final FileChannel channel;
+		private final DemoSource source;
+		private final DemoBlockIndex index;
+		private final File file;
+		private final long start;
+		private final long end;
+		private final long length;
+		private DemoCommandStore store;
+		private final List<String> badLines = new ArrayList<String>();
+		private int timeSum = 0;
+		private volatile long bytesRead = 0;
+
+		/**
+		 * A chunk of the bytes from start to end of an uncompressed file.
+		 */
+		private Chunk(FileChannel channel, long start, long end,
+				DemoSource source) {
+			this.channel = channel;
+			this.source = source;
+			this.store = new DemoCommandStore(source);
+			this.index = null;
+			this.file = null;
+			this.start = start;
+			this.end = end;
+			this.length = end - start;
+		}
+
+		/**
+		 * A chunk of the blocks from first to last of a block-compressed
+		 * file.
+		 */
+		private Chunk(DemoBlockIndex index, int first, int last) {
+			this.channel = null;
+			this.source = null;
+			this.store = new DemoCommandStore();
+			this.index = index;
+			this.file = null;
+			this.start = first;
+			this.end = last;
+			this.length = index.getOffset(last) - index.getOffset(first);
+		}
+
+		/**
+		 * All of a compressed file without a block index.
+		 */
+		private Chunk(File file) {
+			this.channel = null;
+			this.source = null;
+			this.store = new DemoCommandStore();
+			this.index = null;
+			this.file = file;
+			this.start = 0;
+			this.end = 0;
+			this.length = file.length();
+		}
+
+		private DemoFileReader openReader() throws IOException {
+			if (index != null)
+				return index.openReader((int) start, (int) end);
+			if (file != null)
+				return new DemoFileReader(file);
+			return new DemoFileReader(channel, start, end);
+		}
+
+		public Chunk call() throws IOException {
+			DemoFileReader reader = openReader();
+			try {
+				int time = 0;
+				while (reader.next()) {
+					if (Thread.interrupted())
+						throw new InterruptedIOException();
+					if (reader.isDemoCommand()) {
+						final int relative = reader.getTime();
+						time += relative;
+						final int row = store.appendRow(time, reader
+								.getReference(), reader.getCommandId(), reader
+								.getArgumentText());
+						if (source != null && reader.isLineTerminated())
+							store.setRowSource(row, reader.getLineOffset(),
+									(int) (reader.getPosition() - reader
+											.getLineOffset()), relative);
+					} else {
+						badLines.add(reader.getLine());
+					}
+					bytesRead = reader.getBytesRead();
+				}
+				timeSum = time;
+				bytesRead = length;
+			} finally {
+				reader.close();
+			}
+			return this;
+		}
+	}
+}
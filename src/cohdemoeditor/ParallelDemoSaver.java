@@ -0,0 +1,415 @@
+package cohdemoeditor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A ParallelDemoSaver writes a demo file using several threads at once. The
+ * commands are cut into ranges of RANGE_SIZE commands, and each range is
+ * encoded into memory by its own DemoFileWriter on a thread pool. The calling
+ * thread writes the encoded ranges to the file in order while the pool encodes
+ * the ranges after them.
+ *
+ * The relative time of a command depends only on the absolute time of the
+ * command before it, so each range can start its times from the last command
+ * of the previous range without waiting for it to be encoded. The file is
+ * byte-for-byte what a single DemoFileWriter would write, apart from the
+ * copied lines described below.
+ *
+ * Only a few ranges per thread are encoded ahead of the one being written, so
+ * saving a large demo needs only a few megabytes beyond the demo itself. A
+ * demo saved with a name ending in .gz has each range compressed into its own
+ * blocks on the pool as well.
+ *
+ * Commands read from an uncompressed demo remember their lines in it until
+ * they change. When an uncompressed demo is saved, each run of such lines
+ * whose relative times are still right is copied straight from the file it
+ * was read from with FileChannel.transferTo, and only the other commands are
+ * encoded. Copied lines keep exactly the text they were read with, including
+ * lines such as Base that do not survive being encoded again, so a lightly
+ * edited demo is mostly copied rather than written. Saving over a file that
+ * lines are copied from writes a temporary file that then replaces it.
+ * Afterwards every command remembers its line in the new file.
+ *
+ * If the platform's charset is not ASCII-compatible, its encoder may carry
+ * state from one line to the next, so the commands are encoded as a single
+ * range and no lines are copied.
+ *
+ * The rows of a DemoCommandStore are read through scratch commands, so
+ * saving a loaded demo does not create a DemoCommand for every row.
+ *
+ * @author Darren Lee
+ */
+public class ParallelDemoSaver {
+
+	/**
+	 * The number of commands encoded together.
+	 */
+	public static final int RANGE_SIZE = 1 << 15;
+	private static final int RANGES_PER_THREAD = 2;
+
+	private final List<DemoCommand> commands;
+	private final DemoCommandStore store;
+	private final int threadCount;
+	private final Set<DemoSource> sources = Collections
+			.newSetFromMap(new IdentityHashMap<DemoSource, Boolean>());
+	private final BitSet copied = new BitSet();
+	private DemoCommandStore.SourceMove move = null;
+
+	/**
+	 * Creates a saver for the given commands that uses one thread per
+	 * available processor. The commands must not change while they are being
+	 * saved.
+	 *
+	 * @param commands
+	 */
+	public ParallelDemoSaver(List<DemoCommand> commands) {
+		this(commands, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a saver for the given commands that uses up to threadCount
+	 * threads.
+	 *
+	 * @param commands
+	 * @param threadCount
+	 */
+	public ParallelDemoSaver(List<DemoCommand> commands, int threadCount) {
+		this.commands = commands;
+		this.store = commands instanceof DemoCommandStore ? (DemoCommandStore) commands
+				: null;
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	/**
+	 * Writes the commands to the given file, replacing its contents. The file
+	 * is compressed if its name ends in .gz. If the calling thread is
+	 * interrupted, the ranges not yet encoded are cancelled and an
+	 * InterruptedIOException is thrown.
+	 *
+	 * @param file
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void save(File file) throws FileNotFoundException, IOException {
+		final boolean compressed = DemoBlockIndex.isCompressedName(file);
+		final boolean ascii = DemoFileWriter.isAsciiCompatible(Charset
+				.defaultCharset());
+		final int size = commands.size();
+		final int rangeSize = ascii ? RANGE_SIZE : Math.max(1, size);
+		final int rangeCount = (size + rangeSize - 1) / rangeSize;
+		final boolean copying = ascii && !compressed;
+		sources.clear();
+		copied.clear();
+		if (copying)
+			findSources();
+		final File target = copiesFrom(file) ? File.createTempFile(file
+				.getName(), ".tmp", file.getAbsoluteFile().getParentFile())
+				: file;
+		final DemoSource saved = copying ? new DemoSource(file) : null;
+		move = saved != null && store != null ? store.moveSources(saved)
+				: null;
+		final Map<DemoSource, FileChannel> inputs = new IdentityHashMap<DemoSource, FileChannel>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math
+				.min(threadCount, rangeCount)));
+		Queue<Future<Range>> pending = new ArrayDeque<Future<Range>>();
+		FileChannel channel = new FileOutputStream(target).getChannel();
+		boolean finished = false;
+		try {
+			int submitted = 0;
+			int written = 0;
+			int progress = 0;
+			long position = 0;
+			while (written < rangeCount) {
+				while (submitted < rangeCount
+						&& pending.size() < threadCount * RANGES_PER_THREAD) {
+					final int from = submitted * rangeSize;
+					pending.add(pool.submit(new Range(from, Math.min(size, from
+							+ rangeSize), compressed)));
+					submitted++;
+				}
+				final Range range = take(pending.remove());
+				range.writeTo(channel, inputs);
+				if (saved != null)
+					position = range.moveTo(saved, position);
+				written++;
+				final int newProgress = (int) ((100L * written) / rangeCount);
+				if (newProgress != progress) {
+					progress = newProgress;
+					progressChanged(progress);
+				}
+			}
+			finished = true;
+		} finally {
+			pool.shutdownNow();
+			channel.close();
+			for (FileChannel input : inputs.values())
+				input.close();
+			if (!finished && target != file)
+				target.delete();
+		}
+		if (target != file) {
+			if (!target.renameTo(file)) {
+				file.delete();
+				if (!target.renameTo(file))
+					throw new IOException("Could not replace " + file.getName()
+							+ "; the demo was saved as " + target.getName());
+			}
+		}
+		if (saved != null) {
+			saved.record();
+			if (move != null)
+				move.finish();
+		}
+	}
+
+	/**
+	 * Determines if the command at the given index was copied from the file
+	 * it was read from by the last call to save, rather than encoded.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public boolean isCopied(int index) {
+		return copied.get(index);
+	}
+
+	/**
+	 * Called on the thread that called save whenever the percentage of the
+	 * commands written changes. Does nothing by default.
+	 *
+	 * @param percent
+	 */
+	protected void progressChanged(int percent) {
+	}
+
+	/**
+	 * Collects the sources that lines can be copied from: those that have
+	 * not changed since the commands were read from them.
+	 */
+	private void findSources() {
+		final Set<DemoSource> checked = Collections
+				.newSetFromMap(new IdentityHashMap<DemoSource, Boolean>());
+		final int size = commands.size();
+		for (int i = 0; i < size; i++) {
+			final DemoSource source = store != null ? store.getSource(i)
+					: commands.get(i).getSource();
+			if (source != null && checked.add(source) && source.isCurrent())
+				sources.add(source);
+		}
+	}
+
+	/**
+	 * Determines if lines are to be copied from the given file.
+	 */
+	private boolean copiesFrom(File file) throws IOException {
+		final File canonical = file.getCanonicalFile();
+		for (DemoSource source : sources) {
+			if (source.getFile().getCanonicalFile().equals(canonical))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the time of the command at the given index.
+	 */
+	private int timeAt(int index) {
+		if (store != null)
+			return store.getTime(index);
+		return commands.get(index).getTime();
+	}
+
+	/**
+	 * Returns the command at the given index with at least its time and
+	 * line, loading a row of the store into the scratch command.
+	 */
+	private DemoCommand header(int index, DemoCommand scratch) {
+		if (store != null)
+			return store.peekHeader(index, scratch);
+		return commands.get(index);
+	}
+
+	/**
+	 * Returns the whole command at the given index, loading a row of the
+	 * store into the scratch command.
+	 */
+	private DemoCommand command(int index, DemoCommand scratch) {
+		if (store != null)
+			return store.peek(index, scratch);
+		return commands.get(index);
+	}
+
+	/**
+	 * Waits for a range to be encoded.
+	 */
+	private static Range take(Future<Range> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause.toString());
+		}
+	}
+
+	/**
+	 * The commands from start to end, as they will appear in the file: a
+	 * series of pieces, each either bytes encoded into memory or a run of
+	 * lines to be copied from a source.
+	 */
+	private class Range implements Callable<Range> {
+		private final int start;
+		private final int end;
+		private final boolean compressed;
+		private final int[] lengths;
+		private final List<Piece> pieces = new ArrayList<Piece>();
+		private byte[] bytes;
+
+		private Range(int start, int end, boolean compressed) {
+			this.start = start;
+			this.end = end;
+			this.compressed = compressed;
+			this.lengths = compressed ? null : new int[end - start];
+		}
+
+		public Range call() throws IOException {
+			int time = (start == 0) ? 0 : timeAt(start - 1);
+			final DemoCommand scratch = new DemoCommand(0, 0, "", "");
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(end - start) * 48);
+			DemoFileWriter writer = new DemoFileWriter(
+					compressed ? new DemoBlockOutput(Channels.newChannel(out),
+							time) : Channels.newChannel(out), time);
+			long encoded = 0;
+			Piece copy = null;
+			try {
+				for (int i = start; i < end; i++) {
+					DemoCommand cmd = header(i, scratch);
+					final DemoSource source = cmd.getSource();
+					if (source != null && sources.contains(source)
+							&& cmd.getTime() - time == cmd.getSourceTime()) {
+						final long written = writer.getBytesWritten();
+						if (written > encoded)
+							pieces.add(new Piece(null, encoded, written
+									- encoded));
+						encoded = written;
+						if (copy == null
+								|| copy.source != source
+								|| copy.offset + copy.length != cmd
+										.getSourceOffset()) {
+							copy = new Piece(source, cmd.getSourceOffset(), 0);
+							pieces.add(copy);
+						}
+						copy.length += cmd.getSourceLength();
+						lengths[i - start] = -cmd.getSourceLength();
+						writer.skip(cmd);
+					} else {
+						copy = null;
+						cmd = command(i, scratch);
+						final long before = writer.getBytesWritten();
+						writer.write(cmd);
+						if (lengths != null)
+							lengths[i - start] = (int) (writer.getBytesWritten() - before);
+					}
+					time = cmd.getTime();
+				}
+			} finally {
+				writer.close();
+			}
+			bytes = out.toByteArray();
+			if (bytes.length > encoded)
+				pieces.add(new Piece(null, encoded, bytes.length - encoded));
+			return this;
+		}
+
+		/**
+		 * Writes the pieces in order, copying lines from the sources through
+		 * the given channels, which are opened as they are needed.
+		 */
+		private void writeTo(FileChannel channel,
+				Map<DemoSource, FileChannel> inputs) throws IOException {
+			for (Piece piece : pieces) {
+				if (piece.source == null) {
+					final ByteBuffer buffer = ByteBuffer.wrap(bytes,
+							(int) piece.offset, (int) piece.length);
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					continue;
+				}
+				FileChannel input = inputs.get(piece.source);
+				if (input == null) {
+					input = new FileInputStream(piece.source.getFile())
+							.getChannel();
+					inputs.put(piece.source, input);
+				}
+				long offset = piece.offset;
+				long remaining = piece.length;
+				while (remaining > 0) {
+					final long n = input.transferTo(offset, remaining, channel);
+					if (n <= 0)
+						throw new IOException(piece.source.getFile().getName()
+								+ " changed while it was being saved.");
+					offset += n;
+					remaining -= n;
+				}
+			}
+		}
+
+		/**
+		 * Makes the commands remember their lines in the given source, where
+		 * this range starts at the given position. Notes which commands were
+		 * copied.
+		 *
+		 * @return the position just past this range
+		 */
+		private long moveTo(DemoSource saved, long position) {
+			int time = (start == 0) ? 0 : timeAt(start - 1);
+			for (int i = start; i < end; i++) {
+				final int cmdTime = timeAt(i);
+				int length = lengths[i - start];
+				if (length < 0) {
+					length = -length;
+					copied.set(i);
+				}
+				final DemoCommand cmd = store != null ? store
+						.getMaterialized(i) : commands.get(i);
+				if (cmd != null)
+					cmd.setSource(saved, position, length, cmdTime - time);
+				else
+					move.setRowSource(i, position, length, cmdTime - time);
+				position += length;
+				time = cmdTime;
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * The bytes from offset to offset + length, of the encoded bytes of a
+	 * range if source is null and of the source otherwise.
+	 */
+	private static class Piece {
+		private final DemoSource source;
+		private final long offset;
+		private long length;
+
+		private Piece(DemoSource source, long offset, long length) {
+			this.source = source;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
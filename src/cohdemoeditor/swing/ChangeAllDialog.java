@@ -85,7 +85,7 @@ public class ChangeAllDialog extends JCenteringDialog implements
 	 * @return true if successful, false otherwise
 	 */
 	protected boolean doChangeAll() {
-		if (target == null)
+		if (target == null || !target.isEditable())
 			return true;
 		javax.swing.undo.CompoundEdit edit = new javax.swing.undo.CompoundEdit();
 		try {
@@ -35,6 +35,7 @@ public class CommandInfoPanel extends javax.swing.JPanel implements
 	public CommandInfoPanel(DemoCommandListTable cmdPanel) {
 		this.cmdPanel = cmdPanel;
 		cmdPanel.getDemoCommandList().addShowsAbsoluteTimesListener(this);
+		cmdPanel.getDemoCommandList().addDemoCommandListener(this);
 		if (cmdPanel != null)
 			cmdPanel.getSelectionModel().addListSelectionListener(this);
 		setPreferredSize(new Dimension(400, 200));
@@ -65,21 +66,13 @@ public class CommandInfoPanel extends javax.swing.JPanel implements
 				|| index >= cmdPanel.getDemoCommandList()
 						.getVisibleCommandCount())
 			return;
-		DemoCommand newTarget = cmdPanel.getDemoCommandList()
-				.getVisibleCommand(index);
-		if (target != null) {
-			target.removeListener(this);
-		}
-		target = newTarget;
-		if (newTarget != null) {
-			newTarget.addListener(this);
-		}
+		target = cmdPanel.getDemoCommandList().getVisibleCommand(index);
 		restoreFields();
 	}
 
 	/**
-	 * Listener method. The panel listens to the DemoCommand being displayed. On
-	 * updates, it updates its own display.
+	 * Listener method. The panel listens to the commands of the demo. When the
+	 * DemoCommand being displayed is updated, it updates its own display.
 	 */
 	@Override
 	public void demoCommandChanged(final DemoCommand source, final int column, final Object oldValue) {
@@ -87,6 +80,8 @@ public class CommandInfoPanel extends javax.swing.JPanel implements
 			resetFields();
 			return;
 		}
+		if (source != target)
+			return;
 		restoreField(column);
 	}
 
@@ -102,12 +102,32 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 
 		setPreferredSize(new Dimension(810, 400));
 		initComponents();
+		if (!cmdList.isEditable())
+			disableEditing();
 		changeAllDialog = new ChangeAllDialog(cmdList);
 		timeShiftDialog = new TimeShiftDialog(cmdList);
 		timeScaleDialog = new TimeScaleDialog(cmdList);
 		posShiftDialog = new PositionOffsetDialog(cmdList);
 	}
 
+	/**
+	 * Disables the buttons that would change the demo, leaving only export,
+	 * for a DemoCommandList that cannot be edited.
+	 */
+	private void disableEditing() {
+		insertButton.setEnabled(false);
+		deleteButton.setEnabled(false);
+		deleteAllButton.setEnabled(false);
+		changeIDButton.setEnabled(false);
+		timeShiftButton.setEnabled(false);
+		timeScaleButton.setEnabled(false);
+		posShiftButton.setEnabled(false);
+		upButton.setEnabled(false);
+		downButton.setEnabled(false);
+		importButton.setEnabled(false);
+		resortButton.setEnabled(false);
+	}
+
 	/**
 	 * Each DemoCommandListEditor owns a menu item associated with an action
 	 * that will select this DemoCommandListEditor. These are used by a
@@ -423,6 +443,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_posShiftButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		posShiftDialog.setVisible(true);
 	}// GEN-LAST:event_posShiftButtonActionPerformed
 
@@ -431,6 +453,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_timeScaleButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		timeScaleDialog.setVisible(true);
 	}// GEN-LAST:event_timeScaleButtonActionPerformed
 
@@ -439,6 +463,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_deleteAllButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		UndoableEdit edit = cmdList.removeVisibleCommands();
 		fireUndoableEditListeners(edit);
 	}// GEN-LAST:event_deleteAllButtonActionPerformed
@@ -448,6 +474,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_timeShiftButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		timeShiftDialog.setVisible(true);
 	}// GEN-LAST:event_timeShiftButtonActionPerformed
 
@@ -456,6 +484,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_changeIDButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		changeAllDialog.setVisible(true);
 	}// GEN-LAST:event_changeIDButtonActionPerformed
 
@@ -464,6 +494,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_resortButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		UndoableEdit edit = cmdList.resort();
 		fireUndoableEditListeners(edit);
 	}// GEN-LAST:event_resortButtonActionPerformed
@@ -475,6 +507,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_importButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		if (dclc == null) {
 			dclc = new DemoCommandListChooser(DemoEditor.getEditor());
 			dclc.addPropertyChangeListener(new PropertyChangeListener() {
@@ -515,6 +549,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_deleteButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		ListSelectionModel lsm = cmdListPanel.getSelectionModel();
 		int minIndex = lsm.getMinSelectionIndex();
 		int maxIndex = lsm.getMaxSelectionIndex();
@@ -541,6 +577,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_insertButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		DemoCommand newCmd = new DemoCommand(0, 0, "NUL", "\"new command\"");
 		int index = cmdListPanel.getSelectionModel().getMinSelectionIndex();
 		UndoableEdit edit = cmdList.addCommand(index, newCmd);
@@ -554,6 +592,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_downButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		int selectedRow = cmdListPanel.getSelectedRow();
 		if (selectedRow >= 0
 				&& selectedRow < cmdList.getVisibleCommandCount() - 1) {
@@ -568,6 +608,8 @@ public class DemoCommandListEditor extends javax.swing.JInternalFrame implements
 		// FIRST
 		// :
 		// event_upButtonActionPerformed
+		if (!cmdList.isEditable())
+			return;
 		int selectedRow = cmdListPanel.getSelectedRow();
 		if (selectedRow > 0 && selectedRow < cmdList.getVisibleCommandCount()) {
 			UndoableEdit edit = cmdList.moveDemoCommandUp(selectedRow);
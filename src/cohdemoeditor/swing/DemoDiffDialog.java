@@ -0,0 +1,368 @@
+package cohdemoeditor.swing;
+
+import java.awt.BorderLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+
+import cohdemoeditor.DemoCommand;
+import cohdemoeditor.DemoDiff;
+import cohdemoeditor.DemoPatch;
+
+/**
+ * A DemoDiffDialog compares two demo files with a DemoDiff and lists the
+ * differences in a table. The demos are streamed rather than loaded, so only
+ * the first MAX_ROWS differences are kept for display; saving a patch runs
+ * the comparison again and writes every difference. Patches can also be
+ * applied from here.
+ *
+ * @author Darren Lee
+ */
+@SuppressWarnings("serial")
+public class DemoDiffDialog extends JCenteringDialog {
+
+	public static final int MAX_ROWS = 100000;
+	private static final String[] COLUMN_NAMES = { "Change", "Time", "Ref",
+			"Command", "Old Arguments", "New Arguments" };
+
+	private final DemoEditor editor;
+	private final JTextField oldField = new JTextField(30);
+	private final JTextField newField = new JTextField(30);
+	private final JLabel statusLabel = new JLabel(" ");
+	private final DiffTableModel model = new DiffTableModel();
+
+	/**
+	 * Creates a new DemoDiffDialog for the given editor.
+	 *
+	 * @param editor
+	 */
+	public DemoDiffDialog(DemoEditor editor) {
+		super(editor, "Compare Demos", false);
+		this.editor = editor;
+		setLayout(new BorderLayout());
+
+		JPanel filePanel = new JPanel(new GridLayout(0, 3));
+		filePanel.add(new JLabel("Old demo:"));
+		filePanel.add(oldField);
+		filePanel.add(new JButton(new BrowseAction(oldField)));
+		filePanel.add(new JLabel("New demo:"));
+		filePanel.add(newField);
+		filePanel.add(new JButton(new BrowseAction(newField)));
+		add(filePanel, BorderLayout.NORTH);
+
+		add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+
+		JPanel bottomPanel = new JPanel(new BorderLayout());
+		bottomPanel.add(statusLabel, BorderLayout.NORTH);
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(new JButton(new AbstractAction("Compare") {
+			public void actionPerformed(ActionEvent e) {
+				compare();
+			}
+		}));
+		buttonPanel.add(new JButton(new AbstractAction("Save Patch...") {
+			public void actionPerformed(ActionEvent e) {
+				savePatch();
+			}
+		}));
+		buttonPanel.add(new JButton(new AbstractAction("Apply Patch...") {
+			public void actionPerformed(ActionEvent e) {
+				applyPatch();
+			}
+		}));
+		buttonPanel.add(new JButton(new AbstractAction("Close") {
+			public void actionPerformed(ActionEvent e) {
+				setVisible(false);
+			}
+		}));
+		bottomPanel.add(buttonPanel, BorderLayout.SOUTH);
+		add(bottomPanel, BorderLayout.SOUTH);
+		pack();
+	}
+
+	private class BrowseAction extends AbstractAction {
+		private final JTextField field;
+
+		BrowseAction(JTextField field) {
+			super("Browse");
+			this.field = field;
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			JFileChooser chooser = editor.getDemoFileChooser();
+			if (chooser.showOpenDialog(DemoDiffDialog.this) == JFileChooser.APPROVE_OPTION)
+				field.setText(chooser.getSelectedFile().getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Returns the files named in the old and new fields, or null after
+	 * showing an error if either cannot be read.
+	 */
+	private File[] getFiles() {
+		File oldFile = new File(oldField.getText());
+		File newFile = new File(newField.getText());
+		for (File f : new File[] { oldFile, newFile }) {
+			if (!f.isFile() || !f.canRead()) {
+				showErrorMessage("Cannot find file " + f.getName());
+				return null;
+			}
+		}
+		return new File[] { oldFile, newFile };
+	}
+
+	/**
+	 * Compares the two demos on a separate thread and shows the differences.
+	 */
+	private void compare() {
+		final File[] files = getFiles();
+		if (files == null)
+			return;
+		model.clear();
+		statusLabel.setText("Comparing...");
+		ProgressMonitoringSwingWorker<Comparison> worker = new ProgressMonitoringSwingWorker<Comparison>(
+				this) {
+			@Override
+			protected Comparison doInBackground() throws Exception {
+				final List<DemoDiff.Difference> rows = new ArrayList<DemoDiff.Difference>();
+				DemoDiff diff = new DemoDiff(editor.getComparator()) {
+					@Override
+					protected void difference(Difference d) {
+						if (rows.size() < MAX_ROWS)
+							rows.add(d);
+					}
+
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				final int count = diff.diff(files[0], files[1]);
+				return new Comparison(rows, count);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					final Comparison comparison = get();
+					model.addAll(comparison.rows);
+					if (comparison.count > comparison.rows.size())
+						statusLabel.setText(comparison.count
+								+ " differences; showing the first "
+								+ comparison.rows.size() + ".");
+					else
+						statusLabel.setText(comparison.count + " differences.");
+				} catch (CancellationException e) {
+					statusLabel.setText("Comparison cancelled.");
+				} catch (InterruptedException e) {
+					statusLabel.setText("Comparison cancelled.");
+				} catch (ExecutionException e) {
+					statusLabel.setText(" ");
+					showIOError(e);
+				}
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * The differences to show from a comparison, and how many were found.
+	 */
+	private static class Comparison {
+		final List<DemoDiff.Difference> rows;
+		final int count;
+
+		Comparison(List<DemoDiff.Difference> rows, int count) {
+			this.rows = rows;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Writes a patch from the old demo to the new one.
+	 */
+	private void savePatch() {
+		final File[] files = getFiles();
+		if (files == null)
+			return;
+		final File patchFile = choosePatchFile(false);
+		if (patchFile == null)
+			return;
+		ProgressMonitoringSwingWorker<Integer> worker = new ProgressMonitoringSwingWorker<Integer>(
+				this) {
+			@Override
+			protected Integer doInBackground() throws Exception {
+				DemoPatch patch = new DemoPatch(editor.getComparator()) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				return patch.create(files[0], files[1], patchFile);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					statusLabel.setText("Wrote " + get() + " differences to "
+							+ patchFile.getName() + ".");
+				} catch (CancellationException e) {
+					statusLabel.setText("Patch cancelled.");
+				} catch (InterruptedException e) {
+					statusLabel.setText("Patch cancelled.");
+				} catch (ExecutionException e) {
+					showIOError(e);
+				}
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * Prompts for a demo, a patch and a destination, and applies the patch.
+	 */
+	private void applyPatch() {
+		JFileChooser chooser = editor.getDemoFileChooser();
+		chooser.setDialogTitle("Demo to patch");
+		int returnVal = chooser.showOpenDialog(this);
+		chooser.setDialogTitle(null);
+		if (returnVal != JFileChooser.APPROVE_OPTION)
+			return;
+		final File source = chooser.getSelectedFile();
+		final File patchFile = choosePatchFile(true);
+		if (patchFile == null)
+			return;
+		chooser.setDialogTitle("Save patched demo as");
+		returnVal = chooser.showSaveDialog(this);
+		chooser.setDialogTitle(null);
+		if (returnVal != JFileChooser.APPROVE_OPTION)
+			return;
+		final File dest = chooser.getSelectedFile();
+		if (dest.exists()
+				&& JOptionPane.showConfirmDialog(this,
+						"File exists!  Overwrite?", "Confirm File Overwrite",
+						JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION)
+			return;
+		ProgressMonitoringSwingWorker<Integer> worker = new ProgressMonitoringSwingWorker<Integer>(
+				this) {
+			@Override
+			protected Integer doInBackground() throws Exception {
+				DemoPatch patch = new DemoPatch(editor.getComparator()) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				return patch.apply(source, patchFile, dest);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					statusLabel.setText("Wrote " + get() + " commands to "
+							+ dest.getName() + ".");
+				} catch (CancellationException e) {
+					statusLabel.setText("Patch cancelled.");
+				} catch (InterruptedException e) {
+					statusLabel.setText("Patch cancelled.");
+				} catch (ExecutionException e) {
+					showIOError(e);
+				}
+			}
+		};
+		worker.execute();
+	}
+
+	private File choosePatchFile(boolean open) {
+		JFileChooser chooser = new JFileChooser(editor.getDemoFileChooser()
+				.getCurrentDirectory());
+		int returnVal = open ? chooser.showOpenDialog(this) : chooser
+				.showSaveDialog(this);
+		if (returnVal != JFileChooser.APPROVE_OPTION)
+			return null;
+		File f = chooser.getSelectedFile();
+		if (!open && !f.exists() && !f.getName().contains("."))
+			f = new File(f.getPath() + DemoPatch.EXTENSION);
+		return f;
+	}
+
+	private void showIOError(ExecutionException e) {
+		if (e.getCause() instanceof FileNotFoundException)
+			showErrorMessage("Cannot find file.");
+		else if (e.getCause() != null && e.getCause().getMessage() != null)
+			showErrorMessage(e.getCause().getMessage());
+		else
+			showErrorMessage("I/O Exception");
+	}
+
+	private void showErrorMessage(String msg) {
+		JOptionPane.showMessageDialog(this, msg, "Error",
+				JOptionPane.ERROR_MESSAGE);
+	}
+
+	/**
+	 * Shows one difference per row.
+	 */
+	private static class DiffTableModel extends AbstractTableModel {
+		private final List<DemoDiff.Difference> rows = new ArrayList<DemoDiff.Difference>();
+
+		void clear() {
+			rows.clear();
+			fireTableDataChanged();
+		}
+
+		void addAll(List<DemoDiff.Difference> differences) {
+			if (differences.isEmpty())
+				return;
+			final int first = rows.size();
+			rows.addAll(differences);
+			fireTableRowsInserted(first, rows.size() - 1);
+		}
+
+		public int getRowCount() {
+			return rows.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMN_NAMES.length;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return COLUMN_NAMES[column];
+		}
+
+		public Object getValueAt(int row, int column) {
+			final DemoDiff.Difference d = rows.get(row);
+			final DemoCommand cmd = d.getCommand();
+			switch (column) {
+			case 0:
+				return d.getType();
+			case 1:
+				return cmd.getTime();
+			case 2:
+				return cmd.getReferenceString();
+			case 3:
+				return cmd.getCommand();
+			case 4:
+				return d.getOldCommand() == null ? "" : d.getOldCommand()
+						.getArguments();
+			case 5:
+				return d.getNewCommand() == null ? "" : d.getNewCommand()
+						.getArguments();
+			}
+			return null;
+		}
+	}
+}
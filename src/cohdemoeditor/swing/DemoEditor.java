@@ -10,12 +10,15 @@ import cohdemoeditor.DemoCommand;
 import cohdemoeditor.DemoCommandComparator;
 import cohdemoeditor.DemoCommandList;
 import cohdemoeditor.DemoCommandListFilter;
+import cohdemoeditor.DemoFileFollower;
+import cohdemoeditor.DemoJournal;
 import cohdemoeditor.DemoWizard;
 import cohdemoeditor.DemoWizardManager;
 import cohdemoeditor.DirtyBitListener;
 import cohdemoeditor.DirtyBitTracker;
 import cohdemoeditor.FilterList;
 import cohdemoeditor.FilterListManager;
+import cohdemoeditor.PagedDemoCommandList;
 import cohdemoeditor.config.*;
 import cohdemoeditor.wizards.*;
 import java.io.*;
@@ -52,9 +55,11 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 	private DemoWizardManager wizManager;
 	private DemoEditorListModel listModel;
 	private DemoWizardChooser wizardChooser;
+	private final List<JMenuItem> wizardItems = new ArrayList<JMenuItem>();
 	private FilterListManager flManager;
-	private Action saveAction, newAction, loadAction, quitAction,
-			cascadeAction, undoAction, redoAction, cutAction, copyAction,
+	private Action saveAction, newAction, loadAction, browseAction, followAction,
+			compareAction,
+			quitAction, cascadeAction, undoAction, redoAction, cutAction, copyAction,
 			pasteAction;
 	private ListSelectionListener cmdSelectionListener;
 	private String defaultPath = "c:\\program files\\city of heroes\\client_demos\\";
@@ -65,18 +70,21 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 	private List<String> wizardsToLoad;
 	private Clipboard clipboard;
 	private final DemoCommandComparator comparator;
+	private DemoDiffDialog diffDialog = null;
 
 	/**
 	 * The default file filter shows directories and files that end with
-	 * ".cohdemo"
+	 * ".cohdemo", or ".cohdemo.gz" for compressed demos
 	 */
 	public static final javax.swing.filechooser.FileFilter DEFAULT_FILE_FILTER = new javax.swing.filechooser.FileFilter() {
 		public boolean accept(File file) {
-			return file.getName().endsWith(".cohdemo") || file.isDirectory();
+			return file.getName().endsWith(".cohdemo")
+					|| file.getName().endsWith(".cohdemo.gz")
+					|| file.isDirectory();
 		}
 
 		public String getDescription() {
-			return "City of Heroes Demo Files (*.cohdemo)";
+			return "City of Heroes Demo Files (*.cohdemo, *.cohdemo.gz)";
 		}
 	};
 	public static final TextFieldPopupMenu TEXT_FIELD_POPUP_MENU = new TextFieldPopupMenu();
@@ -137,6 +145,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		wizardChooser = new DemoWizardChooser(this, wizManager);
 		demoChooser = new JFileChooser(defaultPath);
 		demoChooser.addChoosableFileFilter(DEFAULT_FILE_FILTER);
+		new DemoSummaryAccessory(demoChooser);
 		addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
 				close();
@@ -191,6 +200,24 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 			}
 		};
 
+		browseAction = new AbstractAction("Browse") {
+			public void actionPerformed(ActionEvent e) {
+				browseDemo();
+			}
+		};
+
+		followAction = new AbstractAction("Follow") {
+			public void actionPerformed(ActionEvent e) {
+				followDemo();
+			}
+		};
+
+		compareAction = new AbstractAction("Compare") {
+			public void actionPerformed(ActionEvent e) {
+				compareDemos();
+			}
+		};
+
 		quitAction = new AbstractAction("Quit") {
 			public void actionPerformed(ActionEvent e) {
 				close();
@@ -218,6 +245,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		undoAction = new AbstractAction("Undo") {
 			public void actionPerformed(ActionEvent e) {
 				undoManager.undo();
+				commitJournals();
 			}
 		};
 		undoAction.setEnabled(false);
@@ -225,6 +253,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		redoAction = new AbstractAction("Redo") {
 			public void actionPerformed(ActionEvent e) {
 				undoManager.redo();
+				commitJournals();
 			}
 		};
 		redoAction.setEnabled(false);
@@ -252,8 +281,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 				.isDataFlavorAvailable(DataFlavor.stringFlavor));
 		clipboard.addFlavorListener(new FlavorListener() {
 			public void flavorsChanged(FlavorEvent fe) {
-				pasteAction.setEnabled(clipboard
-						.isDataFlavorAvailable(DataFlavor.stringFlavor));
+				refreshPaste();
 			}
 		});
 
@@ -286,7 +314,8 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 
 	/**
 	 * This helper method enables or disables the cut and copy actions depending
-	 * on whether there is a selection on the current demo.
+	 * on whether there is a selection on the current demo. Cut is also
+	 * disabled if the current demo cannot be edited.
 	 */
 	private void refreshCutCopy() {
 		boolean enabled = false;
@@ -297,10 +326,38 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 				enabled = true;
 			}
 		}
-		cutAction.setEnabled(enabled);
+		cutAction.setEnabled(enabled && isSelectedDemoEditable());
 		copyAction.setEnabled(enabled);
 	}
 
+	/**
+	 * This helper method enables the paste action if there is text on the
+	 * clipboard and the current demo, if any, can be edited.
+	 */
+	private void refreshPaste() {
+		pasteAction.setEnabled(isSelectedDemoEditable()
+				&& clipboard.isDataFlavorAvailable(DataFlavor.stringFlavor));
+	}
+
+	/**
+	 * This helper method enables the wizards only if the current demo, if
+	 * any, can be edited.
+	 */
+	private void refreshWizards() {
+		final boolean enabled = isSelectedDemoEditable();
+		for (JMenuItem item : wizardItems)
+			item.setEnabled(enabled);
+	}
+
+	/**
+	 * Determines if the currently selected demo can be edited. True if no
+	 * demo is selected.
+	 */
+	private boolean isSelectedDemoEditable() {
+		DemoCommandListEditor dcle = getSelectedDemo();
+		return dcle == null || dcle.getDemoCommandList().isEditable();
+	}
+
 	/**
 	 * Helper method to execute a cut or copy command. Use the parameter isCut
 	 * to tell it which one.
@@ -315,6 +372,8 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		if (dcle == null)
 			return;
 		DemoCommandList dcl = dcle.getDemoCommandList();
+		if (isCut && !dcl.isEditable())
+			return;
 		ListSelectionModel lsm = dcle.getListSelectionModel();
 		if (lsm.isSelectionEmpty())
 			return;
@@ -323,7 +382,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		for (int i = end; i >= start; i--) {
 			if (lsm.isSelectedIndex(i)) {
 				DemoCommand cmd = dcl.getVisibleCommand(i);
-				int absIndex = dcl.indexOf(cmd);
+				int absIndex = dcl.getAbsoluteIndex(i);
 				int offset = 0;
 				if (absIndex > 0) {
 					offset = dcl.getCommand(absIndex - 1).getTime();
@@ -337,6 +396,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		clipboard.setContents(ss, ss);
 		if (ce.isSignificant()) {
 			undoManager.addEdit(ce);
+			commitJournals();
 		}
 	}
 
@@ -359,6 +419,8 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 			targetEditor = DemoEditor.this.addDemo(target);
 		} else {
 			target = targetEditor.getDemoCommandList();
+			if (!target.isEditable())
+				return;
 		}
 		try {
 			str = (String) clipboard.getData(DataFlavor.stringFlavor);
@@ -399,6 +461,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		ce.end();
 		if (ce.isSignificant())
 			undoManager.addEdit(ce);
+			commitJournals();
 		if (badStrings.size() > 0) {
 			badStrings.add(0, "The following lines could not be parsed:");
 			JOptionPane.showMessageDialog(DemoEditor.this,
@@ -442,6 +505,19 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		if (edit == null)
 			return;
 		undoManager.addEdit(edit);
+		commitJournals();
+	}
+
+	/**
+	 * Commits the journal of every open demo, so that each edit is recorded
+	 * as soon as it is made.
+	 */
+	private void commitJournals() {
+		for (DemoCommandListEditor dcle : demoWindows) {
+			DemoJournal journal = dcle.getDemoCommandList().getJournal();
+			if (journal != null)
+				journal.commit();
+		}
 	}
 
 	/**
@@ -485,6 +561,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		addWizard(new AutoPYRWizard());
 		addWizard(new AutoPOSWizard());
 		addWizard(new LargeFileFilterWizard());
+		addWizard(new MergeDemosWizard());
 		addWizard(new ExtractMovementPathWizard());
 		addWizard(new CAMCoordinateWizard());
 		addWizard(new CommandStrippingWizard());
@@ -809,9 +886,12 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		JMenuItem wizButton = new JMenuItem(wizard.getName());
 		wizButton.addActionListener(new AbstractAction() {
 			public void actionPerformed(ActionEvent e) {
-				wizard.runWizard(DemoEditor.this);
+				if (isSelectedDemoEditable())
+					wizard.runWizard(DemoEditor.this);
 			}
 		});
+		wizButton.setEnabled(isSelectedDemoEditable());
+		wizardItems.add(wizButton);
 		wizardMenu.add(wizButton);
 	}
 
@@ -825,6 +905,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 	public DemoCommandListEditor addDemo(final DemoCommandList cmdList) {
 		final DemoCommandListEditor cmdEditor = new DemoCommandListEditor(
 				cmdList);
+		DemoJournal.attach(cmdList);
 		demoWindows.add(cmdEditor);
 		desktopPane.add(cmdEditor);
 		JInternalFrame prevSelection = desktopPane.getSelectedFrame();
@@ -909,6 +990,7 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 			File f = demoChooser.getSelectedFile();
 			try {
 				cmdList.saveFile(f);
+				DemoJournal.attach(cmdList);
 			} catch (FileNotFoundException e) {
 				showErrorMessage("Error finding the destination file.");
 				e.printStackTrace();
@@ -964,6 +1046,11 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 				}
 			}
 		}
+		for (DemoCommandListEditor dcle : demoWindows) {
+			DemoJournal journal = dcle.getDemoCommandList().getJournal();
+			if (journal != null)
+				journal.close();
+		}
 		saveConfig();
 	}
 
@@ -982,18 +1069,86 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 	}
 
 	/**
-	 * Action method. This method opens a JFileChooser to prompt the user for a
-	 * file to open. If the user selects a file, it is forwarded to
-	 * DemoCommandList.loadFile for the actual loading.
+	 * Action method. This method opens a JFileChooser to prompt the user for
+	 * one or more files to open. A single file is forwarded to
+	 * DemoCommandList.loadFile for the actual loading; several files are read
+	 * together by a MultiDemoLoadDialog.
 	 */
 	public void loadDemo() {
-		int returnVal = demoChooser.showOpenDialog(this);
+		demoChooser.setMultiSelectionEnabled(true);
+		int returnVal;
+		File[] files;
+		try {
+			returnVal = demoChooser.showOpenDialog(this);
+			files = demoChooser.getSelectedFiles();
+		} finally {
+			demoChooser.setMultiSelectionEnabled(false);
+		}
 		if (returnVal == JFileChooser.APPROVE_OPTION) {
-			File f = demoChooser.getSelectedFile();
-			DemoCommandList.loadFile(f, this);
+			if (files.length == 0)
+				files = new File[] { demoChooser.getSelectedFile() };
+			if (files.length == 1)
+				DemoCommandList.loadFile(files[0], this);
+			else
+				MultiDemoLoadDialog.loadFiles(files, this);
 		}
 	}
 
+	/**
+	 * Action method. This method prompts the user for a file and a time range,
+	 * and opens that part of the file as a read-only PagedDemoCommandList. Use
+	 * this for demos that are too large to load.
+	 */
+	public void browseDemo() {
+		int returnVal = demoChooser.showOpenDialog(this);
+		if (returnVal != JFileChooser.APPROVE_OPTION)
+			return;
+		File f = demoChooser.getSelectedFile();
+		JTextField startField = new JTextField(10);
+		JTextField endField = new JTextField(10);
+		JPanel panel = new JPanel(new java.awt.GridLayout(0, 2));
+		panel.add(new JLabel("Start time (blank for beginning):"));
+		panel.add(startField);
+		panel.add(new JLabel("End time (blank for end):"));
+		panel.add(endField);
+		if (JOptionPane.showConfirmDialog(this, panel, "Browse "
+				+ f.getName(), JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+			return;
+		int startTime = Integer.MIN_VALUE;
+		int endTime = Integer.MAX_VALUE;
+		try {
+			if (startField.getText().trim().length() > 0)
+				startTime = Integer.valueOf(startField.getText().trim());
+			if (endField.getText().trim().length() > 0)
+				endTime = Integer.valueOf(endField.getText().trim());
+		} catch (NumberFormatException e) {
+			showErrorMessage("The start and end times must be integers.");
+			return;
+		}
+		PagedDemoCommandList.browseFile(f, startTime, endTime, this);
+	}
+
+	/**
+	 * Action method. This method prompts the user for a demo file that is
+	 * still being recorded and opens it in follow mode, so commands are added
+	 * as they are written.
+	 */
+	public void followDemo() {
+		int returnVal = demoChooser.showOpenDialog(this);
+		if (returnVal == JFileChooser.APPROVE_OPTION)
+			DemoFileFollower.follow(demoChooser.getSelectedFile(), this);
+	}
+
+	/**
+	 * Action method. Shows the DemoDiffDialog for comparing two demo files
+	 * and creating and applying patches.
+	 */
+	public void compareDemos() {
+		if (diffDialog == null)
+			diffDialog = new DemoDiffDialog(this);
+		diffDialog.setVisible(true);
+	}
+
 	/**
 	 * Listener method. The DemoEditor listens to each of its
 	 * DemoCommandListEditors, and this method is fired whenever one of their
@@ -1040,6 +1195,8 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		dcle.getMenuItem().setSelected(true);
 		refreshDirty();
 		refreshCutCopy();
+		refreshPaste();
+		refreshWizards();
 	}
 
 	/**
@@ -1050,12 +1207,18 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 	public void internalFrameClosed(InternalFrameEvent e) {
 		final int index = demoWindows.indexOf(e.getSource());
 		if (index != -1) {
+			DemoJournal journal = demoWindows.get(index).getDemoCommandList()
+					.getJournal();
+			if (journal != null)
+				journal.close();
 			demoWindows.remove(index);
 			listModel.fireListeners(new ListDataEvent(listModel,
 					ListDataEvent.INTERVAL_REMOVED, index, index));
 			removeItemFromWindowMenu(((DemoCommandListEditor) e.getSource())
 					.getMenuItem());
 			refreshDirty();
+			refreshPaste();
+			refreshWizards();
 		}
 	}
 
@@ -1156,9 +1319,12 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 					JMenuItem menuItem = new JMenuItem(wizard.getName());
 					menuItem.addActionListener(new AbstractAction() {
 						public void actionPerformed(ActionEvent ae) {
-							wizard.runWizard(DemoEditor.this);
+							if (isSelectedDemoEditable())
+								wizard.runWizard(DemoEditor.this);
 						}
 					});
+					menuItem.setEnabled(isSelectedDemoEditable());
+					wizardItems.add(menuItem);
 					wizardMenu.add(menuItem);
 				}
 			} catch (FileNotFoundException fnfe) {
@@ -1387,6 +1553,9 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		newMenuItem = new javax.swing.JMenuItem();
 		saveMenuItem = new javax.swing.JMenuItem();
 		loadMenuItem = new javax.swing.JMenuItem();
+		browseMenuItem = new javax.swing.JMenuItem();
+		compareMenuItem = new javax.swing.JMenuItem();
+		followMenuItem = new javax.swing.JMenuItem();
 		jSeparator4 = new javax.swing.JSeparator();
 		quitMenuItem = new javax.swing.JMenuItem();
 		editMenu = new javax.swing.JMenu();
@@ -1476,6 +1645,21 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 		loadMenuItem.setText("Load Demo");
 		fileMenu.add(loadMenuItem);
 
+		browseMenuItem.setAction(browseAction);
+		browseMenuItem.setMnemonic('B');
+		browseMenuItem.setText("Browse Large Demo...");
+		fileMenu.add(browseMenuItem);
+
+		followMenuItem.setAction(followAction);
+		followMenuItem.setMnemonic('F');
+		followMenuItem.setText("Follow Demo...");
+		fileMenu.add(followMenuItem);
+
+		compareMenuItem.setAction(compareAction);
+		compareMenuItem.setMnemonic('C');
+		compareMenuItem.setText("Compare Demos...");
+		fileMenu.add(compareMenuItem);
+
 		fileMenu.add(jSeparator4);
 
 		quitMenuItem.setAction(quitAction);
@@ -1660,10 +1844,13 @@ public class DemoEditor extends javax.swing.JFrame implements DirtyBitListener,
 
 	// Variables declaration - do not modify//GEN-BEGIN:variables
 	private javax.swing.JMenuItem aboutButton;
+	private javax.swing.JMenuItem browseMenuItem;
 	private javax.swing.JMenuItem cascadeMenuItem;
+	private javax.swing.JMenuItem compareMenuItem;
 	private javax.swing.JMenuItem copyMenuItem;
 	private javax.swing.JMenuItem cutMenuItem;
 	private javax.swing.JDesktopPane desktopPane;
+	private javax.swing.JMenuItem followMenuItem;
 	private javax.swing.JMenu editMenu;
 	private javax.swing.JMenu fileMenu;
 	private javax.swing.JMenuItem helpContentsMenuItem;
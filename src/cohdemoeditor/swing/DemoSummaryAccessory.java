@@ -0,0 +1,123 @@
+package cohdemoeditor.swing;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JFileChooser;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
+
+import cohdemoeditor.DemoCommand;
+import cohdemoeditor.DemoFileSummary;
+
+/**
+ * A DemoSummaryAccessory sits beside the file list of a JFileChooser and
+ * shows a DemoFileSummary of the selected demo. Each summary is scanned on a
+ * SwingWorker, and selecting another file cancels the scan in progress.
+ *
+ * @author Darren Lee
+ */
+@SuppressWarnings("serial")
+public class DemoSummaryAccessory extends JPanel implements
+		PropertyChangeListener {
+
+	private static final int MAX_COMMANDS_SHOWN = 8;
+
+	private final JTextArea text = new JTextArea();
+	private SwingWorker<DemoFileSummary, Void> worker = null;
+
+	/**
+	 * Creates a new accessory and installs it in the given chooser.
+	 *
+	 * @param chooser
+	 */
+	public DemoSummaryAccessory(JFileChooser chooser) {
+		super(new BorderLayout());
+		text.setEditable(false);
+		text.setOpaque(false);
+		add(new JScrollPane(text), BorderLayout.CENTER);
+		setPreferredSize(new Dimension(220, 200));
+		chooser.setAccessory(this);
+		chooser.addPropertyChangeListener(
+				JFileChooser.SELECTED_FILE_CHANGED_PROPERTY, this);
+	}
+
+	/**
+	 * Starts summarizing the newly selected file.
+	 */
+	public void propertyChange(PropertyChangeEvent evt) {
+		if (worker != null)
+			worker.cancel(true);
+		worker = null;
+		final File file = (File) evt.getNewValue();
+		if (file == null || !file.isFile()) {
+			text.setText("");
+			return;
+		}
+		text.setText("Reading " + file.getName() + "...");
+		worker = new SwingWorker<DemoFileSummary, Void>() {
+			@Override
+			protected DemoFileSummary doInBackground() throws Exception {
+				return DemoFileSummary.summarize(file);
+			}
+
+			@Override
+			protected void done() {
+				if (isCancelled() || worker != this)
+					return;
+				try {
+					text.setText(describe(get()));
+				} catch (InterruptedException e) {
+					text.setText("");
+				} catch (ExecutionException e) {
+					text.setText("Could not read " + file.getName());
+				}
+				text.setCaretPosition(0);
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * Returns a few lines of text describing the summary.
+	 *
+	 * @param summary
+	 * @return
+	 */
+	public static String describe(DemoFileSummary summary) {
+		StringBuilder sb = new StringBuilder();
+		final int seconds = summary.getDuration() / 1000;
+		sb.append("Length: ").append(seconds / 60).append(":");
+		if (seconds % 60 < 10)
+			sb.append("0");
+		sb.append(seconds % 60).append("\n");
+		if (summary.getMapName() != null)
+			sb.append("Map: ").append(summary.getMapName()).append("\n");
+		if (summary.getVersion() != null)
+			sb.append("Version: ").append(summary.getVersion()).append("\n");
+		sb.append("Lines: ").append(summary.getLineCount()).append("\n");
+		if (summary.getBadLineCount() > 0)
+			sb.append("Invalid lines: ").append(summary.getBadLineCount())
+					.append("\n");
+		sb.append("References: ").append(summary.getReferenceCount()).append(
+				"\n");
+		sb.append("Camera commands: ").append(
+				summary.getReferenceCount(DemoCommand.CAM_INDEX)).append("\n");
+		int shown = 0;
+		for (Map.Entry<String, Integer> e : summary.getCommandHistogram()
+				.entrySet()) {
+			if (shown++ == MAX_COMMANDS_SHOWN)
+				break;
+			sb.append("  ").append(e.getKey()).append(": ").append(
+					e.getValue()).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,339 @@
+package cohdemoeditor.swing;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.*;
+
+import cohdemoeditor.DemoCommandList;
+import cohdemoeditor.DemoJournal;
+import cohdemoeditor.ParallelDemoLoader;
+
+/**
+ * A MultiDemoLoadDialog opens several demo files at once. The files are read
+ * by a pool of at most MAX_LOADERS loader threads, and each file has a row in
+ * the dialog showing its progress and how fast it is being read. Each demo is
+ * added to the DemoEditor as soon as it has been read, without waiting for the
+ * others.
+ *
+ * The available processors are shared out among the loaders, so each
+ * ParallelDemoLoader splits its file over fewer threads than it would if it
+ * were alone. Cancelling stops every file that has not been opened yet; the
+ * demos already added stay open. The dialog closes itself once every file has
+ * been opened, and otherwise stays open so the problems can be read.
+ *
+ * @author Darren Lee
+ */
+@SuppressWarnings("serial")
+public class MultiDemoLoadDialog extends JCenteringDialog {
+
+	/**
+	 * The largest number of files read at the same time.
+	 */
+	public static final int MAX_LOADERS = 4;
+	private static final int REFRESH_INTERVAL = 250;
+	private static final double MEGABYTE = 1 << 20;
+
+	private final DemoEditor editor;
+	private final Row[] rows;
+	private final ExecutorService pool;
+	private final int loaderThreads;
+	private final Timer timer;
+	private final JButton button = new JButton();
+	private int remaining;
+	private boolean problems = false;
+
+	/**
+	 * Opens the given files in the given editor, asking first whether to
+	 * recover any unsaved changes left behind by an earlier session. Returns
+	 * immediately; the files are read in the background.
+	 *
+	 * @param files
+	 * @param editor
+	 */
+	public static void loadFiles(File[] files, DemoEditor editor) {
+		boolean[] recover = new boolean[files.length];
+		for (int i = 0; i < files.length; i++) {
+			recover[i] = DemoCommandList.askToRecover(files[i], editor);
+		}
+		new MultiDemoLoadDialog(editor, files, recover).start();
+	}
+
+	private MultiDemoLoadDialog(DemoEditor editor, File[] files,
+			boolean[] recover) {
+		super(editor, "Opening " + files.length + " demos", false);
+		this.editor = editor;
+		final int loaders = Math.max(1, Math.min(files.length, Math.min(
+				MAX_LOADERS, Runtime.getRuntime().availableProcessors())));
+		pool = Executors.newFixedThreadPool(loaders);
+		loaderThreads = Math.max(1, Runtime.getRuntime()
+				.availableProcessors()
+				/ loaders);
+		remaining = files.length;
+
+		JPanel panel = new JPanel(new GridBagLayout());
+		GridBagConstraints c = new GridBagConstraints();
+		c.insets = new Insets(2, 4, 2, 4);
+		c.anchor = GridBagConstraints.WEST;
+		rows = new Row[files.length];
+		for (int i = 0; i < files.length; i++) {
+			rows[i] = new Row(files[i], recover[i]);
+			c.gridy = i;
+			c.gridx = 0;
+			c.weightx = 0;
+			c.fill = GridBagConstraints.NONE;
+			panel.add(new JLabel(files[i].getName()), c);
+			c.gridx = 1;
+			c.weightx = 1;
+			c.fill = GridBagConstraints.HORIZONTAL;
+			panel.add(rows[i].progressBar, c);
+			c.gridx = 2;
+			c.weightx = 0;
+			c.fill = GridBagConstraints.NONE;
+			panel.add(rows[i].statusLabel, c);
+		}
+		JScrollPane scroller = new JScrollPane(panel);
+		setLayout(new BorderLayout());
+		add(scroller, BorderLayout.CENTER);
+
+		final Action cancelAction = new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (remaining > 0)
+					cancel();
+				else
+					close();
+			}
+		};
+		cancelAction.putValue(Action.NAME, "Cancel");
+		cancelAction.putValue(Action.SHORT_DESCRIPTION,
+				"Stops opening the demos that have not been opened yet.");
+		button.setAction(cancelAction);
+		JPanel buttonPanel = new JPanel(new FlowLayout());
+		buttonPanel.add(button);
+		add(buttonPanel, BorderLayout.SOUTH);
+
+		setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				if (remaining > 0)
+					cancel();
+				else
+					close();
+			}
+		});
+
+		timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				for (Row row : rows) {
+					row.refresh();
+				}
+			}
+		});
+
+		pack();
+		final Dimension size = getSize();
+		setSize(Math.max(size.width, 500), Math.min(size.height, 400));
+	}
+
+	/**
+	 * Submits every file to the pool and shows the dialog.
+	 */
+	private void start() {
+		for (Row row : rows) {
+			pool.execute(row);
+		}
+		pool.shutdown();
+		timer.start();
+		setVisible(true);
+	}
+
+	/**
+	 * Stops the files that are still being read or waiting to be read.
+	 */
+	private void cancel() {
+		pool.shutdownNow();
+		for (Row row : rows) {
+			if (!row.finished)
+				row.finish("Cancelled", null);
+		}
+	}
+
+	private void close() {
+		timer.stop();
+		setVisible(false);
+		dispose();
+	}
+
+	/**
+	 * Called on the event dispatch thread after each file is finished.
+	 */
+	private void fileFinished() {
+		remaining--;
+		if (remaining > 0)
+			return;
+		timer.stop();
+		for (Row row : rows) {
+			row.refresh();
+		}
+		if (problems) {
+			button.getAction().putValue(Action.NAME, "Close");
+			button.getAction().putValue(Action.SHORT_DESCRIPTION,
+					"Closes this dialog.");
+		} else {
+			close();
+		}
+	}
+
+	/**
+	 * One file: the task that reads it, and the components that show how far
+	 * it has got.
+	 */
+	private class Row implements Runnable {
+		private final File file;
+		private final boolean recover;
+		private final long length;
+		private final List<String> badLines = new ArrayList<String>();
+		private final JProgressBar progressBar = new JProgressBar(0, 100);
+		private final JLabel statusLabel = new JLabel("Waiting");
+		private volatile ParallelDemoLoader loader = null;
+		private volatile int percent = 0;
+		private volatile long startTime = 0;
+		private boolean finished = false;
+
+		private Row(File file, boolean recover) {
+			this.file = file;
+			this.recover = recover;
+			this.length = file.length();
+			statusLabel.setPreferredSize(new Dimension(180, statusLabel
+					.getPreferredSize().height));
+		}
+
+		public void run() {
+			startTime = System.currentTimeMillis();
+			try {
+				final DemoCommandList cmdList;
+				if (recover) {
+					cmdList = DemoJournal.recover(file);
+				} else {
+					loader = new ParallelDemoLoader(file, loaderThreads) {
+						@Override
+						protected void progressChanged(int percent) {
+							Row.this.percent = percent;
+						}
+					};
+					cmdList = DemoCommandList.readFile(loader, badLines);
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						opened(cmdList);
+					}
+				});
+			} catch (InterruptedException e) {
+				// cancelled
+			} catch (InterruptedIOException e) {
+				// cancelled
+			} catch (final Throwable t) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						failed(t);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Shows the progress and the rate at which the file is being read.
+		 */
+		private void refresh() {
+			if (finished || startTime == 0)
+				return;
+			if (recover) {
+				progressBar.setIndeterminate(true);
+				statusLabel.setText("Recovering changes");
+				return;
+			}
+			final ParallelDemoLoader current = loader;
+			long bytes = length * percent / 100;
+			if (current != null)
+				bytes = Math.max(bytes, current.getBytesRead());
+			final long elapsed = System.currentTimeMillis() - startTime;
+			progressBar.setValue(length == 0 ? 0 : (int) (100 * bytes / length));
+			if (elapsed > 0)
+				statusLabel.setText(String.format("%.1f MB/s", bytes * 1000.0
+						/ elapsed / MEGABYTE));
+		}
+
+		private void opened(DemoCommandList cmdList) {
+			if (finished)
+				return;
+			editor.addDemo(cmdList);
+			final long elapsed = Math.max(1, System.currentTimeMillis()
+					- startTime);
+			progressBar.setIndeterminate(false);
+			progressBar.setValue(100);
+			if (badLines.isEmpty()) {
+				finish(String.format("Opened (%.1f MB/s)", length * 1000.0
+						/ elapsed / MEGABYTE), null);
+			} else {
+				problems = true;
+				final StringBuilder tip = new StringBuilder("<html>");
+				for (String line : badLines.subList(0, Math.min(20, badLines
+						.size()))) {
+					tip.append(line.replace("&", "&amp;").replace("<", "&lt;"))
+							.append("<br>");
+				}
+				finish("Opened; " + badLines.size()
+						+ " lines could not be read", tip.append("</html>")
+						.toString());
+			}
+		}
+
+		private void failed(Throwable t) {
+			problems = true;
+			progressBar.setIndeterminate(false);
+			if (t instanceof FileNotFoundException) {
+				finish("Could not find the file", null);
+			} else if (recover && t instanceof IOException) {
+				finish("Could not recover the changes", t.getMessage());
+			} else if (t instanceof IOException) {
+				finish("I/O error", t.getMessage());
+			} else if (t instanceof OutOfMemoryError) {
+				finish("JVM out of memory",
+						"Allocate more memory to the JVM, or open the file "
+								+ "read-only with File > Browse Large Demo.");
+			} else {
+				finish("Error", t.toString());
+			}
+		}
+
+		/**
+		 * Shows the final status of the file. A file is only finished once.
+		 */
+		private void finish(String status, String toolTip) {
+			if (finished)
+				return;
+			finished = true;
+			statusLabel.setText(status);
+			statusLabel.setToolTipText(toolTip);
+			fileFinished();
+		}
+	}
+}
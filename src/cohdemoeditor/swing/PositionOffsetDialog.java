@@ -48,6 +48,10 @@ public class PositionOffsetDialog extends JCenteringDialog {
 	 * Performs the offset by delegating to DemoCommandList.offSetPositions
 	 */
 	public void doOffset() {
+		if (!cmdList.isEditable()) {
+			setVisible(false);
+			return;
+		}
 		DemoEditor.getEditor().addUndoableEdit(cmdList.offSetPositions(xField.getDouble(),
 				zField.getDouble(), yField.getDouble()));
 		setVisible(false);
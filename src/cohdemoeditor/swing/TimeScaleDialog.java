@@ -89,6 +89,8 @@ public class TimeScaleDialog extends JCenteringDialog {
 	 * Helper method to do the actual rescaling by delegating to DemoCommandList.scaleTimes
 	 */
 	private void doRescaling() {
+		if (!target.isEditable())
+			return;
 		if (timeButton.isSelected()) {
 			DemoEditor.getEditor().addUndoableEdit(target.scaleTimes((Integer) startSpinner
 					.getValue(), (Integer) endSpinner.getValue()));
@@ -113,6 +113,8 @@ public class TimeShiftDialog extends JCenteringDialog {
 	 * Performs the time shift by delegating to DemoCommandList.offSetTimes
 	 */
 	private void doTimeShift() {
+		if (!cmdList.isEditable())
+			return;
 		int value = (Integer) spinner.getValue();
 		DemoEditor.getEditor().addUndoableEdit(cmdList.offSetTimes(value));
 	}
@@ -257,8 +257,7 @@ public class AutoPYRWizard extends DemoWizardDialog {
 										showErrorMessage("The selected COSTUME command does not have a height argument.");
 									} else {
 										try {
-											double d = Double.parseDouble(cmd
-													.getArgument(2));
+											double d = cmd.getDouble(2);
 											ZTargetOffset.setText(Double
 													.toString(6 + d / 12));
 										} catch (NumberFormatException nfe) {
@@ -282,8 +281,7 @@ public class AutoPYRWizard extends DemoWizardDialog {
 							showErrorMessage("The reference's COSTUME command does not have a height argument.");
 						} else {
 							try {
-								double d = Double.parseDouble(cmd
-										.getArgument(2));
+								double d = cmd.getDouble(2);
 								ZTargetOffset.setText(Double
 										.toString(6 + d / 12));
 							} catch (NumberFormatException nfe) {
@@ -514,14 +512,14 @@ public class AutoPYRWizard extends DemoWizardDialog {
 		while (true) {
 			if (trackDone && targetDone)
 				break;
-			double xOffset = Double.parseDouble(currentTrackPOS.getArgument(0))
-					- Double.parseDouble(currentPOS.getArgument(0))
+			double xOffset = currentTrackPOS.getDouble(0)
+					- currentPOS.getDouble(0)
 					+ XTargetOffset.getDouble();
-			double zOffset = Double.parseDouble(currentTrackPOS.getArgument(1))
-					- Double.parseDouble(currentPOS.getArgument(1))
+			double zOffset = currentTrackPOS.getDouble(1)
+					- currentPOS.getDouble(1)
 					+ ZTargetOffset.getDouble();
-			double yOffset = Double.parseDouble(currentTrackPOS.getArgument(2))
-					- Double.parseDouble(currentPOS.getArgument(2))
+			double yOffset = currentTrackPOS.getDouble(2)
+					- currentPOS.getDouble(2)
 					+ YTargetOffset.getDouble();
 			final int trackTime = currentTrackPOS.getTime();
 			final int targetTime = currentPOS.getTime();
@@ -610,19 +608,13 @@ public class AutoPYRWizard extends DemoWizardDialog {
 			String args = "";
 			double xOffset, yOffset, zOffset;
 			if (nextPOS != null) {
-				xOffset = Double.parseDouble(nextPOS.getArgument(0))
-						- Double.parseDouble(currentPOS.getArgument(0));
-				zOffset = Double.parseDouble(nextPOS.getArgument(1))
-						- Double.parseDouble(currentPOS.getArgument(1));
-				yOffset = Double.parseDouble(nextPOS.getArgument(2))
-						- Double.parseDouble(currentPOS.getArgument(2));
+				xOffset = nextPOS.getDouble(0) - currentPOS.getDouble(0);
+				zOffset = nextPOS.getDouble(1) - currentPOS.getDouble(1);
+				yOffset = nextPOS.getDouble(2) - currentPOS.getDouble(2);
 			} else {
-				xOffset = Double.parseDouble(currentPOS.getArgument(0))
-						- Double.parseDouble(lastPOS.getArgument(0));
-				zOffset = Double.parseDouble(currentPOS.getArgument(1))
-						- Double.parseDouble(lastPOS.getArgument(1));
-				yOffset = Double.parseDouble(currentPOS.getArgument(2))
-						- Double.parseDouble(lastPOS.getArgument(2));
+				xOffset = currentPOS.getDouble(0) - lastPOS.getDouble(0);
+				zOffset = currentPOS.getDouble(1) - lastPOS.getDouble(1);
+				yOffset = currentPOS.getDouble(2) - lastPOS.getDouble(2);
 			}
 			if (pGenButton.isSelected()) {
 				double theta = (Math.atan2(zOffset, Math.sqrt(xOffset * xOffset
@@ -654,12 +646,9 @@ public class AutoPYRWizard extends DemoWizardDialog {
 				}
 			}
 			if (rGenButton.isSelected() && lastPOS != null && nextPOS != null) {
-				double lastX = Double.parseDouble(currentPOS.getArgument(0))
-						- Double.parseDouble(lastPOS.getArgument(0));
-				double lastZ = Double.parseDouble(currentPOS.getArgument(1))
-						- Double.parseDouble(lastPOS.getArgument(1));
-				double lastY = Double.parseDouble(currentPOS.getArgument(2))
-						- Double.parseDouble(lastPOS.getArgument(2));
+				double lastX = currentPOS.getDouble(0) - lastPOS.getDouble(0);
+				double lastZ = currentPOS.getDouble(1) - lastPOS.getDouble(1);
+				double lastY = currentPOS.getDouble(2) - lastPOS.getDouble(2);
 				double newY = Math.cos(theta) * lastY - Math.sin(theta) * lastX;
 				double mag = Math.sqrt(newY * newY + lastZ * lastZ);
 				double newRotation = Math.asin(lastZ / mag);
@@ -13,7 +13,6 @@ import javax.swing.*;
 import cohdemoeditor.DemoCommand;
 import cohdemoeditor.DemoCommandList;
 import cohdemoeditor.DemoCommandListFilter;
-import cohdemoeditor.swing.DemoCommandListEditor;
 
 /**
  * This wizard switches the PYR coordinates of the CAM object between the usual
@@ -53,6 +52,7 @@ public class CAMCoordinateWizard extends DemoWizardDialog {
 		buttonPanel.add(loadButton);
 		panel.add(buttonPanel, BorderLayout.EAST);
 		list = new JList();
+		DemoListRenderer.install(list);
 		list.setPreferredSize(new Dimension(150, 150));
 		panel.add(list, BorderLayout.CENTER);
 	}
@@ -87,9 +87,9 @@ public class CAMCoordinateWizard extends DemoWizardDialog {
 		if (getDemoEditor() == null || list.getSelectedIndex() < 0)
 			return false;
 
-		DemoCommandListEditor dcle = getDemoEditor().getDemoCommandListEditor(
-				list.getSelectedIndex());
-		DemoCommandList dcl = dcle.getDemoCommandList();
+		DemoCommandList dcl = getEditableDemo(list.getSelectedIndex());
+		if (dcl == null)
+			return false;
 
 		DemoCommandListFilter filter = new DemoCommandListFilter(
 				DemoCommandListFilter.SHOW_THESE);
@@ -108,10 +108,7 @@ public class CAMCoordinateWizard extends DemoWizardDialog {
 				}
 				String pArg = cmd.getArgument(0);
 				try {
-					double d = Double.valueOf(pArg);
-					d *= -1;
-					String newArg = Double.toString(d);
-					cmd.setArgument(0, newArg);
+					cmd.setDouble(0, -cmd.getDouble(0));
 				} catch (NumberFormatException nfe) {
 					showErrorMessage("The CAM PYR command \"" + cmd
 							+ "\" has a malformed pitch argument " + pArg);
@@ -119,7 +116,7 @@ public class CAMCoordinateWizard extends DemoWizardDialog {
 				}
 				String arg = cmd.getArgument(1);
 				try {
-					double d = Double.valueOf(arg);
+					double d = cmd.getDouble(1);
 					d += Math.PI;
 					if (d > Math.PI)
 						d -= 2 * Math.PI;
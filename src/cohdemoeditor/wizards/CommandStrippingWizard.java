@@ -35,12 +35,14 @@ public class CommandStrippingWizard extends DemoWizardDialog {
 
 	private DemoCommandList dcl;
 	private static final int NUM_STEPS = 2;
+	private static final int CHAT_ID = DemoCommand.getCommandIdFor("Chat");
 
 	/** Creates a new instance of CommandStrippingWizard */
 	public CommandStrippingWizard() {
 		demoPanel = new JPanel();
 		demoPanel.setLayout(new BorderLayout(0, 0));
 		demoList = new JList();
+		DemoListRenderer.install(demoList);
 		JPanel panel = new JPanel();
 		JButton loadButton = new JButton("Load Demo");
 		loadButton.addActionListener(new ActionListener() {
@@ -103,9 +105,8 @@ public class CommandStrippingWizard extends DemoWizardDialog {
 			int index = demoList.getSelectedIndex();
 			if (index == -1)
 				return false;
-			dcl = getDemoEditor().getDemoCommandListEditor(index)
-					.getDemoCommandList();
-			return true;
+			dcl = getEditableDemo(index);
+			return dcl != null;
 		}
 
 		if (currentStep == 1) {
@@ -139,7 +140,7 @@ public class CommandStrippingWizard extends DemoWizardDialog {
 				final int numCmds = dcl.getCommandCount();
 				for (int i = 0; i < numCmds; i++) {
 					DemoCommand cmd = dcl.getCommand(i);
-					if (cmd.getCommand().equals("Chat")
+					if (cmd.getCommandId() == CHAT_ID
 							&& cmd.getArgumentCount() > 2
 							&& cmd.getArgument(1).equals("2")) {
 						toRemove.addCommand(cmd);
@@ -16,6 +16,7 @@ import cohdemoeditor.DemoCommandList;
 import cohdemoeditor.DemoReference;
 import cohdemoeditor.DemoReferenceList;
 import cohdemoeditor.DemoWizard;
+import cohdemoeditor.swing.DemoCommandListEditor;
 import cohdemoeditor.swing.DemoEditor;
 
 /**
@@ -266,6 +267,24 @@ public abstract class DemoWizardDialog extends DemoWizard {
 				JOptionPane.ERROR_MESSAGE);
 	}
 
+	/**
+	 * Returns the <code>DemoCommandList</code> at the given index of the
+	 * <code>DemoEditor</code>'s list of open demos, or <code>null</code> if
+	 * there is none there or it cannot be edited. Wizards change the demos
+	 * they work on, so a read-only demo cannot be chosen.
+	 * 
+	 * @param index
+	 *            the index of the demo in the <code>DemoEditor</code>
+	 * @return the <code>DemoCommandList</code>, or <code>null</code>
+	 */
+	protected DemoCommandList getEditableDemo(int index) {
+		final DemoCommandListEditor dcle = getDemoEditor()
+				.getDemoCommandListEditor(index);
+		if (dcle == null || !dcle.getDemoCommandList().isEditable())
+			return null;
+		return dcle.getDemoCommandList();
+	}
+
 	/**
 	 * Returns the <code>Component</code> to display for the given step. This
 	 * component should contain the instructions, interface, etc. for the
@@ -404,6 +423,7 @@ public abstract class DemoWizardDialog extends DemoWizard {
 			add(instructionLabel, BorderLayout.NORTH);
 
 			demoList = new JList();
+			DemoListRenderer.install(demoList);
 			demoList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 			demoList.setMinimumSize(new Dimension(150, 150));
 			add(new JScrollPane(demoList,
@@ -448,8 +468,7 @@ public abstract class DemoWizardDialog extends DemoWizard {
 		public DemoCommandList getSelection() {
 			if (demoList.getSelectedIndex() == -1)
 				return null;
-			return getDemoEditor().getDemoCommandListEditor(
-					demoList.getSelectedIndex()).getDemoCommandList();
+			return getEditableDemo(demoList.getSelectedIndex());
 		}
 
 		/**
@@ -628,4 +647,34 @@ public abstract class DemoWizardDialog extends DemoWizard {
 		return Double.toString(d);
 	}
 
+	/**
+	 * This renderer greys out the demos in a list of open demos that cannot
+	 * be edited, and so cannot be chosen for a wizard.
+	 */
+	@SuppressWarnings("serial")
+	protected static class DemoListRenderer extends DefaultListCellRenderer {
+
+		/**
+		 * Makes a new DemoListRenderer the renderer of the given list of
+		 * demos.
+		 * 
+		 * @param list
+		 */
+		public static void install(JList<?> list) {
+			list.setCellRenderer(new DemoListRenderer());
+		}
+
+		@Override
+		public Component getListCellRendererComponent(JList<?> list,
+				Object value, int index, boolean isSelected,
+				boolean cellHasFocus) {
+			super.getListCellRendererComponent(list, value, index, isSelected,
+					cellHasFocus);
+			if (value instanceof DemoCommandListEditor
+					&& !((DemoCommandListEditor) value).getDemoCommandList()
+							.isEditable())
+				setEnabled(false);
+			return this;
+		}
+	}
 }
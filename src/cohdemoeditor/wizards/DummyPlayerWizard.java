@@ -24,6 +24,7 @@ import cohdemoeditor.FilterList;
 public class DummyPlayerWizard extends DemoWizardDialog {
 
 	private static final int NUM_STEPS = 1;
+	private static final int POS_ID = DemoCommand.getCommandIdFor("POS");
 	private final DemoCommandListFilter PLAYER_FILTER = new DemoCommandListFilter();
 	private final DemoCommandListFilter CAM_POS_FILTER = new DemoCommandListFilter();
 
@@ -72,7 +73,7 @@ public class DummyPlayerWizard extends DemoWizardDialog {
 		target.addCommand(new DemoCommand(time, ref, "NPC", "Pet_NoCollision"));
 		for (int i = 0; i < target.getVisibleCommandCount(); i++) {
 			DemoCommand cmd = target.getVisibleCommand(i);
-			if (cmd == null || !cmd.getCommand().equals("POS")
+			if (cmd == null || cmd.getCommandId() != POS_ID
 					|| cmd.getArgumentCount() != 3)
 				continue;
 			target.addCommand(new DemoCommand(cmd.getTime(), ref, "POS", cmd
@@ -26,6 +26,7 @@ public class EmbeddedFeedbackWizard extends DemoWizardDialog {
 	private static final int NUM_STEPS = 3;
 	private static final String DEFAULT_ID_STRING = "(embed)";
 	private static final int LOCAL_CHAT = 10;
+	private static final int CHAT_ID = DemoCommand.getCommandIdFor("Chat");
 
 	private DemoCommandListChooserPanel dclcp;
 
@@ -243,7 +244,7 @@ public class EmbeddedFeedbackWizard extends DemoWizardDialog {
 		final String id = idRemoveTextField.getText();
 		for (int i = 0; i < commandCount; i++) {
 			DemoCommand cmd = target.getCommand(i);
-			if (cmd.getCommand().equals("Chat")
+			if (cmd.getCommandId() == CHAT_ID
 					&& cmd.getArguments().endsWith(
 							" -- EmbeddedFeedbackID: " + id + "\"")) {
 				target.removeCommand(cmd);
@@ -54,6 +54,7 @@ public class ExtractMovementPathWizard extends DemoWizardDialog {
 		steps[0].add(new JLabel("Please select the source demo."),
 				BorderLayout.NORTH);
 		sourceList = new JList();
+		DemoListRenderer.install(sourceList);
 		sourceList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		sourceList.setPreferredSize(new Dimension(150, 150));
 		steps[0].add(sourceList, BorderLayout.CENTER);
@@ -141,9 +142,8 @@ public class ExtractMovementPathWizard extends DemoWizardDialog {
 			int index = sourceList.getSelectedIndex();
 			if (index == -1)
 				return false;
-			dcl = getDemoEditor().getDemoCommandListEditor(index)
-					.getDemoCommandList();
-			return true;
+			dcl = getEditableDemo(index);
+			return dcl != null;
 		}
 
 		if (current == 1) {
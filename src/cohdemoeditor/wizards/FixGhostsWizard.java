@@ -23,6 +23,10 @@ import cohdemoeditor.FilterList;
  */
 public class FixGhostsWizard extends DemoWizardDialog {
 
+	private static final int NEW_ID = DemoCommand.getCommandIdFor("NEW");
+	private static final int DEL_ID = DemoCommand.getCommandIdFor("DEL");
+	private static final int PLAYER_ID = DemoCommand.getCommandIdFor("Player");
+
 	private DemoCommandListChooserPanel dclcp;
 
 	/** Creates a new instance of FixGhostsWizard */
@@ -81,8 +85,8 @@ public class FixGhostsWizard extends DemoWizardDialog {
 		int numNEWActive = 0;
 		for (int i = 0; i < target.getVisibleCommandCount(); i++) {
 			DemoCommand cmd = target.getVisibleCommand(i);
-			String cmdString = cmd.getCommand();
-			if (cmdString.equals("NEW")) {
+			final int cmdId = cmd.getCommandId();
+			if (cmdId == NEW_ID) {
 				if (numNEWActive > 0) {
 					DemoCommand delcmd = new DemoCommand(cmd.getTime(), cmd
 							.getReference(), "DEL", null);
@@ -93,7 +97,7 @@ public class FixGhostsWizard extends DemoWizardDialog {
 					numNEWActive++;
 					continue;
 				}
-			} else if (cmdString.equals("DEL")) {
+			} else if (cmdId == DEL_ID) {
 				if (numNEWActive > 0) {
 					numNEWActive--;
 					continue;
@@ -101,7 +105,7 @@ public class FixGhostsWizard extends DemoWizardDialog {
 					target.removeCommand(i);
 					i--;
 				}
-			} else if (numNEWActive < 1 && !cmdString.equals("Player")) {
+			} else if (numNEWActive < 1 && cmdId != PLAYER_ID) {
 				target.removeCommand(i);
 				i--;
 			} else {
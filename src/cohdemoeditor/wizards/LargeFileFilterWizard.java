@@ -11,18 +11,25 @@
 package cohdemoeditor.wizards;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 
-import cohdemoeditor.DemoCommand;
+import cohdemoeditor.DemoPipeline;
 import cohdemoeditor.FilterList;
 import cohdemoeditor.swing.FilterPanel;
+import cohdemoeditor.swing.JDoubleTextField;
+import cohdemoeditor.swing.ProgressMonitoringSwingWorker;
 
 /**
- * This wizard is designed for filtering files without actually loading the
- * whole thing into memory at once. Thus, it is useful for processing large demo
- * files.
+ * This wizard is designed for filtering and transforming files without
+ * actually loading the whole thing into memory at once. Thus, it is useful for
+ * processing large demo files. The work is done by a DemoPipeline, which
+ * streams the file through a filter stage and whichever transform stages the
+ * user selects.
  * 
  * @author Darren Lee
  */
@@ -33,8 +40,11 @@ public class LargeFileFilterWizard extends DemoWizardDialog {
 	private FilterList filterList;
 	private File infile, outfile;
 	private FilterPanel filters;
+	private JTextField timeOffsetField, remapField;
+	private JDoubleTextField timeScaleField, xField, zField, yField;
+	private JCheckBox chatBox, combatspamBox, floatBox, dmgBox, nameBox;
 
-	private static final int NUMBER_OF_STEPS = 3;
+	private static final int NUMBER_OF_STEPS = 4;
 
 	/** Creates a new instance of LargeFileFilterWizard */
 	@SuppressWarnings("serial")
@@ -86,6 +96,37 @@ public class LargeFileFilterWizard extends DemoWizardDialog {
 		filters = new FilterPanel(filterList, dialog);
 		steps[2].add(filters, BorderLayout.CENTER);
 
+		steps[3] = new JPanel();
+		steps[3].setLayout(new GridLayout(0, 2));
+		steps[3].add(new JLabel("Time offset (ms):"));
+		timeOffsetField = new JTextField("0");
+		steps[3].add(timeOffsetField);
+		steps[3].add(new JLabel("Time scale:"));
+		timeScaleField = new JDoubleTextField();
+		timeScaleField.setDouble(1);
+		steps[3].add(timeScaleField);
+		steps[3].add(new JLabel("POS offset x:"));
+		xField = new JDoubleTextField();
+		steps[3].add(xField);
+		steps[3].add(new JLabel("POS offset z:"));
+		zField = new JDoubleTextField();
+		steps[3].add(zField);
+		steps[3].add(new JLabel("POS offset y:"));
+		yField = new JDoubleTextField();
+		steps[3].add(yField);
+		steps[3].add(new JLabel("Change references (old=new, ...):"));
+		remapField = new JTextField();
+		steps[3].add(remapField);
+		chatBox = new JCheckBox("Strip all chat messages");
+		steps[3].add(chatBox);
+		combatspamBox = new JCheckBox("Strip combat chat messages");
+		steps[3].add(combatspamBox);
+		floatBox = new JCheckBox("Strip floating warnings");
+		steps[3].add(floatBox);
+		dmgBox = new JCheckBox("Strip damage and healing numbers");
+		steps[3].add(dmgBox);
+		nameBox = new JCheckBox("Strip player names");
+		steps[3].add(nameBox);
 	}
 
 	/**
@@ -132,75 +173,126 @@ public class LargeFileFilterWizard extends DemoWizardDialog {
 				showErrorMessage("Cannot write to " + outfile.getName());
 				return false;
 			}
-		} else if (stepNum == 2) {
+		} else if (stepNum == 3) {
+			DemoPipeline pipeline = createPipeline();
+			if (pipeline == null)
+				return false;
+			doFiltering(pipeline);
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the pipeline from the user's choices. Returns null and shows an
+	 * error if any of the fields cannot be read.
+	 */
+	private DemoPipeline createPipeline() {
+		DemoPipeline pipeline = new DemoPipeline();
+		pipeline.add(new DemoPipeline.FilterStage(filterList.clone()));
+
+		Set<String> commands = new HashSet<String>();
+		if (chatBox.isSelected())
+			commands.add("Chat");
+		if (floatBox.isSelected())
+			commands.add("float");
+		if (dmgBox.isSelected())
+			commands.add("floatdmg");
+		if (!commands.isEmpty() || combatspamBox.isSelected()
+				|| nameBox.isSelected())
+			pipeline.add(new DemoPipeline.CommandStripStage(commands,
+					combatspamBox.isSelected(), nameBox.isSelected()));
+
+		int timeOffset;
+		try {
+			timeOffset = Integer.valueOf(timeOffsetField.getText().trim());
+		} catch (NumberFormatException e) {
+			showErrorMessage("The time offset must be an integer.");
+			return null;
+		}
+		final double timeScale = timeScaleField.getDouble();
+		if (timeScale <= 0) {
+			showErrorMessage("The time scale must be positive.");
+			return null;
+		}
+		if (timeOffset != 0 || timeScale != 1)
+			pipeline.add(new DemoPipeline.TimeStage(timeOffset, timeScale));
+
+		final double x = xField.getDouble();
+		final double z = zField.getDouble();
+		final double y = yField.getDouble();
+		if (x != 0 || z != 0 || y != 0)
+			pipeline.add(new DemoPipeline.PositionOffsetStage(x, z, y));
+
+		Map<Integer, Integer> remap = new HashMap<Integer, Integer>();
+		for (String pair : remapField.getText().split(",")) {
+			if (pair.trim().length() == 0)
+				continue;
+			String[] refs = pair.split("=");
 			try {
-				doFiltering();
-			} catch (FileNotFoundException fnfe) {
-				showErrorMessage("Cannot find file.");
-			} catch (IOException ioe) {
-				showErrorMessage("I/O error");
+				if (refs.length != 2)
+					throw new NumberFormatException();
+				remap.put(Integer.valueOf(refs[0].trim()), Integer
+						.valueOf(refs[1].trim()));
+			} catch (NumberFormatException e) {
+				showErrorMessage("Cannot read the reference change \""
+						+ pair.trim() + "\".  Use the form old=new.");
+				return null;
 			}
 		}
-		return true;
+		if (!remap.isEmpty())
+			pipeline.add(new DemoPipeline.ReferenceRemapStage(remap));
+		return pipeline;
 	}
 
 	/**
-	 * Does the actual filtering.
+	 * Does the actual filtering by running the pipeline on a separate thread.
 	 * 
-	 * @throws FileNotFoundException
-	 * @throws IOException
+	 * @param pipeline
 	 */
-	private void doFiltering() throws FileNotFoundException, IOException {
-		ProgressMonitorInputStream pmis = new ProgressMonitorInputStream(
-				steps[1], "Filtering file...", new FileInputStream(infile));
-
-		final BufferedReader reader = new BufferedReader(new InputStreamReader(
-				pmis));
-		final BufferedWriter writer = new BufferedWriter(
-				new FileWriter(outfile));
-		final FilterList filterList = this.filterList;
-
-		Thread thread = new Thread() {
-			public void run() {
-				try {
-					int timeOffset = 0;
-
-					for (String str = reader.readLine(); str != null; str = reader
-							.readLine()) {
-						if (str.trim().equals("")) {
-							writer.write(str);
-							continue;
-						}
-						DemoCommand dcmd = DemoCommand.parseDemoCommand(str);
-						if (dcmd == null) {
-							if (reader != null)
-								reader.close();
-							if (writer != null)
-								writer.close();
-							showErrorMessage(infile.getName()
-									+ " is not a valid .cohdemo file.");
-							return;
-						}
-
-						// offset time
-						timeOffset += dcmd.getTime();
-
-						if (filterList.isVisible(dcmd)) {
-							dcmd.setTime(timeOffset);
-							writer.write(dcmd.toString() + "\n");
-							timeOffset = 0;
-						}
+	private void doFiltering(final DemoPipeline pipeline) {
+		final File infile = this.infile;
+		final File outfile = this.outfile;
+		ProgressMonitoringSwingWorker<Integer> worker = new ProgressMonitoringSwingWorker<Integer>(
+				dialog) {
+			@Override
+			protected Integer doInBackground() throws Exception {
+				DemoPipeline monitored = new DemoPipeline(pipeline) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
 					}
-					reader.close();
-					writer.close();
-				} catch (InterruptedIOException iioe) {
+				};
+				int written = monitored.run(infile, outfile);
+				if (monitored.getBadLineCount() > 0)
+					publish("Skipped " + monitored.getBadLineCount()
+							+ " invalid lines in " + infile.getName() + ".");
+				return written;
+			}
+
+			@Override
+			protected void process(java.util.List<String> messages) {
+				for (String message : messages)
+					showErrorMessage(message);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					get();
+				} catch (CancellationException e) {
+					showErrorMessage("Filtering cancelled!");
+				} catch (InterruptedException e) {
 					showErrorMessage("Filtering cancelled!");
-				} catch (IOException ioe) {
-					showErrorMessage("I/O Exception");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof FileNotFoundException)
+						showErrorMessage("Cannot find file.");
+					else
+						showErrorMessage("I/O Exception");
 				}
 			}
 		};
-		thread.start();
+		worker.execute();
 	}
 
 	/**
@@ -211,6 +303,17 @@ public class LargeFileFilterWizard extends DemoWizardDialog {
 		sourceField.setText("");
 		destField.setText("");
 		filterList.clear();
+		timeOffsetField.setText("0");
+		timeScaleField.setDouble(1);
+		xField.setDouble(0);
+		zField.setDouble(0);
+		yField.setDouble(0);
+		remapField.setText("");
+		chatBox.setSelected(false);
+		combatspamBox.setSelected(false);
+		floatBox.setSelected(false);
+		dmgBox.setSelected(false);
+		nameBox.setSelected(false);
 	}
 
 	/**
@@ -231,7 +334,7 @@ public class LargeFileFilterWizard extends DemoWizardDialog {
 	 * Returns a brief description of the wizard.
 	 */
 	public String getDescription() {
-		return "This wizard allows the user to extract commands from very large demo files without having to load the entire file into memory at once.";
+		return "This wizard allows the user to extract and transform commands from very large demo files without having to load the entire file into memory at once.";
 	}
 
 }
@@ -0,0 +1,240 @@
+package cohdemoeditor.wizards;
+
+import java.io.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+
+import cohdemoeditor.DemoMerger;
+import cohdemoeditor.swing.ProgressMonitoringSwingWorker;
+
+/**
+ * This wizard merges several demo files into one, in the order given by the
+ * editor's DemoCommandComparator. The files are streamed through a
+ * DemoMerger, so they never have to be loaded, and entity references shared
+ * between the files can be renumbered so the entities stay separate.
+ * 
+ * @author Darren Lee
+ */
+public class MergeDemosWizard extends DemoWizardDialog {
+
+	private JPanel[] steps;
+	private DefaultListModel<String> sourceModel;
+	private JList<String> sourceList;
+	private JTextField destField;
+	private JCheckBox remapBox;
+	private File outfile;
+
+	private static final int NUMBER_OF_STEPS = 3;
+
+	/** Creates a new instance of MergeDemosWizard */
+	@SuppressWarnings("serial")
+	public MergeDemosWizard() {
+		steps = new JPanel[NUMBER_OF_STEPS];
+
+		steps[0] = new JPanel();
+		steps[0].setLayout(new BorderLayout(0, 0));
+		steps[0].add(new JLabel("Please choose the demo files to merge."),
+				BorderLayout.NORTH);
+		sourceModel = new DefaultListModel<String>();
+		sourceList = new JList<String>(sourceModel);
+		steps[0].add(new JScrollPane(sourceList), BorderLayout.CENTER);
+		JPanel sourceButtons = new JPanel();
+		JButton addButton = new JButton("Add");
+		addButton.addActionListener(new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = getDemoEditor().getDemoFileChooser();
+				chooser.setMultiSelectionEnabled(true);
+				try {
+					if (chooser.showOpenDialog(dialog) == JFileChooser.APPROVE_OPTION) {
+						for (File file : chooser.getSelectedFiles())
+							sourceModel.addElement(file.getAbsolutePath());
+					}
+				} finally {
+					chooser.setMultiSelectionEnabled(false);
+				}
+			}
+		});
+		sourceButtons.add(addButton);
+		JButton removeButton = new JButton("Remove");
+		removeButton.addActionListener(new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				int[] selected = sourceList.getSelectedIndices();
+				for (int i = selected.length - 1; i >= 0; i--)
+					sourceModel.remove(selected[i]);
+			}
+		});
+		sourceButtons.add(removeButton);
+		steps[0].add(sourceButtons, BorderLayout.SOUTH);
+
+		steps[1] = new JPanel();
+		steps[1].setLayout(new BoxLayout(steps[1], BoxLayout.Y_AXIS));
+		steps[1].add(new JLabel(
+				"Where would you like to save the merged file?"));
+		destField = new JTextField();
+		steps[1].add(destField);
+		JButton destButton = new JButton("Browse");
+		destButton.addActionListener(new AbstractAction() {
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = getDemoEditor().getDemoFileChooser();
+				int returnVal = chooser.showSaveDialog(dialog);
+				if (returnVal == JFileChooser.APPROVE_OPTION) {
+					destField.setText(chooser.getSelectedFile()
+							.getAbsolutePath());
+				}
+			}
+		});
+		steps[1].add(destButton);
+
+		steps[2] = new JPanel();
+		steps[2].setLayout(new BoxLayout(steps[2], BoxLayout.Y_AXIS));
+		remapBox = new JCheckBox(
+				"Renumber references used in more than one demo", true);
+		steps[2].add(remapBox);
+	}
+
+	/**
+	 * Returns the appropriate component for each step.
+	 */
+	protected Component getComponentForStep(int stepNum) {
+		if (stepNum < 0 || stepNum >= getNumberOfSteps())
+			return null;
+		return steps[stepNum];
+	}
+
+	/**
+	 * Validates the input for each step and performs the actual merge by
+	 * delegating to doMerge.
+	 */
+	protected boolean validateCurrentStep() {
+		int stepNum = getCurrentStep();
+
+		if (stepNum == 0) {
+			if (sourceModel.size() < 2) {
+				showErrorMessage("Please choose at least two files to merge.");
+				return false;
+			}
+			for (int i = 0; i < sourceModel.size(); i++) {
+				File infile = new File(sourceModel.get(i));
+				if (!infile.isFile() || !infile.canRead()) {
+					showErrorMessage("Cannot find file " + infile.getName());
+					return false;
+				}
+			}
+		} else if (stepNum == 1) {
+			outfile = new File(destField.getText());
+			for (int i = 0; i < sourceModel.size(); i++) {
+				if (outfile.equals(new File(sourceModel.get(i)))) {
+					showErrorMessage("The merged file cannot be one of the files being merged.");
+					return false;
+				}
+			}
+			if (outfile.exists()) {
+				int returnVal = JOptionPane.showConfirmDialog(dialog,
+						"File exists!  Overwrite?", "Confirm File Overwrite",
+						JOptionPane.YES_NO_OPTION);
+				if (!outfile.isFile() || returnVal != JOptionPane.YES_OPTION) {
+					return false;
+				}
+			}
+			if (outfile.exists() && !outfile.canWrite()) {
+				showErrorMessage("Cannot write to " + outfile.getName());
+				return false;
+			}
+		} else if (stepNum == 2) {
+			doMerge();
+		}
+		return true;
+	}
+
+	/**
+	 * Does the actual merge on a separate thread.
+	 */
+	private void doMerge() {
+		final File outfile = this.outfile;
+		final boolean remap = remapBox.isSelected();
+		final File[] infiles = new File[sourceModel.size()];
+		for (int i = 0; i < infiles.length; i++)
+			infiles[i] = new File(sourceModel.get(i));
+		ProgressMonitoringSwingWorker<Integer> worker = new ProgressMonitoringSwingWorker<Integer>(
+				dialog) {
+			@Override
+			protected Integer doInBackground() throws Exception {
+				DemoMerger merger = new DemoMerger(getDemoEditor()
+						.getComparator()) {
+					@Override
+					protected void progressChanged(int percent) {
+						setProgress(percent);
+					}
+				};
+				for (File infile : infiles)
+					merger.addSource(infile);
+				if (remap)
+					merger.remapConflicts();
+				int written = merger.merge(outfile);
+				if (merger.getBadLineCount() > 0)
+					publish("Skipped " + merger.getBadLineCount()
+							+ " invalid lines.");
+				return written;
+			}
+
+			@Override
+			protected void process(java.util.List<String> messages) {
+				for (String message : messages)
+					showErrorMessage(message);
+			}
+
+			@Override
+			protected void done() {
+				super.done();
+				try {
+					get();
+				} catch (CancellationException e) {
+					showErrorMessage("Merge cancelled!");
+				} catch (InterruptedException e) {
+					showErrorMessage("Merge cancelled!");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof FileNotFoundException)
+						showErrorMessage("Cannot find file.");
+					else
+						showErrorMessage("I/O Exception");
+				}
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * Resets the UI to its initial values.
+	 */
+	protected void resetWizard() {
+		super.resetWizard();
+		sourceModel.clear();
+		destField.setText("");
+		remapBox.setSelected(true);
+	}
+
+	/**
+	 * Returns the name of the wizard.
+	 */
+	public String getName() {
+		return "Merge Demos Wizard";
+	}
+
+	/**
+	 * Returns the number of steps in the wizard.
+	 */
+	protected int getNumberOfSteps() {
+		return NUMBER_OF_STEPS;
+	}
+
+	/**
+	 * Returns a brief description of the wizard.
+	 */
+	public String getDescription() {
+		return "This wizard merges several demo files into one without loading them into memory, renumbering references that would otherwise collide.";
+	}
+
+}
@@ -115,9 +115,9 @@ public class POSAnalysisWizard extends DemoWizardDialog {
 			}
 			double x, y, z;
 			try {
-				x = Double.parseDouble(cmd.getArgument(0));
-				z = Double.parseDouble(cmd.getArgument(1));
-				y = Double.parseDouble(cmd.getArgument(2));
+				x = cmd.getDouble(0);
+				z = cmd.getDouble(1);
+				y = cmd.getDouble(2);
 			} catch (NumberFormatException nfe) {
 				badlines++;
 				continue;
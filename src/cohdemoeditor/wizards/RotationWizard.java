@@ -11,6 +11,9 @@ import cohdemoeditor.swing.JDoubleTextField;
 
 public class RotationWizard extends DemoWizardDialog {
 
+	private static final int POS_ID = DemoCommand.getCommandIdFor("POS");
+	private static final int PYR_ID = DemoCommand.getCommandIdFor("PYR");
+
 	private final JPanel mainPanel;
 	private final JDoubleTextField centerXField, centerYField, rotationField;
 	private final JCheckBox posBox, pyrBox;
@@ -28,10 +31,10 @@ public class RotationWizard extends DemoWizardDialog {
 				final int size = target.getVisibleCommandCount();
 				for(int i = 0; i < size; i++) {
 					final DemoCommand cmd = target.getVisibleCommand(i);
-					if ("POS".equals(cmd.getCommand()) && cmd.getArgumentCount() == 3) {
+					if (cmd.getCommandId() == POS_ID && cmd.getArgumentCount() == 3) {
 						try {
-							final double x = Double.parseDouble(cmd.getArgument(0));
-							final double y = Double.parseDouble(cmd.getArgument(2));
+							final double x = cmd.getDouble(0);
+							final double y = cmd.getDouble(2);
 							centerXField.setText(Double.toString(x));
 							centerYField.setText(Double.toString(y));
 							return;
@@ -51,10 +54,10 @@ public class RotationWizard extends DemoWizardDialog {
 				final int size = target.getVisibleCommandCount();
 				for(int i = size-1; i >= 0; i--) {
 					final DemoCommand cmd = target.getVisibleCommand(i);
-					if ("POS".equals(cmd.getCommand()) && cmd.getArgumentCount() == 3) {
+					if (cmd.getCommandId() == POS_ID && cmd.getArgumentCount() == 3) {
 						try {
-							final double x = Double.parseDouble(cmd.getArgument(0));
-							final double y = Double.parseDouble(cmd.getArgument(2));
+							final double x = cmd.getDouble(0);
+							final double y = cmd.getDouble(2);
 							centerXField.setText(Double.toString(x));
 							centerYField.setText(Double.toString(y));
 							return;
@@ -158,12 +161,12 @@ public class RotationWizard extends DemoWizardDialog {
 		final double sinR = Math.sin(R);
 		for (int i = 0; i < numCmds; i++) {
 			final DemoCommand cmd = target.getVisibleCommand(i);
-			if (pos && cmd.getCommand().equals("POS")) {
+			if (pos && cmd.getCommandId() == POS_ID) {
 				if (cmd.getArgumentCount() == 3) {
 					final double cmdX, cmdY;
 					try {
-						cmdX = Double.parseDouble(cmd.getArgument(0));
-						cmdY = Double.parseDouble(cmd.getArgument(2));
+						cmdX = cmd.getDouble(0);
+						cmdY = cmd.getDouble(2);
 					} catch (NumberFormatException nfe) {
 						continue;
 					}
@@ -173,11 +176,11 @@ public class RotationWizard extends DemoWizardDialog {
 							* sinR + y));
 				}
 			}
-			if (pyr && cmd.getCommand().equals("PYR")) {
+			if (pyr && cmd.getCommandId() == PYR_ID) {
 				if (cmd.getArgumentCount() == 3) {
 					double yaw;
 					try {
-						yaw = Double.parseDouble(cmd.getArgument(1));
+						yaw = cmd.getDouble(1);
 					} catch (NumberFormatException nfe) {
 						continue;
 					}
@@ -181,8 +181,7 @@ public class VanityDemoWizard extends DemoWizardDialog {
 		FilterList filters = target.getFilterList();
 		int height = 6;
 		if (target.getVisibleCommand(0).getCommand().equals("COSTUME")) {
-			height += Double.parseDouble(target.getVisibleCommand(0)
-					.getArgument(2)) / 12;
+			height += target.getVisibleCommand(0).getDouble(2) / 12;
 		}
 		DemoCommandList vanity = new DemoCommandList();
 		vanity.addCommand(new DemoCommand(1, 0, "Version", "2"));